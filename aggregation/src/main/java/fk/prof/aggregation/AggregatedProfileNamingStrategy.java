@@ -6,17 +6,28 @@ import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.storage.FileNamingStrategy;
 
 import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 
 /**
+ * Path of a file is "{baseDir}/v{version}/{appId}/{clusterId}/{procId}/{startTime}/{duration}/{workType or summary}/{part}". Files stored with
+ * hour partitioning have the UTC date and hour of their start time, as "{yyyy-MM-dd}/{HH}", before the start time, so that files of a time
+ * range can be listed by the hours overlapping it instead of the complete days.
+ * Rollups, i.e. windows merged into an hour or a day, are stored alike under "{baseDir}/rollups", so that they are not listed along with
+ * the windows they were merged from.
  * @author gaurav.ashok
  */
 public class AggregatedProfileNamingStrategy implements FileNamingStrategy {
 
     private static final String DELIMITER = "/";
+    private static final String ROLLUP_DIR = "rollups";
     private static final String FILE_FORMAT  = "%s/v%04d/%s/%s/%s/%s/%d/%s";
+    private static final String METHOD_LOOKUP_FILE_FORMAT = "%s/methods/%s/%s/%s/%s";
+    private static final String MANIFEST_DIR_FORMAT = "%s/manifests/%s/%s/%s/%s/";
+    private static final DateTimeFormatter MANIFEST_TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
 
     public final String baseDir;
     public final int version;
@@ -28,10 +39,16 @@ public class AggregatedProfileNamingStrategy implements FileNamingStrategy {
     public final AggregatedProfileModel.WorkType workType;
 
     public final boolean isSummaryFile;
+    public final boolean isHourPartitioned;
 
     private final String fileNamePrefix;
 
     public AggregatedProfileNamingStrategy(String baseDir, int version, String appId, String clusterId, String procId, ZonedDateTime startTime, int duration, AggregatedProfileModel.WorkType workType) {
+        this(baseDir, version, appId, clusterId, procId, startTime, duration, workType, false);
+    }
+
+    public AggregatedProfileNamingStrategy(String baseDir, int version, String appId, String clusterId, String procId, ZonedDateTime startTime, int duration,
+                                           AggregatedProfileModel.WorkType workType, boolean isHourPartitioned) {
         this.baseDir = baseDir;
         this.version = version;
         this.appId = appId;
@@ -41,12 +58,18 @@ public class AggregatedProfileNamingStrategy implements FileNamingStrategy {
         this.duration = duration;
         this.workType = workType;
         this.isSummaryFile = false;
+        this.isHourPartitioned = isHourPartitioned;
 
         fileNamePrefix = String.format(FILE_FORMAT, baseDir, version, encode32(appId), encode32(clusterId),
-                encode32(procId), startTime, duration, workType.name());
+                encode32(procId), getStartTimeSegment(startTime, isHourPartitioned), duration, workType.name());
     }
 
     public AggregatedProfileNamingStrategy(String baseDir, int version, String appId, String clusterId, String procId, ZonedDateTime startTime, int duration) {
+        this(baseDir, version, appId, clusterId, procId, startTime, duration, false);
+    }
+
+    public AggregatedProfileNamingStrategy(String baseDir, int version, String appId, String clusterId, String procId, ZonedDateTime startTime, int duration,
+                                           boolean isHourPartitioned) {
         this.baseDir = baseDir;
         this.version = version;
         this.appId = appId;
@@ -56,9 +79,10 @@ public class AggregatedProfileNamingStrategy implements FileNamingStrategy {
         this.duration = duration;
         this.workType = null;
         this.isSummaryFile = true;
+        this.isHourPartitioned = isHourPartitioned;
 
         fileNamePrefix = String.format(FILE_FORMAT, baseDir, version, encode32(appId), encode32(clusterId),
-                encode32(procId), startTime, duration, "summary");
+                encode32(procId), getStartTimeSegment(startTime, isHourPartitioned), duration, "summary");
     }
 
     public static AggregatedProfileNamingStrategy fromHeader(String baseDir, AggregatedProfileModel.Header header) {
@@ -79,20 +103,95 @@ public class AggregatedProfileNamingStrategy implements FileNamingStrategy {
         return fileNamePrefix + String.format("/%04d", part);
     }
 
+    /**
+     * @return path of the index stored alongside the parts of an indexed aggregation file
+     */
+    public String getIndexFileName() {
+        return fileNamePrefix + DELIMITER + "index";
+    }
+
+    /**
+     * @return path of the gzipped json view of a trace context, precomputed while storing the aggregation file
+     */
+    public String getTraceCtxViewFileName(String traceName) {
+        return fileNamePrefix + DELIMITER + "views" + DELIMITER + encode32(traceName);
+    }
+
+    /**
+     * Method lookups are content addressed and shared by aggregation files of the process group, so their path does not depend on the
+     * version or the aggregation window of the file.
+     * @return path of the method lookup with the given digest, referred to by an aggregation file
+     */
+    public String getMethodLookupFileName(String digest) {
+        return String.format(METHOD_LOOKUP_FILE_FORMAT, baseDir, encode32(appId), encode32(clusterId), encode32(procId), digest);
+    }
+
+    /**
+     * Manifests are per process group and day, listing the aggregation files of all versions, so their path does not depend on the
+     * version of a file.
+     * @return dir under which the manifest entries of aggregation windows of the process group which started on the given date, in UTC, are stored
+     */
+    public static String getManifestDirName(String baseDir, String appId, String clusterId, String procId, LocalDate date) {
+        return String.format(MANIFEST_DIR_FORMAT, baseDir, encode32(appId), encode32(clusterId), encode32(procId), date);
+    }
+
+    /**
+     * Every window has its own entry in the manifest dir of its day, named by its start time in UTC and its duration, so that entries list
+     * in the order of start time and rollups of an hour and of its day, which start at the same time, are told apart.
+     * @return path of the manifest entry of the aggregation window of the process group
+     */
+    public static String getManifestEntryFileName(String baseDir, String appId, String clusterId, String procId, ZonedDateTime startTime,
+                                                  int duration) {
+        ZonedDateTime utcStartTime = startTime.withZoneSameInstant(ZoneOffset.UTC);
+        return getManifestDirName(baseDir, appId, clusterId, procId, utcStartTime.toLocalDate()) + MANIFEST_TIME_FORMAT.format(utcStartTime)
+                + "_" + duration;
+    }
+
+    /**
+     * @return base dir under which rollups of the aggregation windows stored under the given base dir are stored
+     */
+    public static String getRollupBaseDir(String baseDir) {
+        return baseDir + DELIMITER + ROLLUP_DIR;
+    }
+
+    /**
+     * @return "{yyyy-MM-dd}/{HH}" of the time in UTC, under which files starting in that hour are stored with hour partitioning
+     */
+    public static String getHourPartition(ZonedDateTime time) {
+        ZonedDateTime utcTime = time.withZoneSameInstant(ZoneOffset.UTC);
+        return utcTime.toLocalDate() + DELIMITER + String.format("%02d", utcTime.getHour());
+    }
+
     public static AggregatedProfileNamingStrategy fromFileName(String path) {
         if(StringUtils.isNullOrEmpty(path)) {
             throw new IllegalArgumentException();
         }
         String[] tokens = path.split(DELIMITER);
 
-        if("summary".equals(tokens[7])) {
-            return new AggregatedProfileNamingStrategy(tokens[0], Integer.parseInt(tokens[1].substring(1)), decode32(tokens[2]), decode32(tokens[3]), decode32(tokens[4]),
-                    ZonedDateTime.parse(tokens[5], DateTimeFormatter.ISO_ZONED_DATE_TIME), Integer.parseInt(tokens[6]));
+        // base dir of rollups spans the rollups directory as well
+        int baseDirLength = tokens.length > 1 && ROLLUP_DIR.equals(tokens[1]) ? 2 : 1;
+        String baseDir = baseDirLength == 1 ? tokens[0] : getRollupBaseDir(tokens[0]);
+        int versionIdx = baseDirLength;
+        int appIdIdx = versionIdx + 1;
+
+        // start time follows the process in files stored without hour partitioning, the date follows it otherwise
+        boolean isHourPartitioned = !tokens[appIdIdx + 3].contains("T");
+        int startTimeIdx = appIdIdx + (isHourPartitioned ? 5 : 3);
+        ZonedDateTime startTime = ZonedDateTime.parse(tokens[startTimeIdx], DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        int duration = Integer.parseInt(tokens[startTimeIdx + 1]);
+        int version = Integer.parseInt(tokens[versionIdx].substring(1));
+
+        if("summary".equals(tokens[startTimeIdx + 2])) {
+            return new AggregatedProfileNamingStrategy(baseDir, version, decode32(tokens[appIdIdx]), decode32(tokens[appIdIdx + 1]), decode32(tokens[appIdIdx + 2]),
+                    startTime, duration, isHourPartitioned);
         }
 
-        return new AggregatedProfileNamingStrategy(tokens[0], Integer.parseInt(tokens[1].substring(1)), decode32(tokens[2]), decode32(tokens[3]), decode32(tokens[4]),
-                ZonedDateTime.parse(tokens[5], DateTimeFormatter.ISO_ZONED_DATE_TIME), Integer.parseInt(tokens[6]),
-                AggregatedProfileModel.WorkType.valueOf(tokens[7]));
+        return new AggregatedProfileNamingStrategy(baseDir, version, decode32(tokens[appIdIdx]), decode32(tokens[appIdIdx + 1]), decode32(tokens[appIdIdx + 2]),
+                startTime, duration, AggregatedProfileModel.WorkType.valueOf(tokens[startTimeIdx + 2]), isHourPartitioned);
+    }
+
+    private static String getStartTimeSegment(ZonedDateTime startTime, boolean isHourPartitioned) {
+        return isHourPartitioned ? getHourPartition(startTime) + DELIMITER + startTime : startTime.toString();
     }
 
     private static String encode32(String str) {
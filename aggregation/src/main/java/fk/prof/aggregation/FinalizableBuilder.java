@@ -21,5 +21,9 @@ public abstract class FinalizableBuilder<T> {
     }
   }
 
+  protected boolean isFinalized() {
+    return finalized;
+  }
+
   protected abstract T buildFinalizedEntity();
 }
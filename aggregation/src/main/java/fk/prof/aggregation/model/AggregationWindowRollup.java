@@ -0,0 +1,124 @@
+package fk.prof.aggregation.model;
+
+import fk.prof.aggregation.FinalizableBuilder;
+import fk.prof.aggregation.proto.AggregatedProfileModel.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges stored aggregation windows of a process group into a single window spanning all of them, e.g. an hour or a day, so that a long
+ * time range can be loaded as one file instead of as every window in it. Windows are added as read back from their files:
+ * <ul>
+ *   <li>work infos of all the windows are retained, with their start offsets made relative to the start of the rollup</li>
+ *   <li>method lookups are merged into a lookup of the rollup, to which method ids of the trees of the window are translated</li>
+ *   <li>stacktrace trees of a trace context are merged node by node, adding up the samples, see {@link CpuSamplingFrameNode#merge}</li>
+ * </ul>
+ * Not thread-safe.
+ */
+public class AggregationWindowRollup extends FinalizableBuilder<FinalizedAggregationWindow> {
+  private final String appId;
+  private final String clusterId;
+  private final String procId;
+  private final LocalDateTime start;
+  private final int durationInSecs;
+
+  private final MethodIdLookup methodIdLookup = new MethodIdLookup();
+  private final Map<String, CpuSamplingTraceDetail> traceDetailLookup = new HashMap<>();
+  // work ids are not stored, so work infos are keyed by the order in which they are added
+  private final Map<Long, FinalizedProfileWorkInfo> workInfoLookup = new HashMap<>();
+
+  /**
+   * @param start start of the rollup in UTC, which is not to be after the start of any of the windows added to it
+   */
+  public AggregationWindowRollup(String appId, String clusterId, String procId, LocalDateTime start, int durationInSecs) {
+    this.appId = appId;
+    this.clusterId = clusterId;
+    this.procId = procId;
+    this.start = start;
+    this.durationInSecs = durationInSecs;
+  }
+
+  /**
+   * Adds work infos of a window, as read from its summary file
+   * @param windowStart start of the window in UTC, to which start offsets of the work infos are relative
+   * @param traces names of the trace contexts of the window, indexed by coverages and sample errors of the work infos
+   */
+  public void addWorkInfos(LocalDateTime windowStart, List<String> traces, Iterable<ProfileWorkInfo> workInfos) {
+    ensureEntityIsWriteable();
+    if (windowStart.isBefore(start)) {
+      throw new IllegalArgumentException("Window starting at " + windowStart + " starts before the rollup starting at " + start);
+    }
+    for (ProfileWorkInfo workInfo : workInfos) {
+      workInfoLookup.put((long) workInfoLookup.size(), FinalizedProfileWorkInfo.fromProfileWorkInfoProto(workInfo, windowStart, traces));
+    }
+  }
+
+  /**
+   * Adds methods of the lookup of a window to the lookup of the rollup
+   * @return indexed array where arr[idx] = method id in the rollup and idx = method id in the lookup of the window, to be passed along
+   * with trees of the window
+   */
+  public int[] addMethodLookup(MethodLookUp methodLookup) {
+    ensureEntityIsWriteable();
+    return methodIdLookup.addAll(MethodIdLookup.fromMethodIdLookupProto(methodLookup));
+  }
+
+  /**
+   * Merges the stacktrace tree of a trace context of a window into the tree of the same trace context in the rollup
+   * @param sampleCount samples of the trace context in the window
+   * @param frameNodes nodes of the tree in dfs order, as they are stored, starting with the global root
+   * @param methodIdMapping as returned by {@link #addMethodLookup(MethodLookUp)} for the method lookup of the window
+   */
+  public void addTraceCtx(String traceName, int sampleCount, Iterable<FrameNode> frameNodes, int[] methodIdMapping) {
+    ensureEntityIsWriteable();
+    CpuSamplingTraceDetail traceDetail = traceDetailLookup.computeIfAbsent(traceName, k -> new CpuSamplingTraceDetail());
+    traceDetail.addSamples(sampleCount);
+
+    Iterator<FrameNode> nodes = frameNodes.iterator();
+    if (!nodes.hasNext()) {
+      return;
+    }
+    // parents of the next node, with count of their children yet to be visited
+    Deque<CpuSamplingFrameNode> parents = new ArrayDeque<>();
+    Deque<Integer> pendingChildCounts = new ArrayDeque<>();
+
+    FrameNode root = nodes.next();
+    addSamples(traceDetail.getGlobalRoot(), root);
+    parents.push(traceDetail.getGlobalRoot());
+    pendingChildCounts.push(root.getChildCount());
+
+    while (nodes.hasNext()) {
+      FrameNode node = nodes.next();
+      while (!pendingChildCounts.isEmpty() && pendingChildCounts.peek() == 0) {
+        parents.pop();
+        pendingChildCounts.pop();
+      }
+      if (parents.isEmpty()) {
+        throw new IllegalArgumentException("Stacktrace tree of trace context: " + traceName + " has more nodes than its child counts add up to");
+      }
+      pendingChildCounts.push(pendingChildCounts.pop() - 1);
+
+      CpuSamplingFrameNode child = traceDetail.getOrAddChild(parents.peek(), methodIdMapping[node.getMethodId()], node.getLineNo());
+      addSamples(child, node);
+      parents.push(child);
+      pendingChildCounts.push(node.getChildCount());
+    }
+  }
+
+  @Override
+  protected FinalizedAggregationWindow buildFinalizedEntity() {
+    return new FinalizedAggregationWindow(appId, clusterId, procId, start, start.plusSeconds(durationInSecs), durationInSecs, workInfoLookup,
+        new FinalizedCpuSamplingAggregationBucket(methodIdLookup, traceDetailLookup));
+  }
+
+  private static void addSamples(CpuSamplingFrameNode target, FrameNode source) {
+    target.addOnStackSamples(source.getCpuSamplingProps().getOnStackSamples());
+    target.addOnCpuSamples(source.getCpuSamplingProps().getOnCpuSamples());
+  }
+}
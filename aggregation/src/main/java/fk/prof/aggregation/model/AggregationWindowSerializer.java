@@ -1,105 +1,354 @@
 package fk.prof.aggregation.model;
 
+import com.google.common.hash.Hashing;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.aggregation.serialize.Crc32c;
 import fk.prof.aggregation.serialize.SerializationException;
 import fk.prof.aggregation.serialize.Serializer;
+import fk.prof.storage.CompressionCodec;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.Adler32;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.Checksum;
-import java.util.zip.GZIPOutputStream;
 
 /**
+ * Writes format v2 of the aggregation file. File is a sequence of independently compressed sections: head (magic num, header, trace
+ * names, trace details and profiles summary) and stacktrace tree of every trace context in order of trace names. Every section is
+ * checksummed by itself with CRC32C. Position of the sections is described by the {@link AggregatedProfileModel.AggregationFileIndex}
+ * built after serialization, so that a section can be read without reading the rest of the file. Index also has count of parts in which the
+ * file was stored and uncompressed length of every section, so that a reader can fetch all parts and decompress sections concurrently.
+ * Trees are encoded concurrently on the encode executor, at most a bounded count of them at a time, but written in order, so the file does
+ * not depend on the executor. Method lookup is not part of the file. It is encoded as a {@link MethodLookupDictionary}, stored by itself and referred to by the
+ * digest of its content from the index, so that windows having the same set of methods share it. Method ids are canonical, i.e.
+ * independent of the order in which methods were seen, for the same reason. Format v1 was compressed as a whole and had no index.
  * @author gaurav.ashok
  */
 public class AggregationWindowSerializer implements Serializer {
 
-    public static final int VERSION = 1;
+    public static final int VERSION = 2;
     public static final int AGGREGATION_FILE_MAGIC_NUM = 0x19A9F5C2;
     public static final int STACKTRACETREE_SERIAL_BATCHSIZE = 1000;
+    public static final int DEFAULT_TREES_IN_FLIGHT = 4;
+    // sections are read back into arrays, and their lengths are stored as uint32 in the index
+    static final long MAX_SECTION_LENGTH = Integer.MAX_VALUE;
 
     private AggregatedProfileModel.WorkType workType;
     private FinalizedAggregationWindow aggregation;
+    private CompressionCodec compressionCodec;
+    private Executor encodeExecutor;
+    private int treesInFlight;
+
+    private AggregatedProfileModel.AggregationFileIndex.Builder index = null;
+    private long serializedLength = 0;
+    private MethodLookupDictionary methodLookupDictionary = null;
 
     public AggregationWindowSerializer(FinalizedAggregationWindow aggregation, AggregatedProfileModel.WorkType workType) {
+        this(aggregation, workType, CompressionCodec.GZIP);
+    }
+
+    /**
+     * Stacktrace trees are encoded one at a time on the serializing thread.
+     */
+    public AggregationWindowSerializer(FinalizedAggregationWindow aggregation, AggregatedProfileModel.WorkType workType, CompressionCodec compressionCodec) {
+        this(aggregation, workType, compressionCodec, Runnable::run, 1);
+    }
+
+    /**
+     * @param encodeExecutor executor on which stacktrace trees are encoded and compressed
+     * @param treesInFlight max count of trees being encoded or waiting to be written at a time, which bounds the memory held by encoded trees
+     */
+    public AggregationWindowSerializer(FinalizedAggregationWindow aggregation, AggregatedProfileModel.WorkType workType, CompressionCodec compressionCodec,
+                                       Executor encodeExecutor, int treesInFlight) {
+        if(treesInFlight <= 0) {
+            throw new IllegalArgumentException("Trees in flight should be positive, found=" + treesInFlight);
+        }
         this.aggregation = aggregation;
         this.workType = workType;
+        this.compressionCodec = compressionCodec;
+        this.encodeExecutor = encodeExecutor;
+        this.treesInFlight = treesInFlight;
     }
 
+    /**
+     * Sections are compressed by the serializer, so the output stream is not expected to be compressed
+     */
     @Override
     public void serialize(OutputStream out) throws IOException {
-        Checksum checksum = new Adler32();
-        CheckedOutputStream cout = new CheckedOutputStream(out, checksum);
-
-        Serializer.writeVariantInt32(AGGREGATION_FILE_MAGIC_NUM, cout);
-
-        // header
-        Serializer.writeCheckedDelimited(aggregation.buildHeaderProto(VERSION, AggregatedProfileModel.WorkType.cpu_sample_work), cout);
+        SectionWriter sectionWriter = new SectionWriter(out, compressionCodec);
+        AggregatedProfileModel.AggregationFileIndex.Builder index = AggregatedProfileModel.AggregationFileIndex.newBuilder();
 
         AggregatedProfileModel.TraceCtxNames traceNames = aggregation.buildTraceCtxNamesProto(workType);
         AggregatedProfileModel.TraceCtxDetailList traceDetails = aggregation.buildTraceCtxDetailListProto(workType, traceNames);
 
-        // traces
-        Serializer.writeCheckedDelimited(traceNames, cout);
-        Serializer.writeCheckedDelimited(traceDetails, cout);
+        index.setHead(sectionWriter.write(sectionWriter.encode(cout -> {
+            Checksum checksum = cout.getChecksum();
+
+            Serializer.writeVariantInt32(AGGREGATION_FILE_MAGIC_NUM, cout);
 
-        // profiles summary
-        checksum.reset();
-        for(AggregatedProfileModel.ProfileWorkInfo workInfo: aggregation.buildProfileWorkInfoProto(workType, traceNames)) {
-            if(workInfo != null) {
-                workInfo.writeDelimitedTo(cout);
+            // header
+            Serializer.writeCheckedDelimited(aggregation.buildHeaderProto(VERSION, AggregatedProfileModel.WorkType.cpu_sample_work), cout);
+
+            // traces
+            Serializer.writeCheckedDelimited(traceNames, cout);
+            Serializer.writeCheckedDelimited(traceDetails, cout);
+
+            // profiles summary
+            checksum.reset();
+            for(AggregatedProfileModel.ProfileWorkInfo workInfo: aggregation.buildProfileWorkInfoProto(workType, traceNames)) {
+                if(workInfo != null) {
+                    workInfo.writeDelimitedTo(cout);
+                }
             }
-        }
-        // end flag for profile summary
-        Serializer.writeVariantInt32(0, cout);
-        Serializer.writeVariantInt32((int)checksum.getValue(), cout);
+            // end flag for profile summary
+            Serializer.writeVariantInt32(0, cout);
+            Serializer.writeVariantInt32((int)checksum.getValue(), cout);
+        })));
 
         // work specific aggregated samples
         switch (workType) {
             case cpu_sample_work:
-                new CpuSamplingAggregatedSamplesSerializer(aggregation.cpuSamplingAggregationBucket, traceNames).serialize(out);
+                methodLookupDictionary = new CpuSamplingAggregatedSamplesSerializer(aggregation.cpuSamplingAggregationBucket, traceNames, encodeExecutor, treesInFlight)
+                        .serialize(sectionWriter, index);
         }
+
+        this.index = index;
+        this.serializedLength = sectionWriter.offset;
     }
 
-    private static class CpuSamplingAggregatedSamplesSerializer implements Serializer {
+    /**
+     * @param partSize size of the parts in which the serialized file was stored
+     * @return index of the sections of the last serialized file
+     */
+    public AggregatedProfileModel.AggregationFileIndex buildIndex(int partSize) {
+        if(index == null) {
+            throw new IllegalStateException("Index is available only after serialization");
+        }
+        int partCount = partSize > 0 ? (int) ((serializedLength + partSize - 1) / partSize) : 0;
+        return index.setPartSize(partSize).setPartCount(partCount).build();
+    }
+
+    /**
+     * @return method lookup of the last serialized file, which is to be stored before its index
+     */
+    public MethodLookupDictionary getMethodLookupDictionary() {
+        if(index == null) {
+            throw new IllegalStateException("Method lookup is available only after serialization");
+        }
+        return methodLookupDictionary;
+    }
+
+    /**
+     * Method lookup encoded as a compressed section. Digest is the hex encoded sha-256 of the uncompressed content, so it does not change
+     * with the compression codec.
+     */
+    public static class MethodLookupDictionary {
+        public final String digest;
+        public final byte[] content;
+
+        MethodLookupDictionary(String digest, byte[] content) {
+            this.digest = digest;
+            this.content = content;
+        }
+    }
+
+    private static class CpuSamplingAggregatedSamplesSerializer {
 
         private FinalizedCpuSamplingAggregationBucket cpuSamplingAggregation;
         private AggregatedProfileModel.TraceCtxNames traces;
+        private Executor encodeExecutor;
+        private int treesInFlight;
 
-        public CpuSamplingAggregatedSamplesSerializer(FinalizedCpuSamplingAggregationBucket cpuSamplingAggregation, AggregatedProfileModel.TraceCtxNames traces) {
+        public CpuSamplingAggregatedSamplesSerializer(FinalizedCpuSamplingAggregationBucket cpuSamplingAggregation, AggregatedProfileModel.TraceCtxNames traces,
+                                                      Executor encodeExecutor, int treesInFlight) {
             this.cpuSamplingAggregation = cpuSamplingAggregation;
             this.traces = traces;
+            this.encodeExecutor = encodeExecutor;
+            this.treesInFlight = treesInFlight;
         }
 
-        @Override
-        public void serialize(OutputStream out) throws IOException {
-
-            Checksum checksum = new Adler32();
-            CheckedOutputStream cout = new CheckedOutputStream(out, checksum);
+        public MethodLookupDictionary serialize(SectionWriter sectionWriter, AggregatedProfileModel.AggregationFileIndex.Builder index) throws IOException {
 
-            // method lookup
-            Serializer.writeCheckedDelimited(cpuSamplingAggregation.methodIdLookup.buildMethodIdLookupProto(), cout);
+            // method lookup, with canonical method ids
+            int[] canonicalMethodIds = cpuSamplingAggregation.methodIdLookup.generateCanonicalMethodIdMapping();
+            AggregatedProfileModel.MethodLookUp methodLookUp = cpuSamplingAggregation.methodIdLookup.buildCanonicalMethodIdLookupProto(canonicalMethodIds);
+            ByteArrayOutputStream methodLookupOut = new ByteArrayOutputStream();
+            Serializer.writeCheckedDelimited(methodLookUp, new CheckedOutputStream(methodLookupOut, new Crc32c()));
+            byte[] encodedMethodLookup = methodLookupOut.toByteArray();
+            MethodLookupDictionary methodLookupDictionary = new MethodLookupDictionary(Hashing.sha256().hashBytes(encodedMethodLookup).toString(),
+                    sectionWriter.compress(encodedMethodLookup));
+            index.setMethodLookupDigest(methodLookupDictionary.digest);
 
             // stacktrace tree
-            checksum.reset();
-            int index = 0;
-            for(String traceName: traces.getNameList()) {
-                FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor =
-                        new FinalizedCpuSamplingAggregationBucket.NodeVisitor(cout, STACKTRACETREE_SERIAL_BATCHSIZE, index);
+            // trees are encoded and compressed concurrently into separate buffers and written in order of trace names. Encoding of a tree
+            // is submitted only when it is among the next treesInFlight trees to be written, and its buffer is released as soon as it is written
+            List<String> traceNames = traces.getNameList();
+            Deque<CompletableFuture<EncodedSection>> encodedTrees = new ArrayDeque<>();
+            int submittedTrees = 0;
+            try {
+                for(int i = 0; i < traceNames.size(); i++) {
+                    while(submittedTrees < traceNames.size() && submittedTrees - i < treesInFlight) {
+                        encodedTrees.addLast(submitEncoding(sectionWriter, submittedTrees, canonicalMethodIds));
+                        ++submittedTrees;
+                    }
+                    index.addTraceCtxSections(AggregatedProfileModel.AggregationFileIndex.TraceCtxFileSection.newBuilder()
+                            .setTraceCtxName(traceNames.get(i))
+                            .setSection(sectionWriter.write(getEncodedTree(encodedTrees.removeFirst()))));
+                }
+            } finally {
+                // on failure, trees which have not started encoding yet are skipped
+                encodedTrees.forEach(encodedTree -> encodedTree.cancel(false));
+            }
+            return methodLookupDictionary;
+        }
 
+        private CompletableFuture<EncodedSection> submitEncoding(SectionWriter sectionWriter, int traceCtxIdx, int[] canonicalMethodIds) {
+            CpuSamplingTraceDetail traceDetail = cpuSamplingAggregation.traceDetailLookup.get(traces.getName(traceCtxIdx));
+            CompletableFuture<EncodedSection> encodedTree = new CompletableFuture<>();
+            encodeExecutor.execute(() -> {
+                if(encodedTree.isDone()) {
+                    return;
+                }
                 try {
-                    cpuSamplingAggregation.traceDetailLookup.get(traceName).getGlobalRoot().traverse(visitor);
-                } catch (IOException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new SerializationException("Unexpected error while traversing stacktrace tree", e);
+                    encodedTree.complete(sectionWriter.encode(cout -> encodeStacktraceTree(traceDetail, traceCtxIdx, canonicalMethodIds, cout)));
+                } catch (Throwable e) {
+                    encodedTree.completeExceptionally(e);
+                }
+            });
+            return encodedTree;
+        }
+
+        private static void encodeStacktraceTree(CpuSamplingTraceDetail traceDetail, int traceCtxIdx, int[] canonicalMethodIds, CheckedOutputStream cout) throws IOException {
+            FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor =
+                    new FinalizedCpuSamplingAggregationBucket.NodeVisitor(cout, STACKTRACETREE_SERIAL_BATCHSIZE, traceCtxIdx, canonicalMethodIds);
+
+            try {
+                traceDetail.getGlobalRoot().traverse(visitor);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SerializationException("Unexpected error while traversing stacktrace tree", e);
+            }
+            visitor.end();
+            Serializer.writeVariantInt32((int) cout.getChecksum().getValue(), cout);
+        }
+
+        private static EncodedSection getEncodedTree(CompletableFuture<EncodedSection> encodedTree) throws IOException {
+            try {
+                return encodedTree.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SerializationException("Interrupted while waiting for encoding of stacktrace tree", e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
                 }
-                visitor.end();
-                ++index;
+                throw new SerializationException("Unexpected error while encoding stacktrace tree", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Encodes sections, each compressed by itself, and writes them one after the other keeping track of their position in the file.
+     * Encoding can happen concurrently, writing can not.
+     */
+    private static class SectionWriter {
+        private final OutputStream out;
+        private final CompressionCodec compressionCodec;
+        private long offset = 0;
+
+        SectionWriter(OutputStream out, CompressionCodec compressionCodec) {
+            this.out = out;
+            this.compressionCodec = compressionCodec;
+        }
+
+        /**
+         * @return compressed section, content of which is written by the encoder to a stream checksummed with CRC32C
+         * @throws SerializationException if the content is longer than {@link #MAX_SECTION_LENGTH}
+         */
+        EncodedSection encode(SectionEncoder encoder) throws IOException {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            CountingOutputStream countingOut;
+            try (OutputStream zout = compressionCodec.compress(bout)) {
+                countingOut = new CountingOutputStream(zout, MAX_SECTION_LENGTH);
+                encoder.encode(new CheckedOutputStream(countingOut, new Crc32c()));
+            }
+            return new EncodedSection(bout.toByteArray(), countingOut.count);
+        }
+
+        /**
+         * @return already encoded content, compressed
+         */
+        byte[] compress(byte[] content) throws IOException {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            try (OutputStream zout = compressionCodec.compress(bout)) {
+                zout.write(content);
             }
-            Serializer.writeVariantInt32((int) checksum.getValue(), cout);
+            return bout.toByteArray();
         }
+
+        AggregatedProfileModel.AggregationFileIndex.FileSection write(EncodedSection section) throws IOException {
+            out.write(section.bytes);
+            AggregatedProfileModel.AggregationFileIndex.FileSection fileSection = AggregatedProfileModel.AggregationFileIndex.FileSection.newBuilder()
+                    .setOffset(offset).setLength(section.bytes.length).setUncompressedLength(section.uncompressedLength).build();
+            offset += section.bytes.length;
+            return fileSection;
+        }
+    }
+
+    private static class EncodedSection {
+        final byte[] bytes;
+        final int uncompressedLength;
+
+        EncodedSection(byte[] bytes, int uncompressedLength) {
+            this.bytes = bytes;
+            this.uncompressedLength = uncompressedLength;
+        }
+    }
+
+    /**
+     * Counts the bytes written, failing the write which would take the count beyond the limit.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final long limit;
+        int count = 0;
+
+        CountingOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureWithinLimit(1);
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureWithinLimit(len);
+            out.write(b, off, len);
+            count += len;
+        }
+
+        private void ensureWithinLimit(int len) throws SerializationException {
+            if((long) count + len > limit) {
+                throw new SerializationException("Section is longer than " + limit + " bytes, which is the maximum length of a section");
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface SectionEncoder {
+        void encode(CheckedOutputStream cout) throws IOException;
     }
 }
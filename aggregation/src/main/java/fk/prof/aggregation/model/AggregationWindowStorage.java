@@ -1,24 +1,38 @@
 package fk.prof.aggregation.model;
 
 import com.codahale.metrics.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.aggregation.serialize.Serializer;
 import fk.prof.metrics.MetricName;
 import fk.prof.metrics.ProcessGroupTag;
 import fk.prof.storage.AsyncStorage;
-import fk.prof.storage.StreamTransformer;
+import fk.prof.storage.CompressionCodec;
+import fk.prof.storage.buffer.PartUploadPolicy;
+import fk.prof.storage.buffer.SizeClassedBufferPool;
 import fk.prof.storage.buffer.StorageBackedOutputStream;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
-import java.util.zip.GZIPOutputStream;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by gaurav.ashok on 09/03/17.
@@ -26,49 +40,153 @@ import java.util.zip.GZIPOutputStream;
 public class AggregationWindowStorage {
 
     private final static Logger logger = LoggerFactory.getLogger(AggregationWindowStorage.class);
+    private final static int MAX_REMEMBERED_METHOD_LOOKUPS = 10_000;
 
     private final String baseDir;
     private final AsyncStorage storage;
     private final GenericObjectPool<ByteBuffer> bufferPool;
+    // if set, files are buffered in slabs from it instead of the buffers of bufferPool
+    private final SizeClassedBufferPool slabPool;
+    private final int partSize;
     private final MetricRegistry metricRegistry;
+    private final CompressionCodec compressionCodec;
+    private final PartUploadPolicy uploadPolicy;
+    private final boolean storeTraceCtxViews;
+    private final Executor encodeExecutor;
+    private final int treesInFlight;
+    // method lookups recently stored by this instance, keyed by their path
+    private final Cache<String, Boolean> storedMethodLookups = CacheBuilder.newBuilder()
+        .maximumSize(MAX_REMEMBERED_METHOD_LOOKUPS).expireAfterWrite(1, TimeUnit.HOURS).build();
+    // manifest entries which are yet to be written, keyed by their path
+    private final ConcurrentMap<String, PendingManifestEntry> pendingManifestEntries = new ConcurrentHashMap<>();
 
     public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, MetricRegistry metricRegistry) {
+        this(baseDir, storage, bufferPool, metricRegistry, CompressionCodec.GZIP);
+    }
+
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, MetricRegistry metricRegistry,
+                                    CompressionCodec compressionCodec) {
+        this(baseDir, storage, bufferPool, metricRegistry, compressionCodec, PartUploadPolicy.DEFAULT);
+    }
+
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, MetricRegistry metricRegistry,
+                                    CompressionCodec compressionCodec, PartUploadPolicy uploadPolicy) {
+        this(baseDir, storage, bufferPool, metricRegistry, compressionCodec, uploadPolicy, false);
+    }
+
+    /**
+     * @param storeTraceCtxViews if true, json view of every trace context is also stored gzipped, ready to be served by userapi
+     */
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, MetricRegistry metricRegistry,
+                                    CompressionCodec compressionCodec, PartUploadPolicy uploadPolicy, boolean storeTraceCtxViews) {
+        this(baseDir, storage, bufferPool, metricRegistry, compressionCodec, uploadPolicy, storeTraceCtxViews, Runnable::run, 1);
+    }
+
+    /**
+     * @param encodeExecutor executor on which stacktrace trees are encoded while being stored
+     * @param treesInFlight max count of trees of a file being encoded or waiting to be written at a time
+     */
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, MetricRegistry metricRegistry,
+                                    CompressionCodec compressionCodec, PartUploadPolicy uploadPolicy, boolean storeTraceCtxViews,
+                                    Executor encodeExecutor, int treesInFlight) {
+        this(baseDir, storage, bufferPool, null, 0, metricRegistry, compressionCodec, uploadPolicy, storeTraceCtxViews, encodeExecutor, treesInFlight);
+    }
+
+    /**
+     * @param slabPool pool from which files are buffered in slabs, part by part
+     * @param partSize size of every part of a file, except the last which can be smaller
+     */
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, SizeClassedBufferPool slabPool, int partSize, MetricRegistry metricRegistry,
+                                    CompressionCodec compressionCodec, PartUploadPolicy uploadPolicy, boolean storeTraceCtxViews) {
+        this(baseDir, storage, slabPool, partSize, metricRegistry, compressionCodec, uploadPolicy, storeTraceCtxViews, Runnable::run, 1);
+    }
+
+    public AggregationWindowStorage(String baseDir, AsyncStorage storage, SizeClassedBufferPool slabPool, int partSize, MetricRegistry metricRegistry,
+                                    CompressionCodec compressionCodec, PartUploadPolicy uploadPolicy, boolean storeTraceCtxViews,
+                                    Executor encodeExecutor, int treesInFlight) {
+        this(baseDir, storage, null, slabPool, partSize, metricRegistry, compressionCodec, uploadPolicy, storeTraceCtxViews, encodeExecutor, treesInFlight);
+    }
+
+    private AggregationWindowStorage(String baseDir, AsyncStorage storage, GenericObjectPool<ByteBuffer> bufferPool, SizeClassedBufferPool slabPool,
+                                     int partSize, MetricRegistry metricRegistry, CompressionCodec compressionCodec, PartUploadPolicy uploadPolicy,
+                                     boolean storeTraceCtxViews, Executor encodeExecutor, int treesInFlight) {
         this.baseDir = baseDir;
         this.storage = storage;
         this.bufferPool = bufferPool;
+        this.slabPool = slabPool;
+        this.partSize = partSize;
         this.metricRegistry = metricRegistry;
+        this.compressionCodec = compressionCodec;
+        this.uploadPolicy = uploadPolicy;
+        this.storeTraceCtxViews = storeTraceCtxViews;
+        this.encodeExecutor = encodeExecutor;
+        this.treesInFlight = treesInFlight;
     }
 
     public void store(FinalizedAggregationWindow aggregationWindow) throws IOException {
+        store(aggregationWindow, newManifestEntry(aggregationWindow));
+    }
+
+    /**
+     * Stores a rollup like an aggregation window, with the count of the windows merged into it recorded in its manifest entry.
+     * A rollup stored again, e.g. with windows stored after it was compacted, replaces the earlier one.
+     */
+    public void storeRollup(FinalizedAggregationWindow rollup, int mergedWindowCount) throws IOException {
+        store(rollup, newManifestEntry(rollup).setMergedWindowCount(mergedWindowCount));
+    }
+
+    private void store(FinalizedAggregationWindow aggregationWindow, AggregatedProfileModel.ProfilesManifest.Entry.Builder manifestEntry) throws IOException {
 
         // right now only cpu_sample data is available. In future data related to other pivots like thread, contentions will be collected and serialized here.
 
         // cpu_sample
-        store(aggregationWindow, AggregatedProfileModel.WorkType.cpu_sample_work);
+        manifestEntry.addFiles(store(aggregationWindow, AggregatedProfileModel.WorkType.cpu_sample_work));
 
         // summary file
-        storeSummary(aggregationWindow);
+        manifestEntry.addFiles(storeSummary(aggregationWindow));
+
+        // written once all the files of the window are stored, so that a window present in the manifest is readable
+        storeManifestEntry(aggregationWindow, manifestEntry.build());
     }
 
-    private void store(FinalizedAggregationWindow aggregationWindow, AggregatedProfileModel.WorkType workType) throws IOException {
+    private AggregatedProfileModel.ProfilesManifest.Entry.Builder newManifestEntry(FinalizedAggregationWindow aggregationWindow) {
+        return AggregatedProfileModel.ProfilesManifest.Entry.newBuilder()
+            .setAggregationStartTime(getStartTime(aggregationWindow).format(DateTimeFormatter.ISO_ZONED_DATE_TIME))
+            .setDuration(aggregationWindow.durationInSecs);
+    }
+
+    private AggregatedProfileModel.ProfilesManifest.StoredFile store(FinalizedAggregationWindow aggregationWindow, AggregatedProfileModel.WorkType workType) throws IOException {
         Timer tmr = metricRegistry.timer(MetricRegistry.name(MetricName.AW_Store_Profile_Complete.get(), aggregationWindow.getProcessGroupTag().toString()));
         try (Timer.Context context = tmr.time()) {
             AggregatedProfileNamingStrategy filename = getFilename(aggregationWindow, workType);
-            AggregationWindowSerializer serializer = new AggregationWindowSerializer(aggregationWindow, workType);
-            writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag());
+            AggregationWindowSerializer serializer = new AggregationWindowSerializer(aggregationWindow, workType, compressionCodec, encodeExecutor, treesInFlight);
+            // sections of the file are compressed by the serializer
+            StorageBackedOutputStream out = writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag(), false);
+            // method lookup is stored before the index, so that the file is readable once the index is
+            writeMethodLookup(serializer.getMethodLookupDictionary(), filename, aggregationWindow.getProcessGroupTag());
+            writeIndex(serializer.buildIndex(out.getPartSize()), filename, aggregationWindow.getProcessGroupTag());
+
+            if(storeTraceCtxViews && workType == AggregatedProfileModel.WorkType.cpu_sample_work) {
+                writeTraceCtxViews(aggregationWindow, filename);
+            }
+            return buildStoredFile(filename, out).setWorkType(workType).build();
         }
     }
 
-    private void storeSummary(FinalizedAggregationWindow aggregationWindow) throws IOException {
+    private AggregatedProfileModel.ProfilesManifest.StoredFile storeSummary(FinalizedAggregationWindow aggregationWindow) throws IOException {
         Timer tmr = metricRegistry.timer(MetricRegistry.name(MetricName.AW_Store_Summary_Complete.get(), aggregationWindow.getProcessGroupTag().toString()));
         try (Timer.Context context = tmr.time()) {
             AggregatedProfileNamingStrategy filename = getSummaryFilename(aggregationWindow);
             AggregationWindowSummarySerializer serializer = new AggregationWindowSummarySerializer(aggregationWindow);
-            writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag());
+            StorageBackedOutputStream out = writeToStream(serializer, filename, aggregationWindow.getProcessGroupTag(), true);
+            return buildStoredFile(filename, out).build();
         }
     }
 
-    private void writeToStream(Serializer serializer, AggregatedProfileNamingStrategy filename, ProcessGroupTag processGroupTag) throws IOException {
+    /**
+     * @return closed stream to which the file was written
+     */
+    private StorageBackedOutputStream writeToStream(Serializer serializer, AggregatedProfileNamingStrategy filename, ProcessGroupTag processGroupTag, boolean compress) throws IOException {
         if(logger.isDebugEnabled()) {
             logger.debug("Attempting serialization and write of file: " + filename);
         }
@@ -79,15 +197,17 @@ public class AggregationWindowStorage {
         Timer tmrBuffPoolBorrow = metricRegistry.timer(MetricRegistry.name(MetricName.AW_BuffPool_Borrow.get(), processGroupStr));
         Counter ctrBuffPoolFailures = metricRegistry.counter(MetricRegistry.name(MetricName.AW_Buffpool_Failure.get(), processGroupStr));
 
-        OutputStream out = new StorageBackedOutputStream(bufferPool, storage, filename, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures);
-        GZIPOutputStream gout;
+        StorageBackedOutputStream out = slabPool != null ?
+            new StorageBackedOutputStream(slabPool, partSize, storage, filename, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures, uploadPolicy) :
+            new StorageBackedOutputStream(bufferPool, storage, filename, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures, uploadPolicy);
+        OutputStream cout;
 
         try {
-            gout = StreamTransformer.zip(out);
+            cout = compress ? compressionCodec.compress(out) : out;
         }
         catch (IOException e) {
             mtrWriteFailure.mark();
-            logger.error("Could not zip outstream for file: " + filename, e);
+            logger.error("Could not compress outstream with codec: " + compressionCodec + " for file: " + filename, e);
             try {
                 out.close();
             }
@@ -98,9 +218,9 @@ public class AggregationWindowStorage {
         }
 
         try {
-            serializer.serialize(gout);
+            serializer.serialize(cout);
             if(logger.isDebugEnabled()) {
-                logger.debug("Serialization and subsequent write successfully scheduled for file: " + filename);
+                logger.debug("Serialization successful for file: " + filename);
             }
         }
         catch (IOException e) {
@@ -109,23 +229,160 @@ public class AggregationWindowStorage {
             throw e;
         }
         finally {
+            // waits for upload of all the parts
             try {
-                gout.close();
+                cout.close();
             }
             catch (IOException e) {
-                logger.error("Failed to close zipped outstream for file: " + filename);
+                logger.error("Failed to close compressed outstream for file: " + filename);
                 throw e;
             }
         }
+        return out;
+    }
+
+    private AggregatedProfileModel.ProfilesManifest.StoredFile.Builder buildStoredFile(AggregatedProfileNamingStrategy filename, StorageBackedOutputStream out) {
+        int partSize = out.getPartSize();
+        int partCount = partSize > 0 ? (int) ((out.getBytesWritten() + partSize - 1) / partSize) : 0;
+        return AggregatedProfileModel.ProfilesManifest.StoredFile.newBuilder()
+            .setFormatVersion(filename.version)
+            .setHourPartitioned(filename.isHourPartitioned)
+            .setPartCount(partCount)
+            .setSize(out.getBytesWritten());
+    }
+
+    /**
+     * Every window is written as an entry of its own in the manifest dir of its day, instead of being appended to a manifest of the day, so
+     * that backends storing windows of the process group concurrently, e.g. around a hand-off, do not overwrite each other's entries. Entry
+     * of the same window, stored earlier, is overwritten.
+     * The files of the window are readable by now, so failure to write the entry does not fail the store. The entry is written again
+     * along with the next window stored by this instance, till it succeeds, so that the window is discovered eventually.
+     */
+    private void storeManifestEntry(FinalizedAggregationWindow aggregationWindow, AggregatedProfileModel.ProfilesManifest.Entry entry) throws InterruptedIOException {
+        String manifestEntryFileName = AggregatedProfileNamingStrategy.getManifestEntryFileName(baseDir, aggregationWindow.appId,
+            aggregationWindow.clusterId, aggregationWindow.procId, getStartTime(aggregationWindow), aggregationWindow.durationInSecs);
+        byte[] bytes = AggregatedProfileModel.ProfilesManifest.newBuilder().addEntries(entry).build().toByteArray();
+        pendingManifestEntries.put(manifestEntryFileName, new PendingManifestEntry(bytes, aggregationWindow.getProcessGroupTag()));
+        storePendingManifestEntries();
+    }
+
+    private void storePendingManifestEntries() throws InterruptedIOException {
+        for (Map.Entry<String, PendingManifestEntry> pending : pendingManifestEntries.entrySet()) {
+            String processGroupStr = pending.getValue().processGroupTag.toString();
+            Histogram histBytesWritten = metricRegistry.histogram(MetricRegistry.name(MetricName.AW_Store_Bytes.get(), processGroupStr));
+            Meter mtrWriteFailure = metricRegistry.meter(MetricRegistry.name(MetricName.AW_Store_Failure.get(), processGroupStr));
+            try {
+                storeAndAwait(pending.getKey(), pending.getValue().bytes, histBytesWritten, mtrWriteFailure);
+                // removed only if not replaced by a later store of the same window meanwhile
+                pendingManifestEntries.remove(pending.getKey(), pending.getValue());
+            }
+            catch (InterruptedIOException e) {
+                throw e;
+            }
+            catch (IOException e) {
+                logger.error("Manifest entry will be written again with the next window, pending entries: " + pendingManifestEntries.size(), e);
+            }
+        }
+    }
+
+    private void writeIndex(AggregatedProfileModel.AggregationFileIndex index, AggregatedProfileNamingStrategy filename, ProcessGroupTag processGroupTag) throws IOException {
+        String processGroupStr = processGroupTag.toString();
+        Histogram histBytesWritten = metricRegistry.histogram(MetricRegistry.name(MetricName.AW_Store_Bytes.get(), processGroupStr));
+        Meter mtrWriteFailure = metricRegistry.meter(MetricRegistry.name(MetricName.AW_Store_Failure.get(), processGroupStr));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream cout = compressionCodec.compress(out)) {
+            index.writeTo(cout);
+        }
+        byte[] bytes = out.toByteArray();
+
+        storeAndAwait(filename.getIndexFileName(), bytes, histBytesWritten, mtrWriteFailure);
+    }
+
+    private void writeMethodLookup(AggregationWindowSerializer.MethodLookupDictionary methodLookup, AggregatedProfileNamingStrategy filename,
+                                   ProcessGroupTag processGroupTag) throws IOException {
+        if(methodLookup == null) {
+            return;
+        }
+        String methodLookupFileName = filename.getMethodLookupFileName(methodLookup.digest);
+        // content addressed, so the same method lookup stored earlier need not be stored again
+        if(storedMethodLookups.getIfPresent(methodLookupFileName) != null) {
+            return;
+        }
+
+        String processGroupStr = processGroupTag.toString();
+        Histogram histBytesWritten = metricRegistry.histogram(MetricRegistry.name(MetricName.AW_Store_Bytes.get(), processGroupStr));
+        Meter mtrWriteFailure = metricRegistry.meter(MetricRegistry.name(MetricName.AW_Store_Failure.get(), processGroupStr));
+
+        storeAndAwait(methodLookupFileName, methodLookup.content, histBytesWritten, mtrWriteFailure);
+        storedMethodLookups.put(methodLookupFileName, Boolean.TRUE);
+    }
+
+    /**
+     * Views are an optimization for userapi, which falls back to loading the aggregation file in their absence. So failure to store them
+     * does not fail the store of the aggregation window.
+     */
+    private void writeTraceCtxViews(FinalizedAggregationWindow aggregationWindow, AggregatedProfileNamingStrategy filename) {
+        String processGroupStr = aggregationWindow.getProcessGroupTag().toString();
+        Histogram histBytesWritten = metricRegistry.histogram(MetricRegistry.name(MetricName.AW_Store_Bytes.get(), processGroupStr));
+        Meter mtrWriteFailure = metricRegistry.meter(MetricRegistry.name(MetricName.AW_Store_Failure.get(), processGroupStr));
+
+        TraceCtxViewSerializer serializer = new TraceCtxViewSerializer(aggregationWindow);
+        for(String traceName: serializer.getTraceNames()) {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                // served with gzip content encoding, so compressed with gzip irrespective of the configured codec
+                try (OutputStream cout = CompressionCodec.GZIP.compress(out)) {
+                    serializer.serialize(traceName, cout);
+                }
+                storeAndAwait(filename.getTraceCtxViewFileName(traceName), out.toByteArray(), histBytesWritten, mtrWriteFailure);
+            }
+            catch (InterruptedIOException e) {
+                logger.error("Interrupted while storing views of trace contexts for file: " + filename, e);
+                return;
+            }
+            catch (IOException e) {
+                logger.error("Failed to store view of trace context: " + traceName + " for file: " + filename, e);
+            }
+        }
+    }
+
+    private void storeAndAwait(String fileName, byte[] bytes, Histogram histBytesWritten, Meter mtrWriteFailure) throws IOException {
+        try {
+            storage.storeAsync(fileName, new ByteArrayInputStream(bytes), bytes.length)
+                .get(uploadPolicy.getCloseTimeoutMs(), TimeUnit.MILLISECONDS);
+            histBytesWritten.update(bytes.length);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing file: " + fileName);
+        }
+        catch (ExecutionException | TimeoutException e) {
+            mtrWriteFailure.mark();
+            logger.error("Write failed for file: " + fileName, e);
+            throw new IOException("Write failed for file: " + fileName, e instanceof ExecutionException ? e.getCause() : e);
+        }
     }
 
     private AggregatedProfileNamingStrategy getFilename(FinalizedAggregationWindow aw, AggregatedProfileModel.WorkType workType) {
-        ZonedDateTime start = aw.start.atOffset(ZoneOffset.UTC).toZonedDateTime();
-        return new AggregatedProfileNamingStrategy(baseDir, AggregationWindowSerializer.VERSION, aw.appId, aw.clusterId, aw.procId, start, aw.durationInSecs, workType);
+        return new AggregatedProfileNamingStrategy(baseDir, AggregationWindowSerializer.VERSION, aw.appId, aw.clusterId, aw.procId, getStartTime(aw), aw.durationInSecs, workType, true);
     }
 
     private AggregatedProfileNamingStrategy getSummaryFilename(FinalizedAggregationWindow aw) {
-        ZonedDateTime start = aw.start.atOffset(ZoneOffset.UTC).toZonedDateTime();
-        return new AggregatedProfileNamingStrategy(baseDir, AggregationWindowSummarySerializer.VERSION, aw.appId, aw.clusterId, aw.procId, start, aw.durationInSecs);
+        return new AggregatedProfileNamingStrategy(baseDir, AggregationWindowSummarySerializer.VERSION, aw.appId, aw.clusterId, aw.procId, getStartTime(aw), aw.durationInSecs, true);
+    }
+
+    private ZonedDateTime getStartTime(FinalizedAggregationWindow aw) {
+        return aw.start.atOffset(ZoneOffset.UTC).toZonedDateTime();
+    }
+
+    private static class PendingManifestEntry {
+        final byte[] bytes;
+        final ProcessGroupTag processGroupTag;
+
+        PendingManifestEntry(byte[] bytes, ProcessGroupTag processGroupTag) {
+            this.bytes = bytes;
+            this.processGroupTag = processGroupTag;
+        }
     }
 }
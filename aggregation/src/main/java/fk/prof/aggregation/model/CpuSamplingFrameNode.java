@@ -3,7 +3,9 @@ package fk.prof.aggregation.model;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.aggregation.stacktrace.StacktraceFrameNode;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -22,6 +24,13 @@ public class CpuSamplingFrameNode extends StacktraceFrameNode<CpuSamplingFrameNo
   }
 
   public CpuSamplingFrameNode getOrAddChild(int childMethodId, int childLineNumber) {
+    return getOrAddChild(childMethodId, childLineNumber, null);
+  }
+
+  /**
+   * @param addedNodeCounter if not null, incremented when a new child is added
+   */
+  protected CpuSamplingFrameNode getOrAddChild(int childMethodId, int childLineNumber, AtomicInteger addedNodeCounter) {
     synchronized (children) {
       CpuSamplingFrameNode result = null;
       Iterator<CpuSamplingFrameNode> i = children.iterator();
@@ -38,6 +47,9 @@ public class CpuSamplingFrameNode extends StacktraceFrameNode<CpuSamplingFrameNo
       if (result == null) {
         result = new CpuSamplingFrameNode(childMethodId, childLineNumber);
         children.add(result);
+        if (addedNodeCounter != null) {
+          addedNodeCounter.incrementAndGet();
+        }
       }
 
       return result;
@@ -52,6 +64,14 @@ public class CpuSamplingFrameNode extends StacktraceFrameNode<CpuSamplingFrameNo
     return this.onCpuSamples.incrementAndGet();
   }
 
+  public int addOnStackSamples(int samples) {
+    return this.onStackSamples.addAndGet(samples);
+  }
+
+  public int addOnCpuSamples(int samples) {
+    return this.onCpuSamples.addAndGet(samples);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (o == this) {
@@ -80,18 +100,69 @@ public class CpuSamplingFrameNode extends StacktraceFrameNode<CpuSamplingFrameNo
     return result;
   }
 
-  protected AggregatedProfileModel.FrameNode buildFrameNodeProto() {
+  protected AggregatedProfileModel.FrameNode buildFrameNodeProto(int childCount) {
     return AggregatedProfileModel.FrameNode.newBuilder()
       .setMethodId(methodId)
-      .setChildCount(children.size())
+      .setChildCount(childCount)
       .setLineNo(lineNumber)
       .setCpuSamplingProps(AggregatedProfileModel.CPUSamplingNodeProps.newBuilder()
           .setOnCpuSamples(onCpuSamples.get()).setOnStackSamples(onStackSamples.get()))
       .build();
   }
 
+  protected int getMethodId() {
+    return methodId;
+  }
+
+  protected int getLineNumber() {
+    return lineNumber;
+  }
+
+  protected int getChildCount() {
+    return children.size();
+  }
+
+  protected int getOnStackSamples() {
+    return onStackSamples.get();
+  }
+
+  protected int getOnCpuSamples() {
+    return onCpuSamples.get();
+  }
+
   @Override
   protected Iterable<CpuSamplingFrameNode> children() {
     return children;
   }
+
+  /**
+   * Copy of children which is safe to traverse while the tree is being concurrently aggregated into
+   */
+  protected List<CpuSamplingFrameNode> childrenSnapshot() {
+    synchronized (children) {
+      return new ArrayList<>(children);
+    }
+  }
+
+  /**
+   * Adds samples of every node in the subtree of other node to the corresponding node in this subtree, adding nodes which are absent.
+   * Method ids of the other subtree are translated using methodIdMapping, indexed by method id of the other subtree.
+   * Walks both subtrees together using explicit stacks, so that depth of the tree is not bounded by the call stack
+   */
+  protected void merge(CpuSamplingFrameNode other, int[] methodIdMapping, AtomicInteger addedNodeCounter) {
+    Deque<CpuSamplingFrameNode> sources = new ArrayDeque<>();
+    Deque<CpuSamplingFrameNode> targets = new ArrayDeque<>();
+    sources.push(other);
+    targets.push(this);
+    while (!sources.isEmpty()) {
+      CpuSamplingFrameNode source = sources.pop();
+      CpuSamplingFrameNode target = targets.pop();
+      target.addOnStackSamples(source.onStackSamples.get());
+      target.addOnCpuSamples(source.onCpuSamples.get());
+      for (CpuSamplingFrameNode sourceChild : source.childrenSnapshot()) {
+        sources.push(sourceChild);
+        targets.push(target.getOrAddChild(methodIdMapping[sourceChild.methodId], sourceChild.lineNumber, addedNodeCounter));
+      }
+    }
+  }
 }
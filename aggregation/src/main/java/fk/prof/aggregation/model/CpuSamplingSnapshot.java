@@ -0,0 +1,154 @@
+package fk.prof.aggregation.model;
+
+import fk.prof.aggregation.proto.AggregatedProfileModel.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and reads back stacktrace trees of trace contexts which are still being aggregated into, used to move them out of
+ * heap (spill) or out of process (checkpoint). Every trace context is written as:
+ * > delimited {@link TraceCtxNames} with a single name
+ * > delimited {@link TraceCtxDetail} holding the sample count
+ * > dfs ordered batches of delimited {@link FrameNodeList}, same as in the aggregated profile file
+ *
+ * Method ids in the trees refer to the {@link MethodIdLookup} of the owning bucket, which has to be written and read separately.
+ * A sequence of trace contexts can be terminated using {@link #writeEndOfTraceDetails(OutputStream)}.
+ */
+public class CpuSamplingSnapshot {
+  private static final int SNAPSHOT_BATCH_SIZE = 1000;
+
+  /**
+   * Method ids being concurrently added to the lookup may not be visible in the returned proto, callers should ensure that no
+   * method is being added meanwhile. Returned proto is expected to be written as a delimited message.
+   */
+  public static MethodLookUp snapshotMethodIdLookup(MethodIdLookup methodIdLookup) {
+    return methodIdLookup.buildMethodIdLookupProto();
+  }
+
+  public static MethodIdLookup readMethodIdLookup(InputStream in) throws IOException {
+    MethodLookUp methodLookUp = MethodLookUp.parseDelimitedFrom(in);
+    if (methodLookUp == null) {
+      throw new EOFException("Stream ended before method lookup could be read");
+    }
+    return MethodIdLookup.fromMethodIdLookupProto(methodLookUp);
+  }
+
+  /**
+   * Writes the tree of the trace context. Safe to call while samples are concurrently being aggregated in the tree, in which
+   * case the written tree may or may not have those samples.
+   */
+  public static void writeTraceDetail(String trace, CpuSamplingTraceDetail traceDetail, OutputStream out) throws IOException {
+    TraceCtxNames.newBuilder().addName(trace).build().writeDelimitedTo(out);
+    TraceCtxDetail.newBuilder().setTraceIdx(0).setSampleCount(traceDetail.getSampleCount()).build().writeDelimitedTo(out);
+
+    FrameNodeList.Builder builder = FrameNodeList.newBuilder().setTraceCtxIdx(0);
+    // dfs using an explicit stack of children iterators. Child count written for a node is the size of the snapshot of its children
+    // taken at the time of visit, so that the serialized tree stays consistent even if children are added later
+    Deque<Iterator<CpuSamplingFrameNode>> path = new ArrayDeque<>();
+    CpuSamplingFrameNode node = traceDetail.getGlobalRoot();
+    while (node != null) {
+      List<CpuSamplingFrameNode> children = node.childrenSnapshot();
+      if (builder.getFrameNodesCount() >= SNAPSHOT_BATCH_SIZE) {
+        builder.build().writeDelimitedTo(out);
+        builder.clearFrameNodes();
+      }
+      builder.addFrameNodes(node.buildFrameNodeProto(children.size()));
+      path.push(children.iterator());
+
+      node = null;
+      while (!path.isEmpty() && node == null) {
+        Iterator<CpuSamplingFrameNode> siblings = path.peek();
+        if (siblings.hasNext()) {
+          node = siblings.next();
+        }
+        else {
+          path.pop();
+        }
+      }
+    }
+    if (builder.getFrameNodesCount() > 0) {
+      builder.build().writeDelimitedTo(out);
+    }
+  }
+
+  /**
+   * Reads the next trace context and merges it into the trace details in the lookup, adding a new trace detail if absent.
+   * @return false if the stream has no more trace contexts, true otherwise
+   */
+  public static boolean readAndMergeTraceDetail(InputStream in, Map<String, CpuSamplingTraceDetail> traceDetailLookup) throws IOException {
+    TraceCtxNames traceName = TraceCtxNames.parseDelimitedFrom(in);
+    // a trace name list with no name is treated same as end of stream, this allows writers to mark end of trace contexts
+    if (traceName == null || traceName.getNameCount() == 0) {
+      return false;
+    }
+    TraceCtxDetail spilledDetail = TraceCtxDetail.parseDelimitedFrom(in);
+    if (spilledDetail == null) {
+      throw new EOFException("Stream ended before trace detail could be read for trace=" + traceName.getName(0));
+    }
+    CpuSamplingTraceDetail traceDetail = traceDetailLookup.computeIfAbsent(traceName.getName(0), key -> new CpuSamplingTraceDetail());
+    traceDetail.addSamples(spilledDetail.getSampleCount());
+    mergeTree(in, traceDetail);
+    return true;
+  }
+
+  /**
+   * Marks end of trace contexts, see {@link #readAndMergeTraceDetail(InputStream, Map)}
+   */
+  public static void writeEndOfTraceDetails(OutputStream out) throws IOException {
+    TraceCtxNames.getDefaultInstance().writeDelimitedTo(out);
+  }
+
+  /**
+   * Walks the dfs ordered nodes of a written tree, keeping the path from root to current node in a stack along with the count of
+   * children yet to be visited for every node in the path.
+   */
+  private static void mergeTree(InputStream in, CpuSamplingTraceDetail traceDetail) throws IOException {
+    Deque<PendingNode> path = new ArrayDeque<>();
+    boolean rootVisited = false;
+    while (!rootVisited || !path.isEmpty()) {
+      FrameNodeList frameNodeList = FrameNodeList.parseDelimitedFrom(in);
+      if (frameNodeList == null) {
+        throw new EOFException("Stream ended before the complete stacktrace tree could be read");
+      }
+      for (FrameNode frameNode : frameNodeList.getFrameNodesList()) {
+        CpuSamplingFrameNode node;
+        if (!rootVisited) {
+          node = traceDetail.getGlobalRoot();
+          rootVisited = true;
+        }
+        else {
+          PendingNode parent = path.peek();
+          node = traceDetail.getOrAddChild(parent.node, frameNode.getMethodId(), frameNode.getLineNo());
+          parent.remainingChildren--;
+        }
+        node.addOnStackSamples(frameNode.getCpuSamplingProps().getOnStackSamples());
+        node.addOnCpuSamples(frameNode.getCpuSamplingProps().getOnCpuSamples());
+
+        if (frameNode.getChildCount() > 0) {
+          path.push(new PendingNode(node, frameNode.getChildCount()));
+        }
+        while (!path.isEmpty() && path.peek().remainingChildren == 0) {
+          path.pop();
+        }
+      }
+    }
+  }
+
+  private static class PendingNode {
+    private final CpuSamplingFrameNode node;
+    private int remainingChildren;
+
+    PendingNode(CpuSamplingFrameNode node, int remainingChildren) {
+      this.node = node;
+      this.remainingChildren = remainingChildren;
+    }
+  }
+}
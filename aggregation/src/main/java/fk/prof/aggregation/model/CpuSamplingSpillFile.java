@@ -0,0 +1,170 @@
+package fk.prof.aggregation.model;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Local temp file to which stacktrace trees of trace contexts can be moved out of heap while the aggregation window is still active.
+ * Spilled trace contexts are written in the format described in {@link CpuSamplingSnapshot}.
+ * Method ids in the spilled trees refer to the {@link MethodIdLookup} of the owning bucket which is never spilled.
+ * A trace context can be spilled multiple times, all the spilled trees are merged back in {@link #mergeInto(Map)}.
+ * Not thread-safe, callers are expected to serialize access, except for copies of the file made while it is retained, see {@link #retain()}.
+ */
+public class CpuSamplingSpillFile {
+  private final Path path;
+  private FileChannel channel;
+  private OutputStream out;
+  //length of the file till the last successfully spilled trace context
+  private long committedLength = 0;
+  private int spilledTraceCount = 0;
+  private long spilledNodeCount = 0;
+  //count of copies in progress, the file is deleted only once all of them are done
+  private int retainCount = 0;
+  private boolean deleteOnRelease = false;
+  private boolean deleted = false;
+
+  public CpuSamplingSpillFile(Path dir) throws IOException {
+    this.path = Files.createTempFile(dir, "cpu-sampling-", ".spill");
+    this.channel = FileChannel.open(path, WRITE);
+    this.out = new BufferedOutputStream(Channels.newOutputStream(channel));
+  }
+
+  /**
+   * Appends the tree of the trace context to the spill file. If spilling fails, partially written bytes are discarded
+   */
+  public void spill(String trace, CpuSamplingTraceDetail traceDetail) throws IOException {
+    if(out == null) {
+      throw new IllegalStateException("Spill file has already been merged");
+    }
+
+    try {
+      CpuSamplingSnapshot.writeTraceDetail(trace, traceDetail, out);
+      out.flush();
+      committedLength = channel.position();
+    }
+    catch (IOException e) {
+      rollback();
+      throw e;
+    }
+
+    spilledTraceCount++;
+    spilledNodeCount += traceDetail.getNodeCount();
+  }
+
+  private void rollback() throws IOException {
+    channel.truncate(committedLength);
+    channel.position(committedLength);
+    // drop whatever is left in the buffer of the failed spill
+    out = new BufferedOutputStream(Channels.newOutputStream(channel));
+  }
+
+  /**
+   * Reads back all spilled trees and merges them into the trace details in the lookup, adding new trace details if absent.
+   * The spill file is deleted afterwards.
+   */
+  public void mergeInto(Map<String, CpuSamplingTraceDetail> traceDetailLookup) throws IOException {
+    close();
+    try (InputStream in = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+      while (CpuSamplingSnapshot.readAndMergeTraceDetail(in, traceDetailLookup)) {
+      }
+    }
+    finally {
+      delete();
+    }
+  }
+
+  /**
+   * Copies all successfully spilled trace contexts to the stream, leaving the spill file as is. Not thread-safe with {@link #spill(String, CpuSamplingTraceDetail)}
+   */
+  public void copyTo(OutputStream target) throws IOException {
+    copyTo(target, committedLength);
+  }
+
+  /**
+   * Copies trace contexts spilled till the spill file had the given committed length, see {@link #getCommittedLength()}. Bytes within a
+   * committed length are never rewritten, so this can be invoked concurrently with {@link #spill(String, CpuSamplingTraceDetail)}, and
+   * with {@link #mergeInto(Map)} if the file is retained
+   */
+  public void copyTo(OutputStream target, long length) throws IOException {
+    synchronized (this) {
+      if(deleted) {
+        throw new IllegalStateException("Spill file has already been merged");
+      }
+    }
+    byte[] buffer = new byte[8192];
+    long remaining = length;
+    try (InputStream in = new FileInputStream(path.toFile())) {
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          throw new EOFException("Spill file ended before committed length=" + length);
+        }
+        target.write(buffer, 0, read);
+        remaining -= read;
+      }
+    }
+  }
+
+  /**
+   * Keeps the file from being deleted by {@link #mergeInto(Map)} or {@link #delete()} till {@link #release()} is invoked, so that it can
+   * be copied without serializing with them. Deletion meanwhile is deferred till the last release
+   */
+  public synchronized void retain() {
+    if(deleted) {
+      throw new IllegalStateException("Spill file has already been merged");
+    }
+    retainCount++;
+  }
+
+  public synchronized void release() throws IOException {
+    retainCount--;
+    if(retainCount == 0 && deleteOnRelease) {
+      deleteFile();
+    }
+  }
+
+  public void delete() throws IOException {
+    close();
+    synchronized (this) {
+      if(retainCount > 0) {
+        deleteOnRelease = true;
+      } else {
+        deleteFile();
+      }
+    }
+  }
+
+  private void deleteFile() throws IOException {
+    deleted = true;
+    Files.deleteIfExists(path);
+  }
+
+  /**
+   * @return length of the file till the last successfully spilled trace context
+   */
+  public long getCommittedLength() {
+    return committedLength;
+  }
+
+  public int getSpilledTraceCount() {
+    return spilledTraceCount;
+  }
+
+  public long getSpilledNodeCount() {
+    return spilledNodeCount;
+  }
+
+  private void close() throws IOException {
+    if(out != null) {
+      out.close();
+      out = null;
+      channel = null;
+    }
+  }
+}
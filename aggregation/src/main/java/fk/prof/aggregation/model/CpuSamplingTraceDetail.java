@@ -4,6 +4,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class CpuSamplingTraceDetail {
   private final AtomicInteger sampleCount = new AtomicInteger(0);
+  //Approximate count of nodes in the tree, used to estimate memory held by this trace context. Starts with 2 for global and unclassifiable root
+  private final AtomicInteger nodeCount = new AtomicInteger(2);
   private final CpuSamplingFrameNode globalRoot;
   private final CpuSamplingFrameNode unclassifiableRoot;
 
@@ -20,10 +22,33 @@ public class CpuSamplingTraceDetail {
     return this.unclassifiableRoot;
   }
 
+  /**
+   * Same as {@link CpuSamplingFrameNode#getOrAddChild(int, int)} but also keeps track of nodes added to the tree of this trace context
+   */
+  public CpuSamplingFrameNode getOrAddChild(CpuSamplingFrameNode parent, int childMethodId, int childLineNumber) {
+    return parent.getOrAddChild(childMethodId, childLineNumber, nodeCount);
+  }
+
   public void incrementSamples() {
     this.sampleCount.incrementAndGet();
   }
 
+  public void addSamples(int samples) {
+    this.sampleCount.addAndGet(samples);
+  }
+
+  /**
+   * Adds samples and tree of the other trace context to this trace context, see {@link CpuSamplingFrameNode#merge(CpuSamplingFrameNode, int[], AtomicInteger)}
+   */
+  public void merge(CpuSamplingTraceDetail other, int[] methodIdMapping) {
+    this.sampleCount.addAndGet(other.getSampleCount());
+    this.globalRoot.merge(other.globalRoot, methodIdMapping, nodeCount);
+  }
+
+  public int getNodeCount() {
+    return nodeCount.get();
+  }
+
   @Override
   public boolean equals(Object o) {
     if (o == this) {
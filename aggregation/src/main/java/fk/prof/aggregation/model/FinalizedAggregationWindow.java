@@ -48,6 +48,22 @@ public class FinalizedAggregationWindow {
     return this.workInfoLookup.get(workId);
   }
 
+  public String getAppId() {
+    return this.appId;
+  }
+
+  public String getClusterId() {
+    return this.clusterId;
+  }
+
+  public String getProcId() {
+    return this.procId;
+  }
+
+  public LocalDateTime getStart() {
+    return this.start;
+  }
+
   //NOTE: This is computed on expiry of aggregation window, null otherwise. Having a getter here to make this testable
   public LocalDateTime getEndedAt() {
     return this.endedAt;
@@ -86,13 +102,16 @@ public class FinalizedAggregationWindow {
   protected Header buildHeaderProto(int version, WorkType workType) {
     Header.Builder builder = Header.newBuilder()
         .setFormatVersion(version)
-        .setAggregationEndTime(endedAt == null ? null : endedAt.atOffset(ZoneOffset.UTC).format(DateTimeFormatter.ISO_ZONED_DATE_TIME))
         .setAggregationStartTime(start.atOffset(ZoneOffset.UTC).format(DateTimeFormatter.ISO_ZONED_DATE_TIME))
         .setWindowDuration(durationInSecs)
         .setAppId(appId)
         .setClusterId(clusterId)
         .setProcId(procId);
 
+    //Window which was finalized without being expired, e.g. to be compared in tests, has no end time
+    if(endedAt != null) {
+      builder.setAggregationEndTime(endedAt.atOffset(ZoneOffset.UTC).format(DateTimeFormatter.ISO_ZONED_DATE_TIME));
+    }
     if(workType != null) {
       builder.setWorkType(workType);
     }
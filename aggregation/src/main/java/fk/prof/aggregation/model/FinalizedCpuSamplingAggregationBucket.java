@@ -1,5 +1,7 @@
 package fk.prof.aggregation.model;
 
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 import fk.prof.aggregation.proto.AggregatedProfileModel.*;
 import fk.prof.aggregation.stacktrace.StacktraceFrameNode;
 
@@ -53,34 +55,128 @@ public class FinalizedCpuSamplingAggregationBucket {
   }
 
   /**
-   * Serializes the stacktrace tree in a dfs order. It serializes the tree in batches of fixed size, reusing the memory
-   * allocated for temporary data structures in subsequent batches.
+   * Serializes the stacktrace tree in a dfs order. It serializes the tree in batches of fixed size as {@link FrameNodeColumns}. Fields of
+   * the nodes of a batch are collected in reusable columns and written directly in the wire format of {@link FrameNodeColumns}, through a
+   * reusable {@link CodedOutputStream}, so that no object is allocated per node or per batch. Output is same as that of writing a
+   * {@link FrameNodeColumns} message delimited.
    */
   protected static class NodeVisitor implements StacktraceFrameNode.NodeVisitor<CpuSamplingFrameNode> {
-    private OutputStream out;
-    private int batchSize;
-    private FrameNodeList.Builder builder = FrameNodeList.newBuilder();
+    private final CodedOutputStream out;
+    private final int batchSize;
+    private final int traceCtxId;
+    private final int[] methodIdMapping;
+
+    private final int[] methodIds;
+    private final int[] childCounts;
+    private final int[] lineNos;
+    private final int[] onStackSamples;
+    private final int[] onCpuSamples;
+    private int nodeCount = 0;
 
     public NodeVisitor(OutputStream out, int batchSize, int traceCtxId) {
-      this.out = out;
+      this(out, batchSize, traceCtxId, null);
+    }
+
+    /**
+     * @param methodIdMapping if not null, method ids are written as methodIdMapping[methodId]
+     */
+    public NodeVisitor(OutputStream out, int batchSize, int traceCtxId, int[] methodIdMapping) {
+      this.out = CodedOutputStream.newInstance(out);
       this.batchSize = batchSize;
-      this.builder.setTraceCtxIdx(traceCtxId);
+      this.traceCtxId = traceCtxId;
+      this.methodIdMapping = methodIdMapping;
+
+      this.methodIds = new int[batchSize];
+      this.childCounts = new int[batchSize];
+      this.lineNos = new int[batchSize];
+      this.onStackSamples = new int[batchSize];
+      this.onCpuSamples = new int[batchSize];
     }
 
     @Override
     public void visit(CpuSamplingFrameNode node) throws IOException {
-      if(builder.getFrameNodesCount() >= batchSize) {
-        builder.build().writeDelimitedTo(out);
+      if(nodeCount >= batchSize) {
+        writeBatch();
 
         // clear this batch of nodes
-        builder.clearFrameNodes();
+        nodeCount = 0;
       }
-      builder.addFrameNodes(node.buildFrameNodeProto());
+      methodIds[nodeCount] = methodIdMapping == null ? node.getMethodId() : methodIdMapping[node.getMethodId()];
+      childCounts[nodeCount] = node.getChildCount();
+      lineNos[nodeCount] = node.getLineNumber();
+      onStackSamples[nodeCount] = node.getOnStackSamples();
+      onCpuSamples[nodeCount] = node.getOnCpuSamples();
+      ++nodeCount;
     }
 
     protected void end() throws IOException {
-      if(builder.getFrameNodesCount() > 0) {
-        builder.build().writeDelimitedTo(out);
+      if(nodeCount > 0) {
+        writeBatch();
+      }
+      out.flush();
+    }
+
+    private void writeBatch() throws IOException {
+      int methodIdDeltaSize = deltaColumnSize(methodIds);
+      int childCountSize = columnSize(childCounts);
+      int lineNoDeltaSize = deltaColumnSize(lineNos);
+      int onStackSamplesDeltaSize = deltaColumnSize(onStackSamples);
+      int onCpuSamplesSize = columnSize(onCpuSamples);
+
+      int messageSize = CodedOutputStream.computeUInt32Size(FrameNodeColumns.TRACECTXIDX_FIELD_NUMBER, traceCtxId)
+          + packedFieldSize(FrameNodeColumns.METHODIDDELTA_FIELD_NUMBER, methodIdDeltaSize)
+          + packedFieldSize(FrameNodeColumns.CHILDCOUNT_FIELD_NUMBER, childCountSize)
+          + packedFieldSize(FrameNodeColumns.LINENODELTA_FIELD_NUMBER, lineNoDeltaSize)
+          + packedFieldSize(FrameNodeColumns.ONSTACKSAMPLESDELTA_FIELD_NUMBER, onStackSamplesDeltaSize)
+          + packedFieldSize(FrameNodeColumns.ONCPUSAMPLES_FIELD_NUMBER, onCpuSamplesSize);
+
+      out.writeUInt32NoTag(messageSize);
+      out.writeUInt32(FrameNodeColumns.TRACECTXIDX_FIELD_NUMBER, traceCtxId);
+      writeDeltaColumn(FrameNodeColumns.METHODIDDELTA_FIELD_NUMBER, methodIds, methodIdDeltaSize);
+      writeColumn(FrameNodeColumns.CHILDCOUNT_FIELD_NUMBER, childCounts, childCountSize);
+      writeDeltaColumn(FrameNodeColumns.LINENODELTA_FIELD_NUMBER, lineNos, lineNoDeltaSize);
+      writeDeltaColumn(FrameNodeColumns.ONSTACKSAMPLESDELTA_FIELD_NUMBER, onStackSamples, onStackSamplesDeltaSize);
+      writeColumn(FrameNodeColumns.ONCPUSAMPLES_FIELD_NUMBER, onCpuSamples, onCpuSamplesSize);
+    }
+
+    // columns of delta are sint32, the rest are uint32. First value of a column is delta from 0.
+    private int deltaColumnSize(int[] column) {
+      int size = 0;
+      int previous = 0;
+      for(int i = 0; i < nodeCount; i++) {
+        size += CodedOutputStream.computeSInt32SizeNoTag(column[i] - previous);
+        previous = column[i];
+      }
+      return size;
+    }
+
+    private int columnSize(int[] column) {
+      int size = 0;
+      for(int i = 0; i < nodeCount; i++) {
+        size += CodedOutputStream.computeUInt32SizeNoTag(column[i]);
+      }
+      return size;
+    }
+
+    private static int packedFieldSize(int fieldNumber, int dataSize) {
+      return CodedOutputStream.computeTagSize(fieldNumber) + CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize;
+    }
+
+    private void writeDeltaColumn(int fieldNumber, int[] column, int dataSize) throws IOException {
+      out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeUInt32NoTag(dataSize);
+      int previous = 0;
+      for(int i = 0; i < nodeCount; i++) {
+        out.writeSInt32NoTag(column[i] - previous);
+        previous = column[i];
+      }
+    }
+
+    private void writeColumn(int fieldNumber, int[] column, int dataSize) throws IOException {
+      out.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeUInt32NoTag(dataSize);
+      for(int i = 0; i < nodeCount; i++) {
+        out.writeUInt32NoTag(column[i]);
       }
     }
   }
@@ -2,10 +2,14 @@ package fk.prof.aggregation.model;
 
 import fk.prof.aggregation.proto.AggregatedProfileModel.*;
 import fk.prof.aggregation.proto.AggregatedProfileModel.ProfileWorkInfo.TraceCtxToCoveragePctMap;
+import fk.prof.aggregation.proto.AggregatedProfileModel.ProfileWorkInfo.TraceCtxToSampleErrors;
 import fk.prof.aggregation.state.AggregationState;
 
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,6 +22,8 @@ public class FinalizedProfileWorkInfo {
   private final int durationInSec;
   private final Map<String, Integer> traceCoverages;
   private final Map<WorkType, Integer> samples;
+  private final FinalizedSampleErrorCounts sampleErrors;
+  private final Map<String, FinalizedSampleErrorCounts> traceSampleErrors;
 
   public FinalizedProfileWorkInfo(int recorderVersion,
                                   RecorderInfo recorderInfo,
@@ -26,7 +32,9 @@ public class FinalizedProfileWorkInfo {
                                   LocalDateTime endedAt,
                                   int durationInSec,
                                   Map<String, Integer> traceCoverages,
-                                  Map<WorkType, Integer> samples) {
+                                  Map<WorkType, Integer> samples,
+                                  FinalizedSampleErrorCounts sampleErrors,
+                                  Map<String, FinalizedSampleErrorCounts> traceSampleErrors) {
     this.recorderVersion = recorderVersion;
     this.recorderInfo = recorderInfo;
     this.state = state;
@@ -35,6 +43,43 @@ public class FinalizedProfileWorkInfo {
     this.durationInSec = durationInSec;
     this.traceCoverages = traceCoverages;
     this.samples = samples;
+    this.sampleErrors = sampleErrors;
+    this.traceSampleErrors = traceSampleErrors;
+  }
+
+  /**
+   * Rebuilds the work info from its proto representation, e.g. to merge stored aggregation windows
+   * @param aggregationStartTime start of the aggregation window to which start offset of the work info is relative
+   * @param traces names of the trace contexts, indexed by coverage and sample errors of the work info
+   */
+  public static FinalizedProfileWorkInfo fromProfileWorkInfoProto(ProfileWorkInfo workInfo, LocalDateTime aggregationStartTime, List<String> traces) {
+    LocalDateTime startedAt = workInfo.hasStartOffset() ? aggregationStartTime.plusSeconds(workInfo.getStartOffset()) : null;
+    LocalDateTime endedAt = startedAt == null ? null : startedAt.plusSeconds(workInfo.getDuration());
+
+    Map<String, Integer> traceCoverages = new HashMap<>();
+    for (TraceCtxToCoveragePctMap coverage : workInfo.getTraceCoverageMapList()) {
+      traceCoverages.put(traces.get(coverage.getTraceCtxIdx()), Math.round(coverage.getCoveragePct()));
+    }
+
+    Map<WorkType, Integer> samples = new EnumMap<>(WorkType.class);
+    for (ProfileWorkInfo.SampleCount sampleCount : workInfo.getSampleCountList()) {
+      samples.merge(sampleCount.getWorkType(), sampleCount.getSampleCount(), Integer::sum);
+    }
+
+    FinalizedSampleErrorCounts sampleErrors = workInfo.hasSampleErrors() ?
+        FinalizedSampleErrorCounts.fromSampleErrorCountsProto(workInfo.getSampleErrors()) : null;
+
+    Map<String, FinalizedSampleErrorCounts> traceSampleErrors = null;
+    if (workInfo.getTraceSampleErrorsCount() > 0) {
+      traceSampleErrors = new HashMap<>();
+      for (TraceCtxToSampleErrors traceErrors : workInfo.getTraceSampleErrorsList()) {
+        traceSampleErrors.put(traces.get(traceErrors.getTraceCtxIdx()), FinalizedSampleErrorCounts.fromSampleErrorCountsProto(traceErrors.getSampleErrors()));
+      }
+    }
+
+    return new FinalizedProfileWorkInfo(workInfo.getRecorderVersion(), workInfo.hasRecorderInfo() ? workInfo.getRecorderInfo() : null,
+        fromAggregationStatusProto(workInfo.getStatus()), startedAt, endedAt, workInfo.getDuration(), traceCoverages, samples, sampleErrors,
+        traceSampleErrors);
   }
 
   //NOTE: Exposing this to make the class more testable since startedAt has generated value
@@ -51,6 +96,14 @@ public class FinalizedProfileWorkInfo {
     return state;
   }
 
+  public FinalizedSampleErrorCounts getSampleErrors() {
+    return sampleErrors;
+  }
+
+  public FinalizedSampleErrorCounts getSampleErrors(String traceName) {
+    return traceSampleErrors == null ? null : traceSampleErrors.get(traceName);
+  }
+
   @Override
   public boolean equals(Object o) {
     if (o == this) {
@@ -68,6 +121,8 @@ public class FinalizedProfileWorkInfo {
         && (this.endedAt == null ? other.endedAt == null : this.endedAt.equals(other.endedAt))
         && (this.traceCoverages == null ? other.traceCoverages == null : this.traceCoverages.equals(other.traceCoverages))
         && (this.samples == null ? other.samples == null : this.samples.equals(other.samples))
+        && (this.sampleErrors == null ? other.sampleErrors == null : this.sampleErrors.equals(other.sampleErrors))
+        && (this.traceSampleErrors == null ? other.traceSampleErrors == null : this.traceSampleErrors.equals(other.traceSampleErrors))
         && (this.recorderInfo == null ? other.recorderInfo == null : this.recorderInfo.equals(other.recorderInfo));
   }
 
@@ -111,6 +166,21 @@ public class FinalizedProfileWorkInfo {
         }
       }
 
+      if(sampleErrors != null) {
+        builder.setSampleErrors(sampleErrors.buildSampleErrorCountsProto());
+      }
+
+      if(traceSampleErrors != null) {
+        int index = 0;
+        for (String traceName : traces.getNameList()) {
+          FinalizedSampleErrorCounts traceErrors = traceSampleErrors.get(traceName);
+          if (traceErrors != null) {
+            builder.addTraceSampleErrors(TraceCtxToSampleErrors.newBuilder().setTraceCtxIdx(index).setSampleErrors(traceErrors.buildSampleErrorCountsProto()));
+          }
+          ++index;
+        }
+      }
+
       return builder.build();
     }
     return null;
@@ -120,6 +190,18 @@ public class FinalizedProfileWorkInfo {
     return buildProfileWorkInfoProto(null, aggregationStartTime, traces);
   }
 
+  private static AggregationState fromAggregationStatusProto(AggregationStatus status) {
+    switch (status) {
+      case Aborted: return AggregationState.ABORTED;
+      case Completed: return AggregationState.COMPLETED;
+      case Corrupt: return AggregationState.CORRUPT;
+      case Incomplete: return AggregationState.INCOMPLETE;
+      case Retried: return AggregationState.RETRIED;
+      case Scheduled: return AggregationState.SCHEDULED;
+      default: throw new IllegalArgumentException(status.name() + " status is not supported");
+    }
+  }
+
   private AggregationStatus toAggregationStatusProto(AggregationState status) {
     switch (status) {
       case ABORTED: return AggregationStatus.Aborted;
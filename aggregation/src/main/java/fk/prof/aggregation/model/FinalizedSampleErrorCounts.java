@@ -0,0 +1,69 @@
+package fk.prof.aggregation.model;
+
+import fk.prof.aggregation.proto.AggregatedProfileModel.SampleError;
+import fk.prof.aggregation.proto.AggregatedProfileModel.SampleErrorCounts;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+public class FinalizedSampleErrorCounts {
+  private final int snippedCount;
+  private final Map<SampleError, Integer> errorCounts;
+
+  public FinalizedSampleErrorCounts(int snippedCount, Map<SampleError, Integer> errorCounts) {
+    this.snippedCount = snippedCount;
+    this.errorCounts = errorCounts;
+  }
+
+  /**
+   * Rebuilds the counts from their proto representation
+   */
+  public static FinalizedSampleErrorCounts fromSampleErrorCountsProto(SampleErrorCounts sampleErrorCounts) {
+    Map<SampleError, Integer> errorCounts = new EnumMap<>(SampleError.class);
+    for (SampleErrorCounts.ErrorCount errorCount : sampleErrorCounts.getErrorCountList()) {
+      errorCounts.merge(errorCount.getError(), errorCount.getCount(), Integer::sum);
+    }
+    return new FinalizedSampleErrorCounts(sampleErrorCounts.getSnippedCount(), errorCounts);
+  }
+
+  public int getSnippedCount() {
+    return snippedCount;
+  }
+
+  public int getErrorCount(SampleError error) {
+    return errorCounts == null ? 0 : errorCounts.getOrDefault(error, 0);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof FinalizedSampleErrorCounts)) {
+      return false;
+    }
+
+    FinalizedSampleErrorCounts other = (FinalizedSampleErrorCounts) o;
+    return this.snippedCount == other.snippedCount
+        && (this.errorCounts == null ? other.errorCounts == null : this.errorCounts.equals(other.errorCounts));
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * snippedCount + (errorCounts == null ? 0 : errorCounts.hashCode());
+  }
+
+  protected SampleErrorCounts buildSampleErrorCountsProto() {
+    SampleErrorCounts.Builder builder = SampleErrorCounts.newBuilder().setSnippedCount(snippedCount);
+    if(errorCounts != null) {
+      // iterate over enum values to keep the serialized order deterministic
+      for (SampleError error : SampleError.values()) {
+        Integer count = errorCounts.get(error);
+        if (count != null && count > 0) {
+          builder.addErrorCount(SampleErrorCounts.ErrorCount.newBuilder().setError(error).setCount(count));
+        }
+      }
+    }
+    return builder.build();
+  }
+}
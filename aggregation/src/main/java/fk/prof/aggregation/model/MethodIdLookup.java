@@ -3,6 +3,7 @@ package fk.prof.aggregation.model;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -24,10 +25,46 @@ public class MethodIdLookup {
     lookup.put(UNCLASSIFIABLE_ROOT_METHOD_SIGNATURE, UNCLASSIFIABLE_ROOT_METHOD_ID);
   }
 
+  /**
+   * Rebuilds the lookup from its proto representation, retaining the method ids
+   */
+  public static MethodIdLookup fromMethodIdLookupProto(AggregatedProfileModel.MethodLookUp methodLookUp) {
+    MethodIdLookup methodIdLookup = new MethodIdLookup();
+    for (int methodId = 0; methodId < methodLookUp.getFqdnCount(); methodId++) {
+      methodIdLookup.lookup.put(methodLookUp.getFqdn(methodId), methodId);
+    }
+    methodIdLookup.counter.set(Math.max(methodLookUp.getFqdnCount(), methodIdLookup.counter.get()));
+    return methodIdLookup;
+  }
+
   public Integer getOrAdd(String methodSignature) {
     return lookup.computeIfAbsent(methodSignature, (key -> counter.getAndIncrement()));
   }
 
+  /**
+   * Adds all methods of the other lookup to this lookup
+   * @return indexed array where arr[idx] = method id in this lookup and idx = method id of the same method in other lookup
+   */
+  public int[] addAll(MethodIdLookup other) {
+    String[] otherReverseLookup = other.generateReverseLookup();
+    int[] methodIdMapping = new int[otherReverseLookup.length];
+    for (int methodId = 0; methodId < otherReverseLookup.length; methodId++) {
+      methodIdMapping[methodId] = getOrAdd(otherReverseLookup[methodId]);
+    }
+    return methodIdMapping;
+  }
+
+  /**
+   * @return mapping which leaves method ids as is, to merge trees which refer to this lookup into each other
+   */
+  public int[] identityMapping() {
+    int[] methodIdMapping = new int[counter.get()];
+    for (int methodId = 0; methodId < methodIdMapping.length; methodId++) {
+      methodIdMapping[methodId] = methodId;
+    }
+    return methodIdMapping;
+  }
+
   /**
    * Generates a reverse lookup array where array index corresponds to methodId
    * We are assured of a 1:1 relationship between K and V because of an atomic counter being used to generate sequential lookup values.
@@ -56,6 +93,40 @@ public class MethodIdLookup {
         && this.lookup.equals(other.lookup);
   }
 
+  /**
+   * Ids of methods in an order independent of the order in which methods were added, so that lookups having the same set of methods
+   * are serialized alike. Reserved ids are retained and rest of the methods are ordered by signature.
+   * @return indexed array where arr[idx] = canonical method id and idx = method id in this lookup
+   */
+  protected int[] generateCanonicalMethodIdMapping() {
+    String[] reverseLookup = generateReverseLookup();
+    Integer[] methodIdsBySignature = new Integer[reverseLookup.length - 2];
+    for (int methodId = 2; methodId < reverseLookup.length; methodId++) {
+      methodIdsBySignature[methodId - 2] = methodId;
+    }
+    Arrays.sort(methodIdsBySignature, Comparator.comparing((Integer methodId) -> reverseLookup[methodId]));
+
+    int[] canonicalMethodIds = new int[reverseLookup.length];
+    canonicalMethodIds[GLOBAL_ROOT_METHOD_ID] = GLOBAL_ROOT_METHOD_ID;
+    canonicalMethodIds[UNCLASSIFIABLE_ROOT_METHOD_ID] = UNCLASSIFIABLE_ROOT_METHOD_ID;
+    for (int i = 0; i < methodIdsBySignature.length; i++) {
+      canonicalMethodIds[methodIdsBySignature[i]] = i + 2;
+    }
+    return canonicalMethodIds;
+  }
+
+  /**
+   * @param canonicalMethodIds as generated by {@link #generateCanonicalMethodIdMapping()}
+   */
+  protected AggregatedProfileModel.MethodLookUp buildCanonicalMethodIdLookupProto(int[] canonicalMethodIds) {
+    String[] reverseLookup = generateReverseLookup();
+    String[] canonicalReverseLookup = new String[reverseLookup.length];
+    for (int methodId = 0; methodId < reverseLookup.length; methodId++) {
+      canonicalReverseLookup[canonicalMethodIds[methodId]] = reverseLookup[methodId];
+    }
+    return AggregatedProfileModel.MethodLookUp.newBuilder().addAllFqdn(Arrays.asList(canonicalReverseLookup)).build();
+  }
+
   protected AggregatedProfileModel.MethodLookUp buildMethodIdLookupProto() {
     return AggregatedProfileModel.MethodLookUp.newBuilder().addAllFqdn(Arrays.asList(generateReverseLookup())).build();
   }
@@ -0,0 +1,86 @@
+package fk.prof.aggregation.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import fk.prof.aggregation.serialize.SerializationException;
+import fk.prof.aggregation.stacktrace.StackLineParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Writes cpu samples of a trace context as the json that userapi responds with for it, so that it can be served as is without loading
+ * the aggregation file. Json is an object having "aggregated_samples": {"frame_nodes": [[methodId, childCount, lineNo, [onStackSamples,
+ * onCpuSamples]], ...]} with nodes in dfs order and "method_lookup": [method signatures in their java representation]. Method ids are
+ * canonical, same as in the aggregation file, so the view is same as the json of the trace context loaded from the file.
+ * Output is not compressed by the serializer.
+ */
+public class TraceCtxViewSerializer {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final FinalizedCpuSamplingAggregationBucket cpuSamplingAggregation;
+    // built once and shared by all trace contexts of the window
+    private int[] canonicalMethodIds = null;
+    private List<String> javaMethodLookup = null;
+
+    public TraceCtxViewSerializer(FinalizedAggregationWindow aggregation) {
+        this.cpuSamplingAggregation = aggregation.cpuSamplingAggregationBucket;
+    }
+
+    public Iterable<String> getTraceNames() {
+        return cpuSamplingAggregation.traceDetailLookup.keySet();
+    }
+
+    public void serialize(String traceName, OutputStream out) throws IOException {
+        CpuSamplingTraceDetail traceDetail = cpuSamplingAggregation.traceDetailLookup.get(traceName);
+        if(traceDetail == null) {
+            throw new IllegalArgumentException("Trace context: " + traceName + " is not present in the aggregation window");
+        }
+
+        initMethodLookup();
+        try (JsonGenerator gen = JSON_FACTORY.createGenerator(out)) {
+            gen.writeStartObject();
+
+            gen.writeObjectFieldStart("aggregated_samples");
+            gen.writeArrayFieldStart("frame_nodes");
+            try {
+                traceDetail.getGlobalRoot().traverse(node -> {
+                    gen.writeStartArray();
+                    gen.writeNumber(canonicalMethodIds[node.getMethodId()]);
+                    gen.writeNumber(node.getChildCount());
+                    gen.writeNumber(node.getLineNumber());
+                    gen.writeStartArray();
+                    gen.writeNumber(node.getOnStackSamples());
+                    gen.writeNumber(node.getOnCpuSamples());
+                    gen.writeEndArray();
+                    gen.writeEndArray();
+                });
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SerializationException("Unexpected error while traversing stacktrace tree", e);
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+
+            gen.writeArrayFieldStart("method_lookup");
+            for(String method: javaMethodLookup) {
+                gen.writeString(method);
+            }
+            gen.writeEndArray();
+
+            gen.writeEndObject();
+        }
+    }
+
+    private void initMethodLookup() {
+        if(javaMethodLookup == null) {
+            canonicalMethodIds = cpuSamplingAggregation.methodIdLookup.generateCanonicalMethodIdMapping();
+            javaMethodLookup = cpuSamplingAggregation.methodIdLookup.buildCanonicalMethodIdLookupProto(canonicalMethodIds).getFqdnList().stream()
+                    .map(StackLineParser::convertJVMTypeSignToJava).collect(Collectors.toList());
+        }
+    }
+}
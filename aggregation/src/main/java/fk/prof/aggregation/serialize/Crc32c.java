@@ -0,0 +1,93 @@
+package fk.prof.aggregation.serialize;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum. Delegates to java.util.zip.CRC32C, which is intrinsified to the crc32 instruction, when the runtime
+ * provides it (java 9+) and falls back to a table driven implementation otherwise. Both produce the same value for the same input.
+ */
+public class Crc32c implements Checksum {
+
+    private static final int POLY_REFLECTED = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+    private static final MethodHandle NATIVE_CONSTRUCTOR = findNativeConstructor();
+
+    static {
+        for(int i = 0; i < 256; i++) {
+            int crc = i;
+            for(int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY_REFLECTED : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private final Checksum delegate;
+    private int crc = 0xFFFFFFFF;
+
+    public Crc32c() {
+        this.delegate = newNativeChecksum();
+    }
+
+    @Override
+    public void update(int b) {
+        if(delegate != null) {
+            delegate.update(b);
+            return;
+        }
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if(delegate != null) {
+            delegate.update(b, off, len);
+            return;
+        }
+        int localCrc = crc;
+        for(int i = off, end = off + len; i < end; i++) {
+            localCrc = (localCrc >>> 8) ^ TABLE[(localCrc ^ b[i]) & 0xFF];
+        }
+        crc = localCrc;
+    }
+
+    @Override
+    public long getValue() {
+        if(delegate != null) {
+            return delegate.getValue();
+        }
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        if(delegate != null) {
+            delegate.reset();
+            return;
+        }
+        crc = 0xFFFFFFFF;
+    }
+
+    private static MethodHandle findNativeConstructor() {
+        try {
+            Class<?> clazz = Class.forName("java.util.zip.CRC32C");
+            return MethodHandles.publicLookup().findConstructor(clazz, MethodType.methodType(void.class)).asType(MethodType.methodType(Checksum.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Checksum newNativeChecksum() {
+        if(NATIVE_CONSTRUCTOR == null) {
+            return null;
+        }
+        try {
+            return (Checksum) NATIVE_CONSTRUCTOR.invokeExact();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+}
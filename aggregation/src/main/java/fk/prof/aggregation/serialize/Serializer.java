@@ -18,14 +18,15 @@ public interface Serializer {
 
     void serialize(OutputStream out) throws IOException;
 
+    /**
+     * Writes value as an unsigned varint, same as {@link CodedOutputStream#writeUInt32NoTag(int)}, without allocating.
+     */
     static void writeVariantInt32(int value, OutputStream os) throws IOException {
-        byte[] bytes = new byte[8];
-
-        CodedOutputStream cout = CodedOutputStream.newInstance(bytes);
-        cout.writeUInt32NoTag(value);
-        cout.flush();
-
-        os.write(bytes, 0, cout.getTotalBytesWritten());
+        while((value & ~0x7F) != 0) {
+            os.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        os.write(value);
     }
 
     static void writeCheckedDelimited(AbstractMessage msg, CheckedOutputStream out) throws IOException {
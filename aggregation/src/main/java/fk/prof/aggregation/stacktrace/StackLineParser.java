@@ -1,4 +1,4 @@
-package fk.prof.userapi.util;
+package fk.prof.aggregation.stacktrace;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -1,5 +1,7 @@
 package fk.prof.aggregation.stacktrace;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 
 /**
@@ -10,22 +12,36 @@ public abstract class StacktraceFrameNode<T extends StacktraceFrameNode<T>> {
 
     protected abstract Iterable<T> children();
 
+    @SuppressWarnings("unchecked")
     public void traverse(NodeVisitor<T> visitor) throws Exception {
-        new DFSTraversal(visitor).traverse(this);
+        new DFSTraversal<>(visitor).traverse((T) this);
     }
 
+    /**
+     * Pre-order dfs using an explicit stack of children iterators instead of recursion, so that depth of the tree is not bounded by the
+     * call stack. Nodes are visited in the same order as a recursive traversal.
+     */
     private static class DFSTraversal<T extends StacktraceFrameNode<T>> {
         private NodeVisitor<T> visitor;
         public DFSTraversal(NodeVisitor<T> visitor) {
             this.visitor = visitor;
         }
 
-        public void traverse(T node) throws Exception {
-            visitor.visit(node);
-            Iterator<T> children = node.children().iterator();
-            while(children.hasNext()) {
-                T child = children.next();
-                traverse(child);
+        public void traverse(T root) throws Exception {
+            Deque<Iterator<T>> path = new ArrayDeque<>();
+            visitor.visit(root);
+            path.push(root.children().iterator());
+
+            while(!path.isEmpty()) {
+                Iterator<T> siblings = path.peek();
+                if(siblings.hasNext()) {
+                    T child = siblings.next();
+                    visitor.visit(child);
+                    path.push(child.children().iterator());
+                }
+                else {
+                    path.pop();
+                }
             }
         }
     }
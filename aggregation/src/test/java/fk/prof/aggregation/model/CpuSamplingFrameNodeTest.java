@@ -3,6 +3,10 @@ package fk.prof.aggregation.model;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class CpuSamplingFrameNodeTest {
   @Test
   public void testEqualityOfNodesBasedOnMethodIdAndLineNumber() {
@@ -32,5 +36,35 @@ public class CpuSamplingFrameNodeTest {
     Assert.assertTrue(n3 == n4);
   }
 
+  @Test
+  public void testTraversalShouldVisitNodesInPreOrder() throws Exception {
+    CpuSamplingFrameNode root = new CpuSamplingFrameNode(0, 0);
+    CpuSamplingFrameNode n1 = root.getOrAddChild(1, 0);
+    n1.getOrAddChild(2, 0).getOrAddChild(3, 0);
+    n1.getOrAddChild(4, 0);
+    root.getOrAddChild(5, 0).getOrAddChild(6, 0);
+
+    List<Integer> visited = new ArrayList<>();
+    root.traverse(node -> visited.add(node.getMethodId()));
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6), visited);
+  }
+
+  @Test
+  public void testTraversalOfDeepTreeShouldNotBeBoundedByCallStack() throws Exception {
+    int depth = 1_000_000;
+    CpuSamplingFrameNode root = new CpuSamplingFrameNode(0, 0);
+    CpuSamplingFrameNode node = root;
+    for (int i = 1; i < depth; i++) {
+      node = node.getOrAddChild(i, 0);
+    }
+
+    int[] visitedCount = new int[1];
+    root.traverse(n -> {
+      Assert.assertEquals(visitedCount[0], n.getMethodId());
+      visitedCount[0]++;
+    });
+    Assert.assertEquals(depth, visitedCount[0]);
+  }
+
   //TODO: Tests for increment of on-stack and on-cpu samples should be added once serialization is implemented
 }
@@ -0,0 +1,77 @@
+package fk.prof.aggregation.model;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CpuSamplingSpillFileTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testSpilledTreesAreMergedBackIntoLiveTrees() throws Exception {
+    CpuSamplingTraceDetail spilled1 = new CpuSamplingTraceDetail();
+    addSample(spilled1, 2, 3, 4);
+    addSample(spilled1, 2, 3, 5);
+    CpuSamplingTraceDetail spilled2 = new CpuSamplingTraceDetail();
+    addSample(spilled2, 2, 6);
+
+    CpuSamplingSpillFile spillFile = new CpuSamplingSpillFile(tempFolder.getRoot().toPath());
+    spillFile.spill("t1", spilled1);
+    spillFile.spill("t2", spilled2);
+    Assert.assertEquals(2, spillFile.getSpilledTraceCount());
+
+    // t1 continued to be aggregated after being spilled, t2 did not receive any sample after being spilled
+    Map<String, CpuSamplingTraceDetail> live = new HashMap<>();
+    CpuSamplingTraceDetail live1 = new CpuSamplingTraceDetail();
+    addSample(live1, 2, 3, 4);
+    addSample(live1, 7);
+    live.put("t1", live1);
+
+    spillFile.mergeInto(live);
+
+    CpuSamplingTraceDetail expected1 = new CpuSamplingTraceDetail();
+    addSample(expected1, 2, 3, 4);
+    addSample(expected1, 2, 3, 5);
+    addSample(expected1, 2, 3, 4);
+    addSample(expected1, 7);
+    CpuSamplingTraceDetail expected2 = new CpuSamplingTraceDetail();
+    addSample(expected2, 2, 6);
+
+    Assert.assertEquals(2, live.size());
+    Assert.assertEquals(expected1, live.get("t1"));
+    Assert.assertEquals(expected2, live.get("t2"));
+    Assert.assertEquals(0, tempFolder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testDeleteRemovesSpillFile() throws Exception {
+    File dir = tempFolder.getRoot();
+    CpuSamplingTraceDetail traceDetail = new CpuSamplingTraceDetail();
+    addSample(traceDetail, 2, 3);
+
+    CpuSamplingSpillFile spillFile = new CpuSamplingSpillFile(dir.toPath());
+    spillFile.spill("t1", traceDetail);
+    Assert.assertEquals(1, dir.listFiles().length);
+
+    spillFile.delete();
+    Assert.assertEquals(0, dir.listFiles().length);
+  }
+
+  //methodIds are ordered root -> leaf, last one being the on-cpu frame
+  private void addSample(CpuSamplingTraceDetail traceDetail, int... methodIds) {
+    CpuSamplingFrameNode node = traceDetail.getGlobalRoot();
+    node.incrementOnStackSamples();
+    traceDetail.incrementSamples();
+    for (int methodId : methodIds) {
+      node = traceDetail.getOrAddChild(node, methodId, MethodIdLookup.DEFAULT_LINE_NUMBER);
+      node.incrementOnStackSamples();
+    }
+    node.incrementOnCpuSamples();
+  }
+}
@@ -52,8 +52,8 @@ public class ModelToProtoTest {
         LocalDateTime now = LocalDateTime.now(Clock.systemUTC());
         FinalizedAggregationWindow window = new FinalizedAggregationWindow("app1", "cluster1", "proc1", now, now.plusSeconds(1200), 1200,
                 buildMap(
-                        101l, new FinalizedProfileWorkInfo(1, null, AggregationState.COMPLETED, now.plusSeconds(10), now.plusSeconds(90), 80, buildMap("trace1", 5, "trace2", 10), buildMap(WorkType.cpu_sample_work, 100, WorkType.thread_sample_work, 80)),
-                        102l, new FinalizedProfileWorkInfo(1, null, AggregationState.ABORTED, now.plusSeconds(100), now.plusSeconds(200), 100, buildMap("trace1", 10, "trace2", 10), buildMap(WorkType.cpu_sample_work, 1000, WorkType.thread_sample_work, 800))
+                        101l, new FinalizedProfileWorkInfo(1, null, AggregationState.COMPLETED, now.plusSeconds(10), now.plusSeconds(90), 80, buildMap("trace1", 5, "trace2", 10), buildMap(WorkType.cpu_sample_work, 100, WorkType.thread_sample_work, 80), null, null),
+                        102l, new FinalizedProfileWorkInfo(1, null, AggregationState.ABORTED, now.plusSeconds(100), now.plusSeconds(200), 100, buildMap("trace1", 10, "trace2", 10), buildMap(WorkType.cpu_sample_work, 1000, WorkType.thread_sample_work, 800), null, null)
                         ),
                 null
                 );
@@ -101,7 +101,7 @@ public class ModelToProtoTest {
 
         FinalizedProfileWorkInfo wi1 = new FinalizedProfileWorkInfo(1, null, AggregationState.COMPLETED, now, now.plusMinutes(1), 60,
                 buildMap("trace1", 5, "trace2", 10, "trace3", 15),
-                buildMap(WorkType.cpu_sample_work, 100, WorkType.thread_sample_work, 80));
+                buildMap(WorkType.cpu_sample_work, 100, WorkType.thread_sample_work, 80), null, null);
 
         ProfileWorkInfo workInfo = wi1.buildProfileWorkInfoProto(WorkType.cpu_sample_work, now, buildTraceList("trace1", "trace2"));
 
@@ -122,6 +122,32 @@ public class ModelToProtoTest {
         assertThat(workInfo.getTraceCoverageMap(1).getCoveragePct(), is(10.0f));
     }
 
+    @Test
+    public void testBuildWorkInfo_profileWorkInfoShouldBuildSampleErrorsProto() {
+        LocalDateTime now = LocalDateTime.now(Clock.systemUTC());
+
+        FinalizedProfileWorkInfo wi1 = new FinalizedProfileWorkInfo(1, null, AggregationState.COMPLETED, now, now.plusMinutes(1), 60,
+                buildMap("trace1", 5, "trace2", 10, "trace3", 15),
+                buildMap(WorkType.cpu_sample_work, 100),
+                new FinalizedSampleErrorCounts(7, buildMap(SampleError.ticks_GC_active, 3, SampleError.ticks_unknown_Java, 2)),
+                buildMap("trace2", new FinalizedSampleErrorCounts(4, buildMap(SampleError.ticks_GC_active, 1)),
+                        "trace3", new FinalizedSampleErrorCounts(0, buildMap(SampleError.ticks_unknown_Java, 2))));
+
+        ProfileWorkInfo workInfo = wi1.buildProfileWorkInfoProto(WorkType.cpu_sample_work, now, buildTraceList("trace1", "trace2"));
+
+        assertThat(workInfo.getSampleErrors().getSnippedCount(), is(7));
+        assertThat(workInfo.getSampleErrors().getErrorCountList(), is(Arrays.asList(
+                SampleErrorCounts.ErrorCount.newBuilder().setError(SampleError.ticks_GC_active).setCount(3).build(),
+                SampleErrorCounts.ErrorCount.newBuilder().setError(SampleError.ticks_unknown_Java).setCount(2).build()
+        )));
+
+        // trace3 is not part of the trace list
+        assertThat(workInfo.getTraceSampleErrorsCount(), is(1));
+        assertThat(workInfo.getTraceSampleErrors(0).getTraceCtxIdx(), is(1));
+        assertThat(workInfo.getTraceSampleErrors(0).getSampleErrors().getSnippedCount(), is(4));
+        assertThat(workInfo.getTraceSampleErrors(0).getSampleErrors().getErrorCount(0).getCount(), is(1));
+    }
+
     @Test
     public void testStackTraceTreeToProto_cpuSamplingTraceDetailsShouldSerializeStacktraceTreeInBatches() throws Exception {
         CpuSamplingTraceDetail traceDetail = new CpuSamplingTraceDetail();
@@ -156,23 +182,62 @@ public class ModelToProtoTest {
 
         ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 
-        FrameNodeList nodes = FrameNodeList.parseDelimitedFrom(in);
+        FrameNodeColumns nodes = FrameNodeColumns.parseDelimitedFrom(in);
 
         assertNotNull(nodes);
-        assertThat(nodes.getFrameNodesCount(), is(3));
-        assertThat(nodes.getFrameNodes(0).getMethodId(), is(0));
-        assertThat(nodes.getFrameNodes(1).getMethodId(), is(1));
-        assertThat(nodes.getFrameNodes(2).getMethodId(), is(2));
+        assertThat(nodes.getMethodIdDeltaList(), is(Arrays.asList(0, 1, 1)));
+        assertThat(nodes.getChildCountList(), is(Arrays.asList(2, 1, 1)));
+        assertThat(nodes.getLineNoDeltaList(), is(Arrays.asList(0, 0, 0)));
 
-        FrameNodeList nextNodes = FrameNodeList.parseDelimitedFrom(in);
+        // deltas restart from 0 in every batch
+        FrameNodeColumns nextNodes = FrameNodeColumns.parseDelimitedFrom(in);
         assertNotNull(nextNodes);
-        assertThat(nextNodes.getFrameNodesCount(), is(2));
-        assertThat(nextNodes.getFrameNodes(0).getMethodId(), is(3));
-        assertThat(nextNodes.getFrameNodes(1).getMethodId(), is(4));
+        assertThat(nextNodes.getMethodIdDeltaList(), is(Arrays.asList(3, 1)));
+        assertThat(nextNodes.getChildCountList(), is(Arrays.asList(0, 0)));
 
         assertThat(in.available(), is(0));
     }
 
+    @Test
+    public void testStackTraceTreeToProto_nodeVisitorOutputShouldBeSameAsWritingFrameNodeColumnsProto() throws Exception {
+        // root without the unclassifiable root of a trace detail, so that batches are of the nodes below
+        CpuSamplingFrameNode root = new CpuSamplingFrameNode(MethodIdLookup.GLOBAL_ROOT_METHOD_ID, MethodIdLookup.DEFAULT_LINE_NUMBER);
+
+        // wide values and decreasing values, so that deltas are negative and varints span multiple bytes
+        CpuSamplingFrameNode a = root.getOrAddChild(100000, 300);
+        a.addOnStackSamples(5000);
+        CpuSamplingFrameNode b = a.getOrAddChild(5, 70000);
+        b.addOnStackSamples(4000);
+        b.addOnCpuSamples(200);
+        CpuSamplingFrameNode c = b.getOrAddChild(Integer.MAX_VALUE, 1);
+        c.addOnStackSamples(1);
+        c.addOnCpuSamples(1);
+        a.getOrAddChild(7, 0).addOnStackSamples(999);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FinalizedCpuSamplingAggregationBucket.NodeVisitor visitor = new FinalizedCpuSamplingAggregationBucket.NodeVisitor(out, 2, 300);
+        root.traverse(visitor);
+        visitor.end();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        FrameNodeColumns.newBuilder().setTraceCtxIdx(300)
+                .addAllMethodIdDelta(Arrays.asList(0, 100000)).addAllChildCount(Arrays.asList(1, 2))
+                .addAllLineNoDelta(Arrays.asList(0, 300)).addAllOnStackSamplesDelta(Arrays.asList(0, 5000))
+                .addAllOnCpuSamples(Arrays.asList(0, 0))
+                .build().writeDelimitedTo(expected);
+
+        FrameNodeColumns.newBuilder().setTraceCtxIdx(300)
+                .addAllMethodIdDelta(Arrays.asList(5, Integer.MAX_VALUE - 5)).addAllChildCount(Arrays.asList(1, 0))
+                .addAllLineNoDelta(Arrays.asList(70000, 1 - 70000)).addAllOnStackSamplesDelta(Arrays.asList(4000, 1 - 4000))
+                .addAllOnCpuSamples(Arrays.asList(200, 1))
+                .build().writeDelimitedTo(expected);
+        FrameNodeColumns.newBuilder().setTraceCtxIdx(300)
+                .addMethodIdDelta(7).addChildCount(0).addLineNoDelta(0).addOnStackSamplesDelta(999).addOnCpuSamples(0)
+                .build().writeDelimitedTo(expected);
+
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
     private Set<RecorderInfo> recorders() {
         Set<RecorderInfo> recorders = new HashSet<>();
         recorders.addAll(
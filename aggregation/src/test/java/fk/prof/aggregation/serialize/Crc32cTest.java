@@ -0,0 +1,33 @@
+package fk.prof.aggregation.serialize;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class Crc32cTest {
+
+  @Test
+  public void testChecksumOfStandardCheckInput() {
+    byte[] input = "123456789".getBytes(StandardCharsets.US_ASCII);
+    Crc32c checksum = new Crc32c();
+    checksum.update(input, 0, input.length);
+    Assert.assertEquals(0xE3069283L, checksum.getValue());
+  }
+
+  @Test
+  public void testChecksumShouldNotDependOnChunkingOfInput() {
+    byte[] input = "123456789".getBytes(StandardCharsets.US_ASCII);
+    Crc32c checksum = new Crc32c();
+    checksum.update(input, 0, 4);
+    for (int i = 4; i < input.length; i++) {
+      checksum.update(input[i]);
+    }
+    Assert.assertEquals(0xE3069283L, checksum.getValue());
+
+    checksum.reset();
+    Assert.assertEquals(0L, checksum.getValue());
+    checksum.update(input, 0, input.length);
+    Assert.assertEquals(0xE3069283L, checksum.getValue());
+  }
+}
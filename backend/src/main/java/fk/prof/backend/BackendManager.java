@@ -1,5 +1,6 @@
 package fk.prof.backend;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.InstrumentedExecutorService;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
@@ -23,9 +24,14 @@ import fk.prof.backend.model.policy.ZookeeperBasedPolicyStore;
 import fk.prof.backend.model.slot.WorkSlotPool;
 import fk.prof.metrics.MetricName;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.FileSystemAsyncStorage;
+import fk.prof.storage.InstrumentedAsyncStorage;
+import fk.prof.storage.JournaledAsyncStorage;
 import fk.prof.storage.S3AsyncStorage;
 import fk.prof.storage.S3ClientFactory;
+import fk.prof.storage.VertxS3AsyncStorage;
 import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.buffer.SizeClassedBufferPool;
 import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
@@ -43,7 +49,9 @@ import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.KeeperException;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
@@ -58,6 +66,7 @@ public class BackendManager {
   private final CuratorFramework curatorClient;
   private AsyncStorage storage;
   private GenericObjectPool<ByteBuffer> bufferPool;
+  private SizeClassedBufferPool slabPool;
   private MetricRegistry metricRegistry;
 
   public BackendManager(String configFilePath) throws Exception {
@@ -103,7 +112,17 @@ public class BackendManager {
     ActiveAggregationWindows activeAggregationWindows = new ActiveAggregationWindowsImpl();
     AssociatedProcessGroups associatedProcessGroups = new AssociatedProcessGroupsImpl(config.getRecorderDefunctThresholdSecs());
     WorkSlotPool workSlotPool = new WorkSlotPool(config.getScheduleSlotPoolCapacity());
-    AggregationWindowStorage aggregationWindowStorage = new AggregationWindowStorage(config.getProfilesBaseDir(), storage, bufferPool, metricRegistry);
+    // trees in flight per window bound the tasks queued by every window being stored
+    Configuration.SerializationWorkerPoolConfig serializationConfig = config.getSerializationWorkerPoolConfig();
+    ExecutorService encodeExecSvc = new InstrumentedExecutorService(Executors.newFixedThreadPool(serializationConfig.getEncodeThreads()),
+        metricRegistry, "executors.fixed_thread_pool.encode");
+    AggregationWindowStorage aggregationWindowStorage = slabPool != null ?
+        new AggregationWindowStorage(config.getProfilesBaseDir(), storage, slabPool, config.getBufferPoolConfig().getBufferSize(), metricRegistry,
+            config.getStorageConfig().getCompressionCodec(), config.getStorageConfig().getUploadConfig().toPartUploadPolicy(),
+            config.getStorageConfig().isTraceViewsEnabled(), encodeExecSvc, serializationConfig.getEncodeTreesInFlight()) :
+        new AggregationWindowStorage(config.getProfilesBaseDir(), storage, bufferPool, metricRegistry,
+            config.getStorageConfig().getCompressionCodec(), config.getStorageConfig().getUploadConfig().toPartUploadPolicy(),
+            config.getStorageConfig().isTraceViewsEnabled(), encodeExecSvc, serializationConfig.getEncodeTreesInFlight());
 
     VerticleDeployer backendHttpVerticleDeployer = new BackendHttpVerticleDeployer(vertx, config, leaderStore, activeAggregationWindows, associatedProcessGroups);
     VerticleDeployer backendDaemonVerticleDeployer = new BackendDaemonVerticleDeployer(vertx, config, leaderStore, associatedProcessGroups, activeAggregationWindows, workSlotPool, aggregationWindowStorage);
@@ -146,8 +165,9 @@ public class BackendManager {
     return result;
   }
 
-  private void initStorage() {
+  private void initStorage() throws IOException {
     Configuration.StorageConfig.S3Config s3Config = config.getStorageConfig().getS3Config();
+    Configuration.StorageConfig.LocalConfig localConfig = config.getStorageConfig().getLocalConfig();
     Configuration.StorageConfig.FixedSizeThreadPoolConfig threadPoolConfig = config.getStorageConfig().getTpConfig();
     Meter threadPoolRejectionsMtr = metricRegistry.meter(MetricName.S3_Threadpool_Rejection.get());
 
@@ -158,8 +178,28 @@ public class BackendManager {
                 new AbortPolicy("s3ExectorSvc", threadPoolRejectionsMtr)),
         metricRegistry, "executors.fixed_thread_pool.storage");
 
-    this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
-        storageExecSvc, s3Config.getListObjectsTimeoutMs());
+    if (localConfig != null) {
+      this.storage = new FileSystemAsyncStorage(Paths.get(localConfig.getRootDir()), storageExecSvc, localConfig.getFsyncPolicy());
+    } else if (s3Config.isNonBlocking()) {
+      // thread pool only runs the callbacks, requests in flight do not hold its threads
+      this.storage = new VertxS3AsyncStorage(vertx, s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey(), s3Config.getRegion(),
+          s3Config.getMaxConnections(), s3Config.getRequestTimeoutMs(), s3Config.getListObjectsTimeoutMs(), storageExecSvc);
+    } else {
+      this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
+          storageExecSvc, s3Config.getListObjectsTimeoutMs());
+    }
+
+    Configuration.StorageConfig.JournalConfig journalConfig = config.getStorageConfig().getJournalConfig();
+    if (journalConfig != null) {
+      FileSystemAsyncStorage journal = new FileSystemAsyncStorage(Paths.get(journalConfig.getDir()), storageExecSvc, journalConfig.getFsyncPolicy());
+      // remote storage is instrumented separately, as stores to it are acknowledged by the journal
+      AsyncStorage remote = new InstrumentedAsyncStorage(this.storage, metricRegistry, MetricName.Storage_Remote_Ops.get());
+      FileSystemAsyncStorage quarantine = new FileSystemAsyncStorage(Paths.get(journalConfig.getQuarantineDir()), storageExecSvc,
+          journalConfig.getFsyncPolicy());
+      this.storage = new JournaledAsyncStorage(journal, quarantine, remote, journalConfig.getMaxSizeMB() * 1024L * 1024L,
+          journalConfig.getRetryBackoffMs(), journalConfig.getMaxRetryBackoffMs(), journalConfig.getMaxDrainAttempts());
+    }
+    this.storage = new InstrumentedAsyncStorage(this.storage, metricRegistry, MetricName.Storage_Ops.get());
 
     // buffer pool to temporarily store serialized bytes
     Configuration.BufferPoolConfig bufferPoolConfig = config.getBufferPoolConfig();
@@ -167,7 +207,15 @@ public class BackendManager {
     poolConfig.setMaxTotal(bufferPoolConfig.getMaxTotal());
     poolConfig.setMaxIdle(bufferPoolConfig.getMaxIdle());
 
-    this.bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(bufferPoolConfig.getBufferSize(), false), poolConfig);
+    if (bufferPoolConfig.isSizeClassed()) {
+      SizeClassedBufferPool slabPool = new SizeClassedBufferPool(bufferPoolConfig.getMinSlabSize(), bufferPoolConfig.getMaxSlabSize(),
+          bufferPoolConfig.isDirect(), poolConfig, bufferPoolConfig.getMaxTotalSlabBytes());
+      metricRegistry.register(MetricName.AW_BuffPool_Active_Bytes.get(), (Gauge<Long>) slabPool::getActiveBytes);
+      metricRegistry.register(MetricName.AW_BuffPool_Idle_Bytes.get(), (Gauge<Long>) slabPool::getIdleBytes);
+      this.slabPool = slabPool;
+    } else {
+      this.bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(bufferPoolConfig.getBufferSize(), bufferPoolConfig.isDirect()), poolConfig);
+    }
   }
 
   private CuratorFramework createCuratorClient() {
@@ -2,13 +2,19 @@ package fk.prof.backend;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import fk.prof.backend.leader.election.KillBehavior;
+import fk.prof.storage.CompressionCodec;
+import fk.prof.storage.FileSystemAsyncStorage;
+import fk.prof.storage.buffer.PartUploadPolicy;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.VertxOptions;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.json.JsonObject;
 
 import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -139,6 +145,26 @@ public class Configuration {
     @JsonProperty("bufferPoolOptions")
     private BufferPoolConfig bufferPoolConfig;
 
+    @NotNull
+    @Valid
+    @JsonProperty("aggregationWindowSpill")
+    private SpillConfig spillConfig = new SpillConfig();
+
+    @NotNull
+    @Valid
+    @JsonProperty("aggregationWindowCheckpoint")
+    private CheckpointConfig checkpointConfig = new CheckpointConfig();
+
+    @NotNull
+    @Valid
+    @JsonProperty("aggregationWindowHandOff")
+    private HandOffConfig handOffConfig = new HandOffConfig();
+
+    @NotNull
+    @Valid
+    @JsonProperty("processGroupSharding")
+    private ShardingConfig shardingConfig = new ShardingConfig();
+
     @NotNull
     @JsonProperty("aggregatedProfiles.baseDir")
     private String profilesBaseDir;
@@ -239,6 +265,22 @@ public class Configuration {
         return bufferPoolConfig;
     }
 
+    public SpillConfig getSpillConfig() {
+        return spillConfig;
+    }
+
+    public CheckpointConfig getCheckpointConfig() {
+        return checkpointConfig;
+    }
+
+    public HandOffConfig getHandOffConfig() {
+        return handOffConfig;
+    }
+
+    public ShardingConfig getShardingConfig() {
+        return shardingConfig;
+    }
+
     public String getProfilesBaseDir() {
         return profilesBaseDir;
     }
@@ -486,6 +528,16 @@ public class Configuration {
         @JsonProperty("timeout.secs")
         private Integer timeoutSecs;
 
+        //Stacktrace trees of aggregation windows being stored are encoded concurrently on a pool of these many threads, shared by all windows
+        @Min(1)
+        @JsonProperty("encode.threads")
+        private Integer encodeThreads = 4;
+
+        //Trees of a window being encoded or waiting to be written at a time, which bounds the memory held by encoded trees per window
+        @Min(1)
+        @JsonProperty("encode.trees.inflight")
+        private Integer encodeTreesInFlight = 4;
+
         public Integer getSize() {
             return size;
         }
@@ -493,27 +545,83 @@ public class Configuration {
         public Integer getTimeoutSecs() {
             return timeoutSecs;
         }
+
+        public Integer getEncodeThreads() {
+            return encodeThreads;
+        }
+
+        public Integer getEncodeTreesInFlight() {
+            return encodeTreesInFlight;
+        }
     }
 
     public static class StorageConfig {
-        @NotNull
+        //Either of s3 or local is to be configured, local takes precedence if both are
         @Valid
         @JsonProperty("s3")
         private S3Config s3Config;
 
+        @Valid
+        @JsonProperty("local")
+        private LocalConfig localConfig;
+
+        //If configured, stores are committed to a local journal and drained to the configured storage in background
+        @Valid
+        @JsonProperty("journal")
+        private JournalConfig journalConfig;
+
         @NotNull
         @Valid
         @JsonProperty("thread.pool")
         private FixedSizeThreadPoolConfig tpConfig;
 
+        //Codec is detected while reading stored profiles, so it can be changed without affecting profiles stored earlier
+        @NotNull
+        @JsonProperty("compression.codec")
+        private CompressionCodec compressionCodec = CompressionCodec.GZIP;
+
+        @NotNull
+        @Valid
+        @JsonProperty("upload")
+        private UploadConfig uploadConfig = new UploadConfig();
+
+        //Json views of trace contexts, gzipped and ready to be served by userapi, are stored alongside aggregated profiles if enabled
+        @JsonProperty("trace.views.enabled")
+        private boolean traceViewsEnabled = false;
+
         public S3Config getS3Config() {
             return s3Config;
         }
 
+        public LocalConfig getLocalConfig() {
+            return localConfig;
+        }
+
+        public JournalConfig getJournalConfig() {
+            return journalConfig;
+        }
+
+        @AssertTrue(message = "either s3 or local storage is to be configured")
+        private boolean isStorageConfigured() {
+            return s3Config != null || localConfig != null;
+        }
+
         public FixedSizeThreadPoolConfig getTpConfig() {
             return tpConfig;
         }
 
+        public CompressionCodec getCompressionCodec() {
+            return compressionCodec;
+        }
+
+        public UploadConfig getUploadConfig() {
+            return uploadConfig;
+        }
+
+        public boolean isTraceViewsEnabled() {
+            return traceViewsEnabled;
+        }
+
         public static class S3Config {
             @NotNull
             @JsonProperty("endpoint")
@@ -531,6 +639,21 @@ public class Configuration {
             @JsonProperty("list.objects.timeout.ms")
             private Long listObjectsTimeoutMs;
 
+            // if true, S3 is accessed over the non blocking vertx http client instead of the blocking sdk client on the thread pool
+            @JsonProperty("nonblocking")
+            private Boolean nonBlocking = false;
+
+            @JsonProperty("region")
+            private String region = "us-east-1";
+
+            @Min(1)
+            @JsonProperty("max.connections")
+            private Integer maxConnections = 100;
+
+            @Min(1)
+            @JsonProperty("request.timeout.ms")
+            private Long requestTimeoutMs = 30000L;
+
             public String getEndpoint() {
                 return endpoint;
             }
@@ -546,6 +669,101 @@ public class Configuration {
             public Long getListObjectsTimeoutMs() {
                 return listObjectsTimeoutMs;
             }
+
+            public Boolean isNonBlocking() {
+                return nonBlocking;
+            }
+
+            public String getRegion() {
+                return region;
+            }
+
+            public Integer getMaxConnections() {
+                return maxConnections;
+            }
+
+            public Long getRequestTimeoutMs() {
+                return requestTimeoutMs;
+            }
+        }
+
+        public static class LocalConfig {
+            @NotNull
+            @JsonProperty("root.dir")
+            private String rootDir;
+
+            @NotNull
+            @JsonProperty("fsync.policy")
+            private FileSystemAsyncStorage.FsyncPolicy fsyncPolicy = FileSystemAsyncStorage.FsyncPolicy.FILE;
+
+            public String getRootDir() {
+                return rootDir;
+            }
+
+            public FileSystemAsyncStorage.FsyncPolicy getFsyncPolicy() {
+                return fsyncPolicy;
+            }
+        }
+
+        public static class JournalConfig {
+            @NotNull
+            @JsonProperty("dir")
+            private String dir;
+
+            //Beyond this, stores fail until the journal is drained
+            @NotNull
+            @JsonProperty("max.size.mb")
+            private Integer maxSizeMB = 2048;
+
+            //Content which failed to drain this many times in a row is moved aside to the quarantine dir
+            @NotNull
+            @Min(1)
+            @JsonProperty("max.drain.attempts")
+            private Integer maxDrainAttempts = 30;
+
+            //Defaults to a sibling of the journal dir
+            @JsonProperty("quarantine.dir")
+            private String quarantineDir;
+
+            @NotNull
+            @JsonProperty("fsync.policy")
+            private FileSystemAsyncStorage.FsyncPolicy fsyncPolicy = FileSystemAsyncStorage.FsyncPolicy.FILE_AND_DIRECTORY;
+
+            @NotNull
+            @JsonProperty("retry.backoff.ms")
+            private Integer retryBackoffMs = 1000;
+
+            @NotNull
+            @JsonProperty("max.retry.backoff.ms")
+            private Integer maxRetryBackoffMs = 60000;
+
+            public String getDir() {
+                return dir;
+            }
+
+            public Integer getMaxSizeMB() {
+                return maxSizeMB;
+            }
+
+            public Integer getMaxDrainAttempts() {
+                return maxDrainAttempts;
+            }
+
+            public String getQuarantineDir() {
+                return quarantineDir != null ? quarantineDir : dir + "-quarantine";
+            }
+
+            public FileSystemAsyncStorage.FsyncPolicy getFsyncPolicy() {
+                return fsyncPolicy;
+            }
+
+            public Integer getRetryBackoffMs() {
+                return retryBackoffMs;
+            }
+
+            public Integer getMaxRetryBackoffMs() {
+                return maxRetryBackoffMs;
+            }
         }
 
         public static class FixedSizeThreadPoolConfig {
@@ -581,6 +799,49 @@ public class Configuration {
                 return queueMaxSize;
             }
         }
+
+        public static class UploadConfig {
+            //Parts of a stored file being uploaded at a time, serialization blocks once these many are pending
+            @JsonProperty("max.inflight.parts")
+            private Integer maxInFlightParts = 4;
+
+            @JsonProperty("max.retries")
+            private Integer maxRetries = 3;
+
+            @JsonProperty("retry.backoff.ms")
+            private Integer retryBackoffMs = 200;
+
+            @JsonProperty("close.timeout.secs")
+            private Integer closeTimeoutSecs = 120;
+
+            //If true, a file is uploaded as a single object by S3 multipart upload, instead of as an object per part
+            @JsonProperty("multipart")
+            private Boolean multipart = false;
+
+            public Integer getMaxInFlightParts() {
+                return maxInFlightParts;
+            }
+
+            public Integer getMaxRetries() {
+                return maxRetries;
+            }
+
+            public Integer getRetryBackoffMs() {
+                return retryBackoffMs;
+            }
+
+            public Integer getCloseTimeoutSecs() {
+                return closeTimeoutSecs;
+            }
+
+            public Boolean getMultipart() {
+                return multipart;
+            }
+
+            public PartUploadPolicy toPartUploadPolicy() {
+                return new PartUploadPolicy(maxInFlightParts, maxRetries, retryBackoffMs, closeTimeoutSecs * 1000L, multipart);
+            }
+        }
     }
 
     public static class BufferPoolConfig {
@@ -596,6 +857,25 @@ public class Configuration {
         @JsonProperty("buffer.size")
         private Integer bufferSize;
 
+        // if set, buffers are pooled in size classes from this to the max slab size, with max.total and max.idle applying to every
+        // size class, and files are buffered in slabs of growing size up to a part of buffer.size
+        @Min(1)
+        @JsonProperty("slab.min.size")
+        private Integer minSlabSize;
+
+        @Min(1)
+        @JsonProperty("slab.max.size")
+        private Integer maxSlabSize = 16 * 1024 * 1024;
+
+        // budget of bytes of all slabs, borrowed or idle, across size classes. If 0, slab memory can grow to max.total slabs of every
+        // size class.
+        @Min(0)
+        @JsonProperty("slab.max.total.bytes")
+        private Long maxTotalSlabBytes = 0L;
+
+        @JsonProperty("direct")
+        private Boolean direct = false;
+
         public Integer getMaxTotal() {
             return maxTotal;
         }
@@ -607,6 +887,122 @@ public class Configuration {
         public Integer getBufferSize() {
             return bufferSize;
         }
+
+        public Integer getMinSlabSize() {
+            return minSlabSize;
+        }
+
+        public Integer getMaxSlabSize() {
+            return maxSlabSize;
+        }
+
+        public Long getMaxTotalSlabBytes() {
+            return maxTotalSlabBytes;
+        }
+
+        public Boolean isDirect() {
+            return direct;
+        }
+
+        public boolean isSizeClassed() {
+            return minSlabSize != null;
+        }
+    }
+
+    public static class SpillConfig {
+        @JsonProperty("enabled")
+        private Boolean enabled = false;
+
+        @JsonProperty("dir")
+        private String dir = System.getProperty("java.io.tmpdir");
+
+        @JsonProperty("node.threshold")
+        private Integer nodeThreshold = 5000000;
+
+        public Boolean getEnabled() {
+            return enabled;
+        }
+
+        public String getDir() {
+            return dir;
+        }
+
+        public Integer getNodeThreshold() {
+            return nodeThreshold;
+        }
+    }
+
+    public static class CheckpointConfig {
+        @JsonProperty("enabled")
+        private Boolean enabled = false;
+
+        @JsonProperty("dir")
+        private String dir = System.getProperty("java.io.tmpdir");
+
+        @JsonProperty("interval.secs")
+        private Integer intervalSecs = 60;
+
+        public Boolean getEnabled() {
+            return enabled;
+        }
+
+        public String getDir() {
+            return dir;
+        }
+
+        public Integer getIntervalSecs() {
+            return intervalSecs;
+        }
+    }
+
+    public static class HandOffConfig {
+        @JsonProperty("enabled")
+        private Boolean enabled = false;
+
+        @JsonProperty("max.bytes")
+        private Integer maxBytes = 100 * 1024 * 1024;
+
+        @JsonProperty("max.attempts")
+        private Integer maxAttempts = 3;
+
+        //Window is retained for this long after it ends for windows of other shards of its process group to be merged into it
+        @JsonProperty("grace.secs")
+        private Integer graceSecs = 60;
+
+        //Checkpoint of a window being handed off is staged here and streamed from here to the receiving backend, defaults to temp dir of the jvm
+        @JsonProperty("dir")
+        private String dir;
+
+        public Boolean getEnabled() {
+            return enabled;
+        }
+
+        public Integer getMaxBytes() {
+            return maxBytes;
+        }
+
+        public Integer getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public Integer getGraceSecs() {
+            return graceSecs;
+        }
+
+        public String getDir() {
+            return dir;
+        }
+    }
+
+    public static class ShardingConfig {
+        //Keyed by process group in appId/cluster/procName form, process groups not present here are not sharded
+        @NotNull
+        @JsonProperty("shards")
+        private Map<String, Integer> shards = new HashMap<>();
+
+        public Map<String, Integer> getShards() {
+            return shards;
+        }
     }
 
     private static DeploymentOptions toDeploymentOptions(Map<String, Object> map) {
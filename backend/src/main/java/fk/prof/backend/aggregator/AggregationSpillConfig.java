@@ -0,0 +1,39 @@
+package fk.prof.backend.aggregator;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
+/**
+ * Governs when stacktrace trees of an aggregation window are moved out of heap to a local spill file
+ */
+public class AggregationSpillConfig {
+  private final Path spillDir;
+  private final int nodeThreshold;
+  private final Executor spillExecutor;
+
+  /**
+   * @param spillDir directory in which spill files are created
+   * @param nodeThreshold count of in-memory stacktrace nodes of an aggregation window beyond which trees are spilled
+   * @param spillExecutor executor on which trees are written to spill files, so that aggregating threads do not block on disk
+   */
+  public AggregationSpillConfig(Path spillDir, int nodeThreshold, Executor spillExecutor) {
+    if (nodeThreshold <= 0) {
+      throw new IllegalArgumentException("Spill node threshold should be positive, found=" + nodeThreshold);
+    }
+    this.spillDir = spillDir;
+    this.nodeThreshold = nodeThreshold;
+    this.spillExecutor = spillExecutor;
+  }
+
+  public Path getSpillDir() {
+    return spillDir;
+  }
+
+  public int getNodeThreshold() {
+    return nodeThreshold;
+  }
+
+  public Executor getSpillExecutor() {
+    return spillExecutor;
+  }
+}
@@ -11,47 +11,95 @@ import fk.prof.backend.ConfigManager;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
 import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.proto.CheckpointDTO;
 import fk.prof.metrics.MetricName;
 import fk.prof.metrics.ProcessGroupTag;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 import recording.Recorder;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWindow> {
+  private static Logger logger = LoggerFactory.getLogger(AggregationWindow.class);
+  public static final String SHARD_PROC_ID_SEPARATOR = "~shard-";
+
   private final String appId;
   private final String clusterId;
   private final String procId;
   private LocalDateTime start = null, endedAt = null;
   private final int durationInSecs;
+  private final int shard;
 
   private final Map<Long, ProfileWorkInfo> workInfoLookup;
-  private final CpuSamplingAggregationBucket cpuSamplingAggregationBucket = new CpuSamplingAggregationBucket();
+  private final CpuSamplingAggregationBucket cpuSamplingAggregationBucket;
+  private final AtomicBoolean modifiedSinceCheckpoint = new AtomicBoolean(true);
 
   private final ProcessGroupTag processGroupTag;
   private MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY);
-  private final Meter mtrStateTransitionFailures, mtrCSAggrFailures;
+  private final Meter mtrStateTransitionFailures, mtrCSAggrFailures, mtrSpillNodes, mtrSpillFailures;
 
   public AggregationWindow(String appId, String clusterId, String procId,
                            LocalDateTime start, int durationInSecs, long[] workIds, int workDurationInSec) {
+    this(appId, clusterId, procId, start, durationInSecs, workIds, workDurationInSec, null);
+  }
+
+  /**
+   * @param spillConfig if not null, stacktrace trees of this window are spilled to local disk when they grow beyond configured threshold
+   */
+  public AggregationWindow(String appId, String clusterId, String procId,
+                           LocalDateTime start, int durationInSecs, long[] workIds, int workDurationInSec,
+                           AggregationSpillConfig spillConfig) {
+    this(appId, clusterId, procId, start, durationInSecs, workIds, workDurationInSec, spillConfig, 0);
+  }
+
+  /**
+   * @param shard shard of the process group whose recorders report to this window, 0 for the process group as a whole or its first shard
+   */
+  public AggregationWindow(String appId, String clusterId, String procId,
+                           LocalDateTime start, int durationInSecs, long[] workIds, int workDurationInSec,
+                           AggregationSpillConfig spillConfig, int shard) {
+    this(appId, clusterId, procId, start, durationInSecs, shard, buildWorkInfoLookup(workIds, workDurationInSec),
+        new CpuSamplingAggregationBucket(spillConfig));
+  }
+
+  private AggregationWindow(String appId, String clusterId, String procId,
+                            LocalDateTime start, int durationInSecs, int shard, Map<Long, ProfileWorkInfo> workInfoModifiableLookup,
+                            CpuSamplingAggregationBucket cpuSamplingAggregationBucket) {
     this.appId = appId;
     this.clusterId = clusterId;
     this.procId = procId;
     this.start = start;
     this.durationInSecs = durationInSecs;
-
-    Map<Long, ProfileWorkInfo> workInfoModifiableLookup = new HashMap<>();
-    for (int i = 0; i < workIds.length; i++) {
-      workInfoModifiableLookup.put(workIds[i], new ProfileWorkInfo(workDurationInSec));
-    }
-    this.workInfoLookup = Collections.unmodifiableMap(workInfoModifiableLookup);
+    this.shard = shard;
+    this.cpuSamplingAggregationBucket = cpuSamplingAggregationBucket;
+    //Work infos are only added after construction when a window handed off by another backend is merged
+    this.workInfoLookup = new ConcurrentHashMap<>(workInfoModifiableLookup);
 
     this.processGroupTag = new ProcessGroupTag(appId, clusterId, procId);
     String processGroupTagStr = this.processGroupTag.toString();
     this.mtrStateTransitionFailures = metricRegistry.meter(MetricRegistry.name(MetricName.AW_State_Transition_Failure.get(), processGroupTagStr));
     this.mtrCSAggrFailures = metricRegistry.meter(MetricRegistry.name(MetricName.AW_CpuSampling_Aggregation_Failure.get(), processGroupTagStr));
+    this.mtrSpillNodes = metricRegistry.meter(MetricRegistry.name(MetricName.AW_Spill_Nodes.get(), processGroupTagStr));
+    this.mtrSpillFailures = metricRegistry.meter(MetricRegistry.name(MetricName.AW_Spill_Failure.get(), processGroupTagStr));
+  }
+
+  private static Map<Long, ProfileWorkInfo> buildWorkInfoLookup(long[] workIds, int workDurationInSec) {
+    Map<Long, ProfileWorkInfo> workInfoModifiableLookup = new HashMap<>();
+    for (int i = 0; i < workIds.length; i++) {
+      workInfoModifiableLookup.put(workIds[i], new ProfileWorkInfo(workDurationInSec));
+    }
+    return workInfoModifiableLookup;
   }
 
   public AggregationState startProfile(long workId, int recorderVersion, LocalDateTime startedAt) throws AggregationFailure {
@@ -59,6 +107,7 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
 
     try {
       ProfileWorkInfo workInfo = this.workInfoLookup.get(workId);
+      modifiedSinceCheckpoint.set(true);
       return workInfo.startProfile(recorderVersion, startedAt);
     } catch (IllegalStateException ex) {
       mtrStateTransitionFailures.mark();
@@ -72,6 +121,7 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
 
     try {
       ProfileWorkInfo workInfo = this.workInfoLookup.get(workId);
+      modifiedSinceCheckpoint.set(true);
       return workInfo.completeProfile();
     } catch (IllegalStateException ex) {
       mtrStateTransitionFailures.mark();
@@ -84,6 +134,7 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
 
     try {
       ProfileWorkInfo workInfo = this.workInfoLookup.get(workId);
+      modifiedSinceCheckpoint.set(true);
       return workInfo.abandonProfileAsCorrupt();
     } catch (IllegalStateException ex) {
       mtrStateTransitionFailures.mark();
@@ -96,6 +147,7 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
 
     try {
       ProfileWorkInfo workInfo = this.workInfoLookup.get(workId);
+      modifiedSinceCheckpoint.set(true);
       return workInfo.abandonProfileAsIncomplete();
     } catch (IllegalStateException ex) {
       mtrStateTransitionFailures.mark();
@@ -113,16 +165,58 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
    * @param activeAggregationWindows
    * @return finalized aggregation window
    */
-  public FinalizedAggregationWindow expireWindow(ActiveAggregationWindows activeAggregationWindows) {
+  public synchronized FinalizedAggregationWindow expireWindow(ActiveAggregationWindows activeAggregationWindows) {
     ensureEntityIsWriteable();
 
     abortOngoingProfiles();
-    long[] workIds = this.workInfoLookup.keySet().stream().mapToLong(Long::longValue).toArray();
-    activeAggregationWindows.deAssociateAggregationWindow(workIds);
+    activeAggregationWindows.deAssociateAggregationWindow(getWorkIds());
     this.endedAt = LocalDateTime.now(Clock.systemUTC());
     return finalizeEntity();
   }
 
+  /**
+   * Called by backend daemon thread before the window is handed off to another backend
+   * Marks status of ongoing profiles as aborted and de associates assigned work with this aggregation window, same as on expiry,
+   * but leaves the window writeable so that it can still be expired if the hand off fails
+   * @param activeAggregationWindows
+   */
+  public synchronized void prepareForHandOff(ActiveAggregationWindows activeAggregationWindows) {
+    ensureEntityIsWriteable();
+
+    abortOngoingProfiles();
+    activeAggregationWindows.deAssociateAggregationWindow(getWorkIds());
+  }
+
+  /**
+   * Windows of a process group are scheduled by every backend aggregating some shard of it, or by its previous and next backend across
+   * a hand off, at about the same time but not in lockstep. Window starting within half the duration of this window is taken to be
+   * the same window as this one.
+   * @return true if the other window is of the same process group and is the same window as this one
+   */
+  public boolean hasMatchingStart(AggregationWindow other) {
+    return appId.equals(other.appId) && clusterId.equals(other.clusterId) && procId.equals(other.procId)
+        && Math.abs(Duration.between(start, other.start).getSeconds()) * 2 < durationInSecs;
+  }
+
+  /**
+   * Merges a window of the same process group handed off by another backend into this window. Work of the handed off window is
+   * added as is, so it is reported along with work of this window but cannot be updated further
+   * Synchronized with {@link #expireWindow(ActiveAggregationWindows)} so that merge either completes before expiry or fails
+   * @param handedOffWindow window restored from data written by {@link #checkpoint(OutputStream)} of the other backend
+   */
+  public synchronized void mergeHandedOffWindow(AggregationWindow handedOffWindow) throws IOException {
+    ensureEntityIsWriteable();
+    if (!appId.equals(handedOffWindow.appId) || !clusterId.equals(handedOffWindow.clusterId) || !procId.equals(handedOffWindow.procId)) {
+      throw new IllegalArgumentException("Cannot merge aggregation window: " + handedOffWindow + " into aggregation window: " + this);
+    }
+
+    modifiedSinceCheckpoint.set(true);
+    for (Map.Entry<Long, ProfileWorkInfo> entry : handedOffWindow.workInfoLookup.entrySet()) {
+      workInfoLookup.putIfAbsent(entry.getKey(), entry.getValue());
+    }
+    cpuSamplingAggregationBucket.merge(handedOffWindow.cpuSamplingAggregationBucket);
+  }
+
   /**
    * Aborts all in-flight profiles. Should be called when aggregation window expires
    */
@@ -146,21 +240,42 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
         if (stackSampleWse == null) {
           throw new AggregationFailure(String.format("work type=%s did not have associated samples", wse.getWType()));
         }
+        modifiedSinceCheckpoint.set(true);
         cpuSamplingAggregationBucket.aggregate(stackSampleWse, indexes, mtrCSAggrFailures);
+        spillIfRequired();
         break;
       default:
         throw new AggregationFailure(String.format("Aggregation not supported for work type=%s", wse.getWType()));
     }
   }
 
-  public void updateWorkInfoWithWSE(long workId, Recorder.Wse wse) {
+  /**
+   * Spill happens on the spill executor, so that the aggregating event loop does not block on disk.
+   * Failure to spill is not propagated because samples are still aggregated in memory, the window just holds more heap than intended
+   */
+  private void spillIfRequired() {
+    cpuSamplingAggregationBucket.spillIfRequired((spilledNodes, ex) -> {
+      if (ex != null) {
+        mtrSpillFailures.mark();
+        logger.error("Error spilling stacktrace trees for aggregation window: " + this, ex);
+      } else if (spilledNodes > 0) {
+        mtrSpillNodes.mark(spilledNodes);
+        if (logger.isDebugEnabled()) {
+          logger.debug("Spilled " + spilledNodes + " stacktrace nodes for aggregation window: " + this);
+        }
+      }
+    });
+  }
+
+  public void updateWorkInfoWithWSE(long workId, Recorder.Wse wse, RecordedProfileIndexes indexes) {
     ensureEntityIsWriteable();
 
     ProfileWorkInfo workInfo = workInfoLookup.get(workId);
     if (workInfo == null) {
       throw new AggregationFailure(String.format("Cannot find work id=%d association in the aggregation window", workId), true);
     }
-    workInfo.updateWSESpecificDetails(wse);
+    modifiedSinceCheckpoint.set(true);
+    workInfo.updateWSESpecificDetails(wse, indexes);
   }
 
   public void updateRecorderInfo(long workId, Recorder.RecorderInfo recorderInfo) {
@@ -170,6 +285,7 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
     if (workInfo == null) {
       throw new AggregationFailure(String.format("Cannot find work id=%d association in the aggregation window", workId), true);
     }
+    modifiedSinceCheckpoint.set(true);
     workInfo.updateRecorderInfo(recorderInfo);
   }
 
@@ -177,12 +293,99 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
     return processGroupTag;
   }
 
+  public String getAppId() {
+    return appId;
+  }
+
+  public String getClusterId() {
+    return clusterId;
+  }
+
+  public String getProcId() {
+    return procId;
+  }
+
+  public LocalDateTime getStart() {
+    return start;
+  }
+
+  public int getShard() {
+    return shard;
+  }
+
+  public int getDurationInSecs() {
+    return durationInSecs;
+  }
+
+  public long[] getWorkIds() {
+    return this.workInfoLookup.keySet().stream().mapToLong(Long::longValue).toArray();
+  }
+
+  public boolean isModifiedSinceCheckpoint() {
+    return modifiedSinceCheckpoint.get();
+  }
+
+  /**
+   * Called by checkpointing thread, concurrently with aggregation
+   * Writes header with details of the window and its work, followed by trees of the cpu sampling bucket
+   * Changes made to the window while it is being written may or may not be part of the checkpoint, but will mark the window
+   * as modified since checkpoint
+   */
+  public void checkpoint(OutputStream out) throws IOException {
+    modifiedSinceCheckpoint.set(false);
+    try {
+      CheckpointDTO.AggregationWindowCheckpoint.Builder builder = CheckpointDTO.AggregationWindowCheckpoint.newBuilder()
+          .setAppId(appId)
+          .setClusterId(clusterId)
+          .setProcId(procId)
+          .setStart(start.toString())
+          .setDurationSecs(durationInSecs);
+      if (shard > 0) {
+        builder.setShard(shard);
+      }
+      for (Map.Entry<Long, ProfileWorkInfo> entry : workInfoLookup.entrySet()) {
+        builder.addWorkInfo(entry.getValue().buildCheckpointProto(entry.getKey()));
+      }
+      builder.build().writeDelimitedTo(out);
+      cpuSamplingAggregationBucket.checkpoint(out);
+    } catch (IOException | RuntimeException ex) {
+      modifiedSinceCheckpoint.set(true);
+      throw ex;
+    }
+  }
+
+  /**
+   * Rebuilds the window from data written by {@link #checkpoint(OutputStream)}
+   * Profiles which were ongoing at the time of checkpoint cannot be continued because their recorders lost the connection,
+   * so they are abandoned as incomplete
+   */
+  public static AggregationWindow restore(InputStream in, AggregationSpillConfig spillConfig) throws IOException {
+    CheckpointDTO.AggregationWindowCheckpoint checkpoint = CheckpointDTO.AggregationWindowCheckpoint.parseDelimitedFrom(in);
+    if (checkpoint == null) {
+      throw new EOFException("Stream ended before aggregation window checkpoint could be read");
+    }
+    Map<Long, ProfileWorkInfo> workInfoModifiableLookup = new HashMap<>();
+    for (CheckpointDTO.ProfileWorkInfoCheckpoint workInfoCheckpoint : checkpoint.getWorkInfoList()) {
+      ProfileWorkInfo workInfo = ProfileWorkInfo.fromCheckpointProto(workInfoCheckpoint);
+      if (workInfo.hasProfileBeenStarted()) {
+        workInfo.abandonProfileAsIncomplete();
+      }
+      workInfoModifiableLookup.put(workInfoCheckpoint.getWorkId(), workInfo);
+    }
+    CpuSamplingAggregationBucket cpuSamplingAggregationBucket = CpuSamplingAggregationBucket.restore(in, spillConfig);
+
+    return new AggregationWindow(checkpoint.getAppId(), checkpoint.getClusterId(), checkpoint.getProcId(),
+        LocalDateTime.parse(checkpoint.getStart()), checkpoint.getDurationSecs(), checkpoint.getShard(), workInfoModifiableLookup,
+        cpuSamplingAggregationBucket);
+  }
+
 
   @Override
   public String toString() {
     return "app=" + appId +
         ", cluster=" + clusterId +
         ", proc=" + procId +
+        ", shard=" + shard +
         ", start=" + start +
         ", end=" + endedAt;
   }
@@ -194,8 +397,11 @@ public class AggregationWindow extends FinalizableBuilder<FinalizedAggregationWi
         .collect(Collectors.toMap(Map.Entry::getKey,
             entry -> entry.getValue().finalizeEntity()));
 
+    //Window of a shard is only a part of the window of its process group, which is stored by the backend of the first shard, so it is
+    //stored under a process of its own if it could not be merged there, rather than alongside the window of the process group
+    String finalizedProcId = shard > 0 ? procId + SHARD_PROC_ID_SEPARATOR + shard : procId;
     return new FinalizedAggregationWindow(
-        appId, clusterId, procId, start, endedAt, durationInSecs,
+        appId, clusterId, finalizedProcId, start, endedAt, durationInSecs,
         finalizedWorkInfoLookup,
         cpuSamplingAggregationBucket.finalizeEntity()
     );
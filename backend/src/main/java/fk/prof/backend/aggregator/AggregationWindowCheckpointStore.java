@@ -0,0 +1,129 @@
+package fk.prof.backend.aggregator;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import fk.prof.backend.util.PathNamingUtil;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps checkpoints of active aggregation windows in a local directory, one file per window, so that windows can be recovered
+ * after a restart of the backend.
+ * Every checkpoint is a full snapshot of the window, not the changes since its previous checkpoint, so cost of a checkpoint grows with
+ * the size of the window. Windows which were not modified since their last checkpoint are skipped.
+ * A checkpoint is first written to a temp file which then atomically replaces the previous checkpoint of the window, so a crash
+ * while checkpointing leaves the previous checkpoint intact.
+ * File format: varint magic number followed by the data written by {@link AggregationWindow#checkpoint(OutputStream)}
+ */
+public class AggregationWindowCheckpointStore {
+  private static final Logger logger = LoggerFactory.getLogger(AggregationWindowCheckpointStore.class);
+
+  private static final int CHECKPOINT_MAGIC_NUM = 0x19A7C4E1;
+  private static final String CHECKPOINT_FILE_SUFFIX = ".ckpt";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final String DELIMITER = "_";
+
+  private final Path dir;
+  private final AggregationSpillConfig spillConfig;
+
+  /**
+   * @param dir directory in which checkpoints are kept
+   * @param spillConfig spill config applied to recovered windows, can be null
+   */
+  public AggregationWindowCheckpointStore(Path dir, AggregationSpillConfig spillConfig) throws IOException {
+    this.dir = Files.createDirectories(dir);
+    this.spillConfig = spillConfig;
+  }
+
+  /**
+   * Checkpoints the window if it has been modified since its last checkpoint
+   * @return true if checkpoint was written, false if skipped
+   */
+  public boolean checkpoint(AggregationWindow aggregationWindow) throws IOException {
+    if (!aggregationWindow.isModifiedSinceCheckpoint()) {
+      return false;
+    }
+
+    Path checkpointPath = getCheckpointPath(aggregationWindow);
+    Path tempPath = Files.createTempFile(dir, checkpointPath.getFileName().toString(), TEMP_FILE_SUFFIX);
+    try {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempPath.toFile()))) {
+        CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+        codedOut.writeUInt32NoTag(CHECKPOINT_MAGIC_NUM);
+        codedOut.flush();
+        aggregationWindow.checkpoint(out);
+      }
+      Files.move(tempPath, checkpointPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+    return true;
+  }
+
+  /**
+   * Deletes checkpoint of the window, to be invoked once the window has been persisted or handed off to another backend
+   */
+  public void delete(AggregationWindow aggregationWindow) throws IOException {
+    Files.deleteIfExists(getCheckpointPath(aggregationWindow));
+  }
+
+  /**
+   * Restores all checkpointed windows. Checkpoints which cannot be read are deleted, as are temp files left behind by
+   * checkpoints interrupted midway.
+   */
+  public List<AggregationWindow> recover() throws IOException {
+    List<AggregationWindow> aggregationWindows = new ArrayList<>();
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir)) {
+      for (Path path : paths) {
+        String fileName = path.getFileName().toString();
+        if (fileName.endsWith(TEMP_FILE_SUFFIX)) {
+          Files.deleteIfExists(path);
+        } else if (fileName.endsWith(CHECKPOINT_FILE_SUFFIX)) {
+          try {
+            aggregationWindows.add(restore(path));
+          } catch (Exception ex) {
+            logger.error("Discarding unreadable aggregation window checkpoint=" + path, ex);
+            Files.deleteIfExists(path);
+          }
+        }
+      }
+    }
+    return aggregationWindows;
+  }
+
+  private AggregationWindow restore(Path path) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+      int firstByte = in.read();
+      if (firstByte == -1) {
+        throw new EOFException("Aggregation window checkpoint is empty");
+      }
+      int magicNum = CodedInputStream.readRawVarint32(firstByte, in);
+      if (magicNum != CHECKPOINT_MAGIC_NUM) {
+        throw new IOException("Unknown magic number=" + magicNum + " in aggregation window checkpoint");
+      }
+      return AggregationWindow.restore(in, spillConfig);
+    }
+  }
+
+  /**
+   * Windows of different shards of a process group can have the same start, so shard is part of the name of checkpoint of a shard.
+   * Name of checkpoint of the process group as a whole or its first shard carries no shard
+   */
+  private Path getCheckpointPath(AggregationWindow aggregationWindow) {
+    String checkpointName = PathNamingUtil.encode32(aggregationWindow.getAppId()) + DELIMITER + PathNamingUtil.encode32(aggregationWindow.getClusterId())
+        + DELIMITER + PathNamingUtil.encode32(aggregationWindow.getProcId()) + DELIMITER + aggregationWindow.getStart().toEpochSecond(ZoneOffset.UTC);
+    if (aggregationWindow.getShard() > 0) {
+      checkpointName += DELIMITER + aggregationWindow.getShard();
+    }
+    return dir.resolve(checkpointName + CHECKPOINT_FILE_SUFFIX);
+  }
+}
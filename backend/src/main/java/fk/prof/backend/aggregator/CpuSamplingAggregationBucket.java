@@ -2,20 +2,76 @@ package fk.prof.backend.aggregator;
 
 import com.codahale.metrics.Meter;
 import fk.prof.aggregation.FinalizableBuilder;
-import fk.prof.aggregation.model.MethodIdLookup;
-import fk.prof.aggregation.model.CpuSamplingFrameNode;
-import fk.prof.aggregation.model.CpuSamplingTraceDetail;
-import fk.prof.aggregation.model.FinalizedCpuSamplingAggregationBucket;
+import fk.prof.aggregation.model.*;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.model.profile.RecordedProfileIndexes;
 import recording.Recorder;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class CpuSamplingAggregationBucket extends FinalizableBuilder<FinalizedCpuSamplingAggregationBucket> {
-  private final MethodIdLookup methodIdLookup = new MethodIdLookup();
-  private final ConcurrentHashMap<String, CpuSamplingTraceDetail> traceDetailLookup = new ConcurrentHashMap<>();
+  private final MethodIdLookup methodIdLookup;
+  private final ConcurrentHashMap<String, CpuSamplingTraceDetail> traceDetailLookup;
+
+  /**
+   * Aggregation of samples happens concurrently under read lock. Trees are moved out of {@link #traceDetailLookup} for spilling and
+   * merged back under write lock so that no aggregating thread holds on to a tree which has been moved out. Write lock is only held
+   * for bookkeeping, never for disk I/O, as aggregating event loops wait on it. Trees are written to the spill file after write lock is
+   * released, see {@link #spill()}
+   */
+  private final ReadWriteLock spillLock = new ReentrantReadWriteLock();
+  private final AggregationSpillConfig spillConfig;
+  private final AtomicBoolean spillScheduled = new AtomicBoolean(false);
+
+  /**
+   * Trees moved out of {@link #traceDetailLookup} by the ongoing spill, written or not, and length of the spill file written by
+   * completed spills, so that together they have every moved out tree exactly once. Guarded by write lock.
+   */
+  private final Map<String, CpuSamplingTraceDetail> spillingTraceDetails = new HashMap<>();
+  private long spilledLength = 0;
+  //count of times the spill file was merged back into trees of the bucket, which a checkpoint being written may have captured
+  private int spillFileMergeBacks = 0;
+
+  /**
+   * Guards writes to the spill file and trees of {@link #spillingTraceDetails} written to it. Acquired after {@link #spillLock}, if both
+   * are held.
+   */
+  private final Object spillFileLock = new Object();
+  private final Set<String> writtenSpillingTraces = new HashSet<>();
+  private CpuSamplingSpillFile spillFile = null;
+
+  public CpuSamplingAggregationBucket() {
+    this(null);
+  }
+
+  /**
+   * @param spillConfig null disables spilling of trees
+   */
+  public CpuSamplingAggregationBucket(AggregationSpillConfig spillConfig) {
+    this(new MethodIdLookup(), new ConcurrentHashMap<>(), spillConfig);
+  }
+
+  private CpuSamplingAggregationBucket(MethodIdLookup methodIdLookup, ConcurrentHashMap<String, CpuSamplingTraceDetail> traceDetailLookup,
+                                       AggregationSpillConfig spillConfig) {
+    this.methodIdLookup = methodIdLookup;
+    this.traceDetailLookup = traceDetailLookup;
+    this.spillConfig = spillConfig;
+  }
 
   /**
    * Aggregates stack samples in the bucket. Throws {@link AggregationFailure} if aggregation fails
@@ -24,6 +80,7 @@ public class CpuSamplingAggregationBucket extends FinalizableBuilder<FinalizedCp
    */
   public void aggregate(Recorder.StackSampleWse stackSampleWse, RecordedProfileIndexes indexes, Meter mtrAggrFailures)
       throws AggregationFailure {
+    spillLock.readLock().lock();
     try {
       for (Recorder.StackSample stackSample : stackSampleWse.getStackSampleList()) {
         for (Integer traceId : stackSample.getTraceIdList()) {//TODO: this is not necessarily the best way of doing this from temporal locality PoV (may be we want a de-duped DS), think thru this -jj
@@ -56,7 +113,7 @@ public class CpuSamplingAggregationBucket extends FinalizableBuilder<FinalizedCp
                 throw new AggregationFailure("Unknown method id encountered in stack sample, aborting aggregation of this profile");
               }
               int methodId = methodIdLookup.getOrAdd(method);
-              currentNode = currentNode.getOrAddChild(methodId, frame.getLineNo());
+              currentNode = traceDetail.getOrAddChild(currentNode, methodId, frame.getLineNo());
               currentNode.incrementOnStackSamples();
               //The first frame is the on-cpu frame so incrementing on-cpu samples count
               if (i == 0) {
@@ -69,11 +126,275 @@ public class CpuSamplingAggregationBucket extends FinalizableBuilder<FinalizedCp
     } catch (Exception ex) {
       mtrAggrFailures.mark();
       throw ex;
+    } finally {
+      spillLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * If in-memory stacktrace nodes exceed the configured threshold, schedules a spill of the bucket on the spill executor, see
+   * {@link #spill()}. Does not block on disk, so it can be called by aggregating threads. Returns without scheduling if a spill of
+   * this bucket is already scheduled or ongoing.
+   *
+   * @param onSpillCompletion called on the spill executor with count of nodes spilled or the failure
+   * @return true if spill was scheduled
+   */
+  public boolean spillIfRequired(BiConsumer<Long, Exception> onSpillCompletion) {
+    if (spillConfig == null || getInMemoryNodeCount() <= spillConfig.getNodeThreshold()) {
+      return false;
+    }
+    if (!spillScheduled.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      spillConfig.getSpillExecutor().execute(() -> {
+        try {
+          long spilledNodes = spill();
+          onSpillCompletion.accept(spilledNodes, null);
+        } catch (Exception ex) {
+          onSpillCompletion.accept(0L, ex);
+        } finally {
+          spillScheduled.set(false);
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException ex) {
+      spillScheduled.set(false);
+      onSpillCompletion.accept(0L, ex);
+      return false;
+    }
+  }
+
+  /**
+   * Moves trees of trace contexts, largest first, out of the bucket under write lock till in-memory nodes fall to half of the threshold,
+   * and writes them to the spill file once the lock is released. Samples aggregated meanwhile for a moved out trace context go to a new
+   * tree, which is merged with the spilled one when the spill file is read back.
+   * On failure, spill file is left as it was before the failed write and trees which were not written are merged back into the bucket.
+   *
+   * @return count of nodes spilled
+   */
+  long spill() throws IOException {
+    List<Map.Entry<String, CpuSamplingTraceDetail>> movedOutTraceDetails = new ArrayList<>();
+    spillLock.writeLock().lock();
+    try {
+      if (isFinalized()) {
+        return 0;
+      }
+      long inMemoryNodes = getInMemoryNodeCount();
+      if (inMemoryNodes <= spillConfig.getNodeThreshold()) {
+        return 0;
+      }
+
+      List<Map.Entry<String, CpuSamplingTraceDetail>> traceDetails = new ArrayList<>(traceDetailLookup.entrySet());
+      traceDetails.sort((e1, e2) -> Integer.compare(e2.getValue().getNodeCount(), e1.getValue().getNodeCount()));
+
+      long movedOutNodes = 0;
+      for (Map.Entry<String, CpuSamplingTraceDetail> entry : traceDetails) {
+        if (inMemoryNodes - movedOutNodes <= spillConfig.getNodeThreshold() / 2) {
+          break;
+        }
+        traceDetailLookup.remove(entry.getKey());
+        spillingTraceDetails.put(entry.getKey(), entry.getValue());
+        movedOutTraceDetails.add(entry);
+        movedOutNodes += entry.getValue().getNodeCount();
+      }
+    } finally {
+      spillLock.writeLock().unlock();
+    }
+
+    long spilledNodes = 0;
+    IOException spillFailure = null;
+    synchronized (spillFileLock) {
+      try {
+        for (Map.Entry<String, CpuSamplingTraceDetail> entry : movedOutTraceDetails) {
+          //Trees have been merged back meanwhile on finalization of this bucket
+          if (isFinalized()) {
+            break;
+          }
+          if (spillFile == null) {
+            spillFile = new CpuSamplingSpillFile(spillConfig.getSpillDir());
+          }
+          spillFile.spill(entry.getKey(), entry.getValue());
+          writtenSpillingTraces.add(entry.getKey());
+          spilledNodes += entry.getValue().getNodeCount();
+        }
+      } catch (IOException ex) {
+        spillFailure = ex;
+      }
+    }
+
+    spillLock.writeLock().lock();
+    try {
+      if (!isFinalized()) {
+        mergeBackSpillingTraceDetails();
+      }
+    } finally {
+      spillLock.writeLock().unlock();
+    }
+    if (spillFailure != null) {
+      throw spillFailure;
+    }
+    return spilledNodes;
+  }
+
+  /**
+   * Writes trees of all trace contexts, including the spilled ones, followed by the method lookup. Checkpoint is a full snapshot of the
+   * bucket, not the changes since the previous checkpoint, so that it can be restored by itself.
+   * Can be invoked concurrently with aggregation. Trees to be written are captured under write lock, but are written without holding
+   * any lock, so a tree may have samples aggregated while it was being written. Method lookup is captured after the trees have been
+   * written, so that it has every method id referred by the written trees.
+   * Fails if the spill file is merged back meanwhile, on finalization of the bucket or when it is merged into another bucket, since its
+   * trees would then be written twice.
+   */
+  public void checkpoint(OutputStream out) throws IOException {
+    List<Map.Entry<String, CpuSamplingTraceDetail>> traceDetails;
+    CpuSamplingSpillFile spilledFile;
+    long spilledFileLength;
+    int mergeBacks;
+    spillLock.writeLock().lock();
+    try {
+      mergeBacks = spillFileMergeBacks;
+      traceDetails = new ArrayList<>(traceDetailLookup.entrySet());
+      traceDetails.addAll(spillingTraceDetails.entrySet());
+      spilledFileLength = spilledLength;
+      spilledFile = spilledFileLength > 0 ? spillFile : null;
+      //Finalization or a merge meanwhile merges back and deletes the spill file, which is deferred till it has been copied
+      if (spilledFile != null) {
+        spilledFile.retain();
+      }
+    } finally {
+      spillLock.writeLock().unlock();
+    }
+
+    try {
+      for (Map.Entry<String, CpuSamplingTraceDetail> entry : traceDetails) {
+        CpuSamplingSnapshot.writeTraceDetail(entry.getKey(), entry.getValue(), out);
+      }
+      //Spill file is only appended to till the bucket is finalized, so the part written by completed spills can be copied without a lock
+      if (spilledFile != null) {
+        spilledFile.copyTo(out, spilledFileLength);
+      }
+    } finally {
+      if (spilledFile != null) {
+        spilledFile.release();
+      }
+    }
+    CpuSamplingSnapshot.writeEndOfTraceDetails(out);
+
+    AggregatedProfileModel.MethodLookUp methodLookUp;
+    spillLock.writeLock().lock();
+    try {
+      if (spillFileMergeBacks != mergeBacks) {
+        throw new IOException("Spill file was merged back into the aggregation bucket while it was being checkpointed");
+      }
+      methodLookUp = CpuSamplingSnapshot.snapshotMethodIdLookup(methodIdLookup);
+    } finally {
+      spillLock.writeLock().unlock();
+    }
+    methodLookUp.writeDelimitedTo(out);
+  }
+
+  /**
+   * Rebuilds the bucket from data written by {@link #checkpoint(OutputStream)}
+   */
+  public static CpuSamplingAggregationBucket restore(InputStream in, AggregationSpillConfig spillConfig) throws IOException {
+    ConcurrentHashMap<String, CpuSamplingTraceDetail> traceDetailLookup = new ConcurrentHashMap<>();
+    while (CpuSamplingSnapshot.readAndMergeTraceDetail(in, traceDetailLookup)) {
+    }
+    MethodIdLookup methodIdLookup = CpuSamplingSnapshot.readMethodIdLookup(in);
+    return new CpuSamplingAggregationBucket(methodIdLookup, traceDetailLookup, spillConfig);
+  }
+
+  /**
+   * Merges trees of other bucket into this bucket, translating method ids of other bucket to method ids of this bucket. Other bucket is
+   * expected to be no longer aggregated into, like one restored from a hand off. Happens under write lock of this bucket, so trees
+   * spilled meanwhile by this bucket are merged back at finalization as usual.
+   */
+  public void merge(CpuSamplingAggregationBucket other) throws IOException {
+    other.spillLock.writeLock().lock();
+    try {
+      other.mergeBackSpilledTraceDetails();
+    } finally {
+      other.spillLock.writeLock().unlock();
+    }
+
+    spillLock.writeLock().lock();
+    try {
+      ensureEntityIsWriteable();
+      int[] methodIdMapping = methodIdLookup.addAll(other.methodIdLookup);
+      for (Map.Entry<String, CpuSamplingTraceDetail> entry : other.traceDetailLookup.entrySet()) {
+        traceDetailLookup.computeIfAbsent(entry.getKey(), key -> new CpuSamplingTraceDetail())
+            .merge(entry.getValue(), methodIdMapping);
+      }
+    } finally {
+      spillLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Merges trees in the spill file and trees moved out by the ongoing spill back into the bucket. Expects write lock to be held
+   */
+  private void mergeBackSpilledTraceDetails() throws IOException {
+    synchronized (spillFileLock) {
+      if (spillFile != null) {
+        spillFileMergeBacks++;
+        spillFile.mergeInto(traceDetailLookup);
+        spillFile = null;
+        spilledLength = 0;
+      }
+      mergeBackSpillingTraceDetails();
+    }
+  }
+
+  /**
+   * Completes bookkeeping of the ongoing spill, merging trees moved out by it which were not written to the spill file back into the
+   * bucket. Expects write lock to be held
+   */
+  private void mergeBackSpillingTraceDetails() {
+    synchronized (spillFileLock) {
+      if (!spillingTraceDetails.isEmpty()) {
+        int[] methodIdMapping = methodIdLookup.identityMapping();
+        for (Map.Entry<String, CpuSamplingTraceDetail> entry : spillingTraceDetails.entrySet()) {
+          if (writtenSpillingTraces.contains(entry.getKey())) {
+            continue;
+          }
+          //Tree in the bucket may have been captured by a checkpoint being written along with the spilling one, so it is replaced by a
+          //merged copy rather than merged into
+          traceDetailLookup.merge(entry.getKey(), entry.getValue(), (traceDetail, spillingTraceDetail) -> {
+            CpuSamplingTraceDetail mergedTraceDetail = new CpuSamplingTraceDetail();
+            mergedTraceDetail.merge(traceDetail, methodIdMapping);
+            mergedTraceDetail.merge(spillingTraceDetail, methodIdMapping);
+            return mergedTraceDetail;
+          });
+        }
+        spillingTraceDetails.clear();
+        writtenSpillingTraces.clear();
+      }
+      if (spillFile != null) {
+        spilledLength = spillFile.getCommittedLength();
+      }
     }
   }
 
+  private long getInMemoryNodeCount() {
+    long nodeCount = 0;
+    for (CpuSamplingTraceDetail traceDetail : traceDetailLookup.values()) {
+      nodeCount += traceDetail.getNodeCount();
+    }
+    return nodeCount;
+  }
+
   @Override
   protected FinalizedCpuSamplingAggregationBucket buildFinalizedEntity() {
+    spillLock.writeLock().lock();
+    try {
+      mergeBackSpilledTraceDetails();
+    } catch (IOException ex) {
+      throw new AggregationFailure("Error merging spilled stacktrace trees back into aggregation bucket", ex, true);
+    } finally {
+      spillLock.writeLock().unlock();
+    }
+
     return new FinalizedCpuSamplingAggregationBucket(
         methodIdLookup,
         traceDetailLookup
@@ -7,6 +7,9 @@ import fk.prof.aggregation.state.AggregationState;
 import fk.prof.aggregation.state.AggregationStateEvent;
 import fk.prof.aggregation.FinalizableBuilder;
 import fk.prof.aggregation.model.FinalizedProfileWorkInfo;
+import fk.prof.aggregation.model.FinalizedSampleErrorCounts;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import fk.prof.backend.proto.CheckpointDTO;
 import fk.prof.backend.util.ProtoUtil;
 import fk.prof.backend.exception.AggregationFailure;
 import recording.Recorder;
@@ -22,6 +25,7 @@ import java.util.Map;
  * Updates to state associated with a work id happens in context of a request (profile or poll request)
  * Since we do not retry /profile requests from recorder, there can not be competing threads trying to update (except <pre>updateRecorderInfo</pre> method which is accessed on /poll request which can be retried)
  * If /profile requests are retried, this class will not be able to guarantee consistent state of members and state mutating methods like abortprofile, completeprofile, startprofile etc will need special handling
+ * State mutating methods are synchronized only so that {@link #buildCheckpointProto(long)}, invoked by the checkpointing thread, sees a consistent state
  */
 public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo> {
   private int recorderVersion;
@@ -31,23 +35,43 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
   private Recorder.RecorderInfo recorderInfo;
   private final HashObjIntMap<String> traceCoverages = HashObjIntMaps.newUpdatableMap();
   private final HashObjIntMap<Recorder.WorkType> workTypeSamples = HashObjIntMaps.newUpdatableMap();
+  private final SampleErrorCounts sampleErrors = new SampleErrorCounts();
+  private final Map<String, SampleErrorCounts> traceSampleErrors = new HashMap<>();
 
   public ProfileWorkInfo(int durationInSec) {
     this.durationInSec = durationInSec;
   }
 
-  public void updateRecorderInfo(Recorder.RecorderInfo recorderInfo) {
+  public synchronized void updateRecorderInfo(Recorder.RecorderInfo recorderInfo) {
     this.recorderInfo = recorderInfo;
   }
 
-  public void updateWSESpecificDetails(Recorder.Wse wse) {
+  public synchronized void updateWSESpecificDetails(Recorder.Wse wse, RecordedProfileIndexes indexes) {
     for (Recorder.TraceContext trace : wse.getIndexedData().getTraceCtxList()) {
       traceCoverages.put(trace.getTraceName(), trace.getCoveragePct());
     }
     workTypeSamples.put(wse.getWType(), workTypeSamples.getOrDefault(wse.getWType(), 0) + getSampleCount(wse));
+    if (wse.getWType() == Recorder.WorkType.cpu_sample_work) {
+      updateSampleErrors(wse.getCpuSampleEntry(), indexes);
+    }
+  }
+
+  /**
+   * Unknown trace ids are skipped here, aggregation of the same wse fails for them anyway
+   */
+  private void updateSampleErrors(Recorder.StackSampleWse stackSampleWse, RecordedProfileIndexes indexes) {
+    for (Recorder.StackSample stackSample : stackSampleWse.getStackSampleList()) {
+      sampleErrors.record(stackSample);
+      for (Integer traceId : stackSample.getTraceIdList()) {
+        String trace = indexes.getTrace(traceId);
+        if (trace != null) {
+          traceSampleErrors.computeIfAbsent(trace, key -> new SampleErrorCounts()).record(stackSample);
+        }
+      }
+    }
   }
 
-  public AggregationState startProfile(int recorderVersion, LocalDateTime startedAt) {
+  public synchronized AggregationState startProfile(int recorderVersion, LocalDateTime startedAt) {
     if(!processStateEvent(AggregationStateEvent.START_PROFILE)) {
       throw new IllegalStateException(String.format("Invalid event %s for current state %s",
           AggregationStateEvent.START_PROFILE, state));
@@ -57,7 +81,7 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
     return state;
   }
 
-  public AggregationState completeProfile() {
+  public synchronized AggregationState completeProfile() {
     if(!processStateEvent(AggregationStateEvent.COMPLETE_PROFILE)) {
       throw new IllegalStateException(String.format("Invalid event %s for current state %s",
           AggregationStateEvent.COMPLETE_PROFILE, state));
@@ -66,7 +90,7 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
     return state;
   }
 
-  public AggregationState abandonProfileAsCorrupt() {
+  public synchronized AggregationState abandonProfileAsCorrupt() {
     if(!processStateEvent(AggregationStateEvent.ABANDON_PROFILE_AS_CORRUPT)) {
       throw new IllegalStateException(String.format("Invalid event %s for current state %s",
           AggregationStateEvent.ABANDON_PROFILE_AS_CORRUPT, state));
@@ -75,7 +99,7 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
     return state;
   }
 
-  public AggregationState abandonProfileAsIncomplete() {
+  public synchronized AggregationState abandonProfileAsIncomplete() {
     if(!processStateEvent(AggregationStateEvent.ABANDON_PROFILE_AS_INCOMPLETE)) {
       throw new IllegalStateException(String.format("Invalid event %s for current state %s",
           AggregationStateEvent.ABANDON_PROFILE_AS_INCOMPLETE, state));
@@ -84,7 +108,7 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
     return state;
   }
 
-  public AggregationState abortProfile() {
+  public synchronized AggregationState abortProfile() {
     processStateEvent(AggregationStateEvent.ABORT_PROFILE);
     return state;
   }
@@ -103,6 +127,56 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
     }
   }
 
+  protected synchronized CheckpointDTO.ProfileWorkInfoCheckpoint buildCheckpointProto(long workId) {
+    CheckpointDTO.ProfileWorkInfoCheckpoint.Builder builder = CheckpointDTO.ProfileWorkInfoCheckpoint.newBuilder()
+        .setWorkId(workId)
+        .setDurationSecs(durationInSec)
+        .setState(state.name())
+        .setRecorderVersion(recorderVersion)
+        .setSampleErrors(sampleErrors.buildCheckpointProto());
+    if (startedAt != null) {
+      builder.setStartedAt(startedAt.toString());
+    }
+    if (endedAt != null) {
+      builder.setEndedAt(endedAt.toString());
+    }
+    if (recorderInfo != null) {
+      builder.setRecorderInfo(recorderInfo);
+    }
+    for (Map.Entry<String, Integer> entry : traceCoverages.entrySet()) {
+      builder.addTraceCoverage(CheckpointDTO.TraceCoverage.newBuilder().setTraceName(entry.getKey()).setCoveragePct(entry.getValue()));
+    }
+    for (Map.Entry<Recorder.WorkType, Integer> entry : workTypeSamples.entrySet()) {
+      builder.addWorkTypeSamples(CheckpointDTO.WorkTypeSamples.newBuilder().setWType(entry.getKey()).setSamples(entry.getValue()));
+    }
+    for (Map.Entry<String, SampleErrorCounts> entry : traceSampleErrors.entrySet()) {
+      builder.addTraceSampleErrors(CheckpointDTO.TraceSampleErrors.newBuilder().setTraceName(entry.getKey()).setSampleErrors(entry.getValue().buildCheckpointProto()));
+    }
+    return builder.build();
+  }
+
+  protected static ProfileWorkInfo fromCheckpointProto(CheckpointDTO.ProfileWorkInfoCheckpoint checkpoint) {
+    ProfileWorkInfo workInfo = new ProfileWorkInfo(checkpoint.getDurationSecs());
+    workInfo.state = AggregationState.valueOf(checkpoint.getState());
+    workInfo.recorderVersion = checkpoint.getRecorderVersion();
+    workInfo.startedAt = checkpoint.hasStartedAt() ? LocalDateTime.parse(checkpoint.getStartedAt()) : null;
+    workInfo.endedAt = checkpoint.hasEndedAt() ? LocalDateTime.parse(checkpoint.getEndedAt()) : null;
+    workInfo.recorderInfo = checkpoint.hasRecorderInfo() ? checkpoint.getRecorderInfo() : null;
+    for (CheckpointDTO.TraceCoverage traceCoverage : checkpoint.getTraceCoverageList()) {
+      workInfo.traceCoverages.put(traceCoverage.getTraceName(), traceCoverage.getCoveragePct());
+    }
+    for (CheckpointDTO.WorkTypeSamples workTypeSamples : checkpoint.getWorkTypeSamplesList()) {
+      workInfo.workTypeSamples.put(workTypeSamples.getWType(), workTypeSamples.getSamples());
+    }
+    if (checkpoint.hasSampleErrors()) {
+      workInfo.sampleErrors.merge(SampleErrorCounts.fromCheckpointProto(checkpoint.getSampleErrors()));
+    }
+    for (CheckpointDTO.TraceSampleErrors traceSampleErrors : checkpoint.getTraceSampleErrorsList()) {
+      workInfo.traceSampleErrors.put(traceSampleErrors.getTraceName(), SampleErrorCounts.fromCheckpointProto(traceSampleErrors.getSampleErrors()));
+    }
+    return workInfo;
+  }
+
   private int getSampleCount(Recorder.Wse wse) {
     switch(wse.getWType()) {
       case cpu_sample_work:
@@ -123,6 +197,11 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
       mappedWorkTypeSamples.put(mappedWorkType, entry.getValue());
     }
 
+    Map<String, FinalizedSampleErrorCounts> finalizedTraceSampleErrors = new HashMap<>();
+    for(Map.Entry<String, SampleErrorCounts> entry: traceSampleErrors.entrySet()) {
+      finalizedTraceSampleErrors.put(entry.getKey(), entry.getValue().finalizeEntity());
+    }
+
     return new FinalizedProfileWorkInfo(
         recorderVersion,
         recorderInfo == null ? null : ProtoUtil.mapToAggregatorRecorderInfo(recorderInfo),
@@ -131,7 +210,9 @@ public class ProfileWorkInfo extends FinalizableBuilder<FinalizedProfileWorkInfo
         endedAt,
         durationInSec,
         traceCoverages,
-        mappedWorkTypeSamples
+        mappedWorkTypeSamples,
+        sampleErrors.finalizeEntity(),
+        finalizedTraceSampleErrors
     );
   }
 }
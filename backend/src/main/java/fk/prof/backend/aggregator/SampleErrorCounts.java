@@ -0,0 +1,69 @@
+package fk.prof.backend.aggregator;
+
+import com.koloboke.collect.map.hash.HashObjIntMap;
+import com.koloboke.collect.map.hash.HashObjIntMaps;
+import fk.prof.aggregation.FinalizableBuilder;
+import fk.prof.aggregation.model.FinalizedSampleErrorCounts;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.backend.exception.AggregationFailure;
+import fk.prof.backend.proto.CheckpointDTO;
+import fk.prof.backend.util.ProtoUtil;
+import recording.Recorder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts stack samples which either could not be walked by the recorder (grouped by error type) or were truncated
+ * Not thread-safe, see {@link ProfileWorkInfo} for the reasoning why it need not be
+ */
+public class SampleErrorCounts extends FinalizableBuilder<FinalizedSampleErrorCounts> {
+  private int snippedCount = 0;
+  private final HashObjIntMap<Recorder.StackSample.Error> errorCounts = HashObjIntMaps.newUpdatableMap();
+
+  public void record(Recorder.StackSample stackSample) {
+    if (stackSample.getSnipped()) {
+      snippedCount++;
+    }
+    if (stackSample.hasError() && stackSample.getError() != Recorder.StackSample.Error.fkp_no_error) {
+      errorCounts.addValue(stackSample.getError(), 1);
+    }
+  }
+
+  public void merge(SampleErrorCounts other) {
+    snippedCount += other.snippedCount;
+    for (Map.Entry<Recorder.StackSample.Error, Integer> entry : other.errorCounts.entrySet()) {
+      errorCounts.addValue(entry.getKey(), entry.getValue());
+    }
+  }
+
+  protected CheckpointDTO.SampleErrorCountsCheckpoint buildCheckpointProto() {
+    CheckpointDTO.SampleErrorCountsCheckpoint.Builder builder = CheckpointDTO.SampleErrorCountsCheckpoint.newBuilder().setSnippedCount(snippedCount);
+    for (Map.Entry<Recorder.StackSample.Error, Integer> entry : errorCounts.entrySet()) {
+      builder.addErrorCount(CheckpointDTO.SampleErrorCountsCheckpoint.ErrorCount.newBuilder().setError(entry.getKey()).setCount(entry.getValue()));
+    }
+    return builder.build();
+  }
+
+  protected static SampleErrorCounts fromCheckpointProto(CheckpointDTO.SampleErrorCountsCheckpoint checkpoint) {
+    SampleErrorCounts sampleErrorCounts = new SampleErrorCounts();
+    sampleErrorCounts.snippedCount = checkpoint.getSnippedCount();
+    for (CheckpointDTO.SampleErrorCountsCheckpoint.ErrorCount errorCount : checkpoint.getErrorCountList()) {
+      sampleErrorCounts.errorCounts.put(errorCount.getError(), errorCount.getCount());
+    }
+    return sampleErrorCounts;
+  }
+
+  @Override
+  protected FinalizedSampleErrorCounts buildFinalizedEntity() {
+    Map<AggregatedProfileModel.SampleError, Integer> mappedErrorCounts = new HashMap<>();
+    for (Map.Entry<Recorder.StackSample.Error, Integer> entry : errorCounts.entrySet()) {
+      AggregatedProfileModel.SampleError mappedError = ProtoUtil.mapRecorderToAggregatorSampleError(entry.getKey());
+      if (mappedError == null) {
+        throw new AggregationFailure(String.format("Unable to map recorder sample error=%s to corresponding aggregation sample error", entry.getKey()), true);
+      }
+      mappedErrorCounts.put(mappedError, entry.getValue());
+    }
+    return new FinalizedSampleErrorCounts(snippedCount, mappedErrorCounts);
+  }
+}
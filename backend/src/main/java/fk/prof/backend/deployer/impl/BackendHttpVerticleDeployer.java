@@ -6,23 +6,23 @@ import fk.prof.backend.deployer.VerticleDeployer;
 import fk.prof.backend.http.BackendHttpVerticle;
 import fk.prof.backend.model.assignment.ProcessGroupDiscoveryContext;
 import fk.prof.backend.model.election.LeaderReadContext;
-import fk.prof.backend.model.aggregation.AggregationWindowDiscoveryContext;
+import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
 import io.vertx.core.*;
 
 public class BackendHttpVerticleDeployer extends VerticleDeployer {
 
   private final LeaderReadContext leaderReadContext;
-  private final AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext;
+  private final ActiveAggregationWindows activeAggregationWindows;
   private final ProcessGroupDiscoveryContext processGroupDiscoveryContext;
 
   public BackendHttpVerticleDeployer(Vertx vertx,
                                      Configuration config,
                                      LeaderReadContext leaderReadContext,
-                                     AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext,
+                                     ActiveAggregationWindows activeAggregationWindows,
                                      ProcessGroupDiscoveryContext processGroupDiscoveryContext) {
     super(vertx, config);
     this.leaderReadContext = Preconditions.checkNotNull(leaderReadContext);
-    this.aggregationWindowDiscoveryContext = Preconditions.checkNotNull(aggregationWindowDiscoveryContext);
+    this.activeAggregationWindows = Preconditions.checkNotNull(activeAggregationWindows);
     this.processGroupDiscoveryContext = Preconditions.checkNotNull(processGroupDiscoveryContext);
   }
 
@@ -33,7 +33,7 @@ public class BackendHttpVerticleDeployer extends VerticleDeployer {
 
   @Override
   protected Verticle buildVerticle() {
-    return new BackendHttpVerticle(getConfig(), leaderReadContext, aggregationWindowDiscoveryContext, processGroupDiscoveryContext);
+    return new BackendHttpVerticle(getConfig(), leaderReadContext, activeAggregationWindows, processGroupDiscoveryContext);
   }
 
 }
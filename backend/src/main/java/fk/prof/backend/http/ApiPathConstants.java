@@ -15,6 +15,7 @@ public final class ApiPathConstants {
   public static final String BACKEND_POST_POLL = "/poll";
   public static final String BACKEND_HEALTHCHECK = "/health";
   public static final String BACKEND_POST_ASSOCIATION = "/association";
+  public static final String BACKEND_POST_HANDOFF = "/handoff";
   public static final String BACKEND_GET_ASSOCIATIONS = "/associations";
   public static final String BACKEND_GET_APPS = APPS_PREFIX;
   public static final String BACKEND_GET_CLUSTERS_FOR_APP = CLUSTERS_PREFIX + "/:appId";
@@ -32,6 +33,7 @@ public final class ApiPathConstants {
   public static final String LEADER_POST_LOAD = LEADER_PREFIX + "/load";
   public static final String LEADER_GET_WORK = LEADER_PREFIX + "/work";
   public static final String LEADER_POST_ASSOCIATION = LEADER_PREFIX + "/association";
+  public static final String LEADER_POST_ASSOCIATION_FOR_PROCESS_GROUP = LEADER_PREFIX + "/association/process_group";
   public static final String LEADER_GET_ASSOCIATIONS = LEADER_PREFIX + "/associations";
   public static final String LEADER_GET_APPS = LEADER_PREFIX + APPS_PREFIX;
   public static final String LEADER_GET_CLUSTERS_FOR_APP = LEADER_PREFIX + CLUSTERS_PREFIX + "/:appId";
@@ -12,9 +12,10 @@ import fk.prof.backend.aggregator.AggregationWindow;
 import fk.prof.backend.exception.AggregationFailure;
 import fk.prof.backend.exception.BadRequestException;
 import fk.prof.backend.exception.HttpFailure;
-import fk.prof.backend.model.aggregation.AggregationWindowDiscoveryContext;
+import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
 import fk.prof.backend.model.assignment.ProcessGroupContextForPolling;
 import fk.prof.backend.model.assignment.ProcessGroupDiscoveryContext;
+import fk.prof.backend.model.association.ProcessGroupSharding;
 import fk.prof.backend.model.election.LeaderReadContext;
 import fk.prof.backend.proto.BackendDTO;
 import fk.prof.backend.request.profile.RecordedProfileProcessor;
@@ -23,6 +24,7 @@ import fk.prof.backend.util.ProtoUtil;
 import fk.prof.backend.util.proto.RecorderProtoUtil;
 import fk.prof.metrics.MetricName;
 import fk.prof.metrics.ProcessGroupTag;
+import io.netty.buffer.ByteBufInputStream;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
@@ -40,6 +42,7 @@ import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.LoggerHandler;
 import recording.Recorder;
 
+import java.io.InputStream;
 import java.time.Clock;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -49,8 +52,9 @@ public class BackendHttpVerticle extends AbstractVerticle {
 
   private final Configuration config;
   private final LeaderReadContext leaderReadContext;
-  private final AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext;
+  private final ActiveAggregationWindows activeAggregationWindows;
   private final ProcessGroupDiscoveryContext processGroupDiscoveryContext;
+  private final ProcessGroupSharding processGroupSharding;
   private final int backendHttpPort;
   private final String ipAddress;
   private final int backendVersion;
@@ -64,7 +68,7 @@ public class BackendHttpVerticle extends AbstractVerticle {
 
   public BackendHttpVerticle(Configuration config,
                              LeaderReadContext leaderReadContext,
-                             AggregationWindowDiscoveryContext aggregationWindowDiscoveryContext,
+                             ActiveAggregationWindows activeAggregationWindows,
                              ProcessGroupDiscoveryContext processGroupDiscoveryContext) {
     this.config = config;
     this.backendHttpPort = config.getBackendHttpServerOpts().getPort();
@@ -72,8 +76,9 @@ public class BackendHttpVerticle extends AbstractVerticle {
     this.backendVersion = config.getBackendVersion();
 
     this.leaderReadContext = leaderReadContext;
-    this.aggregationWindowDiscoveryContext = aggregationWindowDiscoveryContext;
+    this.activeAggregationWindows = activeAggregationWindows;
     this.processGroupDiscoveryContext = processGroupDiscoveryContext;
+    this.processGroupSharding = new ProcessGroupSharding(config.getShardingConfig());
   }
 
   @Override
@@ -106,6 +111,10 @@ public class BackendHttpVerticle extends AbstractVerticle {
 
     HttpHelper.attachHandlersToRoute(router, HttpMethod.GET, ApiPathConstants.BACKEND_HEALTHCHECK, this::handleGetHealthCheck);
 
+    String apiPathForPostHandOff = ApiPathConstants.BACKEND_POST_HANDOFF + "/:appId/:clusterId/:procName";
+    HttpHelper.attachHandlersToRoute(router, HttpMethod.POST, apiPathForPostHandOff,
+        BodyHandler.create().setBodyLimit(config.getHandOffConfig().getMaxBytes()), this::handlePostHandOff);
+
     HttpHelper.attachHandlersToRoute(router, HttpMethod.GET, ApiPathConstants.BACKEND_GET_APPS, this::proxyToLeader);
     HttpHelper.attachHandlersToRoute(router, HttpMethod.GET, ApiPathConstants.BACKEND_GET_CLUSTERS_FOR_APP, this::proxyToLeader);
     HttpHelper.attachHandlersToRoute(router, HttpMethod.GET, ApiPathConstants.BACKEND_GET_PROCS_FOR_APP_CLUSTER, this::proxyToLeader);
@@ -130,7 +139,7 @@ public class BackendHttpVerticle extends AbstractVerticle {
   private void handlePostProfile(RoutingContext context) {
     RecordedProfileProcessor profileProcessor = new RecordedProfileProcessor(
         context,
-        aggregationWindowDiscoveryContext,
+        activeAggregationWindows,
         new SharedMapBasedSingleProcessingOfProfileGate(workIdsInPipeline),
         config().getJsonObject("parser").getInteger("recordingheader.max.bytes", 1024),
         config().getJsonObject("parser").getInteger("wse.max.bytes", 1024 * 1024));
@@ -172,7 +181,7 @@ public class BackendHttpVerticle extends AbstractVerticle {
         logger.debug("Poll request: " + RecorderProtoUtil.pollReqCompactRepr(pollReq));
       }
 
-      Recorder.ProcessGroup processGroup = RecorderProtoUtil.mapRecorderInfoToProcessGroup(pollReq.getRecorderInfo());
+      Recorder.ProcessGroup processGroup = processGroupSharding.mapRecorderInfoToProcessGroup(pollReq.getRecorderInfo());
       String processGroupStr = new ProcessGroupTag(processGroup.getAppId(), processGroup.getCluster(), processGroup.getProcName()).toString();
       Meter mtrAssocMiss = metricRegistry.meter(MetricRegistry.name(MetricName.Poll_Assoc_Miss.get(), processGroupStr));
       Counter ctrWinMiss = metricRegistry.counter(MetricRegistry.name(MetricName.Poll_Window_Miss.get(), processGroupStr));
@@ -185,7 +194,7 @@ public class BackendHttpVerticle extends AbstractVerticle {
 
       Recorder.WorkAssignment nextWorkAssignment = processGroupContextForPolling.getWorkAssignment(pollReq);
       if (nextWorkAssignment != null) {
-        AggregationWindow aggregationWindow = aggregationWindowDiscoveryContext.getAssociatedAggregationWindow(nextWorkAssignment.getWorkId());
+        AggregationWindow aggregationWindow = activeAggregationWindows.getAssociatedAggregationWindow(nextWorkAssignment.getWorkId());
         if (aggregationWindow == null) {
           ctrWinMiss.inc();
           throw new BadRequestException(String.format("workId=%d not found, cannot associate recorder info with aggregated profile. aborting send of work assignment",
@@ -215,13 +224,53 @@ public class BackendHttpVerticle extends AbstractVerticle {
     }
   }
 
+  // /handoff API is requested by a backend which was de-associated from the process group, or which aggregates some other shard of the
+  // process group, with partial aggregation window of the process group as payload. Responds with 503 if this backend has not yet
+  // learnt of its association with the process group
+  private void handlePostHandOff(RoutingContext context) {
+    try {
+      String appId = context.request().getParam("appId");
+      String clusterId = context.request().getParam("clusterId");
+      String procName = context.request().getParam("procName");
+      Recorder.ProcessGroup processGroup = Recorder.ProcessGroup.newBuilder().setAppId(appId).setCluster(clusterId).setProcName(procName).build();
+
+      if (this.processGroupDiscoveryContext.getProcessGroupContextForPolling(processGroup) == null) {
+        throw new HttpFailure("Process group " + RecorderProtoUtil.processGroupCompactRepr(processGroup) + " not associated with the backend yet", 503);
+      }
+
+      Buffer payload = context.getBody();
+      vertx.<Boolean>executeBlocking(future -> {
+        try (InputStream in = new ByteBufInputStream(payload.getByteBuf())) {
+          AggregationWindow handedOffWindow = AggregationWindow.restore(in, null);
+          if (!handedOffWindow.getAppId().equals(appId) || !handedOffWindow.getClusterId().equals(clusterId) || !handedOffWindow.getProcId().equals(procName)) {
+            throw new BadRequestException("Handed off aggregation window: " + handedOffWindow + " does not belong to process group " + RecorderProtoUtil.processGroupCompactRepr(processGroup));
+          }
+          future.complete(activeAggregationWindows.acceptHandedOffAggregationWindow(processGroup, handedOffWindow));
+        } catch (Exception ex) {
+          future.fail(ex);
+        }
+      }, false, ar -> {
+        if (ar.succeeded()) {
+          logger.info("Accepted hand off of aggregation window for process_group=" + RecorderProtoUtil.processGroupCompactRepr(processGroup) + ", merged=" + ar.result());
+          context.response().end();
+        } else {
+          HttpFailure httpFailure = HttpFailure.failure(ar.cause());
+          HttpHelper.handleFailure(context, httpFailure);
+        }
+      });
+    } catch (Exception ex) {
+      HttpFailure httpFailure = HttpFailure.failure(ex);
+      HttpHelper.handleFailure(context, httpFailure);
+    }
+  }
+
   // /association API is requested over ELB, routed to some backend which in turns proxies it to a leader
   private void handlePostAssociation(RoutingContext context) {
     BackendDTO.LeaderDetail leaderDetail = verifyLeaderAvailabilityOrFail(context.response());
     if (leaderDetail != null) {
       try {
         Recorder.RecorderInfo recorderInfo = ProtoUtil.buildProtoFromBuffer(Recorder.RecorderInfo.parser(), context.getBody());
-        Recorder.ProcessGroup processGroup = RecorderProtoUtil.mapRecorderInfoToProcessGroup(recorderInfo);
+        Recorder.ProcessGroup processGroup = processGroupSharding.mapRecorderInfoToProcessGroup(recorderInfo);
         ProcessGroupContextForPolling processGroupContextForPolling = this.processGroupDiscoveryContext.getProcessGroupContextForPolling(processGroup);
         if (processGroupContextForPolling != null) {
           Recorder.AssignedBackend assignedBackend = Recorder.AssignedBackend.newBuilder().setHost(ipAddress).setPort(backendHttpPort).build();
@@ -9,6 +9,7 @@ import fk.prof.backend.ConfigManager;
 import fk.prof.backend.Configuration;
 import fk.prof.backend.exception.HttpFailure;
 import fk.prof.backend.model.association.BackendAssociationStore;
+import fk.prof.backend.model.association.ProcessGroupSharding;
 import fk.prof.backend.model.policy.PolicyStore;
 import fk.prof.backend.proto.BackendDTO;
 import fk.prof.backend.util.ProtoUtil;
@@ -38,6 +39,7 @@ public class LeaderHttpVerticle extends AbstractVerticle {
   private final BackendAssociationStore backendAssociationStore;
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(ConfigManager.METRIC_REGISTRY);
   private final PolicyStore policyStore;
+  private final ProcessGroupSharding processGroupSharding;
 
   public LeaderHttpVerticle(Configuration config,
                             BackendAssociationStore backendAssociationStore,
@@ -45,6 +47,7 @@ public class LeaderHttpVerticle extends AbstractVerticle {
     this.config = config;
     this.backendAssociationStore = backendAssociationStore;
     this.policyStore = policyStore;
+    this.processGroupSharding = new ProcessGroupSharding(config.getShardingConfig());
   }
 
   @Override
@@ -69,6 +72,10 @@ public class LeaderHttpVerticle extends AbstractVerticle {
     HttpHelper.attachHandlersToRoute(router, HttpMethod.GET, ApiPathConstants.LEADER_GET_ASSOCIATIONS,
         this::handleGetAssociations);
 
+    String apiPathForPostAssociationForProcessGroup = ApiPathConstants.LEADER_POST_ASSOCIATION_FOR_PROCESS_GROUP + "/:appId/:clusterId/:procName";
+    HttpHelper.attachHandlersToRoute(router, HttpMethod.POST, apiPathForPostAssociationForProcessGroup,
+        this::handlePostAssociationForProcessGroup);
+
     String apiPathForGetWork = ApiPathConstants.LEADER_GET_WORK + "/:appId/:clusterId/:procName";
     HttpHelper.attachHandlersToRoute(router, HttpMethod.GET, apiPathForGetWork,
         BodyHandler.create().setBodyLimit(1024 * 100), this::handleGetWork);
@@ -163,7 +170,7 @@ public class LeaderHttpVerticle extends AbstractVerticle {
   private void handlePostAssociation(RoutingContext context) {
     try {
       Recorder.RecorderInfo recorderInfo = ProtoUtil.buildProtoFromBuffer(Recorder.RecorderInfo.parser(), context.getBody());
-      Recorder.ProcessGroup processGroup = RecorderProtoUtil.mapRecorderInfoToProcessGroup(recorderInfo);
+      Recorder.ProcessGroup processGroup = processGroupSharding.mapRecorderInfoToProcessGroup(recorderInfo);
 
       String processGroupStr = new ProcessGroupTag(processGroup.getAppId(), processGroup.getCluster(), processGroup.getProcName()).toString();
       Meter mtrFailure = metricRegistry.meter(MetricRegistry.name(MetricName.Leader_Assoc_Failure.get(), processGroupStr));
@@ -191,6 +198,39 @@ public class LeaderHttpVerticle extends AbstractVerticle {
     }
   }
 
+  // Requested by backend handing off aggregation window of a process group which has been de-associated from it
+  private void handlePostAssociationForProcessGroup(RoutingContext context) {
+    try {
+      String appId = context.request().getParam("appId");
+      String clusterId = context.request().getParam("clusterId");
+      String procName = context.request().getParam("procName");
+      Recorder.ProcessGroup processGroup = Recorder.ProcessGroup.newBuilder().setAppId(appId).setCluster(clusterId).setProcName(procName).build();
+
+      String processGroupStr = new ProcessGroupTag(appId, clusterId, procName).toString();
+      Meter mtrFailure = metricRegistry.meter(MetricRegistry.name(MetricName.Leader_Assoc_Failure.get(), processGroupStr));
+      Meter mtrSuccess = metricRegistry.meter(MetricRegistry.name(MetricName.Leader_Assoc_Success.get(), processGroupStr));
+
+      backendAssociationStore.associateAndGetBackend(processGroup).setHandler(ar -> {
+        if(ar.succeeded()) {
+          mtrSuccess.mark();
+          try {
+            context.response().end(ProtoUtil.buildBufferFromProto(ar.result()));
+          } catch (Exception ex) {
+            HttpFailure httpFailure = HttpFailure.failure(ex);
+            HttpHelper.handleFailure(context, httpFailure);
+          }
+        } else {
+          mtrFailure.mark();
+          HttpFailure httpFailure = HttpFailure.failure(ar.cause());
+          HttpHelper.handleFailure(context, httpFailure);
+        }
+      });
+    } catch (Exception ex) {
+      HttpFailure httpFailure = HttpFailure.failure(ex);
+      HttpHelper.handleFailure(context, httpFailure);
+    }
+  }
+
   private void handleGetWork(RoutingContext context) {
     try {
       String appId = context.request().getParam("appId");
@@ -205,11 +245,13 @@ public class LeaderHttpVerticle extends AbstractVerticle {
       String backendIP = context.request().getParam("ip");
       int backendPort = Integer.valueOf(context.request().getParam("port"));
       Recorder.AssignedBackend callingBackend = Recorder.AssignedBackend.newBuilder().setHost(backendIP).setPort(backendPort).build();
+      //Policy is shared by all shards of the process group, association is checked for the shard of calling backend
+      Recorder.ProcessGroup shardOfProcessGroup = parseShard(context, processGroup);
 
-      if(!callingBackend.equals(backendAssociationStore.getAssociatedBackend(processGroup))) {
+      if(!callingBackend.equals(backendAssociationStore.getAssociatedBackend(shardOfProcessGroup))) {
         mtrAssocMiss.mark();
         context.response().setStatusCode(400);
-        context.response().end("Calling backend=" + RecorderProtoUtil.assignedBackendCompactRepr(callingBackend) + " not assigned to process_group=" + RecorderProtoUtil.processGroupCompactRepr(processGroup));
+        context.response().end("Calling backend=" + RecorderProtoUtil.assignedBackendCompactRepr(callingBackend) + " not assigned to process_group=" + RecorderProtoUtil.processGroupCompactRepr(shardOfProcessGroup));
       } else {
         BackendDTO.RecordingPolicy recordingPolicy = PolicyDTOProtoUtil.translateToBackendRecordingPolicy(policyStore.getVersionedPolicy(processGroup));
         if (recordingPolicy == null) {
@@ -285,6 +327,15 @@ public class LeaderHttpVerticle extends AbstractVerticle {
     return Recorder.ProcessGroup.newBuilder().setAppId(appId).setCluster(clusterId).setProcName(procName).build();
   }
 
+  // Optional shard query param identifies a shard of process group whose recorders are split across backends
+  private Recorder.ProcessGroup parseShard(RoutingContext context, Recorder.ProcessGroup processGroup) {
+    final String shard = context.request().getParam("shard");
+    if(shard == null || Integer.parseInt(shard) == 0) {
+      return processGroup;
+    }
+    return processGroup.toBuilder().setShard(Integer.parseInt(shard)).build();
+  }
+
   private PolicyDTO.VersionedPolicyDetails parseVersionedPolicyDetailsFromPayload(RoutingContext context) throws Exception {
     PolicyDTO.VersionedPolicyDetails versionedPolicyDetails = ProtoUtil.buildProtoFromBuffer(PolicyDTO.VersionedPolicyDetails.parser(), context.getBody());
     PolicyDTOProtoUtil.validatePolicyValues(versionedPolicyDetails);
@@ -307,7 +358,7 @@ public class LeaderHttpVerticle extends AbstractVerticle {
       String procName = context.request().getParam("procName");
       Recorder.ProcessGroup processGroup = Recorder.ProcessGroup.newBuilder().setAppId(appId).setCluster(clusterId).setProcName(procName).build();
 
-      Recorder.AssignedBackend assignedBackend = backendAssociationStore.removeAssociation(processGroup);
+      Recorder.AssignedBackend assignedBackend = backendAssociationStore.removeAssociation(parseShard(context, processGroup));
       if(assignedBackend != null) {
         context.response().putHeader("Content-Type", "application/json");
         context.response().end(JsonFormat.printer().print(assignedBackend));
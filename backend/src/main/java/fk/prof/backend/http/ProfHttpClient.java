@@ -4,10 +4,16 @@ import fk.prof.backend.Configuration;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.streams.Pump;
+
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ProfHttpClient {
   private final Vertx vertx;
@@ -41,6 +47,64 @@ public class ProfHttpClient {
     return executeRequestWithRetry(0, httpMethod, host, port, path, payload, false);
   }
 
+  /**
+   * Streams content of the file as the body of the request, so that the file is not read into memory as a whole. Request is not retried.
+   * Request is reset if the file cannot be read till its end.
+   */
+  public Future<ResponseWithStatusTuple> requestAsyncWithFile(HttpMethod httpMethod,
+                                                              String host, int port, String path, String filePath) {
+    Future<ResponseWithStatusTuple> result = Future.future();
+    vertx.fileSystem().props(filePath, propsResult -> {
+      if(propsResult.failed()) {
+        result.fail(propsResult.cause());
+        return;
+      }
+      vertx.fileSystem().open(filePath, new OpenOptions().setRead(true).setWrite(false).setCreate(false), openResult -> {
+        if(openResult.failed()) {
+          result.fail(openResult.cause());
+          return;
+        }
+        AsyncFile file = openResult.result();
+        // file is closed once it is read till its end or the request fails, whichever happens first
+        AtomicBoolean fileClosed = new AtomicBoolean(false);
+        HttpClientRequest request = httpClient.request(httpMethod, port, host, path);
+        request.handler(response -> {
+          response.bodyHandler(buffer -> {
+            if(!result.isComplete()) {
+              result.complete(ResponseWithStatusTuple.of(response.statusCode(), buffer));
+            }
+          });
+        }).exceptionHandler(ex -> {
+          if(fileClosed.compareAndSet(false, true)) {
+            file.close();
+          }
+          if(!result.isComplete()) {
+            result.fail(ex);
+          }
+        });
+        request.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(propsResult.result().size()));
+
+        file.endHandler(v -> {
+          if(fileClosed.compareAndSet(false, true)) {
+            file.close();
+            request.end();
+          }
+        });
+        file.exceptionHandler(ex -> {
+          if(fileClosed.compareAndSet(false, true)) {
+            file.close();
+            request.reset();
+          }
+          if(!result.isComplete()) {
+            result.fail(ex);
+          }
+        });
+        Pump.pump(file, request).start();
+      });
+    });
+    return result;
+  }
+
   private Future<ResponseWithStatusTuple> executeRequestWithRetry(
       int attemptsMade,
       HttpMethod httpMethod,
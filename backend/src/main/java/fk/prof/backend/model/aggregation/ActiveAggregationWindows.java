@@ -1,10 +1,41 @@
 package fk.prof.backend.model.aggregation;
 
 import fk.prof.backend.aggregator.AggregationWindow;
+import recording.Recorder;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 
 public interface ActiveAggregationWindows extends AggregationWindowDiscoveryContext {
   void associateAggregationWindow(final long[] workIds, AggregationWindow aggregationWindow)
       throws IllegalStateException;
 
   void deAssociateAggregationWindow(long[] workIds);
+
+  /**
+   * @return distinct aggregation windows which have at least one work id associated
+   */
+  Collection<AggregationWindow> getAggregationWindows();
+
+  /**
+   * Merges an aggregation window handed off by another backend into the window of the process group which has a matching start, see
+   * {@link AggregationWindow#hasMatchingStart(AggregationWindow)}, be it active or retained for hand offs after its end. If there is no
+   * such window, the handed off window is kept pending till it is removed by {@link #removePendingHandOffs(Recorder.ProcessGroup)}
+   * @return true if merged, false if kept pending
+   */
+  boolean acceptHandedOffAggregationWindow(Recorder.ProcessGroup processGroup, AggregationWindow handedOffWindow) throws IOException;
+
+  /**
+   * @return handed off windows of the process group which are pending to be merged, empty if none
+   */
+  List<AggregationWindow> removePendingHandOffs(Recorder.ProcessGroup processGroup);
+
+  /**
+   * Keeps a window whose work has been de-associated available to be merged into by {@link #acceptHandedOffAggregationWindow}, till it
+   * is released by {@link #releaseRetainedForHandOffs(AggregationWindow)}
+   */
+  void retainForHandOffs(AggregationWindow aggregationWindow);
+
+  void releaseRetainedForHandOffs(AggregationWindow aggregationWindow);
 }
@@ -3,12 +3,17 @@ package fk.prof.backend.model.aggregation.impl;
 import com.google.common.base.Preconditions;
 import fk.prof.backend.aggregator.AggregationWindow;
 import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
+import recording.Recorder;
 
-import java.util.Map;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ActiveAggregationWindowsImpl implements ActiveAggregationWindows {
   private Map<Long, AggregationWindow> windowLookup = new ConcurrentHashMap<>();
+  private Map<Recorder.ProcessGroup, List<AggregationWindow>> pendingHandOffLookup = new ConcurrentHashMap<>();
+  private Set<AggregationWindow> retainedWindows = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
   //NOTE: Called on http event loop
   @Override
@@ -38,4 +43,66 @@ public class ActiveAggregationWindowsImpl implements ActiveAggregationWindows {
       this.windowLookup.remove(workIds[i]);
     }
   }
+
+  //NOTE: Called by checkpointing thread, windows associated or de-associated concurrently may or may not be returned
+  @Override
+  public Collection<AggregationWindow> getAggregationWindows() {
+    Set<AggregationWindow> aggregationWindows = Collections.newSetFromMap(new IdentityHashMap<>());
+    aggregationWindows.addAll(this.windowLookup.values());
+    return aggregationWindows;
+  }
+
+  //NOTE: Called on worker thread of http verticle
+  @Override
+  public boolean acceptHandedOffAggregationWindow(Recorder.ProcessGroup processGroup, AggregationWindow handedOffWindow)
+      throws IOException {
+    List<AggregationWindow> candidateWindows = new ArrayList<>(getAggregationWindows());
+    candidateWindows.addAll(this.retainedWindows);
+
+    AggregationWindow matchingWindow = null;
+    for (AggregationWindow aggregationWindow : candidateWindows) {
+      if (aggregationWindow.hasMatchingStart(handedOffWindow)
+          && (matchingWindow == null || startDistance(aggregationWindow, handedOffWindow) < startDistance(matchingWindow, handedOffWindow))) {
+        matchingWindow = aggregationWindow;
+      }
+    }
+
+    if (matchingWindow != null) {
+      try {
+        matchingWindow.mergeHandedOffWindow(handedOffWindow);
+        return true;
+      } catch (IllegalStateException ex) {
+        //Window expired meanwhile, handed off window is kept pending to be persisted by itself
+      }
+    }
+    this.pendingHandOffLookup.compute(processGroup, (key, handedOffWindows) -> {
+      List<AggregationWindow> result = handedOffWindows == null ? new ArrayList<>() : handedOffWindows;
+      result.add(handedOffWindow);
+      return result;
+    });
+    return false;
+  }
+
+  //NOTE: Called always by backend daemon thread and not on http event loop
+  @Override
+  public List<AggregationWindow> removePendingHandOffs(Recorder.ProcessGroup processGroup) {
+    List<AggregationWindow> handedOffWindows = this.pendingHandOffLookup.remove(processGroup);
+    return handedOffWindows == null ? Collections.emptyList() : handedOffWindows;
+  }
+
+  //NOTE: Called always by backend daemon thread and not on http event loop
+  @Override
+  public void retainForHandOffs(AggregationWindow aggregationWindow) {
+    this.retainedWindows.add(Preconditions.checkNotNull(aggregationWindow));
+  }
+
+  //NOTE: Called always by backend daemon thread and not on http event loop
+  @Override
+  public void releaseRetainedForHandOffs(AggregationWindow aggregationWindow) {
+    this.retainedWindows.remove(aggregationWindow);
+  }
+
+  private static long startDistance(AggregationWindow aggregationWindow, AggregationWindow otherWindow) {
+    return Math.abs(Duration.between(aggregationWindow.getStart(), otherWindow.getStart()).toMillis());
+  }
 }
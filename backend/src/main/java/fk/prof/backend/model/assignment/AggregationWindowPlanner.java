@@ -7,6 +7,7 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.google.common.base.Preconditions;
 import fk.prof.aggregation.model.FinalizedAggregationWindow;
 import fk.prof.backend.ConfigManager;
+import fk.prof.backend.aggregator.AggregationSpillConfig;
 import fk.prof.backend.aggregator.AggregationWindow;
 import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
 import fk.prof.backend.model.slot.WorkSlotPool;
@@ -26,11 +27,13 @@ import recording.Recorder;
 import java.time.Clock;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class AggregationWindowPlanner {
-  private static int workIdCounter = 1;
+  //Least significant 32 bits of the next work id of this backend, most significant ones being the backend id
+  private static long workIdCounter = 1;
   private static final int MILLIS_IN_SEC = 1000;
   private static final Logger logger = LoggerFactory.getLogger(AggregationWindowPlanner.class);
 
@@ -41,7 +44,11 @@ public class AggregationWindowPlanner {
   private final ProcessGroupContextForScheduling processGroupContextForScheduling;
   private final ActiveAggregationWindows activeAggregationWindows;
   private final PolicyRequestor policyForBackendRequestor;
-  private final Consumer<FinalizedAggregationWindow> aggregationWindowWriter;
+  private final BiConsumer<AggregationWindow, FinalizedAggregationWindow> aggregationWindowWriter;
+  private final Consumer<AggregationWindow> aggregationWindowHandOff;
+  private final boolean handOffOnClose;
+  private final int handOffGraceInSecs;
+  private final AggregationSpillConfig aggregationSpillConfig;
 
   private final Recorder.ProcessGroup processGroup;
   private final int aggregationWindowDurationInSecs;
@@ -72,13 +79,21 @@ public class AggregationWindowPlanner {
                                   ProcessGroupContextForScheduling processGroupContextForScheduling,
                                   ActiveAggregationWindows activeAggregationWindows,
                                   PolicyRequestor policyForBackendRequestor,
-                                  Consumer<FinalizedAggregationWindow> aggregationWindowWriter) {
+                                  BiConsumer<AggregationWindow, FinalizedAggregationWindow> aggregationWindowWriter,
+                                  Consumer<AggregationWindow> aggregationWindowHandOff,
+                                  boolean handOffOnClose,
+                                  int handOffGraceInSecs,
+                                  AggregationSpillConfig aggregationSpillConfig) {
     this.vertx = Preconditions.checkNotNull(vertx);
     this.backendId = backendId;
     this.processGroupContextForScheduling = Preconditions.checkNotNull(processGroupContextForScheduling);
     this.processGroup = processGroupContextForScheduling.getProcessGroup();
     this.policyForBackendRequestor = Preconditions.checkNotNull(policyForBackendRequestor);
     this.aggregationWindowWriter = aggregationWindowWriter;
+    this.aggregationWindowHandOff = Preconditions.checkNotNull(aggregationWindowHandOff);
+    this.handOffOnClose = handOffOnClose;
+    this.handOffGraceInSecs = handOffGraceInSecs;
+    this.aggregationSpillConfig = aggregationSpillConfig;
     this.activeAggregationWindows = Preconditions.checkNotNull(activeAggregationWindows);
     this.workAssignmentScheduleBootstrapConfig = Preconditions.checkNotNull(workAssignmentScheduleBootstrapConfig);
     this.workSlotPool = Preconditions.checkNotNull(workSlotPool);
@@ -120,7 +135,22 @@ public class AggregationWindowPlanner {
   }
 
   /**
-   * This expires current aggregation window and cancels scheduling of upcoming aggregation windows
+   * Ensures that work ids generated henceforth do not collide with the given work ids, to be called with work ids of aggregation
+   * windows recovered after restart of the backend. Work ids generated by other backends, e.g. of windows merged from hand offs, cannot
+   * collide with ones of this backend, so they are ignored
+   */
+  public static void reserveWorkIds(int backendId, long[] workIds) {
+    for (long workId : workIds) {
+      if (BitOperationUtil.getMostSignificantInt(workId) == backendId) {
+        workIdCounter = Math.max(workIdCounter, BitOperationUtil.getLeastSignificantBits(workId) + 1);
+      }
+    }
+  }
+
+  /**
+   * This expires current aggregation window, or hands it off if hand off is enabled or the process group is a shard, and cancels
+   * scheduling of upcoming aggregation windows
+   * Windows handed off to this backend which are still pending to be merged are expired as is
    * To be called when leader de-associates relevant process group from the backend
    */
   public void close() {
@@ -130,7 +160,12 @@ public class AggregationWindowPlanner {
         vertx.cancelTimer(ar.result());
       }
     });
-    expireCurrentAggregationWindow();
+    if(handOffOnClose || processGroup.hasShard()) {
+      handOffCurrentAggregationWindow();
+    } else {
+      expireCurrentAggregationWindow();
+    }
+    mergePendingHandOffs();
   }
 
   /**
@@ -164,7 +199,12 @@ public class AggregationWindowPlanner {
   }
 
   private void aggregationWindowSwitcher() {
-    expireCurrentAggregationWindow();
+    //Partial window of a shard is merged by backend of the first shard of the process group, rather than being persisted here
+    if(processGroup.hasShard()) {
+      handOffCurrentAggregationWindow();
+    } else {
+      expireCurrentAggregationWindow();
+    }
     currentAggregationWindowIndex++;
 
     if (currentAggregationWindowIndex == relevantAggregationWindowIndexForRecordingPolicy && latestRecordingPolicy != null) {
@@ -217,6 +257,7 @@ public class AggregationWindowPlanner {
       mtrWorkFetchMiss.mark();
       logger.error("Skipping work assignments and setup of aggregation window because work profile was not fetched in time for process_group=" + RecorderProtoUtil.processGroupCompactRepr(processGroup));
     }
+    mergePendingHandOffs();
 
     vertx.setTimer((aggregationWindowDurationInSecs - policyRefreshBufferInSecs) * MILLIS_IN_SEC,
         timerId -> {
@@ -238,7 +279,7 @@ public class AggregationWindowPlanner {
     long workIds[] = new long[targetRecordersCount];
     for (int i = 0; i < workIds.length; i++) {
       Recorder.WorkAssignment.Builder workAssignmentBuilder = Recorder.WorkAssignment.newBuilder()
-          .setWorkId(BitOperationUtil.constructLongFromInts(backendId, workIdCounter++))
+          .setWorkId(BitOperationUtil.constructLong(backendId, workIdCounter++))
           .addAllWork(latestRecordingPolicy.getWorkList().stream()
               .map(RecorderProtoUtil::translateWorkFromBackendDTO)
               .collect(Collectors.toList()))
@@ -261,19 +302,32 @@ public class AggregationWindowPlanner {
         windowStart,
         aggregationWindowDurationInSecs,
         workIds,
-        latestRecordingPolicy.getDuration());
+        latestRecordingPolicy.getDuration(),
+        aggregationSpillConfig,
+        processGroup.getShard());
     processGroupContextForScheduling.updateWorkAssignmentSchedule(workAssignmentSchedule);
     activeAggregationWindows.associateAggregationWindow(workIds, currentAggregationWindow);
   }
 
+  /**
+   * Windows of other shards of the process group end at about the same time as this one but not in lockstep, so their hand offs can
+   * arrive after this window ends. Work of the window is de-associated at its end, but the window is retained for hand offs for the grace
+   * period before it is expired and written. Grace period is zero for windows which receive no hand offs, which are written right away
+   */
   private void expireCurrentAggregationWindow() {
     if(currentAggregationWindow != null) {
+      AggregationWindow expiringWindow = currentAggregationWindow;
       try {
-        FinalizedAggregationWindow finalizedAggregationWindow = currentAggregationWindow.expireWindow(activeAggregationWindows);
-        mtrWindowExpireSuccess.mark();
-
-        logger.info("Initiating serialization and write of aggregated profile");
-        aggregationWindowWriter.accept(finalizedAggregationWindow);
+        if(handOffGraceInSecs > 0) {
+          expiringWindow.prepareForHandOff(activeAggregationWindows);
+          activeAggregationWindows.retainForHandOffs(expiringWindow);
+          vertx.setTimer(handOffGraceInSecs * MILLIS_IN_SEC, timerId -> {
+            activeAggregationWindows.releaseRetainedForHandOffs(expiringWindow);
+            expireAndWrite(expiringWindow);
+          });
+        } else {
+          expireAndWrite(expiringWindow);
+        }
       } catch (Exception ex) {
         mtrWindowExpireFailure.mark();
         logger.error("Error while expiring aggregation window for process group={}", ex, processGroup);
@@ -284,6 +338,56 @@ public class AggregationWindowPlanner {
     }
   }
 
+  private void expireAndWrite(AggregationWindow aggregationWindow) {
+    try {
+      FinalizedAggregationWindow finalizedAggregationWindow = aggregationWindow.expireWindow(activeAggregationWindows);
+      mtrWindowExpireSuccess.mark();
+
+      logger.info("Initiating serialization and write of aggregated profile");
+      aggregationWindowWriter.accept(aggregationWindow, finalizedAggregationWindow);
+    } catch (Exception ex) {
+      mtrWindowExpireFailure.mark();
+      logger.error("Error while expiring aggregation window for process group={}", ex, processGroup);
+    }
+  }
+
+  private void handOffCurrentAggregationWindow() {
+    if(currentAggregationWindow != null) {
+      try {
+        currentAggregationWindow.prepareForHandOff(activeAggregationWindows);
+        logger.info("Initiating hand off of aggregation window for process group=" + RecorderProtoUtil.processGroupCompactRepr(processGroup));
+        aggregationWindowHandOff.accept(currentAggregationWindow);
+      } catch (Exception ex) {
+        mtrWindowExpireFailure.mark();
+        logger.error("Error while handing off aggregation window for process group={}", ex, processGroup);
+      } finally {
+        ctrActiveWindows.dec();
+        reset();
+      }
+    }
+  }
+
+  /**
+   * Windows handed off by other backends are merged into the current aggregation window if it has a matching start. Otherwise, they are
+   * expired as is rather than being held till a matching window, which may never be setup. Window of a shard expired as is is stored
+   * apart from the window of the process group, see {@link AggregationWindow#getShard()}
+   */
+  private void mergePendingHandOffs() {
+    for (AggregationWindow handedOffWindow : activeAggregationWindows.removePendingHandOffs(processGroup)) {
+      try {
+        if(currentAggregationWindow != null && currentAggregationWindow.hasMatchingStart(handedOffWindow)) {
+          currentAggregationWindow.mergeHandedOffWindow(handedOffWindow);
+          logger.info("Merged handed off aggregation window: " + handedOffWindow + " for process group=" + RecorderProtoUtil.processGroupCompactRepr(processGroup));
+        } else {
+          aggregationWindowWriter.accept(handedOffWindow, handedOffWindow.expireWindow(activeAggregationWindows));
+        }
+      } catch (Exception ex) {
+        mtrWindowExpireFailure.mark();
+        logger.error("Error while merging handed off aggregation window for process group={}", ex, processGroup);
+      }
+    }
+  }
+
   private void reset() {
     //Release slots if holding any slots currently
     workSlotPool.release(occupiedSlots);
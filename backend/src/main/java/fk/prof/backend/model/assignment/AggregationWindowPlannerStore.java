@@ -2,7 +2,10 @@ package fk.prof.backend.model.assignment;
 
 import com.google.common.base.Preconditions;
 import fk.prof.aggregation.model.FinalizedAggregationWindow;
+import fk.prof.backend.aggregator.AggregationSpillConfig;
+import fk.prof.backend.aggregator.AggregationWindow;
 import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
+import fk.prof.backend.model.association.ProcessGroupSharding;
 import fk.prof.backend.model.slot.WorkSlotPool;
 import fk.prof.backend.proto.BackendDTO;
 import fk.prof.backend.util.proto.RecorderProtoUtil;
@@ -12,6 +15,7 @@ import recording.Recorder;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -23,7 +27,12 @@ public class AggregationWindowPlannerStore {
   private final ActiveAggregationWindows activeAggregationWindows;
   private final WorkSlotPool workSlotPool;
   private final PolicyRequestor policyForBackendRequestor;
-  private final Consumer<FinalizedAggregationWindow> aggregationWindowWriter;
+  private final BiConsumer<AggregationWindow, FinalizedAggregationWindow> aggregationWindowWriter;
+  private final Consumer<AggregationWindow> aggregationWindowHandOff;
+  private final boolean handOffOnDeAssociation;
+  private final int handOffGraceInSecs;
+  private final ProcessGroupSharding processGroupSharding;
+  private final AggregationSpillConfig aggregationSpillConfig;
   private final WorkAssignmentScheduleBootstrapConfig workAssignmentScheduleBootstrapConfig;
   private final int aggregationWindowDurationInSecs;
   private final int policyRefreshBufferInSecs;
@@ -40,11 +49,21 @@ public class AggregationWindowPlannerStore {
                                        WorkSlotPool workSlotPool,
                                        ActiveAggregationWindows activeAggregationWindows,
                                        PolicyRequestor policyForBackendRequestor,
-                                       Consumer<FinalizedAggregationWindow> aggregationWindowWriter) {
+                                       BiConsumer<AggregationWindow, FinalizedAggregationWindow> aggregationWindowWriter,
+                                       Consumer<AggregationWindow> aggregationWindowHandOff,
+                                       boolean handOffOnDeAssociation,
+                                       int handOffGraceInSecs,
+                                       ProcessGroupSharding processGroupSharding,
+                                       AggregationSpillConfig aggregationSpillConfig) {
     this.vertx = Preconditions.checkNotNull(vertx);
     this.backendId = backendId;
     this.policyForBackendRequestor = Preconditions.checkNotNull(policyForBackendRequestor);
     this.aggregationWindowWriter = Preconditions.checkNotNull(aggregationWindowWriter);
+    this.aggregationWindowHandOff = Preconditions.checkNotNull(aggregationWindowHandOff);
+    this.handOffOnDeAssociation = handOffOnDeAssociation;
+    this.handOffGraceInSecs = handOffGraceInSecs;
+    this.processGroupSharding = Preconditions.checkNotNull(processGroupSharding);
+    this.aggregationSpillConfig = aggregationSpillConfig;
     this.activeAggregationWindows = Preconditions.checkNotNull(activeAggregationWindows);
     this.workSlotPool = Preconditions.checkNotNull(workSlotPool);
     this.workAssignmentScheduleBootstrapConfig = new WorkAssignmentScheduleBootstrapConfig(windowDurationInSecs,
@@ -61,7 +80,10 @@ public class AggregationWindowPlannerStore {
    * @return true if aggregation window planner was not associated earlier. false otherwise
    */
   public boolean associateAggregationWindowPlannerIfAbsent(ProcessGroupContextForScheduling processGroupContextForScheduling) {
-    if (!this.lookup.containsKey(processGroupContextForScheduling.getProcessGroup())) {
+    Recorder.ProcessGroup processGroup = processGroupContextForScheduling.getProcessGroup();
+    if (!this.lookup.containsKey(processGroup)) {
+      //Only windows which can be merged into by hand offs, from other shards or from the previous backend, are retained past their end
+      boolean receivesHandOffs = handOffOnDeAssociation || processGroupSharding.getShardCount(processGroup) > 1;
       AggregationWindowPlanner aggregationWindowPlanner = new AggregationWindowPlanner(
           vertx,
           backendId,
@@ -73,8 +95,12 @@ public class AggregationWindowPlannerStore {
           processGroupContextForScheduling,
           activeAggregationWindows,
           policyForBackendRequestor,
-          aggregationWindowWriter);
-      this.lookup.put(processGroupContextForScheduling.getProcessGroup(), aggregationWindowPlanner);
+          aggregationWindowWriter,
+          aggregationWindowHandOff,
+          handOffOnDeAssociation,
+          receivesHandOffs ? handOffGraceInSecs : 0,
+          aggregationSpillConfig);
+      this.lookup.put(processGroup, aggregationWindowPlanner);
       return true;
     }
     return false;
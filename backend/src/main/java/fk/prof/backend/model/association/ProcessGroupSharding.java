@@ -0,0 +1,57 @@
+package fk.prof.backend.model.association;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import fk.prof.backend.Configuration;
+import fk.prof.backend.util.proto.RecorderProtoUtil;
+import recording.Recorder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits recorders of configured process groups into shards, each of which is associated with a backend independently of other shards
+ * of the process group. Shard of a recorder is derived from its identity, so that leader and backends agree on it without coordination.
+ * First shard is represented by the process group itself, its backend merges the partial aggregation windows of rest of the shards.
+ */
+public class ProcessGroupSharding {
+  private static final String DELIMITER = "/";
+  //Identities of recorders of a process group differ in few characters, which String hash codes do not spread across shards
+  private static final HashFunction RECORDER_HASH_FUNCTION = Hashing.murmur3_32();
+
+  private final Map<String, Integer> shardCountLookup;
+
+  public ProcessGroupSharding(Configuration.ShardingConfig shardingConfig) {
+    this.shardCountLookup = new HashMap<>(shardingConfig.getShards());
+  }
+
+  public Recorder.ProcessGroup mapRecorderInfoToProcessGroup(Recorder.RecorderInfo recorderInfo) {
+    Recorder.ProcessGroup processGroup = RecorderProtoUtil.mapRecorderInfoToProcessGroup(recorderInfo);
+    int shardCount = getShardCount(processGroup);
+    if (shardCount <= 1) {
+      return processGroup;
+    }
+    String recorderIdentity = recorderInfo.getIp() + DELIMITER + recorderInfo.getHostname() + DELIMITER + recorderInfo.getInstanceId();
+    int shard = Math.floorMod(RECORDER_HASH_FUNCTION.hashString(recorderIdentity, StandardCharsets.UTF_8).asInt(), shardCount);
+    return shard == 0 ? processGroup : processGroup.toBuilder().setShard(shard).build();
+  }
+
+  public int getShardCount(Recorder.ProcessGroup processGroup) {
+    Integer shardCount = shardCountLookup.get(processGroup.getAppId() + DELIMITER + processGroup.getCluster() + DELIMITER + processGroup.getProcName());
+    return shardCount == null ? 1 : shardCount;
+  }
+
+  /**
+   * @return process group whose backend merges aggregation windows of the given shard
+   */
+  public static Recorder.ProcessGroup getMergingProcessGroup(Recorder.ProcessGroup processGroup) {
+    return processGroup.hasShard() ? processGroup.toBuilder().clearShard().build() : processGroup;
+  }
+
+  public static boolean belongToSameProcessGroup(Recorder.ProcessGroup processGroup, Recorder.ProcessGroup otherProcessGroup) {
+    return processGroup.getAppId().equals(otherProcessGroup.getAppId())
+        && processGroup.getCluster().equals(otherProcessGroup.getCluster())
+        && processGroup.getProcName().equals(otherProcessGroup.getProcName());
+  }
+}
@@ -8,6 +8,7 @@ import fk.prof.backend.ConfigManager;
 import fk.prof.backend.exception.BackendAssociationException;
 import fk.prof.backend.model.association.BackendAssociationStore;
 import fk.prof.backend.model.association.BackendDetail;
+import fk.prof.backend.model.association.ProcessGroupSharding;
 import fk.prof.backend.proto.BackendDTO;
 import fk.prof.backend.util.ZookeeperUtil;
 import fk.prof.backend.util.proto.RecorderProtoUtil;
@@ -182,7 +183,7 @@ public class ZookeeperBasedBackendAssociationStore implements BackendAssociation
               if (existingBackendAssociation == null) {
                 //This is a new process group and no backend has been assigned to this yet
                 ctrExistingInvalid.inc();
-                BackendDetail availableBackend = getAvailableBackendFromPrioritySet();
+                BackendDetail availableBackend = getAvailableBackendFromPrioritySet(processGroup);
                 if (availableBackend == null) {
                   ctrBackendUnavailable.inc();
                   future.fail(new BackendAssociationException("No available backends are known to leader, cannot assign one to process_group=" +
@@ -228,7 +229,7 @@ public class ZookeeperBasedBackendAssociationStore implements BackendAssociation
                    * Defunct backend is not de-associated eagerly because if no available backend is found, it's better to wait for current backend to come back alive
                    */
                   availableBackendsByPriority.remove(existingBackend);
-                  BackendDetail newBackend = getAvailableBackendFromPrioritySet();
+                  BackendDetail newBackend = getAvailableBackendFromPrioritySet(processGroup);
                   if (newBackend == null) {
                     ctrBackendUnavailable.inc();
                     logger.warn(String.format("Presently assigned backend=%s for process_group=%s is defunct but cannot find any available backend so keeping assignment unchanged",
@@ -404,17 +405,36 @@ public class ZookeeperBasedBackendAssociationStore implements BackendAssociation
    * NOTE: As a side-effect return value is removed from the set. This is necessary because returned backend is usually associated with some process group later which should result in change of its priority
    * Adding back this backend will do a fresh insert in the set and ensure it gets positioned according to its new priority.
    * Without a remove and insert, priority for an element is not recalculated in SortedSet
+   *
+   * Backends associated with other shards of the process group are skipped, unless no other backend is available, so that shards of
+   * a process group are aggregated on different backends
    * @return available backend or null if none found
    */
-  private BackendDetail getAvailableBackendFromPrioritySet() {
-    while(availableBackendsByPriority.size() > 0) {
-      BackendDetail availableBackend = availableBackendsByPriority.first();
-      availableBackendsByPriority.remove(availableBackend);
-      if(!availableBackend.isDefunct()) {
+  private BackendDetail getAvailableBackendFromPrioritySet(Recorder.ProcessGroup processGroup) {
+    BackendDetail fallbackBackend = null;
+    for(BackendDetail availableBackend: availableBackendsByPriority) {
+      if(availableBackend.isDefunct()) {
+        availableBackendsByPriority.remove(availableBackend);
+      } else if(!isAssociatedWithOtherShard(availableBackend, processGroup)) {
+        availableBackendsByPriority.remove(availableBackend);
         return availableBackend;
+      } else if(fallbackBackend == null) {
+        fallbackBackend = availableBackend;
+      }
+    }
+    if(fallbackBackend != null) {
+      availableBackendsByPriority.remove(fallbackBackend);
+    }
+    return fallbackBackend;
+  }
+
+  private boolean isAssociatedWithOtherShard(BackendDetail backendDetail, Recorder.ProcessGroup processGroup) {
+    for(Recorder.ProcessGroup associatedProcessGroup: backendDetail.getAssociatedProcessGroups()) {
+      if(!associatedProcessGroup.equals(processGroup) && ProcessGroupSharding.belongToSameProcessGroup(associatedProcessGroup, processGroup)) {
+        return true;
       }
     }
-    return null;
+    return false;
   }
 
   /**
@@ -200,7 +200,7 @@ public class RecordedProfileProcessor implements Handler<Buffer> {
 
   private void processWse(Recorder.Wse wse) throws AggregationFailure {
     indexes.update(wse.getIndexedData());
-    aggregationWindow.updateWorkInfoWithWSE(workId, wse);
+    aggregationWindow.updateWorkInfoWithWSE(workId, wse, indexes);
     aggregationWindow.aggregate(wse, indexes);
   }
 
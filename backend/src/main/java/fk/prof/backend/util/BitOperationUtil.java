@@ -6,4 +6,22 @@ public class BitOperationUtil {
     return (((long)mostSignificantBits) << 32) | (leastSignificantBits & 0xffffffffL);
   }
 
+  /**
+   * @param leastSignificantBits only its least significant 32 bits are used
+   */
+  public static long constructLong(int mostSignificantBits, long leastSignificantBits) {
+    return (((long)mostSignificantBits) << 32) | getLeastSignificantBits(leastSignificantBits);
+  }
+
+  public static int getMostSignificantInt(long value) {
+    return (int) (value >>> 32);
+  }
+
+  /**
+   * @return least significant 32 bits of the value as an unsigned int
+   */
+  public static long getLeastSignificantBits(long value) {
+    return value & 0xffffffffL;
+  }
+
 }
@@ -14,6 +14,10 @@ public class ProtoUtil {
     return AggregatedProfileModel.WorkType.forNumber(recorderWorkType.getNumber());
   }
 
+  public static AggregatedProfileModel.SampleError mapRecorderToAggregatorSampleError(Recorder.StackSample.Error recorderError) {
+    return AggregatedProfileModel.SampleError.forNumber(recorderError.getNumber());
+  }
+
   public static AggregatedProfileModel.RecorderInfo mapToAggregatorRecorderInfo(Recorder.RecorderInfo r) {
     return AggregatedProfileModel.RecorderInfo.newBuilder()
             .setAppId(r.getAppId())
@@ -14,7 +14,11 @@ public class RecorderProtoUtil {
   }
 
   public static String processGroupCompactRepr(Recorder.ProcessGroup processGroup) {
-    return processGroup == null ? null : String.format("%s,%s,%s", processGroup.getAppId(), processGroup.getCluster(), processGroup.getProcName());
+    if(processGroup == null) {
+      return null;
+    }
+    String processGroupRepr = String.format("%s,%s,%s", processGroup.getAppId(), processGroup.getCluster(), processGroup.getProcName());
+    return processGroup.hasShard() ? processGroupRepr + ",shard=" + processGroup.getShard() : processGroupRepr;
   }
 
   public static String assignedBackendCompactRepr(Recorder.AssignedBackend assignedBackend) {
@@ -8,11 +8,16 @@ import fk.prof.aggregation.model.AggregationWindowStorage;
 import fk.prof.aggregation.model.FinalizedAggregationWindow;
 import fk.prof.backend.ConfigManager;
 import fk.prof.backend.Configuration;
+import fk.prof.backend.aggregator.AggregationSpillConfig;
+import fk.prof.backend.aggregator.AggregationWindow;
+import fk.prof.backend.aggregator.AggregationWindowCheckpointStore;
 import fk.prof.backend.http.ApiPathConstants;
 import fk.prof.backend.http.ProfHttpClient;
 import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
+import fk.prof.backend.model.assignment.AggregationWindowPlanner;
 import fk.prof.backend.model.assignment.AggregationWindowPlannerStore;
 import fk.prof.backend.model.assignment.AssociatedProcessGroups;
+import fk.prof.backend.model.association.ProcessGroupSharding;
 import fk.prof.backend.model.election.LeaderReadContext;
 import fk.prof.backend.model.slot.WorkSlotPool;
 import fk.prof.backend.proto.BackendDTO;
@@ -28,7 +33,16 @@ import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import recording.Recorder;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -45,6 +59,10 @@ public class BackendDaemon extends AbstractVerticle {
   private final int backendHttpPort;
 
   private WorkerExecutor serializationWorkerExecutor;
+  private WorkerExecutor checkpointWorkerExecutor;
+  private WorkerExecutor spillWorkerExecutor;
+  private AggregationSpillConfig aggregationSpillConfig;
+  private AggregationWindowCheckpointStore aggregationWindowCheckpointStore;
   private AggregationWindowPlannerStore aggregationWindowPlannerStore;
   private ProfHttpClient httpClient;
   private int loadTickCounter = 0;
@@ -53,6 +71,11 @@ public class BackendDaemon extends AbstractVerticle {
   private final Meter mtrLoadReportSuccess = metricRegistry.meter(MetricName.Daemon_LoadReport_Success.get());
   private final Meter mtrLoadReportFailure = metricRegistry.meter(MetricName.Daemon_LoadReport_Failure.get());
   private final Counter ctrLeaderUnknownReq = metricRegistry.counter(MetricName.Daemon_Unknown_Leader_Request.get());
+  private final Meter mtrCheckpointSuccess = metricRegistry.meter(MetricName.AW_Checkpoint_Success.get());
+  private final Meter mtrCheckpointFailure = metricRegistry.meter(MetricName.AW_Checkpoint_Failure.get());
+  private final Meter mtrCheckpointRecovered = metricRegistry.meter(MetricName.AW_Checkpoint_Recovered.get());
+  private final Meter mtrHandOffSuccess = metricRegistry.meter(MetricName.AW_HandOff_Success.get());
+  private final Meter mtrHandOffFailure = metricRegistry.meter(MetricName.AW_HandOff_Failure.get());
 
   public BackendDaemon(Configuration config,
                        LeaderReadContext leaderReadContext,
@@ -72,12 +95,22 @@ public class BackendDaemon extends AbstractVerticle {
   }
 
   @Override
-  public void start() {
+  public void start() throws Exception {
     httpClient = buildHttpClient();
+    aggregationSpillConfig = buildAggregationSpillConfig();
     aggregationWindowPlannerStore = buildAggregationWindowPlannerStore();
 
     serializationWorkerExecutor = vertx.createSharedWorkerExecutor("aggregation.window.serialization.threadpool",
             config.getSerializationWorkerPoolConfig().getSize(), config.getSerializationWorkerPoolConfig().getTimeoutSecs() * 1000);
+
+    Configuration.CheckpointConfig checkpointConfig = config.getCheckpointConfig();
+    if (checkpointConfig.getEnabled()) {
+      aggregationWindowCheckpointStore = new AggregationWindowCheckpointStore(Paths.get(checkpointConfig.getDir()), aggregationSpillConfig);
+      checkpointWorkerExecutor = vertx.createSharedWorkerExecutor("aggregation.window.checkpoint.threadpool", 1);
+      //Recovery happens before load is reported to leader, so that work ids of recovered windows are reserved before any new work is planned
+      recoverAggregationWindows();
+      vertx.setPeriodic(checkpointConfig.getIntervalSecs() * 1000, timerId -> checkpointAggregationWindows());
+    }
     postLoadToLeader();
   }
 
@@ -99,7 +132,248 @@ public class BackendDaemon extends AbstractVerticle {
         workSlotPool,
         activeAggregationWindows,
         this::getWorkFromLeader,
-        this::serializeAndPersistAggregationWindow);
+        this::serializeAndPersistAggregationWindow,
+        this::handOffAggregationWindow,
+        config.getHandOffConfig().getEnabled(),
+        config.getHandOffConfig().getGraceSecs(),
+        new ProcessGroupSharding(config.getShardingConfig()),
+        aggregationSpillConfig);
+  }
+
+  private AggregationSpillConfig buildAggregationSpillConfig() {
+    Configuration.SpillConfig spillConfig = config.getSpillConfig();
+    if (!spillConfig.getEnabled()) {
+      return null;
+    }
+    //Spills are written off the http event loops which aggregate samples
+    spillWorkerExecutor = vertx.createSharedWorkerExecutor("aggregation.window.spill.threadpool", 1);
+    return new AggregationSpillConfig(Paths.get(spillConfig.getDir()), spillConfig.getNodeThreshold(),
+        task -> spillWorkerExecutor.executeBlocking(future -> {
+          task.run();
+          future.complete();
+        }, false, null));
+  }
+
+  /**
+   * Windows whose end has passed are expired and persisted right away. Rest of the windows are associated with their work ids again,
+   * so that pending work can still report to them, and are expired at their scheduled end. Work slots are not acquired for recovered
+   * windows since their work assignments were already handed out before the restart.
+   */
+  private void recoverAggregationWindows() throws IOException {
+    for (AggregationWindow aggregationWindow : aggregationWindowCheckpointStore.recover()) {
+      mtrCheckpointRecovered.mark();
+      long[] workIds = aggregationWindow.getWorkIds();
+      AggregationWindowPlanner.reserveWorkIds(config.getBackendId(), workIds);
+
+      LocalDateTime windowEnd = aggregationWindow.getStart().plusSeconds(aggregationWindow.getDurationInSecs());
+      long millisToEnd = Duration.between(LocalDateTime.now(Clock.systemUTC()), windowEnd).toMillis();
+      if (millisToEnd <= 0) {
+        expireAndPersistAggregationWindow(aggregationWindow);
+      } else {
+        activeAggregationWindows.associateAggregationWindow(workIds, aggregationWindow);
+        vertx.setTimer(millisToEnd, timerId -> expireAndPersistAggregationWindow(aggregationWindow));
+      }
+      logger.info("Recovered aggregation_window: " + aggregationWindow);
+    }
+  }
+
+  private void expireAndPersistAggregationWindow(AggregationWindow aggregationWindow) {
+    try {
+      serializeAndPersistAggregationWindow(aggregationWindow, aggregationWindow.expireWindow(activeAggregationWindows));
+    } catch (Exception ex) {
+      logger.error("Error while expiring aggregation_window: " + aggregationWindow, ex);
+    }
+  }
+
+  /**
+   * Hands off the window to the backend which leader associates with the process group of the window, instead of persisting it here.
+   * The receiving backend merges it into its own window of the process group. Windows of shards of a process group are handed off the
+   * same way, since the process group itself stands for its first shard. If this backend is itself associated with the process group,
+   * the window is merged here as if it was handed off by another backend. Otherwise checkpoint of the window is staged in a file, which is
+   * streamed to the receiving backend in every attempt, so that the checkpoint is not held in memory. The window is expired and persisted
+   * here as before if the receiving backend cannot be determined or does not accept the window in configured attempts
+   */
+  private void handOffAggregationWindow(AggregationWindow aggregationWindow) {
+    Recorder.ProcessGroup processGroup = Recorder.ProcessGroup.newBuilder().setAppId(aggregationWindow.getAppId())
+        .setCluster(aggregationWindow.getClusterId()).setProcName(aggregationWindow.getProcId()).build();
+
+    getAssociatedBackendFromLeader(processGroup).setHandler(ar -> {
+      if (ar.failed()) {
+        failHandOff(aggregationWindow, ar.cause());
+        return;
+      }
+      Recorder.AssignedBackend assignedBackend = ar.result();
+      if (assignedBackend.getHost().equals(ipAddress) && assignedBackend.getPort() == backendHttpPort) {
+        mergeHandOffLocally(aggregationWindow, processGroup);
+        return;
+      }
+
+      serializationWorkerExecutor.<Path>executeBlocking(future -> {
+        Path payload = null;
+        try {
+          String handOffDir = config.getHandOffConfig().getDir();
+          payload = handOffDir != null ? Files.createTempFile(Paths.get(handOffDir), "handoff-", ".tmp") : Files.createTempFile("handoff-", ".tmp");
+          try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(payload))) {
+            aggregationWindow.checkpoint(out);
+          }
+          future.complete(payload);
+        } catch (Exception ex) {
+          deleteHandOffPayload(payload);
+          future.fail(ex);
+        }
+      }, false, payloadResult -> {
+        if (payloadResult.failed()) {
+          failHandOff(aggregationWindow, payloadResult.cause());
+          return;
+        }
+        postHandOffToBackend(aggregationWindow, processGroup, assignedBackend, payloadResult.result(), 1);
+      });
+    });
+  }
+
+  /**
+   * Merges the window the same way as a window handed off over /handoff. A window which is kept pending is persisted by the planner of the
+   * process group, which deletes its checkpoint then
+   */
+  private void mergeHandOffLocally(AggregationWindow aggregationWindow, Recorder.ProcessGroup processGroup) {
+    serializationWorkerExecutor.<Boolean>executeBlocking(future -> {
+      try {
+        future.complete(activeAggregationWindows.acceptHandedOffAggregationWindow(processGroup, aggregationWindow));
+      } catch (Exception ex) {
+        future.fail(ex);
+      }
+    }, ar -> {
+      if (ar.failed()) {
+        failHandOff(aggregationWindow, ar.cause());
+        return;
+      }
+      mtrHandOffSuccess.mark();
+      logger.info("Handed off aggregation_window: " + aggregationWindow + " to this backend itself, merged=" + ar.result());
+      if (ar.result() && aggregationWindowCheckpointStore != null) {
+        deleteAggregationWindowCheckpoint(aggregationWindow);
+      }
+    });
+  }
+
+  private void postHandOffToBackend(AggregationWindow aggregationWindow, Recorder.ProcessGroup processGroup,
+                                    Recorder.AssignedBackend assignedBackend, Path payload, int attempt) {
+    try {
+      String requestPath = URLUtil.buildPathWithRequestParams(ApiPathConstants.BACKEND_POST_HANDOFF,
+          processGroup.getAppId(), processGroup.getCluster(), processGroup.getProcName());
+      httpClient.requestAsyncWithFile(HttpMethod.POST, assignedBackend.getHost(), assignedBackend.getPort(), requestPath, payload.toString()).setHandler(ar -> {
+        if (ar.succeeded() && ar.result().getStatusCode() == 200) {
+          deleteHandOffPayload(payload);
+          mtrHandOffSuccess.mark();
+          logger.info("Successfully handed off aggregation_window: " + aggregationWindow + " to backend=" + RecorderProtoUtil.assignedBackendCompactRepr(assignedBackend));
+          if (aggregationWindowCheckpointStore != null) {
+            deleteAggregationWindowCheckpoint(aggregationWindow);
+          }
+        } else if (attempt < config.getHandOffConfig().getMaxAttempts()) {
+          //Receiving backend learns of its association with the process group only when it reports load next, so retry after that
+          vertx.setTimer(config.getLoadReportItvlSecs() * 1000,
+              timerId -> postHandOffToBackend(aggregationWindow, processGroup, assignedBackend, payload, attempt + 1));
+        } else {
+          deleteHandOffPayload(payload);
+          failHandOff(aggregationWindow, ar.failed() ? ar.cause()
+              : new IllegalStateException("Non OK status returned by backend=" + RecorderProtoUtil.assignedBackendCompactRepr(assignedBackend)
+                  + ", status=" + ar.result().getStatusCode()));
+        }
+      });
+    } catch (UnsupportedEncodingException ex) {
+      deleteHandOffPayload(payload);
+      failHandOff(aggregationWindow, ex);
+    }
+  }
+
+  private void deleteHandOffPayload(Path payload) {
+    if (payload == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(payload);
+    } catch (IOException ex) {
+      logger.error("Error while deleting staged hand off payload: " + payload, ex);
+    }
+  }
+
+  private void failHandOff(AggregationWindow aggregationWindow, Throwable cause) {
+    mtrHandOffFailure.mark();
+    logger.error("Error while handing off aggregation_window: " + aggregationWindow + ", persisting it instead", cause);
+    expireAndPersistAggregationWindow(aggregationWindow);
+  }
+
+  private Future<Recorder.AssignedBackend> getAssociatedBackendFromLeader(Recorder.ProcessGroup processGroup) {
+    Future<Recorder.AssignedBackend> result = Future.future();
+    BackendDTO.LeaderDetail leaderDetail;
+    if((leaderDetail = leaderReadContext.getLeader()) != null) {
+      try {
+        String requestPath = URLUtil.buildPathWithRequestParams(ApiPathConstants.LEADER_POST_ASSOCIATION_FOR_PROCESS_GROUP,
+            processGroup.getAppId(), processGroup.getCluster(), processGroup.getProcName());
+        httpClient.requestAsyncWithRetry(
+            HttpMethod.POST,
+            leaderDetail.getHost(),
+            leaderDetail.getPort(),
+            requestPath,
+            null).setHandler(ar -> {
+              if (ar.failed()) {
+                result.fail(ar.cause());
+                return;
+              }
+              if (ar.result().getStatusCode() != 200) {
+                result.fail("Non-OK status code when requesting association from leader for process group="
+                    + RecorderProtoUtil.processGroupCompactRepr(processGroup)
+                    + ", status=" + ar.result().getStatusCode());
+                return;
+              }
+              try {
+                result.complete(ProtoUtil.buildProtoFromBuffer(Recorder.AssignedBackend.parser(), ar.result().getResponse()));
+              } catch (Exception ex) {
+                result.fail(ex);
+              }
+            });
+      } catch (UnsupportedEncodingException ex) {
+        result.fail(ex);
+      }
+    } else {
+      ctrLeaderUnknownReq.inc();
+      result.fail("Not requesting association because leader is unknown");
+    }
+    return result;
+  }
+
+  /**
+   * Checkpoints are written and deleted on a single ordered worker, so that checkpoint of a window which is being written when the window
+   * is persisted does not outlive the deletion of checkpoint which follows persistence
+   */
+  private void checkpointAggregationWindows() {
+    checkpointWorkerExecutor.executeBlocking(future -> {
+      for (AggregationWindow aggregationWindow : activeAggregationWindows.getAggregationWindows()) {
+        try {
+          if (aggregationWindowCheckpointStore.checkpoint(aggregationWindow)) {
+            mtrCheckpointSuccess.mark();
+          }
+        } catch (Exception ex) {
+          mtrCheckpointFailure.mark();
+          logger.error("Error while checkpointing aggregation_window: " + aggregationWindow, ex);
+        }
+      }
+      future.complete();
+    }, true, result -> {});
+  }
+
+  private void deleteAggregationWindowCheckpoint(AggregationWindow aggregationWindow) {
+    checkpointWorkerExecutor.executeBlocking(future -> {
+      try {
+        aggregationWindowCheckpointStore.delete(aggregationWindow);
+        future.complete();
+      } catch (Exception ex) {
+        future.fail(ex);
+      }
+    }, true, result -> {
+      if (result.failed()) {
+        logger.error("Error while deleting checkpoint of aggregation_window: " + aggregationWindow, result.cause());
+      }
+    });
   }
 
   private void postLoadToLeader() {
@@ -183,6 +457,9 @@ public class BackendDaemon extends AbstractVerticle {
         Map<String, String> queryParams = new HashMap<>();
         queryParams.put("ip", config.getIpAddress());
         queryParams.put("port", Integer.toString(config.getBackendHttpServerOpts().getPort()));
+        if(processGroup.hasShard()) {
+          queryParams.put("shard", Integer.toString(processGroup.getShard()));
+        }
         requestPath = URLUtil.buildPathWithQueryParams(requestPath, queryParams);
 
         //TODO: Support configuring max retries at request level because this request should definitely be retried on failure while other requests like posting load to backend need not be
@@ -228,7 +505,10 @@ public class BackendDaemon extends AbstractVerticle {
     return result;
   }
 
-  private void serializeAndPersistAggregationWindow(FinalizedAggregationWindow finalizedAggregationWindow) {
+  /**
+   * Checkpoint of the window is deleted by the window rather than its finalized entity, whose proc id carries the shard of the window
+   */
+  private void serializeAndPersistAggregationWindow(AggregationWindow aggregationWindow, FinalizedAggregationWindow finalizedAggregationWindow) {
     serializationWorkerExecutor.executeBlocking(future -> {
       try {
         aggregationWindowStorage.store(finalizedAggregationWindow);
@@ -238,7 +518,10 @@ public class BackendDaemon extends AbstractVerticle {
       }
     }, result -> {
       if(result.succeeded()) {
-        logger.info("Successfully initiated save of profile for aggregation_window: " + finalizedAggregationWindow);
+        logger.info("Successfully saved profile for aggregation_window: " + finalizedAggregationWindow);
+        if (aggregationWindowCheckpointStore != null) {
+          deleteAggregationWindowCheckpoint(aggregationWindow);
+        }
       } else {
         logger.error("Error while saving profile for aggregation_window: " + finalizedAggregationWindow, result.cause());
       }
@@ -0,0 +1,112 @@
+package fk.prof.backend;
+
+import fk.prof.aggregation.model.AggregationWindowSerializer;
+import fk.prof.aggregation.model.FinalizedAggregationWindow;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.aggregation.state.AggregationState;
+import fk.prof.backend.aggregator.AggregationWindow;
+import fk.prof.backend.aggregator.AggregationWindowCheckpointStore;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import recording.Recorder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.List;
+
+public class AggregationWindowCheckpointTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final LocalDateTime awStart = LocalDateTime.of(2017, 3, 1, 10, 0, 0);
+
+  @Before
+  public void setBefore() {
+    ConfigManager.setDefaultSystemProperties();
+  }
+
+  @Test
+  public void testRecoveredWindowShouldBeSameAsCheckpointedWindow() throws Exception {
+    AggregationWindow aw = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1}, 60);
+    aw.startProfile(1, 1, awStart);
+    aggregate(aw, 1);
+    aw.completeProfile(1);
+
+    AggregationWindowCheckpointStore store = new AggregationWindowCheckpointStore(tempFolder.getRoot().toPath(), null);
+    Assert.assertTrue(store.checkpoint(aw));
+    //window has not been modified since checkpoint
+    Assert.assertFalse(store.checkpoint(aw));
+
+    List<AggregationWindow> recovered = store.recover();
+    Assert.assertEquals(1, recovered.size());
+    Assert.assertArrayEquals(new long[]{1}, recovered.get(0).getWorkIds());
+
+    FinalizedAggregationWindow expected = aw.finalizeEntity();
+    FinalizedAggregationWindow actual = recovered.get(0).finalizeEntity();
+    Assert.assertEquals(expected, actual);
+    Assert.assertEquals(expected.getDetailsForWorkId(1), actual.getDetailsForWorkId(1));
+    Assert.assertArrayEquals(serialize(expected), serialize(actual));
+  }
+
+  @Test
+  public void testOngoingProfilesShouldBeAbandonedOnRecoveryAndUnreadableCheckpointsDiscarded() throws Exception {
+    AggregationWindow aw = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1, 2}, 60);
+    aw.startProfile(1, 1, awStart);
+    aggregate(aw, 1);
+
+    AggregationWindowCheckpointStore store = new AggregationWindowCheckpointStore(tempFolder.getRoot().toPath(), null);
+    Assert.assertTrue(store.checkpoint(aw));
+    Files.write(tempFolder.getRoot().toPath().resolve("corrupt.ckpt"), new byte[]{1, 2, 3});
+
+    List<AggregationWindow> recovered = store.recover();
+    Assert.assertEquals(1, recovered.size());
+    Assert.assertEquals(1, tempFolder.getRoot().listFiles().length);
+
+    FinalizedAggregationWindow actual = recovered.get(0).finalizeEntity();
+    Assert.assertEquals(AggregationState.INCOMPLETE, actual.getDetailsForWorkId(1).getState());
+    Assert.assertEquals(AggregationState.SCHEDULED, actual.getDetailsForWorkId(2).getState());
+
+    store.delete(recovered.get(0));
+    Assert.assertEquals(0, tempFolder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testWindowsOfShardsWithSameStartShouldBeCheckpointedAndDeletedApart() throws Exception {
+    AggregationWindow aw = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1}, 60, null, 0);
+    AggregationWindow shardAw = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{2}, 60, null, 2);
+
+    AggregationWindowCheckpointStore store = new AggregationWindowCheckpointStore(tempFolder.getRoot().toPath(), null);
+    Assert.assertTrue(store.checkpoint(aw));
+    Assert.assertTrue(store.checkpoint(shardAw));
+    Assert.assertEquals(2, tempFolder.getRoot().listFiles().length);
+
+    store.delete(shardAw);
+    List<AggregationWindow> recovered = store.recover();
+    Assert.assertEquals(1, recovered.size());
+    Assert.assertEquals(0, recovered.get(0).getShard());
+    Assert.assertArrayEquals(new long[]{1}, recovered.get(0).getWorkIds());
+  }
+
+  private void aggregate(AggregationWindow aw, long workId) {
+    Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+        .build();
+    Recorder.Wse wse = MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse, null);
+    RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+    indexes.update(wse.getIndexedData());
+    aw.updateWorkInfoWithWSE(workId, wse, indexes);
+    aw.aggregate(wse, indexes);
+  }
+
+  private byte[] serialize(FinalizedAggregationWindow aw) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new AggregationWindowSerializer(aw, AggregatedProfileModel.WorkType.cpu_sample_work).serialize(out);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,155 @@
+package fk.prof.backend;
+
+import fk.prof.aggregation.model.AggregationWindowSerializer;
+import fk.prof.aggregation.model.FinalizedAggregationWindow;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.backend.aggregator.AggregationWindow;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.model.aggregation.ActiveAggregationWindows;
+import fk.prof.backend.model.aggregation.impl.ActiveAggregationWindowsImpl;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import recording.Recorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDateTime;
+
+public class AggregationWindowHandOffTest {
+  private final LocalDateTime awStart = LocalDateTime.of(2017, 3, 1, 10, 0, 0);
+  private final Recorder.ProcessGroup processGroup = Recorder.ProcessGroup.newBuilder().setAppId("a").setCluster("c").setProcName("p").build();
+
+  @Before
+  public void setBefore() {
+    ConfigManager.setDefaultSystemProperties();
+  }
+
+  @Test
+  public void testHandedOffWindowShouldBeMergedIntoActiveWindowOfProcessGroup() throws Exception {
+    ActiveAggregationWindows outgoingWindows = new ActiveAggregationWindowsImpl();
+    AggregationWindow outgoing = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1}, 60);
+    outgoingWindows.associateAggregationWindow(new long[]{1}, outgoing);
+    aggregate(outgoing, 1);
+    outgoing.prepareForHandOff(outgoingWindows);
+    Assert.assertNull(outgoingWindows.getAssociatedAggregationWindow(1));
+
+    ActiveAggregationWindows incomingWindows = new ActiveAggregationWindowsImpl();
+    AggregationWindow incoming = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{2}, 60);
+    incomingWindows.associateAggregationWindow(new long[]{2}, incoming);
+    aggregate(incoming, 2);
+
+    Assert.assertTrue(incomingWindows.acceptHandedOffAggregationWindow(processGroup, handOff(outgoing)));
+    Assert.assertTrue(incomingWindows.removePendingHandOffs(processGroup).isEmpty());
+
+    AggregationWindow expected = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1, 2}, 60);
+    aggregate(expected, 1);
+    aggregate(expected, 2);
+
+    FinalizedAggregationWindow expectedFinalized = expected.finalizeEntity();
+    FinalizedAggregationWindow actualFinalized = incoming.finalizeEntity();
+    Assert.assertEquals(expectedFinalized, actualFinalized);
+    Assert.assertEquals(expectedFinalized.getDetailsForWorkId(1), actualFinalized.getDetailsForWorkId(1));
+    Assert.assertArrayEquals(serialize(expectedFinalized), serialize(actualFinalized));
+  }
+
+  @Test
+  public void testHandedOffWindowShouldBeKeptPendingIfProcessGroupHasNoActiveWindow() throws Exception {
+    AggregationWindow outgoing = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1}, 60);
+    outgoing.startProfile(1, 1, awStart);
+    aggregate(outgoing, 1);
+
+    ActiveAggregationWindows incomingWindows = new ActiveAggregationWindowsImpl();
+    AggregationWindow handedOff = handOff(outgoing);
+    Assert.assertFalse(incomingWindows.acceptHandedOffAggregationWindow(processGroup, handedOff));
+    Assert.assertEquals(1, incomingWindows.removePendingHandOffs(processGroup).size());
+    Assert.assertTrue(incomingWindows.removePendingHandOffs(processGroup).isEmpty());
+  }
+
+  @Test
+  public void testHandedOffWindowShouldBeMergedIntoWindowWithMatchingStartRatherThanLatest() throws Exception {
+    AggregationWindow outgoing = new AggregationWindow("a", "c", "p", awStart.plusSeconds(20), 30 * 60, new long[]{1}, 60, null, 1);
+    aggregate(outgoing, 1);
+
+    ActiveAggregationWindows incomingWindows = new ActiveAggregationWindowsImpl();
+    AggregationWindow matching = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{2}, 60);
+    incomingWindows.associateAggregationWindow(new long[]{2}, matching);
+    aggregate(matching, 2);
+    AggregationWindow latest = new AggregationWindow("a", "c", "p", awStart.plusMinutes(30), 30 * 60, new long[]{3}, 60);
+    incomingWindows.associateAggregationWindow(new long[]{3}, latest);
+
+    Assert.assertTrue(incomingWindows.acceptHandedOffAggregationWindow(processGroup, handOff(outgoing)));
+    FinalizedAggregationWindow matchingFinalized = matching.finalizeEntity();
+    Assert.assertNotNull(matchingFinalized.getDetailsForWorkId(1));
+    Assert.assertEquals("p", matchingFinalized.getProcId());
+    Assert.assertNull(latest.finalizeEntity().getDetailsForWorkId(1));
+  }
+
+  @Test
+  public void testHandedOffWindowShouldBeMergedIntoWindowRetainedAfterItEnded() throws Exception {
+    AggregationWindow outgoing = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1}, 60, null, 1);
+    aggregate(outgoing, 1);
+
+    ActiveAggregationWindows incomingWindows = new ActiveAggregationWindowsImpl();
+    AggregationWindow incoming = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{2}, 60);
+    incomingWindows.associateAggregationWindow(new long[]{2}, incoming);
+    aggregate(incoming, 2);
+    incoming.prepareForHandOff(incomingWindows);
+    incomingWindows.retainForHandOffs(incoming);
+    Assert.assertNull(incomingWindows.getAssociatedAggregationWindow(2));
+
+    Assert.assertTrue(incomingWindows.acceptHandedOffAggregationWindow(processGroup, handOff(outgoing)));
+
+    incomingWindows.releaseRetainedForHandOffs(incoming);
+    Assert.assertFalse(incomingWindows.acceptHandedOffAggregationWindow(processGroup, handOff(outgoing)));
+    Assert.assertNotNull(incoming.finalizeEntity().getDetailsForWorkId(1));
+  }
+
+  @Test
+  public void testHandedOffWindowShouldBeKeptPendingIfNoWindowHasMatchingStart() throws Exception {
+    AggregationWindow outgoing = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1}, 60, null, 1);
+    aggregate(outgoing, 1);
+
+    ActiveAggregationWindows incomingWindows = new ActiveAggregationWindowsImpl();
+    AggregationWindow next = new AggregationWindow("a", "c", "p", awStart.plusMinutes(30), 30 * 60, new long[]{2}, 60);
+    incomingWindows.associateAggregationWindow(new long[]{2}, next);
+
+    Assert.assertFalse(incomingWindows.acceptHandedOffAggregationWindow(processGroup, handOff(outgoing)));
+    Assert.assertNull(next.finalizeEntity().getDetailsForWorkId(1));
+    Assert.assertEquals(1, incomingWindows.removePendingHandOffs(processGroup).size());
+  }
+
+  @Test
+  public void testWindowOfShardShouldBeStoredApartFromWindowOfProcessGroup() throws Exception {
+    AggregationWindow outgoing = new AggregationWindow("a", "c", "p", awStart, 30 * 60, new long[]{1}, 60, null, 1);
+    aggregate(outgoing, 1);
+
+    AggregationWindow handedOff = handOff(outgoing);
+    Assert.assertEquals(1, handedOff.getShard());
+    Assert.assertEquals("p~shard-1", handedOff.finalizeEntity().getProcId());
+  }
+
+  private AggregationWindow handOff(AggregationWindow aw) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    aw.checkpoint(out);
+    return AggregationWindow.restore(new ByteArrayInputStream(out.toByteArray()), null);
+  }
+
+  private void aggregate(AggregationWindow aw, long workId) {
+    Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+        .build();
+    Recorder.Wse wse = MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse, null);
+    RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+    indexes.update(wse.getIndexedData());
+    aw.updateWorkInfoWithWSE(workId, wse, indexes);
+    aw.aggregate(wse, indexes);
+  }
+
+  private byte[] serialize(FinalizedAggregationWindow aw) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new AggregationWindowSerializer(aw, AggregatedProfileModel.WorkType.cpu_sample_work).serialize(out);
+    return out.toByteArray();
+  }
+}
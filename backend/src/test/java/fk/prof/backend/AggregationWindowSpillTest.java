@@ -0,0 +1,173 @@
+package fk.prof.backend;
+
+import com.codahale.metrics.Meter;
+import fk.prof.aggregation.model.FinalizedCpuSamplingAggregationBucket;
+import fk.prof.backend.aggregator.AggregationSpillConfig;
+import fk.prof.backend.aggregator.CpuSamplingAggregationBucket;
+import fk.prof.backend.mock.MockProfileObjects;
+import fk.prof.backend.model.profile.RecordedProfileIndexes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import recording.Recorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+public class AggregationWindowSpillTest {
+  private Path spillDir;
+  private Queue<Runnable> spillTasks;
+
+  @Before
+  public void setBefore() throws IOException {
+    spillDir = Files.createTempDirectory("spill-test");
+    spillTasks = new ArrayDeque<>();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.list(spillDir)) {
+      files.forEach(file -> file.toFile().delete());
+    }
+    Files.deleteIfExists(spillDir);
+  }
+
+  @Test
+  public void testSpillShouldHappenOnSpillExecutorAndBeMergedBackOnFinalization() throws Exception {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket(new AggregationSpillConfig(spillDir, 5, spillTasks::add));
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+    AtomicLong spilledNodes = new AtomicLong();
+
+    aggregate(bucket);
+    aggregate(expected);
+    Assert.assertTrue(bucket.spillIfRequired((nodes, ex) -> spilledNodes.addAndGet(nodes)));
+    //Spill is only scheduled, nothing is written by the aggregating thread
+    Assert.assertFalse(bucket.spillIfRequired((nodes, ex) -> spilledNodes.addAndGet(nodes)));
+    Assert.assertEquals(1, spillTasks.size());
+    Assert.assertEquals(0, spillDirFileCount());
+
+    //Samples aggregated before the spill runs are spilled with the rest of the tree
+    aggregate(bucket);
+    aggregate(expected);
+    spillTasks.poll().run();
+    Assert.assertTrue(spilledNodes.get() > 0);
+    Assert.assertEquals(1, spillDirFileCount());
+
+    //Samples aggregated after the spill go to a new tree, which is merged with the spilled one
+    aggregate(bucket);
+    aggregate(expected);
+    Assert.assertEquals(expected.finalizeEntity(), bucket.finalizeEntity());
+    Assert.assertEquals(0, spillDirFileCount());
+  }
+
+  @Test
+  public void testSpillScheduledBeforeFinalizationShouldNotMoveTreesOutOfFinalizedBucket() throws Exception {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket(new AggregationSpillConfig(spillDir, 5, spillTasks::add));
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+
+    aggregate(bucket);
+    aggregate(expected);
+    Assert.assertTrue(bucket.spillIfRequired((nodes, ex) -> Assert.assertEquals(0L, nodes.longValue())));
+    Assert.assertEquals(expected.finalizeEntity(), bucket.finalizeEntity());
+
+    spillTasks.poll().run();
+    Assert.assertEquals(0, spillDirFileCount());
+  }
+
+  @Test(timeout = 10000)
+  public void testCheckpointShouldHaveSpilledTreesOnceAndNotBlockWritersWhileBeingWritten() throws Exception {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket(new AggregationSpillConfig(spillDir, 5, spillTasks::add));
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+
+    aggregate(bucket);
+    aggregate(expected);
+    Assert.assertTrue(bucket.spillIfRequired((nodes, ex) -> {}));
+    spillTasks.poll().run();
+    aggregate(bucket);
+    aggregate(expected);
+
+    //Merge takes the write lock of the bucket, it should not wait for the checkpoint being written
+    AtomicBoolean mergedWhileWriting = new AtomicBoolean(false);
+    ByteArrayOutputStream checkpoint = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        if (!mergedWhileWriting.get()) {
+          mergedWhileWriting.set(true);
+          CompletableFuture.runAsync(() -> {
+            try {
+              bucket.merge(new CpuSamplingAggregationBucket());
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }).join();
+        }
+        super.write(b, off, len);
+      }
+    };
+    bucket.checkpoint(checkpoint);
+    Assert.assertTrue(mergedWhileWriting.get());
+
+    CpuSamplingAggregationBucket restored = CpuSamplingAggregationBucket.restore(new ByteArrayInputStream(checkpoint.toByteArray()), null);
+    Assert.assertEquals(expected.finalizeEntity(), restored.finalizeEntity());
+  }
+
+  @Test(timeout = 10000)
+  public void testCheckpointShouldFailIfSpillFileIsMergedBackWhileBeingWritten() throws Exception {
+    CpuSamplingAggregationBucket bucket = new CpuSamplingAggregationBucket(new AggregationSpillConfig(spillDir, 5, spillTasks::add));
+    CpuSamplingAggregationBucket expected = new CpuSamplingAggregationBucket();
+
+    aggregate(bucket);
+    aggregate(expected);
+    Assert.assertTrue(bucket.spillIfRequired((nodes, ex) -> {}));
+    spillTasks.poll().run();
+    aggregate(bucket);
+    aggregate(expected);
+
+    //Finalization merges back and deletes the spill file, which is yet to be copied to the checkpoint being written
+    AtomicReference<FinalizedCpuSamplingAggregationBucket> finalizedWhileWriting = new AtomicReference<>();
+    ByteArrayOutputStream checkpoint = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        if (finalizedWhileWriting.get() == null) {
+          finalizedWhileWriting.set(CompletableFuture.supplyAsync(bucket::finalizeEntity).join());
+        }
+        super.write(b, off, len);
+      }
+    };
+    try {
+      bucket.checkpoint(checkpoint);
+      Assert.fail("Checkpoint should fail since spilled trees were merged back into the written trees");
+    } catch (IOException ex) {
+      //Spill file is deleted only once it has been copied
+      Assert.assertEquals(0, spillDirFileCount());
+    }
+    Assert.assertEquals(expected.finalizeEntity(), finalizedWhileWriting.get());
+  }
+
+  private void aggregate(CpuSamplingAggregationBucket bucket) {
+    Recorder.StackSampleWse stackSampleWse = Recorder.StackSampleWse.newBuilder()
+        .addAllStackSample(MockProfileObjects.getPredefinedStackSamples(1))
+        .build();
+    Recorder.Wse wse = MockProfileObjects.getMockCpuWseWithStackSample(stackSampleWse, null);
+    RecordedProfileIndexes indexes = new RecordedProfileIndexes();
+    indexes.update(wse.getIndexedData());
+    bucket.aggregate(wse.getCpuSampleEntry(), indexes, new Meter());
+  }
+
+  private long spillDirFileCount() throws IOException {
+    try (Stream<Path> files = Files.list(spillDir)) {
+      return files.count();
+    }
+  }
+}
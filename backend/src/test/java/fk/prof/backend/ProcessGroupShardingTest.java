@@ -0,0 +1,89 @@
+package fk.prof.backend;
+
+import fk.prof.backend.model.association.ProcessGroupSharding;
+import org.junit.Assert;
+import org.junit.Test;
+import recording.Recorder;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import static fk.prof.backend.PollAndLoadApiTest.enableCpuSampling;
+
+public class ProcessGroupShardingTest {
+  private final Recorder.ProcessGroup processGroup = Recorder.ProcessGroup.newBuilder().setAppId("a").setCluster("c").setProcName("p").build();
+
+  @Test
+  public void testProcessGroupWhichIsNotConfiguredShouldNotBeSharded() {
+    ProcessGroupSharding sharding = new ProcessGroupSharding(new Configuration.ShardingConfig());
+    Assert.assertEquals(1, sharding.getShardCount(processGroup));
+    for (int i = 0; i < 20; i++) {
+      Assert.assertEquals(processGroup, sharding.mapRecorderInfoToProcessGroup(buildRecorderInfo(String.valueOf(i))));
+    }
+  }
+
+  @Test
+  public void testRecordersShouldBeSpreadAcrossConfiguredShards() {
+    ProcessGroupSharding sharding = new ProcessGroupSharding(buildShardingConfig(4));
+    Assert.assertEquals(4, sharding.getShardCount(processGroup));
+
+    Set<Integer> shards = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      Recorder.ProcessGroup shardedProcessGroup = sharding.mapRecorderInfoToProcessGroup(buildRecorderInfo(String.valueOf(i)));
+      Assert.assertTrue(ProcessGroupSharding.belongToSameProcessGroup(processGroup, shardedProcessGroup));
+      int shard = shardedProcessGroup.getShard();
+      Assert.assertTrue(shard >= 0 && shard < 4);
+      //First shard is represented by the process group itself
+      Assert.assertEquals(shard != 0, shardedProcessGroup.hasShard());
+      shards.add(shard);
+    }
+    Assert.assertEquals(4, shards.size());
+  }
+
+  @Test
+  public void testShardOfRecorderShouldBeSameAcrossLeaderAndBackends() {
+    ProcessGroupSharding sharding = new ProcessGroupSharding(buildShardingConfig(4));
+    ProcessGroupSharding otherSharding = new ProcessGroupSharding(buildShardingConfig(4));
+    for (int i = 0; i < 20; i++) {
+      Recorder.RecorderInfo recorderInfo = buildRecorderInfo(String.valueOf(i));
+      Assert.assertEquals(sharding.mapRecorderInfoToProcessGroup(recorderInfo), otherSharding.mapRecorderInfoToProcessGroup(recorderInfo));
+    }
+  }
+
+  @Test
+  public void testWindowsOfShardShouldBeMergedByProcessGroup() {
+    ProcessGroupSharding sharding = new ProcessGroupSharding(buildShardingConfig(4));
+    for (int i = 0; i < 20; i++) {
+      Recorder.ProcessGroup shardedProcessGroup = sharding.mapRecorderInfoToProcessGroup(buildRecorderInfo(String.valueOf(i)));
+      Assert.assertEquals(processGroup, ProcessGroupSharding.getMergingProcessGroup(shardedProcessGroup));
+    }
+  }
+
+  private Configuration.ShardingConfig buildShardingConfig(int shards) {
+    Configuration.ShardingConfig shardingConfig = new Configuration.ShardingConfig();
+    shardingConfig.getShards().put("a/c/p", shards);
+    return shardingConfig;
+  }
+
+  private Recorder.RecorderInfo buildRecorderInfo(String recorderId) {
+    return Recorder.RecorderInfo.newBuilder()
+        .setAppId("a")
+        .setCluster("c")
+        .setHostname("h")
+        .setInstanceGrp("1")
+        .setInstanceId(recorderId)
+        .setInstanceType("1")
+        .setLocalTime(LocalDateTime.now(Clock.systemUTC()).toString())
+        .setProcName("p")
+        .setRecorderTick(0)
+        .setRecorderUptime(100)
+        .setRecorderVersion(1)
+        .setVmId("1")
+        .setZone("1")
+        .setCapabilities(enableCpuSampling())
+        .setIp(recorderId)
+        .build();
+  }
+}
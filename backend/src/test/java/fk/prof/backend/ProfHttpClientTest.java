@@ -0,0 +1,69 @@
+package fk.prof.backend;
+
+import fk.prof.backend.http.ProfHttpClient;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+@RunWith(VertxUnitRunner.class)
+public class ProfHttpClientTest {
+  private Vertx vertx;
+  private HttpServer server;
+  private Path file;
+
+  @Before
+  public void setBefore(TestContext context) throws IOException {
+    vertx = Vertx.vertx();
+    file = Files.createTempFile("http-client-test", ".tmp");
+    //Echoes the body of the request back
+    server = vertx.createHttpServer().requestHandler(request -> request.bodyHandler(body -> request.response().end(body)));
+    server.listen(0, context.asyncAssertSuccess());
+  }
+
+  @After
+  public void tearDown(TestContext context) throws IOException {
+    Files.deleteIfExists(file);
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test(timeout = 10000)
+  public void testContentOfFileShouldBeStreamedAsBodyOfRequest(TestContext context) throws IOException {
+    byte[] content = new byte[3 * 1024 * 1024 + 7];
+    new Random(1).nextBytes(content);
+    Files.write(file, content);
+
+    ProfHttpClient client = ProfHttpClient.newBuilder().useCompression(false).build(vertx);
+    Async async = context.async();
+    client.requestAsyncWithFile(HttpMethod.POST, "localhost", server.actualPort(), "/echo", file.toString()).setHandler(ar -> {
+      context.assertTrue(ar.succeeded());
+      context.assertEquals(200, ar.result().getStatusCode());
+      context.assertEquals(Buffer.buffer(content), ar.result().getResponse());
+      async.complete();
+    });
+  }
+
+  @Test(timeout = 10000)
+  public void testRequestShouldFailIfFileIsAbsent(TestContext context) throws IOException {
+    Files.delete(file);
+
+    ProfHttpClient client = ProfHttpClient.newBuilder().build(vertx);
+    Async async = context.async();
+    client.requestAsyncWithFile(HttpMethod.POST, "localhost", server.actualPort(), "/echo", file.toString()).setHandler(ar -> {
+      context.assertTrue(ar.failed());
+      async.complete();
+    });
+  }
+}
@@ -520,8 +520,13 @@ public class ProfileApiTest {
   private FinalizedProfileWorkInfo getExpectedWorkInfo(LocalDateTime startedAt, LocalDateTime endedAt, Map<AggregatedProfileModel.WorkType, Integer> samplesMap) {
     Map<String, Integer> expectedTraceCoverages = new HashMap<>();
     expectedTraceCoverages.put("1", 5);
+    // all mock samples are snipped and have no error
+    int snippedCount = samplesMap.getOrDefault(AggregatedProfileModel.WorkType.cpu_sample_work, 0);
+    Map<String, FinalizedSampleErrorCounts> expectedTraceSampleErrors = new HashMap<>();
+    expectedTraceSampleErrors.put("1", new FinalizedSampleErrorCounts(snippedCount, new HashMap<>()));
     FinalizedProfileWorkInfo expectedProfileWorkInfo = new FinalizedProfileWorkInfo(1, null, AggregationState.COMPLETED,
-        startedAt, endedAt, 60, expectedTraceCoverages, samplesMap);
+        startedAt, endedAt, 60, expectedTraceCoverages, samplesMap,
+        new FinalizedSampleErrorCounts(snippedCount, new HashMap<>()), expectedTraceSampleErrors);
     return expectedProfileWorkInfo;
   }
 
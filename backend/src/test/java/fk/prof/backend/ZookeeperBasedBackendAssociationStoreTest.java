@@ -346,5 +346,39 @@ public class ZookeeperBasedBackendAssociationStoreTest {
     });
   }
 
-
+  @Test(timeout = 10000)
+  public void testAssociationOfShardsOfProcessGroupWithDifferentBackends(TestContext context) {
+    final Async async = context.async();
+    Recorder.ProcessGroup shard1 = mockProcessGroups.get(0).toBuilder().setShard(1).build();
+    Recorder.ProcessGroup shard2 = mockProcessGroups.get(0).toBuilder().setShard(2).build();
+    Future<Recorder.ProcessGroups> f1 = backendAssociationStore.reportBackendLoad(
+        BackendDTO.LoadReportRequest.newBuilder().setIp("1").setPort(1).setLoad(0.1f).setCurrTick(1).build());
+    Future<Recorder.ProcessGroups> f2 = backendAssociationStore.reportBackendLoad(
+        BackendDTO.LoadReportRequest.newBuilder().setIp("2").setPort(1).setLoad(0.2f).setCurrTick(1).build());
+    CompositeFuture.all(Arrays.asList(f1, f2)).compose(ar -> backendAssociationStore.associateAndGetBackend(mockProcessGroups.get(0)))
+        .compose(backend -> {
+          context.assertEquals("1", backend.getHost());
+          return backendAssociationStore.associateAndGetBackend(mockProcessGroups.get(1));
+        })
+        .compose(backend -> {
+          context.assertEquals("2", backend.getHost());
+          //Both backends have same count of process groups, shard is still not associated with backend of the process group
+          return backendAssociationStore.associateAndGetBackend(shard1);
+        })
+        .compose(backend -> {
+          context.assertEquals("2", backend.getHost());
+          //All backends are associated with some shard of the process group, so backend with least process groups is chosen
+          return backendAssociationStore.associateAndGetBackend(shard2);
+        })
+        .setHandler(ar -> {
+          if(ar.failed()) {
+            context.fail(ar.cause());
+          } else {
+            context.assertEquals("1", ar.result().getHost());
+            context.assertEquals("2", backendAssociationStore.getAssociatedBackend(shard1).getHost());
+            context.assertEquals("1", backendAssociationStore.getAssociatedBackend(mockProcessGroups.get(0)).getHost());
+            async.complete();
+          }
+        });
+  }
 }
@@ -5,6 +5,8 @@ import java.util.Set;
 
 public enum MetricName {
   S3_Threadpool_Rejection("s3.threadpool.rejection"),
+  Storage_Ops("storage"),
+  Storage_Remote_Ops("storage.remote"),
 
   AW_State_Transition_Failure("aw.state.transition.failure"),
   AW_CpuSampling_Aggregation_Failure("aw.cpusampling.agg.failure"),
@@ -19,12 +21,21 @@ public enum MetricName {
   AW_Skip_ZeroCoverage("aw.skip.zero.coverage"),
   AW_Expire_Success("aw.expire.success"),
   AW_Expire_Failure("aw.expire.failure"),
+  AW_Spill_Nodes("aw.spill.nodes"),
+  AW_Spill_Failure("aw.spill.failure"),
+  AW_Checkpoint_Success("aw.checkpoint.success"),
+  AW_Checkpoint_Failure("aw.checkpoint.failure"),
+  AW_Checkpoint_Recovered("aw.checkpoint.recovered"),
+  AW_HandOff_Success("aw.handoff.success"),
+  AW_HandOff_Failure("aw.handoff.failure"),
   AW_Store_Profile_Complete("aw.store.profile.complete"),
   AW_Store_Summary_Complete("aw.store.summary.complete"),
   AW_Store_Bytes("aw.store.bytes"),
   AW_Store_Failure("aw.store.failure"),
   AW_BuffPool_Borrow("aw.buffpool.borrow"),
   AW_Buffpool_Failure("aw.buffpool.failure"),
+  AW_BuffPool_Active_Bytes("aw.buffpool.active.bytes"),
+  AW_BuffPool_Idle_Bytes("aw.buffpool.idle.bytes"),
 
   Backend_Unknown_Leader_Request("backend.unknown.leader.request"),
   Backend_Self_Leader_Request("backend.self.leader.request"),
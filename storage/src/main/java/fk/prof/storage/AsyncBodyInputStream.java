@@ -0,0 +1,151 @@
+package fk.prof.storage;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * InputStream over the body of a http response, which is received asynchronously. Received chunks are queued till read, and the
+ * response is paused while the queued bytes are more than the high watermark, so that a slow reader holds a bounded amount of the body
+ * in memory. Reads block till a chunk is received, so the stream is not to be read on the event loop which receives the body.
+ * Closing the stream before the end of the body discards the rest of it.
+ */
+class AsyncBodyInputStream extends InputStream {
+
+    private final ReadStream<Buffer> body;
+    private final String path;
+    private final int highWatermark;
+    private final int lowWatermark;
+
+    private final Queue<byte[]> chunks = new ArrayDeque<>();
+    private byte[] chunk = null;
+    private int chunkPos = 0;
+    private int queuedBytes = 0;
+    private boolean paused = false;
+    private boolean ended = false;
+    private boolean closed = false;
+    private Throwable error = null;
+
+    /**
+     * @param body body of the response, which is expected to be paused if the chunks received till now are not to be lost
+     * @param path path of the object, for errors
+     * @param highWatermark queued bytes beyond which the body is paused, till the reader drains it to half
+     */
+    AsyncBodyInputStream(ReadStream<Buffer> body, String path, int highWatermark) {
+        this.body = body;
+        this.path = path;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = highWatermark / 2;
+
+        body.handler(this::onChunk);
+        body.endHandler(v -> onEnd(null));
+        body.exceptionHandler(this::onEnd);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - chunkPos);
+        System.arraycopy(chunk, chunkPos, b, off, n);
+        chunkPos += n;
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return (chunk == null ? 0 : chunk.length - chunkPos) + queuedBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunks.clear();
+        chunk = null;
+        queuedBytes = 0;
+        notifyAll();
+        // rest of the body is discarded as it is received, so that the connection can be reused
+        if (paused && !ended) {
+            paused = false;
+            body.resume();
+        }
+    }
+
+    /**
+     * @return false if the body has ended and all of it has been read
+     */
+    // pause and resume are done holding the lock, so that they are not reordered between the reader and the event loop
+    private synchronized boolean nextChunk() throws IOException {
+        try {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Stream is closed for path: " + path);
+                }
+                if (chunk != null && chunkPos < chunk.length) {
+                    return true;
+                }
+                byte[] next = chunks.poll();
+                if (next != null) {
+                    chunk = next;
+                    chunkPos = 0;
+                    queuedBytes -= next.length;
+                    if (paused && queuedBytes <= lowWatermark) {
+                        paused = false;
+                        body.resume();
+                    }
+                    continue;
+                }
+                if (error != null) {
+                    throw new IOException("Failed to receive content of path: " + path, error);
+                }
+                if (ended) {
+                    return false;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for content of path: " + path);
+        }
+    }
+
+    private synchronized void onChunk(Buffer received) {
+        if (closed) {
+            return;
+        }
+        chunks.add(received.getBytes());
+        queuedBytes += received.length();
+        if (!paused && queuedBytes > highWatermark) {
+            paused = true;
+            body.pause();
+        }
+        notifyAll();
+    }
+
+    private synchronized void onEnd(Throwable th) {
+        if (!ended) {
+            ended = true;
+            error = th;
+            notifyAll();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package fk.prof.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
@@ -26,6 +28,53 @@ public interface AsyncStorage {
      */
     CompletableFuture<InputStream> fetchAsync(String path);
 
+    /**
+     * Retrieves a byte range of the content from the specified path. Default implementation fetches the complete content and
+     * buffers the range, implementations backed by a store supporting ranged reads should override it.
+     * @param path path from where content is to fetched
+     * @param offset offset of the first byte of the range
+     * @param length length of the range
+     * @return Future object for the content of the range.
+     */
+    default CompletableFuture<InputStream> fetchAsync(String path, long offset, int length) {
+        return fetchAsync(path).thenApply(in -> {
+            try (InputStream content = in) {
+                long skipped = 0;
+                while (skipped < offset) {
+                    long n = content.skip(offset - skipped);
+                    if (n <= 0) {
+                        if (content.read() == -1) {
+                            throw new StorageException("Range starting at " + offset + " is beyond the content of path: " + path);
+                        }
+                        n = 1;
+                    }
+                    skipped += n;
+                }
+                byte[] range = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    int n = content.read(range, read, length - read);
+                    if (n == -1) {
+                        throw new StorageException("Range ending at " + (offset + length) + " is beyond the content of path: " + path);
+                    }
+                    read += n;
+                }
+                return new ByteArrayInputStream(range);
+            } catch (IOException e) {
+                throw new StorageException("Unexpected error while reading range of path: " + path, e);
+            }
+        });
+    }
+
+    /**
+     * Starts upload of an object in parts. Default implementation buffers the parts in memory and stores the object once the upload is
+     * completed, implementations backed by a store supporting multipart uploads should override it.
+     * @param path path where the content is to stored
+     * @return Future object for the upload, to which the parts are to be uploaded.
+     */
+    default CompletableFuture<MultipartUpload> initMultipartUploadAsync(String path) {
+        return CompletableFuture.completedFuture(new BufferedMultipartUpload(this, path));
+    }
 
     /**
      * Lists all objects from the specified prefix of the path with options to list recursively
@@ -35,4 +84,16 @@ public interface AsyncStorage {
      * @return Future object for the set containing the object names
      */
     CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive);
+
+    /**
+     * Deletes the object at the specified path. Deleting a non existent object succeeds, like it does in S3. Default implementation
+     * fails, implementations backed by a store supporting deletes should override it.
+     * @param path path of the object to be deleted
+     * @return Future to indicate completion
+     */
+    default CompletableFuture<Void> deleteAsync(String path) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        result.completeExceptionally(new StorageException("Delete is not supported by " + getClass().getSimpleName() + ", path: " + path));
+        return result;
+    }
 }
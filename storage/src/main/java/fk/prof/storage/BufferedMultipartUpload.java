@@ -0,0 +1,70 @@
+package fk.prof.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * MultipartUpload for storages without native support for it. Parts are buffered in memory and the object is stored with a single
+ * {@link AsyncStorage#storeAsync(String, InputStream, long)} once the upload is completed.
+ */
+class BufferedMultipartUpload implements MultipartUpload {
+
+    private final AsyncStorage storage;
+    private final String path;
+    private final Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+
+    BufferedMultipartUpload(AsyncStorage storage, String path) {
+        this.storage = storage;
+        this.path = path;
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadPartAsync(int partNumber, InputStream content, long length) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try (InputStream in = content) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            if (out.size() != length) {
+                throw new StorageException("Expected " + length + " bytes for part " + partNumber + " of path: " + path + ", but content had " + out.size());
+            }
+            parts.put(partNumber, out.toByteArray());
+            result.complete(null);
+        } catch (IOException e) {
+            result.completeExceptionally(new StorageException("Unexpected error while reading part " + partNumber + " of path: " + path, e));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> completeAsync() {
+        List<InputStream> contents = new ArrayList<>(parts.size());
+        long length = 0;
+        for (byte[] part : parts.values()) {
+            contents.add(new ByteArrayInputStream(part));
+            length += part.length;
+        }
+        return storage.storeAsync(path, new SequenceInputStream(Collections.enumeration(contents)), length)
+            .whenComplete((v, error) -> parts.clear());
+    }
+
+    @Override
+    public CompletableFuture<Void> abortAsync() {
+        parts.clear();
+        return CompletableFuture.completedFuture(null);
+    }
+}
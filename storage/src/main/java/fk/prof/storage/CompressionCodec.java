@@ -0,0 +1,93 @@
+package fk.prof.storage;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression codecs for stored files. Every codec writes a frame format which starts with its own magic bytes, so the codec of a
+ * stored file is detected while reading it and files written with different codecs can be read alike.
+ * @see StreamTransformer#decompress(InputStream)
+ */
+public enum CompressionCodec {
+    GZIP(new byte[] {0x1f, (byte) 0x8b}) {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, StreamTransformer.DEFAULT_GZIP_BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, StreamTransformer.DEFAULT_GZIP_BUFFER_SIZE);
+        }
+    },
+
+    LZ4(new byte[] {0x04, 0x22, 0x4d, 0x18}) {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new LZ4FrameOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new LZ4FrameInputStream(in);
+        }
+    },
+
+    ZSTD(new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd}) {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new ZstdOutputStream(out, ZSTD_COMPRESSION_LEVEL);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new ZstdInputStream(in);
+        }
+    };
+
+    public static final int MAX_MAGIC_BYTES_LENGTH = 4;
+    private static final int ZSTD_COMPRESSION_LEVEL = 3;
+
+    private final byte[] magicBytes;
+
+    CompressionCodec(byte[] magicBytes) {
+        this.magicBytes = magicBytes;
+    }
+
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * @return codec whose magic bytes prefix the given bytes, {@link #GZIP} if none does, because files written before codecs were
+     * pluggable are gzipped
+     */
+    public static CompressionCodec fromMagicBytes(byte[] bytes, int length) {
+        for(CompressionCodec codec: values()) {
+            if(codec.matches(bytes, length)) {
+                return codec;
+            }
+        }
+        return GZIP;
+    }
+
+    private boolean matches(byte[] bytes, int length) {
+        if(length < magicBytes.length) {
+            return false;
+        }
+        for(int i = 0; i < magicBytes.length; i++) {
+            if(bytes[i] != magicBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,338 @@
+package fk.prof.storage;
+
+import fk.prof.storage.buffer.ByteBufferInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+/**
+ * AsyncStorage impl backed by a directory of the local filesystem. Path of an object is resolved against the root directory, so
+ * "{bucket}/{fileName}" is stored as the file "{root}/{bucket}/{fileName}".
+ * Content is written with an {@link AsynchronousFileChannel} to a temporary file, which is synced as per the {@link FsyncPolicy} and then
+ * atomically moved to its path, so that a partially written object is never visible. Content is read by memory mapping the file.
+ * Listing follows the semantics of listing S3 objects by prefix: prefix need not end at a directory and a non recursive listing returns
+ * the immediate sub directories, ending with "/", instead of the objects in them.
+ */
+public class FileSystemAsyncStorage implements AsyncStorage {
+    private static final String DELIMITER = "/";
+    private static final String TEMP_DIR = ".tmp";
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+    private static Logger LOGGER = LoggerFactory.getLogger(FileSystemAsyncStorage.class);
+
+    private final Path rootDir;
+    private final Path tempDir;
+    private final ExecutorService executorService;
+    private final FsyncPolicy fsyncPolicy;
+
+    public enum FsyncPolicy {
+        /**
+         * Content is left to be flushed by the OS. Objects written shortly before a crash of the host can be lost.
+         */
+        NONE,
+        /**
+         * Content of the file is synced before it is moved to its path.
+         */
+        FILE,
+        /**
+         * Content of the file is synced before it is moved to its path, and its directory is synced after, so that the object survives a
+         * crash of the host once the store completes.
+         */
+        FILE_AND_DIRECTORY
+    }
+
+    public FileSystemAsyncStorage(Path rootDir, ExecutorService executorService, FsyncPolicy fsyncPolicy) throws IOException {
+        this.rootDir = rootDir.toAbsolutePath().normalize();
+        this.tempDir = this.rootDir.resolve(TEMP_DIR);
+        this.executorService = executorService;
+        this.fsyncPolicy = fsyncPolicy;
+
+        Files.createDirectories(tempDir);
+        // files left behind by writes interrupted by an earlier shutdown
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tempDir)) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Path target;
+        Path temp = tempDir.resolve(UUID.randomUUID().toString());
+        AsynchronousFileChannel channel;
+        try {
+            target = resolve(path);
+            channel = AsynchronousFileChannel.open(temp, EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW), executorService);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(content, path);
+            result.completeExceptionally(e instanceof StorageException ? e : new StorageException("Unexpected error while opening file for path: " + path, e));
+            return result;
+        }
+
+        new ChunkWriter(path, content, channel, temp).writeNext(0).whenComplete((written, error) -> {
+            closeQuietly(content, path);
+            try {
+                if (error != null) {
+                    throw error;
+                }
+                if (written != length) {
+                    throw new StorageException("Expected " + length + " bytes for path: " + path + ", but content had " + written);
+                }
+                if (fsyncPolicy != FsyncPolicy.NONE) {
+                    channel.force(true);
+                }
+                channel.close();
+                publish(temp, target);
+                result.complete(null);
+            } catch (Throwable e) {
+                closeQuietly(channel, path);
+                deleteQuietly(temp);
+                result.completeExceptionally(e instanceof StorageException ? e : new StorageException("Unexpected error while writing file for path: " + path, e));
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path) {
+        return CompletableFuture.supplyAsync(() -> {
+            Path file = resolve(path);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return map(channel, 0, channel.size(), path);
+            } catch (NoSuchFileException e) {
+                throw new ObjectNotFoundException("No file for path: " + path, e);
+            } catch (IOException e) {
+                LOGGER.error("Read failed: {}", path, e);
+                throw new StorageException("Unexpected error while reading file for path: " + path, e);
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path, long offset, int length) {
+        return CompletableFuture.supplyAsync(() -> {
+            Path file = resolve(path);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (offset < 0 || offset + length > channel.size()) {
+                    throw new StorageException("Range " + offset + "+" + length + " is beyond the content of path: " + path);
+                }
+                return map(channel, offset, length, path);
+            } catch (NoSuchFileException e) {
+                throw new ObjectNotFoundException("No file for path: " + path, e);
+            } catch (IOException e) {
+                LOGGER.error("Read failed: {}, range: {}+{}", path, offset, length, e);
+                throw new StorageException("Unexpected error while reading file for path: " + path, e);
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
+        return CompletableFuture.supplyAsync(() -> {
+            // prefix is split into the directory to list and prefix of the names in it
+            int dirEnd = prefixPath.lastIndexOf(DELIMITER) + 1;
+            String dirPath = prefixPath.substring(0, dirEnd);
+            String namePrefix = prefixPath.substring(dirEnd);
+            Path dir = dirPath.isEmpty() ? rootDir : resolve(dirPath);
+
+            Set<String> allObjects = new HashSet<>();
+            if (!Files.isDirectory(dir)) {
+                return allObjects;
+            }
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, entry -> entry.getFileName().toString().startsWith(namePrefix))) {
+                for (Path entry : entries) {
+                    if (entry.equals(tempDir)) {
+                        continue;
+                    }
+                    if (!Files.isDirectory(entry)) {
+                        allObjects.add(toObjectPath(entry));
+                    } else if (recursive) {
+                        try (Stream<Path> files = Files.walk(entry)) {
+                            files.filter(Files::isRegularFile).forEach(file -> allObjects.add(toObjectPath(file)));
+                        }
+                    } else if (containsAnyFile(entry)) {
+                        // like S3, a directory exists only as long as there are objects in it
+                        allObjects.add(toObjectPath(entry) + DELIMITER);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Listing failed: {}", prefixPath, e);
+                throw new StorageException("Unexpected error while listing files for prefix: " + prefixPath, e);
+            }
+            return allObjects;
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String path) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                delete(path);
+            } catch (IOException e) {
+                LOGGER.error("Delete failed: {}", path, e);
+                throw new StorageException("Unexpected error while deleting file for path: " + path, e);
+            }
+        }, executorService);
+    }
+
+    public void delete(String path) throws IOException {
+        Files.deleteIfExists(resolve(path));
+    }
+
+    /**
+     * Moves the object of the path to the same path in the other storage, replacing the object there if any.
+     */
+    public void moveTo(String path, FileSystemAsyncStorage target) throws IOException {
+        Path targetFile = target.resolve(path);
+        Files.createDirectories(targetFile.getParent());
+        Files.move(resolve(path), targetFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public long size(String path) throws IOException {
+        return Files.size(resolve(path));
+    }
+
+    public long lastModifiedTime(String path) throws IOException {
+        return Files.getLastModifiedTime(resolve(path)).toMillis();
+    }
+
+    private Path resolve(String path) {
+        Path resolved = rootDir.resolve(path).normalize();
+        if (!resolved.startsWith(rootDir) || resolved.equals(rootDir) || resolved.startsWith(tempDir)) {
+            throw new IllegalArgumentException("Path: " + path + " is not within the storage directory");
+        }
+        return resolved;
+    }
+
+    private String toObjectPath(Path file) {
+        StringBuilder objectPath = new StringBuilder();
+        for (Path name : rootDir.relativize(file)) {
+            if (objectPath.length() > 0) {
+                objectPath.append(DELIMITER);
+            }
+            objectPath.append(name.toString());
+        }
+        return objectPath.toString();
+    }
+
+    private void publish(Path temp, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (fsyncPolicy == FsyncPolicy.FILE_AND_DIRECTORY) {
+            try (FileChannel dir = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+                dir.force(true);
+            }
+        }
+    }
+
+    private static InputStream map(FileChannel channel, long offset, long length, String path) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new StorageException("Content of path: " + path + " is too large to be read at once");
+        }
+        // mapping remains valid after the channel is closed and is released once the buffer is garbage collected
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return new ByteBufferInputStream(null, buf);
+    }
+
+    private static boolean containsAnyFile(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.anyMatch(Files::isRegularFile);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable, String path) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            LOGGER.error("Failed to close stream for path: {}", path, e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete temporary file: {}", file, e);
+        }
+    }
+
+    /**
+     * Writes content in chunks, reading the next chunk once the previous one is written. Reads are expected to be from memory, so they are
+     * done on the thread completing the previous write.
+     */
+    private static class ChunkWriter implements CompletionHandler<Integer, Long> {
+        private final String path;
+        private final InputStream content;
+        private final AsynchronousFileChannel channel;
+        private final Path file;
+        private final ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+        private final CompletableFuture<Long> written = new CompletableFuture<>();
+
+        ChunkWriter(String path, InputStream content, AsynchronousFileChannel channel, Path file) {
+            this.path = path;
+            this.content = content;
+            this.channel = channel;
+            this.file = file;
+            // nothing to write until the first chunk is read
+            this.chunk.limit(0);
+        }
+
+        /**
+         * @return future completing with count of bytes written once the content is exhausted
+         */
+        CompletableFuture<Long> writeNext(long position) {
+            try {
+                if (!chunk.hasRemaining()) {
+                    chunk.clear();
+                    int read = content.read(chunk.array(), 0, chunk.capacity());
+                    if (read == -1) {
+                        written.complete(position);
+                        return written;
+                    }
+                    chunk.limit(read);
+                }
+                channel.write(chunk, position, position, this);
+            } catch (Throwable e) {
+                written.completeExceptionally(new StorageException("Unexpected error while writing file: " + file + " for path: " + path, e));
+            }
+            return written;
+        }
+
+        @Override
+        public void completed(Integer bytesWritten, Long position) {
+            writeNext(position + bytesWritten);
+        }
+
+        @Override
+        public void failed(Throwable e, Long position) {
+            written.completeExceptionally(new StorageException("Write failed at offset " + position + " of file: " + file + " for path: " + path, e));
+        }
+    }
+}
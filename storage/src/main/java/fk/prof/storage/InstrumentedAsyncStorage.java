@@ -0,0 +1,232 @@
+package fk.prof.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * AsyncStorage decorator which records metrics of every operation of the storage it wraps, named "{prefix}.{operation}.{metric}":
+ * <ul>
+ *     <li>latency: timer of the operation, till its future completes. For fetches, it is the time till the content starts to be
+ *     available, and not till it is read</li>
+ *     <li>bytes: histogram of the bytes stored, or of the bytes read from the fetched content, recorded once it is closed</li>
+ *     <li>failure: meter of the failed operations, including the timed out ones</li>
+ *     <li>timeout: meter of the operations failed by a timeout</li>
+ *     <li>inflight: gauge of the operations whose futures are yet to complete</li>
+ * </ul>
+ * Operations are store, fetch, fetch.range, list, delete, multipart.init, multipart.part, multipart.complete and multipart.abort. Listings also record a
+ * histogram of the count of listed objects as list.objects.
+ */
+public class InstrumentedAsyncStorage implements AsyncStorage {
+
+    private final AsyncStorage storage;
+
+    private final OperationMetrics store;
+    private final OperationMetrics fetch;
+    private final OperationMetrics fetchRange;
+    private final OperationMetrics list;
+    private final OperationMetrics delete;
+    private final OperationMetrics multipartInit;
+    private final OperationMetrics multipartPart;
+    private final OperationMetrics multipartComplete;
+    private final OperationMetrics multipartAbort;
+    private final Histogram histListedObjects;
+
+    /**
+     * @param prefix prefix of the names of the metrics, to tell apart multiple instrumented storages in the same registry
+     */
+    public InstrumentedAsyncStorage(AsyncStorage storage, MetricRegistry metricRegistry, String prefix) {
+        this.storage = storage;
+
+        this.store = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "store"));
+        this.fetch = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "fetch"));
+        this.fetchRange = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "fetch.range"));
+        this.list = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "list"));
+        this.delete = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "delete"));
+        this.multipartInit = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "multipart.init"));
+        this.multipartPart = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "multipart.part"));
+        this.multipartComplete = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "multipart.complete"));
+        this.multipartAbort = new OperationMetrics(metricRegistry, MetricRegistry.name(prefix, "multipart.abort"));
+        this.histListedObjects = metricRegistry.histogram(MetricRegistry.name(prefix, "list.objects"));
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+        return store.record(() -> storage.storeAsync(path, content, length)).thenApply(v -> {
+            store.histBytes.update(length);
+            return v;
+        });
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path) {
+        return fetch.record(() -> storage.fetchAsync(path)).thenApply(in -> new ByteCountingInputStream(in, fetch.histBytes));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path, long offset, int length) {
+        return fetchRange.record(() -> storage.fetchAsync(path, offset, length)).thenApply(in -> new ByteCountingInputStream(in, fetchRange.histBytes));
+    }
+
+    @Override
+    public CompletableFuture<MultipartUpload> initMultipartUploadAsync(String path) {
+        return multipartInit.record(() -> storage.initMultipartUploadAsync(path)).thenApply(InstrumentedMultipartUpload::new);
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
+        return list.record(() -> storage.listAsync(prefixPath, recursive)).thenApply(objects -> {
+            histListedObjects.update(objects.size());
+            return objects;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String path) {
+        return delete.record(() -> storage.deleteAsync(path));
+    }
+
+    private class InstrumentedMultipartUpload implements MultipartUpload {
+        private final MultipartUpload upload;
+
+        InstrumentedMultipartUpload(MultipartUpload upload) {
+            this.upload = upload;
+        }
+
+        @Override
+        public CompletableFuture<Void> uploadPartAsync(int partNumber, InputStream content, long length) {
+            return multipartPart.record(() -> upload.uploadPartAsync(partNumber, content, length)).thenApply(v -> {
+                multipartPart.histBytes.update(length);
+                return v;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> completeAsync() {
+            return multipartComplete.record(upload::completeAsync);
+        }
+
+        @Override
+        public CompletableFuture<Void> abortAsync() {
+            return multipartAbort.record(upload::abortAsync);
+        }
+    }
+
+    private static class OperationMetrics {
+        final Timer tmrLatency;
+        final Histogram histBytes;
+        final Meter mtrFailure;
+        final Meter mtrTimeout;
+        final AtomicInteger inFlight = new AtomicInteger(0);
+
+        OperationMetrics(MetricRegistry metricRegistry, String name) {
+            this.tmrLatency = metricRegistry.timer(MetricRegistry.name(name, "latency"));
+            this.histBytes = metricRegistry.histogram(MetricRegistry.name(name, "bytes"));
+            this.mtrFailure = metricRegistry.meter(MetricRegistry.name(name, "failure"));
+            this.mtrTimeout = metricRegistry.meter(MetricRegistry.name(name, "timeout"));
+            try {
+                metricRegistry.register(MetricRegistry.name(name, "inflight"), (Gauge<Integer>) inFlight::get);
+            } catch (IllegalArgumentException ex) {
+                //Metric already registered, ignore
+            }
+        }
+
+        <T> CompletableFuture<T> record(Supplier<CompletableFuture<T>> operation) {
+            long startTime = System.nanoTime();
+            inFlight.incrementAndGet();
+            CompletableFuture<T> result;
+            try {
+                result = operation.get();
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+            return result.whenComplete((v, th) -> {
+                inFlight.decrementAndGet();
+                tmrLatency.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                if (th != null) {
+                    mtrFailure.mark();
+                    if (isTimeout(th)) {
+                        mtrTimeout.mark();
+                    }
+                }
+            });
+        }
+
+        private static boolean isTimeout(Throwable th) {
+            for (Throwable cause = th; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+                if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records the bytes read from the content once it is closed.
+     */
+    private static class ByteCountingInputStream extends FilterInputStream {
+        private final Histogram histBytes;
+        private long bytesRead = 0;
+        private boolean closed = false;
+
+        ByteCountingInputStream(InputStream in, Histogram histBytes) {
+            super(in);
+            this.histBytes = histBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytesRead += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            // bytes read again after a reset would be counted twice
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                histBytes.update(bytesRead);
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package fk.prof.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * AsyncStorage which commits content to a journal on the local filesystem and acknowledges the store once it is committed there. Journal is
+ * drained to the remote storage in the background, so that stores neither wait for nor fail with the remote storage.
+ * Content is drained in the order it was stored, one at a time, so that content stored after some other (e.g. index of a file after its
+ * parts) does not become visible in the remote storage before it. Failed drain is retried with exponential backoff, holding back the
+ * content stored after it. Content which fails to drain for the max attempts in a row is moved aside to the quarantine storage and
+ * reported, so that it does not hold back the drain forever. It is kept there for inspection and can be drained again by moving it back
+ * to the journal before a restart. Content is removed from the journal once drained.
+ * Content left in the journal by an earlier run is drained first, in order of its modification time.
+ * Fetches of content yet to be drained are served from the journal and listings include it. Stores fail while the journal has grown
+ * beyond its limit, rather than going to the remote storage directly, which would make them visible ahead of the content stored before
+ * them.
+ * A path is not expected to be overwritten with different content while its earlier content is being drained, which holds for
+ * aggregated profiles, whose paths are either unique or content addressed.
+ */
+public class JournaledAsyncStorage implements AsyncStorage {
+    private static Logger LOGGER = LoggerFactory.getLogger(JournaledAsyncStorage.class);
+
+    private final FileSystemAsyncStorage journal;
+    private final FileSystemAsyncStorage quarantine;
+    private final AsyncStorage remote;
+    private final long maxJournalBytes;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final int maxDrainAttempts;
+
+    // entries in order of their drain, head being drained
+    private final Queue<JournalEntry> pending = new ConcurrentLinkedQueue<>();
+    // latest entry of every path which is in the journal or is being written to it
+    private final Map<String, JournalEntry> journaledPaths = new ConcurrentHashMap<>();
+    private final AtomicLong journalBytes = new AtomicLong(0);
+    private final AtomicLong quarantinedCount = new AtomicLong(0);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final ScheduledExecutorService drainScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "storage-journal-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // drain is sequential, so this is updated by one thread at a time
+    private volatile int failedDrains = 0;
+
+    /**
+     * @param journal local storage in which the content is committed before being drained
+     * @param quarantine local storage to which content is moved aside once it has failed to drain for the max attempts
+     * @param remote storage to which the content is drained
+     * @param maxJournalBytes bytes of content in the journal beyond which stores fail
+     * @param initialBackoffMs wait before retrying a failed drain, doubled for every subsequent failure
+     * @param maxBackoffMs max wait before retrying a failed drain
+     * @param maxDrainAttempts attempts to drain content, after which it is moved aside
+     */
+    public JournaledAsyncStorage(FileSystemAsyncStorage journal, FileSystemAsyncStorage quarantine, AsyncStorage remote, long maxJournalBytes,
+                                 long initialBackoffMs, long maxBackoffMs, int maxDrainAttempts) throws IOException {
+        if (maxDrainAttempts <= 0) {
+            throw new IllegalArgumentException("maxDrainAttempts must be positive");
+        }
+        this.journal = journal;
+        this.quarantine = quarantine;
+        this.remote = remote;
+        this.maxJournalBytes = maxJournalBytes;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.maxDrainAttempts = maxDrainAttempts;
+
+        replay();
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+        if (journalBytes.addAndGet(length) > maxJournalBytes) {
+            journalBytes.addAndGet(-length);
+            LOGGER.warn("Journal is full, failing store of path: {}", path);
+            closeQuietly(content);
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(new StorageException("Journal is full, " + getPendingCount() + " entries are yet to be drained, failing store of path: " + path));
+            return result;
+        }
+
+        JournalEntry entry = new JournalEntry(path, length);
+        journaledPaths.put(path, entry);
+        return journal.storeAsync(path, content, length).whenComplete((v, error) -> {
+            if (error == null) {
+                pending.add(entry);
+                triggerDrain();
+            } else {
+                journaledPaths.remove(path, entry);
+                journalBytes.addAndGet(-length);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path) {
+        return fetchJournaledOrRemote(path, () -> journal.fetchAsync(path), () -> remote.fetchAsync(path));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path, long offset, int length) {
+        return fetchJournaledOrRemote(path, () -> journal.fetchAsync(path, offset, length), () -> remote.fetchAsync(path, offset, length));
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
+        if (journaledPaths.isEmpty()) {
+            return remote.listAsync(prefixPath, recursive);
+        }
+        return remote.listAsync(prefixPath, recursive).thenCombine(journal.listAsync(prefixPath, recursive), (remoteObjects, journaledObjects) -> {
+            Set<String> allObjects = new HashSet<>(remoteObjects);
+            allObjects.addAll(journaledObjects);
+            return allObjects;
+        });
+    }
+
+    /**
+     * @return count of entries in the journal yet to be drained
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return count of entries moved aside to the quarantine storage, since this storage was created
+     */
+    public long getQuarantinedCount() {
+        return quarantinedCount.get();
+    }
+
+    /**
+     * @return bytes of content in the journal, including the content being written to it
+     */
+    public long getJournalBytes() {
+        return journalBytes.get();
+    }
+
+    private CompletableFuture<InputStream> fetchJournaledOrRemote(String path, Supplier<CompletableFuture<InputStream>> journalFetch,
+                                                                  Supplier<CompletableFuture<InputStream>> remoteFetch) {
+        if (!journaledPaths.containsKey(path)) {
+            return remoteFetch.get();
+        }
+        // content could have been drained and removed from the journal meanwhile
+        return journalFetch.get()
+            .handle((in, error) -> error == null ? CompletableFuture.completedFuture(in) : remoteFetch.get())
+            .thenCompose(fetch -> fetch);
+    }
+
+    private void replay() throws IOException {
+        Set<String> paths;
+        try {
+            paths = journal.listAsync("", true).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing journal", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to list journal", e.getCause());
+        }
+
+        List<JournalEntry> entries = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            JournalEntry entry = new JournalEntry(path, journal.size(path));
+            entry.modifiedTime = journal.lastModifiedTime(path);
+            entries.add(entry);
+        }
+        entries.sort(Comparator.comparingLong((JournalEntry entry) -> entry.modifiedTime).thenComparing(entry -> entry.path));
+
+        for (JournalEntry entry : entries) {
+            journaledPaths.put(entry.path, entry);
+            journalBytes.addAndGet(entry.length);
+            pending.add(entry);
+        }
+        if (!entries.isEmpty()) {
+            LOGGER.info("Replaying {} entries, {} bytes, left in journal", entries.size(), journalBytes.get());
+            triggerDrain();
+        }
+    }
+
+    private void triggerDrain() {
+        if (draining.compareAndSet(false, true)) {
+            drainScheduler.execute(this::drainNext);
+        }
+    }
+
+    private void drainNext() {
+        JournalEntry entry = pending.peek();
+        if (entry == null) {
+            draining.set(false);
+            // an entry could have been added after the peek, before draining was reset
+            if (!pending.isEmpty()) {
+                triggerDrain();
+            }
+            return;
+        }
+
+        journal.fetchAsync(entry.path).whenComplete((content, fetchError) -> {
+            if (fetchError != null) {
+                if (unwrap(fetchError) instanceof ObjectNotFoundException) {
+                    // overwritten and drained with a later entry of the same path
+                    removeDrained(entry);
+                    drainScheduler.execute(this::drainNext);
+                } else {
+                    retryDrain(entry, fetchError);
+                }
+                return;
+            }
+
+            remote.storeAsync(entry.path, content, entry.length).whenComplete((v, storeError) -> {
+                if (storeError == null) {
+                    failedDrains = 0;
+                    removeDrained(entry);
+                    drainScheduler.execute(this::drainNext);
+                } else {
+                    retryDrain(entry, storeError);
+                }
+            });
+        });
+    }
+
+    private void retryDrain(JournalEntry entry, Throwable error) {
+        int failures = ++failedDrains;
+        if (failures >= maxDrainAttempts) {
+            moveToQuarantine(entry, error);
+            drainScheduler.execute(this::drainNext);
+            return;
+        }
+        long backoffMs = Math.min(initialBackoffMs << Math.min(failures - 1, 20), maxBackoffMs);
+        LOGGER.error("Drain failed for path: {}, attempt: {}, retrying in {}ms", entry.path, failures, backoffMs, unwrap(error));
+        drainScheduler.schedule(this::drainNext, backoffMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void moveToQuarantine(JournalEntry entry, Throwable error) {
+        LOGGER.error("Drain failed for path: {}, {} times in a row, moving it aside to quarantine", entry.path, failedDrains, unwrap(error));
+        failedDrains = 0;
+        pending.poll();
+        journalBytes.addAndGet(-entry.length);
+        quarantinedCount.incrementAndGet();
+        // content is left in the journal if it was overwritten after this entry, for the later entry to drain
+        if (journaledPaths.remove(entry.path, entry)) {
+            try {
+                journal.moveTo(entry.path, quarantine);
+            } catch (IOException e) {
+                LOGGER.error("Failed to move path: {} to quarantine, it is left in the journal till restart", entry.path, e);
+            }
+        }
+    }
+
+    private void removeDrained(JournalEntry entry) {
+        pending.poll();
+        journalBytes.addAndGet(-entry.length);
+        // content is left in the journal if it was overwritten after this entry, for the later entry to drain
+        if (journaledPaths.remove(entry.path, entry)) {
+            try {
+                journal.delete(entry.path);
+            } catch (IOException e) {
+                LOGGER.error("Failed to remove drained path: {} from journal", entry.path, e);
+            }
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static class JournalEntry {
+        final String path;
+        final long length;
+        long modifiedTime;
+
+        JournalEntry(String path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+    }
+}
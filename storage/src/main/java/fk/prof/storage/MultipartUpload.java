@@ -0,0 +1,36 @@
+package fk.prof.storage;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Upload of a single object in parts, which can be uploaded concurrently and in any order. Object becomes visible with the content of
+ * all its parts, concatenated in order of their part numbers, only once the upload is completed.
+ * Upload is to be aborted if any part fails to upload, so that the storage can release the parts uploaded till then.
+ *
+ * @see AsyncStorage#initMultipartUploadAsync(String)
+ */
+public interface MultipartUpload {
+
+    /**
+     * Uploads a part of the object. A part uploaded again with the same part number replaces the earlier one. Content is read before the
+     * returned future completes, and is closed once read.
+     * @param partNumber position of the part in the object, starting from 1
+     * @param content content of the part
+     * @param length length of the content
+     * @return Future to indicate completion
+     */
+    CompletableFuture<Void> uploadPartAsync(int partNumber, InputStream content, long length);
+
+    /**
+     * Completes the upload, making the object visible. Expected to be called once all the part uploads have completed.
+     * @return Future to indicate completion
+     */
+    CompletableFuture<Void> completeAsync();
+
+    /**
+     * Aborts the upload, discarding the parts uploaded till now.
+     * @return Future to indicate completion
+     */
+    CompletableFuture<Void> abortAsync();
+}
@@ -3,22 +3,32 @@ package fk.prof.storage;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 
 /**
  * AsyncStorage impl backed by S3 Object store. It uses an executorService to offload the request.
+ * Multipart uploads map to S3 multipart uploads, so every part except the last is to be at least 5MB.
  * @author gaurav.ashok
  */
 public class S3AsyncStorage implements AsyncStorage {
@@ -76,6 +86,40 @@ public class S3AsyncStorage implements AsyncStorage {
         }, executorService);
     }
 
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path, long offset, int length) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                GetObjectRequest request = new GetObjectRequest(objectPath.bucket, objectPath.fileName).withRange(offset, offset + length - 1);
+                return client.getObject(request).getObjectContent();
+            } catch (AmazonServiceException svcEx) {
+                LOGGER.error("S3 getObject failed: {}, range: {}+{}", path, offset, length, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 getObject failed: {}, range: {}+{}", path, offset, length, clientEx);
+                throw mapClientException(clientEx);
+            }
+        }, executorService);
+    }
+
+    @Override
+    public CompletableFuture<MultipartUpload> initMultipartUploadAsync(String path) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                String uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(objectPath.bucket, objectPath.fileName)).getUploadId();
+                return new S3MultipartUpload(objectPath, path, uploadId);
+            } catch (AmazonServiceException svcEx) {
+                LOGGER.error("S3 initiateMultipartUpload failed: {}", path, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 initiateMultipartUpload failed: {}", path, clientEx);
+                throw mapClientException(clientEx);
+            }
+        }, executorService);
+    }
+
     @Override
     public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
         S3ObjectPath objectPath = new S3ObjectPath(prefixPath);
@@ -107,7 +151,7 @@ public class S3AsyncStorage implements AsyncStorage {
                         break;
                     }
                 } while (objects.isTruncated());
-                // TODO add metric to track the time taken by this method.
+                // time taken is recorded by InstrumentedAsyncStorage
                 return allObjects;
             } catch (AmazonServiceException svcEx) {
                 LOGGER.error("S3 ListObjects failed: {}", prefixPath, svcEx);
@@ -119,6 +163,22 @@ public class S3AsyncStorage implements AsyncStorage {
         }, executorService);
     }
 
+    @Override
+    public CompletableFuture<Void> deleteAsync(String path) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                client.deleteObject(objectPath.bucket, objectPath.fileName);
+            } catch (AmazonServiceException svcEx) {
+                LOGGER.error("S3 deleteObject failed: {}", path, svcEx);
+                throw mapServiceException(svcEx);
+            } catch (AmazonClientException clientEx) {
+                LOGGER.error("S3 deleteObject failed: {}", path, clientEx);
+                throw mapClientException(clientEx);
+            }
+        }, executorService);
+    }
+
     private StorageException mapClientException(AmazonClientException ex) {
         return new StorageException(ex.getMessage(), ex, ex.isRetryable());
     }
@@ -134,6 +194,72 @@ public class S3AsyncStorage implements AsyncStorage {
         return mapClientException(ex);
     }
 
+    private class S3MultipartUpload implements MultipartUpload {
+        final S3ObjectPath objectPath;
+        final String path;
+        final String uploadId;
+        // etags of the uploaded parts, in order of their part numbers
+        final Map<Integer, PartETag> partETags = new ConcurrentSkipListMap<>();
+
+        S3MultipartUpload(S3ObjectPath objectPath, String path, String uploadId) {
+            this.objectPath = objectPath;
+            this.path = path;
+            this.uploadId = uploadId;
+        }
+
+        @Override
+        public CompletableFuture<Void> uploadPartAsync(int partNumber, InputStream content, long length) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    UploadPartRequest request = new UploadPartRequest().withBucketName(objectPath.bucket).withKey(objectPath.fileName)
+                        .withUploadId(uploadId).withPartNumber(partNumber).withInputStream(content).withPartSize(length);
+                    partETags.put(partNumber, client.uploadPart(request).getPartETag());
+                } catch (AmazonClientException e) {
+                    throw mapClientException(e);
+                } catch (Exception ex) {
+                    throw new StorageException("Unexpected error during S3 uploadPart " + partNumber + " for path: " + path, ex);
+                } finally {
+                    try {
+                        content.close();
+                    } catch (IOException e) {
+                        LOGGER.error("Failed to close inputStream for part {} of path: {}", partNumber, path, e);
+                    }
+                }
+            }, executorService);
+        }
+
+        @Override
+        public CompletableFuture<Void> completeAsync() {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    client.completeMultipartUpload(new CompleteMultipartUploadRequest(objectPath.bucket, objectPath.fileName, uploadId,
+                        new ArrayList<>(partETags.values())));
+                } catch (AmazonServiceException svcEx) {
+                    LOGGER.error("S3 completeMultipartUpload failed: {}, parts: {}", path, partETags.size(), svcEx);
+                    throw mapServiceException(svcEx);
+                } catch (AmazonClientException clientEx) {
+                    LOGGER.error("S3 completeMultipartUpload failed: {}, parts: {}", path, partETags.size(), clientEx);
+                    throw mapClientException(clientEx);
+                }
+            }, executorService);
+        }
+
+        @Override
+        public CompletableFuture<Void> abortAsync() {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    client.abortMultipartUpload(new AbortMultipartUploadRequest(objectPath.bucket, objectPath.fileName, uploadId));
+                } catch (AmazonServiceException svcEx) {
+                    LOGGER.error("S3 abortMultipartUpload failed: {}", path, svcEx);
+                    throw mapServiceException(svcEx);
+                } catch (AmazonClientException clientEx) {
+                    LOGGER.error("S3 abortMultipartUpload failed: {}", path, clientEx);
+                    throw mapClientException(clientEx);
+                }
+            }, executorService);
+        }
+    }
+
     private class S3ObjectPath {
         final String bucket;
         final String fileName;
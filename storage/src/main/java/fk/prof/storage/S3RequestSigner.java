@@ -0,0 +1,121 @@
+package fk.prof.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Signs S3 REST requests with AWS signature version 4. Payload is not signed, i.e. requests carry "UNSIGNED-PAYLOAD" as the hash of
+ * their content, so that content can be streamed without being read twice.
+ * Requests are not signed if the access key or the secret key is empty, for anonymous access.
+ */
+class S3RequestSigner {
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String accessKey;
+    private final String secretKey;
+    private final String region;
+
+    S3RequestSigner(String accessKey, String secretKey, String region) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.region = region;
+    }
+
+    boolean isAnonymous() {
+        return accessKey == null || accessKey.isEmpty() || secretKey == null || secretKey.isEmpty();
+    }
+
+    /**
+     * Adds the date and payload hash headers to the headers of the request, and the authorization header if not anonymous.
+     * @param method http method of the request
+     * @param encodedPath uri encoded path of the request, as sent
+     * @param encodedQuery uri encoded query params of the request, as sent
+     * @param headers headers of the request, keyed by their lowercase names
+     */
+    void sign(String method, String encodedPath, Map<String, String> encodedQuery, SortedMap<String, String> headers, ZonedDateTime time) {
+        ZonedDateTime utcTime = time.withZoneSameInstant(ZoneOffset.UTC);
+        String dateTime = utcTime.format(DATE_TIME_FORMAT);
+        headers.put("x-amz-date", dateTime);
+        headers.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        if (isAnonymous()) {
+            return;
+        }
+
+        String signedHeaders = String.join(";", headers.keySet());
+        String canonicalRequest = method + "\n" +
+            encodedPath + "\n" +
+            new TreeMap<>(encodedQuery).entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining("&")) + "\n" +
+            headers.entrySet().stream().map(e -> e.getKey() + ":" + e.getValue().trim() + "\n").collect(Collectors.joining()) + "\n" +
+            signedHeaders + "\n" +
+            UNSIGNED_PAYLOAD;
+
+        String date = utcTime.format(DATE_FORMAT);
+        String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + dateTime + "\n" + scope + "\n" + hex(sha256(canonicalRequest));
+
+        byte[] signingKey = hmac(hmac(hmac(hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date), region), SERVICE), "aws4_request");
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        headers.put("authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+    }
+
+    /**
+     * Encodes all the characters except the unreserved ones, as required by the signature. '/' is retained if it is a path.
+     */
+    static String uriEncode(String value, boolean isPath) {
+        StringBuilder encoded = new StringBuilder(value.length());
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~' ||
+                (isPath && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(HEX[(c >> 4) & 0xF])).append(Character.toUpperCase(HEX[c & 0xF]));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new StorageException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new StorageException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
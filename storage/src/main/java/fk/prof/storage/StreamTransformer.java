@@ -40,6 +40,21 @@ public final class StreamTransformer {
         return new GZIPInputStream(in, zipBufferSize);
     }
 
+    /**
+     * Detects the codec from the leading bytes of the stream and wraps the stream for decompression with it
+     */
+    public static InputStream decompress(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, CompressionCodec.MAX_MAGIC_BYTES_LENGTH);
+        byte[] magicBytes = new byte[CompressionCodec.MAX_MAGIC_BYTES_LENGTH];
+        int length = 0;
+        int read;
+        while(length < magicBytes.length && (read = pin.read(magicBytes, length, magicBytes.length - length)) != -1) {
+            length += read;
+        }
+        pin.unread(magicBytes, 0, length);
+        return CompressionCodec.fromMagicBytes(magicBytes, length).decompress(pin);
+    }
+
     public static byte[] compress(byte[] bytes) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         GZIPOutputStream zout = zip(out);
@@ -0,0 +1,528 @@
+package fk.prof.storage;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * AsyncStorage impl backed by S3 Object store, which speaks the S3 REST API over a pooled, non blocking vertx http client, so that
+ * in-flight requests do not hold any thread. Requests are signed with signature version 4 and use path style urls.
+ * Content to be stored is streamed to the request in chunks, as the connection drains, on the event loop, so it is expected to be
+ * readable without blocking for long, e.g. from memory or a local file. Fetched content is streamed from the response as the reader
+ * reads it, holding a bounded amount of the unread content in memory.
+ * Returned futures are completed on the callback executor rather than the event loop, so that callbacks can read the fetched content,
+ * which blocks till it is received on the event loop.
+ * Multipart uploads map to S3 multipart uploads, so every part except the last is to be at least 5MB.
+ *
+ * @see S3AsyncStorage for the same over the blocking AWS SDK client
+ */
+public class VertxS3AsyncStorage implements AsyncStorage {
+    private static final String DELIMITER = "/";
+    private static Logger LOGGER = LoggerFactory.getLogger(VertxS3AsyncStorage.class);
+    private static String NO_SUCH_KEY = "NoSuchKey";
+    private static String NO_SUCH_BUCKET = "NoSuchBucket";
+    private static final Pattern ERROR_CODE = Pattern.compile("<Code>([^<]*)</Code>");
+    private static final int CONTENT_CHUNK_SIZE = 64 * 1024;
+    private static final int RESPONSE_HIGH_WATERMARK = 1024 * 1024;
+
+    private final HttpClient client;
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private final S3RequestSigner signer;
+    private final Executor callbackExecutor;
+    private final long requestTimeoutMs;
+    private final long listObjectsTimeoutInMs;
+
+    /**
+     * @param endpoint url of the S3 endpoint, e.g. http://127.0.0.1:13031
+     * @param accessKey access key, requests are not signed if it or the secret key is empty
+     * @param region region of the buckets, for the signature
+     * @param maxConnections max connections to the endpoint, requests beyond it wait for a connection
+     * @param requestTimeoutMs time after which a request fails, if no response is received in it
+     * @param callbackExecutor executor on which the returned futures are completed
+     */
+    public VertxS3AsyncStorage(Vertx vertx, String endpoint, String accessKey, String secretKey, String region, int maxConnections,
+                               long requestTimeoutMs, long listObjectsTimeoutInMs, Executor callbackExecutor) {
+        URI endpointUri = URI.create(endpoint);
+        boolean ssl = "https".equalsIgnoreCase(endpointUri.getScheme());
+        this.host = endpointUri.getHost();
+        this.port = endpointUri.getPort() != -1 ? endpointUri.getPort() : (ssl ? 443 : 80);
+        this.hostHeader = endpointUri.getPort() != -1 ? host + ":" + port : host;
+
+        this.client = vertx.createHttpClient(new HttpClientOptions()
+            .setDefaultHost(host)
+            .setDefaultPort(port)
+            .setSsl(ssl)
+            .setKeepAlive(true)
+            .setMaxPoolSize(maxConnections));
+        this.signer = new S3RequestSigner(accessKey, secretKey, region);
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.listObjectsTimeoutInMs = listObjectsTimeoutInMs;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        CompletableFuture<Void> result = send(HttpMethod.PUT, objectPath, Collections.emptyMap(), Collections.emptyMap(), content, length)
+            .thenCompose(response -> discardBody(response, path, "PUT"));
+        return completeOnCallbackExecutor(result);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        CompletableFuture<InputStream> result = send(HttpMethod.GET, objectPath, Collections.emptyMap(), Collections.emptyMap(), null, 0)
+            .thenCompose(response -> streamBody(response, path, "GET", 200));
+        return completeOnCallbackExecutor(result);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> fetchAsync(String path, long offset, int length) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        Map<String, String> headers = Collections.singletonMap("range", "bytes=" + offset + "-" + (offset + length - 1));
+        CompletableFuture<InputStream> result = send(HttpMethod.GET, objectPath, Collections.emptyMap(), headers, null, 0)
+            .thenCompose(response -> streamBody(response, path, "GET range " + offset + "+" + length, 206));
+        return completeOnCallbackExecutor(result);
+    }
+
+    @Override
+    public CompletableFuture<MultipartUpload> initMultipartUploadAsync(String path) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        CompletableFuture<MultipartUpload> result = send(HttpMethod.POST, objectPath, Collections.singletonMap("uploads", ""), Collections.emptyMap(), null, 0)
+            .thenCompose(response -> readBody(response, path, "initiateMultipartUpload"))
+            .thenApply(body -> new S3MultipartUpload(objectPath, path, getText(parseXml(body, path).getDocumentElement(), "UploadId")));
+        return completeOnCallbackExecutor(result);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String path) {
+        S3ObjectPath objectPath = new S3ObjectPath(path);
+        CompletableFuture<Void> result = send(HttpMethod.DELETE, objectPath, Collections.emptyMap(), Collections.emptyMap(), null, 0)
+            .thenCompose(response -> discardBody(response, path, "DELETE"));
+        return completeOnCallbackExecutor(result);
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
+        S3ObjectPath objectPath = new S3ObjectPath(prefixPath);
+        CompletableFuture<Set<String>> result = new CompletableFuture<>();
+        listPage(objectPath, recursive, null, new HashSet<>(), System.currentTimeMillis(), result);
+        return completeOnCallbackExecutor(result);
+    }
+
+    public void close() {
+        client.close();
+    }
+
+    private void listPage(S3ObjectPath objectPath, boolean recursive, String continuationToken, Set<String> allObjects, long startTime,
+                          CompletableFuture<Set<String>> result) {
+        Map<String, String> query = new LinkedHashMap<>();
+        query.put("list-type", "2");
+        query.put("prefix", objectPath.fileName);
+        if (!recursive) {
+            query.put("delimiter", DELIMITER);
+        }
+        if (continuationToken != null) {
+            query.put("continuation-token", continuationToken);
+        }
+
+        String prefixPath = objectPath.bucket + DELIMITER + objectPath.fileName;
+        send(HttpMethod.GET, new S3ObjectPath(objectPath.bucket, null), query, Collections.emptyMap(), null, 0)
+            .thenCompose(response -> readBody(response, prefixPath, "ListObjectsV2"))
+            .whenComplete((body, th) -> {
+                if (th != null) {
+                    result.completeExceptionally(th);
+                    return;
+                }
+                try {
+                    Element listing = parseXml(body, prefixPath).getDocumentElement();
+                    for (Element contents : getChildren(listing, "Contents")) {
+                        allObjects.add(objectPath.bucket + DELIMITER + getText(contents, "Key"));                    //All files with prefix with complete path
+                    }
+                    for (Element commonPrefix : getChildren(listing, "CommonPrefixes")) {                            //Folders in current dir (if delimiter passed)
+                        allObjects.add(objectPath.bucket + DELIMITER + getText(commonPrefix, "Prefix"));              //with complete path
+                    }
+
+                    if (!"true".equals(getText(listing, "IsTruncated"))) {
+                        result.complete(allObjects);
+                    } else if (startTime + listObjectsTimeoutInMs < System.currentTimeMillis()) {
+                        LOGGER.warn("Timeout while listing objects for prefix: {}, isRecursive: {}, fileCount: {}", prefixPath, recursive, allObjects.size());
+                        result.complete(allObjects);
+                    } else {
+                        listPage(objectPath, recursive, getText(listing, "NextContinuationToken"), allObjects, startTime, result);
+                    }
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+    }
+
+    /**
+     * Sends the request, streaming the content if any. Returned response is paused, so that its body is not lost till it is consumed.
+     */
+    private CompletableFuture<HttpClientResponse> send(HttpMethod method, S3ObjectPath objectPath, Map<String, String> query,
+                                                       Map<String, String> extraHeaders, InputStream content, long length) {
+        CompletableFuture<HttpClientResponse> result = new CompletableFuture<>();
+        try {
+            String encodedPath = DELIMITER + S3RequestSigner.uriEncode(objectPath.bucket, false) +
+                (objectPath.fileName != null ? DELIMITER + S3RequestSigner.uriEncode(objectPath.fileName, true) : "");
+            Map<String, String> encodedQuery = new LinkedHashMap<>();
+            query.forEach((name, value) -> encodedQuery.put(S3RequestSigner.uriEncode(name, false), S3RequestSigner.uriEncode(value, false)));
+
+            SortedMap<String, String> headers = new TreeMap<>(extraHeaders);
+            headers.put("host", hostHeader);
+            if (content != null) {
+                headers.put("content-length", String.valueOf(length));
+            }
+            signer.sign(method.name(), encodedPath, encodedQuery, headers, ZonedDateTime.now());
+
+            StringBuilder uri = new StringBuilder(encodedPath);
+            if (!encodedQuery.isEmpty()) {
+                uri.append('?');
+                encodedQuery.forEach((name, value) -> uri.append(name).append('=').append(value).append('&'));
+                uri.setLength(uri.length() - 1);
+            }
+
+            HttpClientRequest request = client.request(method, port, host, uri.toString());
+            request.handler(response -> {
+                response.pause();
+                result.complete(response);
+            });
+            request.exceptionHandler(th -> {
+                closeQuietly(content, objectPath);
+                result.completeExceptionally(new StorageException("S3 " + method + " failed for path: " + objectPath, th, true));
+            });
+            request.setTimeout(requestTimeoutMs);
+            headers.forEach(request::putHeader);
+
+            if (content != null) {
+                writeContent(request, content, objectPath, result);
+            } else {
+                request.end();
+            }
+        } catch (Exception e) {
+            closeQuietly(content, objectPath);
+            result.completeExceptionally(new StorageException("Unexpected error during S3 " + method + " for path: " + objectPath, e));
+        }
+        return result;
+    }
+
+    /**
+     * Writes chunks of the content till the write queue of the connection is full, continuing once it drains. Content is closed once
+     * written. If reading of the content fails, the request is left incomplete to be failed by the request timeout.
+     */
+    private void writeContent(HttpClientRequest request, InputStream content, S3ObjectPath objectPath, CompletableFuture<?> result) {
+        ContentWriter contentWriter = new ContentWriter(request, content, objectPath, result);
+        request.drainHandler(contentWriter);
+        contentWriter.handle(null);
+    }
+
+    private CompletableFuture<InputStream> streamBody(HttpClientResponse response, String path, String operation, int expectedStatus) {
+        if (response.statusCode() != expectedStatus) {
+            return failWithError(response, path, operation);
+        }
+        InputStream body = new AsyncBodyInputStream(response, path, RESPONSE_HIGH_WATERMARK);
+        response.resume();
+        return CompletableFuture.completedFuture(body);
+    }
+
+    private CompletableFuture<Buffer> readBody(HttpClientResponse response, String path, String operation) {
+        if (response.statusCode() / 100 != 2) {
+            return failWithError(response, path, operation);
+        }
+        return bufferBody(response, path).thenApply(body -> {
+            // S3 can fail a request after having responded with 200, with the error in the body
+            if (isErrorDocument(body, path)) {
+                throw mapError(response.statusCode(), body, path, operation);
+            }
+            return body;
+        });
+    }
+
+    private CompletableFuture<Void> discardBody(HttpClientResponse response, String path, String operation) {
+        return readBody(response, path, operation).thenApply(body -> null);
+    }
+
+    private <T> CompletableFuture<T> failWithError(HttpClientResponse response, String path, String operation) {
+        return bufferBody(response, path).thenApply(body -> {
+            throw mapError(response.statusCode(), body, path, operation);
+        });
+    }
+
+    private CompletableFuture<Buffer> bufferBody(HttpClientResponse response, String path) {
+        CompletableFuture<Buffer> body = new CompletableFuture<>();
+        response.bodyHandler(body::complete);
+        response.exceptionHandler(th -> body.completeExceptionally(new StorageException("Failed to receive response for path: " + path, th, true)));
+        response.resume();
+        return body;
+    }
+
+    private StorageException mapError(int statusCode, Buffer body, String path, String operation) {
+        Matcher code = ERROR_CODE.matcher(body.toString());
+        String errorCode = code.find() ? code.group(1) : String.valueOf(statusCode);
+        String message = "S3 " + operation + " failed: " + path + ", status: " + statusCode + ", code: " + errorCode;
+        LOGGER.error(message);
+
+        // map non existent bucket and non existent path to PathNotFound exception specifically
+        if (NO_SUCH_BUCKET.equals(errorCode) || NO_SUCH_KEY.equals(errorCode) || (statusCode == 404 && body.length() == 0)) {
+            return new ObjectNotFoundException(message);
+        }
+        return new StorageException(message, statusCode >= 500);
+    }
+
+    private <T> CompletableFuture<T> completeOnCallbackExecutor(CompletableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, th) -> {
+            try {
+                callbackExecutor.execute(() -> {
+                    if (th != null) {
+                        result.completeExceptionally(th);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // not completed on the calling thread, which can be the event loop that fetched content is to be received on
+                LOGGER.error("Callback executor rejected completion of S3 request", e);
+                if (value instanceof Closeable) {
+                    closeQuietly((Closeable) value);
+                }
+                result.completeExceptionally(new StorageException("Callback executor rejected completion of S3 request", th != null ? th : e, true));
+            }
+        });
+        return result;
+    }
+
+    private static boolean isErrorDocument(Buffer body, String path) {
+        if (body.length() == 0) {
+            return false;
+        }
+        try {
+            return "Error".equals(parseXml(body, path).getDocumentElement().getNodeName());
+        } catch (StorageException e) {
+            // not an xml document, so not an S3 error either
+            return false;
+        }
+    }
+
+    private static Document parseXml(Buffer body, String path) {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            // responses never declare a doctype, refusing them rules out external entity and entity expansion attacks
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            factory.setXIncludeAware(false);
+            factory.setExpandEntityReferences(false);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(body.getBytes()));
+        } catch (Exception e) {
+            throw new StorageException("Failed to parse S3 response for path: " + path, e);
+        }
+    }
+
+    private static List<Element> getChildren(Element parent, String name) {
+        List<Element> children = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getNodeName())) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    private static String getText(Element parent, String name) {
+        List<Element> children = getChildren(parent, name);
+        return children.isEmpty() ? null : children.get(0).getTextContent();
+    }
+
+    private static void closeQuietly(Closeable content) {
+        try {
+            content.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close content of a rejected completion", e);
+        }
+    }
+
+    private static void closeQuietly(InputStream content, S3ObjectPath objectPath) {
+        if (content == null) {
+            return;
+        }
+        try {
+            content.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close inputStream for path: {}", objectPath, e);
+        }
+    }
+
+    /**
+     * A write can drain the write queue and invoke the drain handler within it, and the first chunks are written by the thread issuing
+     * the request while drains are handled on the event loop. Only one invocation writes at a time, an invocation made meanwhile makes
+     * the writing one check the write queue again rather than writing itself.
+     */
+    private class ContentWriter implements Handler<Void> {
+        private final HttpClientRequest request;
+        private final InputStream content;
+        private final S3ObjectPath objectPath;
+        private final CompletableFuture<?> result;
+        private final byte[] chunk = new byte[CONTENT_CHUNK_SIZE];
+        private final AtomicInteger pendingInvocations = new AtomicInteger();
+        private boolean done = false;
+
+        ContentWriter(HttpClientRequest request, InputStream content, S3ObjectPath objectPath, CompletableFuture<?> result) {
+            this.request = request;
+            this.content = content;
+            this.objectPath = objectPath;
+            this.result = result;
+        }
+
+        @Override
+        public void handle(Void event) {
+            if (pendingInvocations.getAndIncrement() != 0) {
+                return;
+            }
+            int invocations = 1;
+            do {
+                writeTillQueueFull();
+                invocations = pendingInvocations.addAndGet(-invocations);
+            } while (invocations != 0);
+        }
+
+        private void writeTillQueueFull() {
+            try {
+                while (!done && !request.writeQueueFull()) {
+                    int n = content.read(chunk);
+                    if (n == -1) {
+                        done = true;
+                        closeQuietly(content, objectPath);
+                        request.end();
+                        return;
+                    }
+                    request.write(Buffer.buffer(n).appendBytes(chunk, 0, n));
+                }
+            } catch (IOException e) {
+                done = true;
+                closeQuietly(content, objectPath);
+                result.completeExceptionally(new StorageException("Failed to read content for path: " + objectPath, e));
+            }
+        }
+    }
+
+    private class S3MultipartUpload implements MultipartUpload {
+        final S3ObjectPath objectPath;
+        final String path;
+        final String uploadId;
+        // etags of the uploaded parts, in order of their part numbers
+        final Map<Integer, String> partETags = new ConcurrentSkipListMap<>();
+
+        S3MultipartUpload(S3ObjectPath objectPath, String path, String uploadId) {
+            this.objectPath = objectPath;
+            this.path = path;
+            this.uploadId = uploadId;
+        }
+
+        @Override
+        public CompletableFuture<Void> uploadPartAsync(int partNumber, InputStream content, long length) {
+            Map<String, String> query = new LinkedHashMap<>();
+            query.put("partNumber", String.valueOf(partNumber));
+            query.put("uploadId", uploadId);
+            CompletableFuture<Void> result = send(HttpMethod.PUT, objectPath, query, Collections.emptyMap(), content, length)
+                .thenCompose(response -> {
+                    String eTag = response.getHeader("ETag");
+                    return discardBody(response, path, "uploadPart " + partNumber).thenApply(v -> {
+                        if (eTag == null) {
+                            throw new StorageException("S3 uploadPart " + partNumber + " did not return ETag for path: " + path);
+                        }
+                        partETags.put(partNumber, eTag);
+                        return v;
+                    });
+                });
+            return completeOnCallbackExecutor(result);
+        }
+
+        @Override
+        public CompletableFuture<Void> completeAsync() {
+            StringBuilder parts = new StringBuilder("<CompleteMultipartUpload>");
+            partETags.forEach((partNumber, eTag) ->
+                parts.append("<Part><PartNumber>").append(partNumber).append("</PartNumber><ETag>").append(eTag).append("</ETag></Part>"));
+            byte[] body = parts.append("</CompleteMultipartUpload>").toString().getBytes(StandardCharsets.UTF_8);
+
+            CompletableFuture<Void> result = send(HttpMethod.POST, objectPath, Collections.singletonMap("uploadId", uploadId), Collections.emptyMap(),
+                new ByteArrayInputStream(body), body.length)
+                .thenCompose(response -> discardBody(response, path, "completeMultipartUpload, parts: " + partETags.size()));
+            return completeOnCallbackExecutor(result);
+        }
+
+        @Override
+        public CompletableFuture<Void> abortAsync() {
+            CompletableFuture<Void> result = send(HttpMethod.DELETE, objectPath, Collections.singletonMap("uploadId", uploadId), Collections.emptyMap(), null, 0)
+                .thenCompose(response -> discardBody(response, path, "abortMultipartUpload"));
+            return completeOnCallbackExecutor(result);
+        }
+    }
+
+    private static class S3ObjectPath {
+        final String bucket;
+        final String fileName;
+
+        S3ObjectPath(String fullPath) {
+            int bucketEnd = fullPath.indexOf(DELIMITER);
+            if (bucketEnd == -1) {
+                throw new IllegalArgumentException("expecting object path in the format of {bucket}/{fileName}");
+            }
+
+            this.bucket = fullPath.substring(0, bucketEnd);
+            this.fileName = fullPath.substring(bucketEnd + 1);
+        }
+
+        S3ObjectPath(String bucket, String fileName) {
+            this.bucket = bucket;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public String toString() {
+            return fileName != null ? bucket + DELIMITER + fileName : bucket;
+        }
+    }
+}
@@ -18,6 +18,9 @@ public class ByteBufferInputStream extends InputStream {
     private final ByteBuffer buf;
     private boolean closed = false;
 
+    /**
+     * @param bufferPool pool to which buf is returned on close, null if buf is not to be returned.
+     */
     public ByteBufferInputStream(GenericObjectPool<ByteBuffer> bufferPool, ByteBuffer buf) {
         this.buf = buf;
         this.bufferPool = bufferPool;
@@ -26,7 +29,7 @@ public class ByteBufferInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         if(buf.remaining() > 0) {
-            return buf.get();
+            return buf.get() & 0xFF;
         }
         return -1;
     }
@@ -50,10 +53,12 @@ public class ByteBufferInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
-        LOGGER.debug("returning buffer to bufferPool");
         synchronized (this) {
             if(!closed) {
-                bufferPool.returnObject(buf);
+                if(bufferPool != null) {
+                    LOGGER.debug("returning buffer to bufferPool");
+                    bufferPool.returnObject(buf);
+                }
                 closed = true;
             }
         }
@@ -0,0 +1,74 @@
+package fk.prof.storage.buffer;
+
+/**
+ * Limits and retries applied by {@link StorageBackedOutputStream} while uploading parts of a file.
+ */
+public class PartUploadPolicy {
+
+    public static final PartUploadPolicy DEFAULT = new PartUploadPolicy(4, 3, 200, 120_000);
+
+    private final int maxInFlightParts;
+    private final int maxRetries;
+    private final long initialBackoffMs;
+    private final long closeTimeoutMs;
+    private final boolean multipart;
+
+    public PartUploadPolicy(int maxInFlightParts, int maxRetries, long initialBackoffMs, long closeTimeoutMs) {
+        this(maxInFlightParts, maxRetries, initialBackoffMs, closeTimeoutMs, false);
+    }
+
+    /**
+     * @param maxInFlightParts parts of a file whose upload can be pending at a time. Writes block when this many parts are pending.
+     * @param maxRetries times a failed part upload is retried, before failing the file.
+     * @param initialBackoffMs wait before the first retry of a part, doubled for every subsequent retry.
+     * @param closeTimeoutMs time for which close waits for pending part uploads, before failing the file.
+     * @param multipart if true, parts are uploaded as parts of a single multipart upload of the file, instead of as separate objects.
+     */
+    public PartUploadPolicy(int maxInFlightParts, int maxRetries, long initialBackoffMs, long closeTimeoutMs, boolean multipart) {
+        if(maxInFlightParts <= 0) {
+            throw new IllegalArgumentException("maxInFlightParts must be positive");
+        }
+        if(maxRetries < 0 || initialBackoffMs < 0 || closeTimeoutMs < 0) {
+            throw new IllegalArgumentException("maxRetries, initialBackoffMs and closeTimeoutMs cannot be negative");
+        }
+        this.maxInFlightParts = maxInFlightParts;
+        this.maxRetries = maxRetries;
+        this.initialBackoffMs = initialBackoffMs;
+        this.closeTimeoutMs = closeTimeoutMs;
+        this.multipart = multipart;
+    }
+
+    public int getMaxInFlightParts() {
+        return maxInFlightParts;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    public long getCloseTimeoutMs() {
+        return closeTimeoutMs;
+    }
+
+    public boolean isMultipart() {
+        return multipart;
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @return wait before the given retry of a part
+     */
+    public long getBackoffMs(int retry) {
+        return initialBackoffMs << Math.min(retry - 1, 20);
+    }
+
+    @Override
+    public String toString() {
+        return "maxInFlightParts=" + maxInFlightParts + ", maxRetries=" + maxRetries + ", initialBackoffMs=" + initialBackoffMs
+            + ", closeTimeoutMs=" + closeTimeoutMs + ", multipart=" + multipart;
+    }
+}
@@ -0,0 +1,267 @@
+package fk.prof.storage.buffer;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of {@link ByteBuffer}s in size classes, which are powers of 2 from the min slab size to the max slab size. Every size class is a
+ * pool of its own with the given pool config, so limits of the config apply per size class.
+ * A borrow is served from the smallest size class which fits the requested size, or the largest if none does, so that writers can
+ * chain slabs of growing size instead of holding a large buffer regardless of how much they write.
+ * Without a byte budget, memory held by the pool can grow to a full pool of every size class, i.e. max total slabs of every size. With a
+ * budget, bytes of all slabs allocated by the pool, borrowed or idle, are capped by it. A slab which does not fit the budget is allocated
+ * once idle slabs have been evicted or borrowed slabs released, waiting as per the pool config for the latter.
+ *
+ * @see StorageBackedOutputStream
+ */
+public class SizeClassedBufferPool {
+
+    private final int minSlabSize;
+    private final GenericObjectPool<ByteBuffer>[] sizeClasses;
+    private final long maxTotalBytes;
+    private final boolean blockWhenExhausted;
+    private final long maxWaitMillis;
+
+    // bytes of slabs allocated and not yet destroyed, guarded by budgetLock
+    private long allocatedBytes;
+    private final ReentrantLock budgetLock = new ReentrantLock();
+    private final Condition slabReleased = budgetLock.newCondition();
+
+    /**
+     * @param minSlabSize size of the smallest slab, rounded up to a power of 2
+     * @param maxSlabSize size of the largest slab, rounded up to a power of 2
+     * @param allocateDirect if true, slabs are allocated in direct memory instead of the heap
+     * @param poolConfig config of the pool of every size class
+     */
+    public SizeClassedBufferPool(int minSlabSize, int maxSlabSize, boolean allocateDirect, GenericObjectPoolConfig poolConfig) {
+        this(minSlabSize, maxSlabSize, allocateDirect, poolConfig, 0);
+    }
+
+    /**
+     * @param maxTotalBytes budget of bytes of all slabs allocated by the pool across size classes, 0 if there is none. It is to be at
+     *                      least the max slab size.
+     */
+    @SuppressWarnings("unchecked")
+    public SizeClassedBufferPool(int minSlabSize, int maxSlabSize, boolean allocateDirect, GenericObjectPoolConfig poolConfig, long maxTotalBytes) {
+        if (minSlabSize <= 0 || maxSlabSize < minSlabSize || maxSlabSize > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid slab sizes, min: " + minSlabSize + ", max: " + maxSlabSize);
+        }
+        this.minSlabSize = roundUpToPowerOf2(minSlabSize);
+        int classCount = Integer.numberOfTrailingZeros(roundUpToPowerOf2(maxSlabSize)) - Integer.numberOfTrailingZeros(this.minSlabSize) + 1;
+        if (maxTotalBytes < 0 || (maxTotalBytes > 0 && maxTotalBytes < (this.minSlabSize << (classCount - 1)))) {
+            throw new IllegalArgumentException("Invalid byte budget: " + maxTotalBytes + ", it is to be at least the max slab size");
+        }
+        this.maxTotalBytes = maxTotalBytes;
+        this.blockWhenExhausted = poolConfig.getBlockWhenExhausted();
+        this.maxWaitMillis = poolConfig.getMaxWaitMillis();
+
+        this.sizeClasses = new GenericObjectPool[classCount];
+        for (int i = 0; i < classCount; i++) {
+            sizeClasses[i] = new GenericObjectPool<>(new SlabFactory(this.minSlabSize << i, allocateDirect), poolConfig);
+        }
+    }
+
+    /**
+     * Borrows a slab of the smallest size class which is at least of the given size. Slab is cleared, i.e. its limit is its capacity.
+     * @param size requested size, slab can be smaller if the size is more than the max slab size
+     * @return slab, to be released to this pool once done with
+     * @throws Exception if the pool of the size class is exhausted or closed
+     */
+    public ByteBuffer borrow(int size) throws Exception {
+        return sizeClasses[getSizeClass(size)].borrowObject();
+    }
+
+    public void release(ByteBuffer slab) {
+        sizeClasses[getSizeClass(slab.capacity())].returnObject(slab);
+        if (maxTotalBytes > 0) {
+            // slab is idle now, so it can be evicted for a borrow waiting for the budget
+            budgetLock.lock();
+            try {
+                slabReleased.signalAll();
+            }
+            finally {
+                budgetLock.unlock();
+            }
+        }
+    }
+
+    public int getMinSlabSize() {
+        return minSlabSize;
+    }
+
+    public int getMaxSlabSize() {
+        return minSlabSize << (sizeClasses.length - 1);
+    }
+
+    /**
+     * @return count of slabs borrowed and yet to be released, across all size classes
+     */
+    public int getNumActive() {
+        int active = 0;
+        for (GenericObjectPool<ByteBuffer> sizeClass : sizeClasses) {
+            active += sizeClass.getNumActive();
+        }
+        return active;
+    }
+
+    /**
+     * @return bytes of slabs borrowed and yet to be released, across all size classes
+     */
+    public long getActiveBytes() {
+        long bytes = 0;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            bytes += (long) sizeClasses[i].getNumActive() * (minSlabSize << i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes of slabs idle in the pool, across all size classes
+     */
+    public long getIdleBytes() {
+        long bytes = 0;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            bytes += (long) sizeClasses[i].getNumIdle() * (minSlabSize << i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes of all slabs allocated by the pool, borrowed or idle. Tracked only if the pool has a byte budget.
+     */
+    public long getAllocatedBytes() {
+        budgetLock.lock();
+        try {
+            return allocatedBytes;
+        }
+        finally {
+            budgetLock.unlock();
+        }
+    }
+
+    public void close() {
+        for (GenericObjectPool<ByteBuffer> sizeClass : sizeClasses) {
+            sizeClass.close();
+        }
+    }
+
+    /**
+     * Reserves bytes of a slab to be allocated, evicting idle slabs of all size classes if it does not fit the budget, and waiting for
+     * borrowed slabs to be released if it still does not.
+     */
+    private void reserve(int slabSize) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true) {
+            budgetLock.lock();
+            try {
+                if (allocatedBytes + slabSize <= maxTotalBytes) {
+                    allocatedBytes += slabSize;
+                    return;
+                }
+            }
+            finally {
+                budgetLock.unlock();
+            }
+
+            // idle slabs are destroyed outside of the lock, destroying releases their bytes
+            boolean evicted = false;
+            for (GenericObjectPool<ByteBuffer> sizeClass : sizeClasses) {
+                if (sizeClass.getNumIdle() > 0) {
+                    sizeClass.clear();
+                    evicted = true;
+                }
+            }
+            if (evicted) {
+                continue;
+            }
+
+            budgetLock.lock();
+            try {
+                if (allocatedBytes + slabSize <= maxTotalBytes) {
+                    continue;
+                }
+                if (!blockWhenExhausted) {
+                    throw new NoSuchElementException("Byte budget of the pool is exhausted, allocated bytes: " + allocatedBytes);
+                }
+                if (maxWaitMillis < 0) {
+                    slabReleased.await();
+                }
+                else {
+                    long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        throw new NoSuchElementException("Timed out waiting for byte budget of the pool, allocated bytes: " + allocatedBytes);
+                    }
+                    slabReleased.awaitNanos(remainingNanos);
+                }
+            }
+            finally {
+                budgetLock.unlock();
+            }
+        }
+    }
+
+    private void unreserve(int slabSize) {
+        budgetLock.lock();
+        try {
+            allocatedBytes -= slabSize;
+            slabReleased.signalAll();
+        }
+        finally {
+            budgetLock.unlock();
+        }
+    }
+
+    private int getSizeClass(int size) {
+        if (size <= minSlabSize) {
+            return 0;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(roundUpToPowerOf2(size)) - Integer.numberOfTrailingZeros(minSlabSize);
+        return Math.min(sizeClass, sizeClasses.length - 1);
+    }
+
+    private static int roundUpToPowerOf2(int size) {
+        int highestOneBit = Integer.highestOneBit(size);
+        return highestOneBit == size ? size : highestOneBit << 1;
+    }
+
+    /**
+     * Accounts for bytes of the slabs it allocates and destroys against the byte budget of the pool, if there is one.
+     */
+    private class SlabFactory extends ByteBufferPoolFactory {
+        private final int slabSize;
+
+        SlabFactory(int slabSize, boolean allocateDirect) {
+            super(slabSize, allocateDirect);
+            this.slabSize = slabSize;
+        }
+
+        @Override
+        public ByteBuffer create() throws Exception {
+            if (maxTotalBytes <= 0) {
+                return super.create();
+            }
+            reserve(slabSize);
+            try {
+                return super.create();
+            }
+            catch (Throwable e) {
+                unreserve(slabSize);
+                throw e;
+            }
+        }
+
+        @Override
+        public void destroyObject(PooledObject<ByteBuffer> p) throws Exception {
+            if (maxTotalBytes > 0) {
+                unreserve(slabSize);
+            }
+        }
+    }
+}
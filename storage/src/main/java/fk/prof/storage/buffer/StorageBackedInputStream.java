@@ -11,16 +11,19 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Exchanger;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 /**
  * InputStream implementation which is backed by a {@link AsyncStorage} to fetch content
  * from a location. This impl has a notion of file parts i.e. the complete file is broken
  * into multiple parts. When it finishes reading from part 'k' it requests for the next part 'k+1'.
  * Any exception thrown by the {@link AsyncStorage} is thrown back to the user as IOException.
+ * With a {@code prefetchParts} of k, fetches of the next k parts are issued ahead of the part being read, so that reading the file is
+ * not a sequence of round trips to the storage. At most k + 1 parts are held at a time. Parts being fetched when the stream is closed,
+ * or when the end of file is reached, are closed once fetched.
  *
  * @see StorageBackedOutputStream
  * @author gaurav.ashok
@@ -37,18 +40,31 @@ public class StorageBackedInputStream extends InputStream {
 
     private boolean eof;
 
-    /* variable to hold a future object in case the current thread gets interrupted while waiting on the
-     * storage.
+    private final int prefetchParts;
+    /* fetches of the part to be read next and the parts after it, in order of the parts. Fetch of the next part is retained
+     * in case the current thread gets interrupted while waiting on the storage.
      */
-    private CompletableFuture<InputStream> futureInputStream;
+    private final Deque<CompletableFuture<InputStream>> partFetches = new ArrayDeque<>();
+    private int nextPartToFetch;
 
     public StorageBackedInputStream(AsyncStorage storage, FileNamingStrategy fileNameStrategy) {
+        this(storage, fileNameStrategy, 0);
+    }
+
+    /**
+     * @param prefetchParts count of parts to fetch ahead of the part being read.
+     */
+    public StorageBackedInputStream(AsyncStorage storage, FileNamingStrategy fileNameStrategy, int prefetchParts) {
+        if(prefetchParts < 0) {
+            throw new IllegalArgumentException("prefetchParts cannot be negative");
+        }
         this.storage = storage;
         this.fileNameStrategy = fileNameStrategy;
+        this.prefetchParts = prefetchParts;
 
         this.part = 0;
         this.eof = false;
-        this.futureInputStream = null;
+        this.nextPartToFetch = 0;
     }
 
     @Override
@@ -57,11 +73,16 @@ public class StorageBackedInputStream extends InputStream {
             fetchAndSwapBuffer();
         }
 
-        if(eof) {
-            return -1;
+        while(!eof) {
+            int c = buf.read();
+            if(c != -1) {
+                return c;
+            }
+            // current part is exhausted, continue with the next one
+            fetchAndSwapBuffer();
         }
 
-        return buf.read();
+        return -1;
     }
 
     @Override
@@ -113,14 +134,14 @@ public class StorageBackedInputStream extends InputStream {
         }
         buf = null;
 
-        if(futureInputStream == null) {
-            futureInputStream = storage.fetchAsync(nextFileName);
+        while(partFetches.size() <= prefetchParts) {
+            partFetches.addLast(storage.fetchAsync(fileNameStrategy.getFileName(nextPartToFetch++)));
         }
 
         try {
-            buf = futureInputStream.get();
+            buf = partFetches.peekFirst().get();
+            partFetches.pollFirst();
             part++;
-            futureInputStream = null;
         }
         catch (InterruptedException e) {
             throw new InterruptedIOException(e.getMessage());
@@ -130,7 +151,9 @@ public class StorageBackedInputStream extends InputStream {
                 // mark eof
                 eof = true;
                 buf = null;
-                futureInputStream = null;
+                partFetches.pollFirst();
+                // parts fetched ahead are beyond the end of file
+                releasePartFetches();
 
                 // specific check to throw only in case the first part is not available.
                 if(part == 0) {
@@ -167,8 +190,13 @@ public class StorageBackedInputStream extends InputStream {
         if(buf != null) {
             buf.close();
         }
-        if(futureInputStream != null) {
-            futureInputStream.whenCompleteAsync((is, error) -> {
+        releasePartFetches();
+    }
+
+    private void releasePartFetches() {
+        CompletableFuture<InputStream> partFetch;
+        while((partFetch = partFetches.pollFirst()) != null) {
+            partFetch.whenCompleteAsync((is, error) -> {
                 if(is != null) {
                     try {
                         is.close();
@@ -6,19 +6,36 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.storage.FileNamingStrategy;
+import fk.prof.storage.MultipartUpload;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.*;
 
 /**
  * OutputStream implementation which is backed by a {@link AsyncStorage}.
  * Every {@code partSize} chunk of the bytes will be written to the storage.
  * The target path of the chunk will be decided by the {@link FileNamingStrategy}.
+ * Count of parts being uploaded at a time is bounded by the {@link PartUploadPolicy}, writes block till a pending upload completes
+ * once the bound is reached. Failed part uploads are retried with exponential backoff, and {@link #close()} waits for all the
+ * uploads to complete, failing if any of them fails or does not complete in time.
+ * If the {@link PartUploadPolicy} is multipart, parts are uploaded to a single multipart upload of the file at
+ * {@code fileNameStrategy.getFileName(0)}, which is completed on close, or aborted if any of the parts fails to upload. Readers of a
+ * multipart uploaded file see it as a file of a single part.
+ * If backed by a {@link SizeClassedBufferPool}, a part is buffered in a chain of slabs, starting from the smallest slab and doubling the
+ * size of every next slab of the part, so that the memory held is proportional to the bytes written rather than the part size. Slabs of
+ * a part are released as soon as its upload completes.
  *
  * @see StorageBackedInputStream
  * @author gaurav.ashok
@@ -26,13 +43,30 @@ import java.util.NoSuchElementException;
 public class StorageBackedOutputStream extends OutputStream {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StorageBackedOutputStream.class);
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "storage-part-upload-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private AsyncStorage storage;
     private FileNamingStrategy fileNameStrategy;
     private GenericObjectPool<ByteBuffer> bufferPool;
+    private SizeClassedBufferPool slabPool;
 
     private int part;
+    private int partSize;
+    private long bytesWritten = 0;
+    // slab being written to, which is the last of the slabs of the part being buffered
     private ByteBuffer buf;
+    private List<ByteBuffer> partBufs = new ArrayList<>();
+    private boolean closed = false;
+
+    private final PartUploadPolicy uploadPolicy;
+    private final Semaphore inFlightParts;
+    private final List<CompletableFuture<Void>> partUploads = new ArrayList<>();
+    // initiated with the upload of the first part, if multipart
+    private CompletableFuture<MultipartUpload> multipartUpload = null;
 
     private final Histogram histBytesWritten;
     private final Meter mtrWriteFailure;
@@ -51,6 +85,20 @@ public class StorageBackedOutputStream extends OutputStream {
                                      Meter mtrWriteFailure,
                                      Timer tmrBuffPoolBorrow,
                                      Counter ctrBuffPoolFailures) {
+        this(bufferPool, storage, fileNameStrategy, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures, PartUploadPolicy.DEFAULT);
+    }
+
+    /**
+     * @param uploadPolicy limits and retries for upload of parts.
+     */
+    public StorageBackedOutputStream(GenericObjectPool<ByteBuffer> bufferPool,
+                                     AsyncStorage storage,
+                                     FileNamingStrategy fileNameStrategy,
+                                     Histogram histBytesWritten,
+                                     Meter mtrWriteFailure,
+                                     Timer tmrBuffPoolBorrow,
+                                     Counter ctrBuffPoolFailures,
+                                     PartUploadPolicy uploadPolicy) {
         this.storage = storage;
         this.fileNameStrategy = fileNameStrategy;
         this.part = 0;
@@ -61,6 +109,30 @@ public class StorageBackedOutputStream extends OutputStream {
         this.mtrWriteFailure = mtrWriteFailure;
         this.tmrBuffPoolBorrow = tmrBuffPoolBorrow;
         this.ctrBuffPoolFailures = ctrBuffPoolFailures;
+
+        this.uploadPolicy = uploadPolicy;
+        this.inFlightParts = new Semaphore(uploadPolicy.getMaxInFlightParts());
+    }
+
+    /**
+     * @param slabPool pool from which the slabs will be borrowed for buffering.
+     * @param partSize size of every part, except the last which can be smaller.
+     */
+    public StorageBackedOutputStream(SizeClassedBufferPool slabPool,
+                                     int partSize,
+                                     AsyncStorage storage,
+                                     FileNamingStrategy fileNameStrategy,
+                                     Histogram histBytesWritten,
+                                     Meter mtrWriteFailure,
+                                     Timer tmrBuffPoolBorrow,
+                                     Counter ctrBuffPoolFailures,
+                                     PartUploadPolicy uploadPolicy) {
+        this(null, storage, fileNameStrategy, histBytesWritten, mtrWriteFailure, tmrBuffPoolBorrow, ctrBuffPoolFailures, uploadPolicy);
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("Part size should be positive, was: " + partSize);
+        }
+        this.slabPool = slabPool;
+        this.partSize = partSize;
     }
 
     @Override
@@ -99,33 +171,94 @@ public class StorageBackedOutputStream extends OutputStream {
     }
 
     private void storeAndSwapBuffer() throws IOException {
-        if(buf != null) {
+        int partBytes = getPartBytes();
+        if(buf != null && partBytes >= partSize) {
             writeBufToStorage();
             ++part;
+            partBytes = 0;
         }
 
         try {
+            int slabSize = 0;
+            if(slabPool != null) {
+                // every next slab of the part is double the size of the last one, limited to what is left of the part
+                slabSize = Math.min(partBufs.isEmpty() ? slabPool.getMinSlabSize() : Math.min(buf.capacity(), slabPool.getMaxSlabSize() / 2) * 2, partSize - partBytes);
+            }
             buf = null; // get rid of the reference, in case the borrow fails
             try (Timer.Context context = tmrBuffPoolBorrow.time()) {
                 if(LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("acquiring buffer for file: {}. bufferpool.active: {}", fileNameStrategy.getFileName(0), bufferPool.getNumActive());
+                    LOGGER.debug("acquiring buffer for file: {}. bufferpool.active: {}", fileNameStrategy.getFileName(0), getNumActiveBuffers());
                 }
-                buf = bufferPool.borrowObject();
+                buf = slabPool != null ? slabPool.borrow(slabSize) : bufferPool.borrowObject();
+            }
+            if(partSize == 0) {
+                partSize = buf.capacity();
+            }
+            if(buf.capacity() > partSize - partBytes) {
+                buf.limit(partSize - partBytes);
             }
+            partBufs.add(buf);
         }
         catch (NoSuchElementException | IllegalStateException e) {
             ctrBuffPoolFailures.inc();
+            releasePartBufs();
             final String msg = "buffer pool is either closed or has no object to return";
             LOGGER.error(msg, e);
             throw new IOException(msg, e);
         }
         catch (Exception e) {
             ctrBuffPoolFailures.inc();
+            releasePartBufs();
             LOGGER.error("Unexpected error while borrowing from bufferPool", e);
             throw new IOException(e);
         }
     }
 
+    private int getPartBytes() {
+        int partBytes = 0;
+        for (ByteBuffer partBuf : partBufs) {
+            partBytes += partBuf.position();
+        }
+        return partBytes;
+    }
+
+    private int getNumActiveBuffers() {
+        return slabPool != null ? slabPool.getNumActive() : bufferPool.getNumActive();
+    }
+
+    /**
+     * Releases slabs of the part being buffered, without writing them. Slabs of a part are written together, so the stream is of no use
+     * once the borrow of a slab of the part has failed.
+     */
+    private void releasePartBufs() {
+        partBufs.forEach(this::returnBuffer);
+        partBufs.clear();
+    }
+
+    private void returnBuffer(ByteBuffer partBuf) {
+        if(slabPool != null) {
+            slabPool.release(partBuf);
+        }
+        else {
+            bufferPool.returnObject(partBuf);
+        }
+    }
+
+    /**
+     * @return size of every part written, except the last which can be smaller. 0 if nothing has been written. If multipart, the file
+     * is a single part, so {@link Integer#MAX_VALUE} once anything has been written
+     */
+    public int getPartSize() {
+        return uploadPolicy.isMultipart() && partSize > 0 ? Integer.MAX_VALUE : partSize;
+    }
+
+    /**
+     * @return bytes written to the storage, in all the parts. Complete only after close
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
     @Override
     public void flush() {
         // flush not supported
@@ -133,32 +266,189 @@ public class StorageBackedOutputStream extends OutputStream {
 
     @Override
     public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+
         if(buf != null) {
-            if(buf.position() > 0) {
+            if(getPartBytes() > 0) {
                 writeBufToStorage();
             }
             else {
                 if(LOGGER.isDebugEnabled()) {
                     LOGGER.debug("returning buffer on close: {}", fileNameStrategy.getFileName(0));
                 }
-                bufferPool.returnObject(buf);
+                releasePartBufs();
             }
+            buf = null;
         }
+
+        try {
+            awaitPartUploads();
+        }
+        catch (IOException e) {
+            abortMultipartUpload();
+            throw e;
+        }
+        completeMultipartUpload();
     }
 
-    private void writeBufToStorage() {
-        long contentLength = buf.position();
-        // prepare for reading
-        buf.flip();
-        storage.storeAsync(fileNameStrategy.getFileName(part),
-            new ByteBufferInputStream(bufferPool, buf), contentLength)
-            .whenCompleteAsync((v, th) -> {
-                if(th != null) {
-                    this.mtrWriteFailure.mark();
-                    LOGGER.error("S3 putobject failed for file_strategy=" + fileNameStrategy, th);
-                } else {
-                    this.histBytesWritten.update(contentLength);
-                }
-            });
+    private void awaitPartUploads() throws IOException {
+        try {
+            CompletableFuture.allOf(partUploads.toArray(new CompletableFuture[partUploads.size()]))
+                .get(uploadPolicy.getCloseTimeoutMs(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload of parts of file_strategy=" + fileNameStrategy);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Upload of parts failed for file_strategy=" + fileNameStrategy, e.getCause());
+        }
+        catch (TimeoutException e) {
+            throw new IOException("Upload of parts did not complete in " + uploadPolicy.getCloseTimeoutMs() + "ms for file_strategy=" + fileNameStrategy);
+        }
+    }
+
+    private void completeMultipartUpload() throws IOException {
+        if(multipartUpload == null) {
+            return;
+        }
+        try {
+            multipartUpload.thenCompose(MultipartUpload::completeAsync).get(uploadPolicy.getCloseTimeoutMs(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortMultipartUpload();
+            throw new InterruptedIOException("Interrupted while completing multipart upload of file_strategy=" + fileNameStrategy);
+        }
+        catch (ExecutionException e) {
+            this.mtrWriteFailure.mark();
+            abortMultipartUpload();
+            throw new IOException("Completion of multipart upload failed for file_strategy=" + fileNameStrategy, e.getCause());
+        }
+        catch (TimeoutException e) {
+            this.mtrWriteFailure.mark();
+            abortMultipartUpload();
+            throw new IOException("Multipart upload did not complete in " + uploadPolicy.getCloseTimeoutMs() + "ms for file_strategy=" + fileNameStrategy);
+        }
+    }
+
+    private void abortMultipartUpload() {
+        if(multipartUpload == null) {
+            return;
+        }
+        multipartUpload.thenCompose(MultipartUpload::abortAsync).whenComplete((v, th) -> {
+            if(th != null) {
+                LOGGER.error("Abort of multipart upload failed for file_strategy=" + fileNameStrategy, th);
+            }
+        });
+    }
+
+    private void writeBufToStorage() throws IOException {
+        acquireInFlightPart();
+
+        if(uploadPolicy.isMultipart() && multipartUpload == null) {
+            try {
+                multipartUpload = storage.initMultipartUploadAsync(fileNameStrategy.getFileName(0));
+            }
+            catch (Exception e) {
+                multipartUpload = new CompletableFuture<>();
+                multipartUpload.completeExceptionally(e);
+            }
+        }
+
+        List<ByteBuffer> partBufs = this.partBufs;
+        this.partBufs = new ArrayList<>();
+        long contentLength = 0;
+        for (ByteBuffer partBuf : partBufs) {
+            contentLength += partBuf.position();
+            // prepare for reading
+            partBuf.flip();
+        }
+        bytesWritten += contentLength;
+        final long partLength = contentLength;
+
+        String partFileName = fileNameStrategy.getFileName(part);
+        CompletableFuture<Void> upload = new CompletableFuture<>();
+        storeWithRetries(part, partFileName, partBufs, partLength, 0, upload);
+
+        partUploads.add(upload.whenComplete((v, th) -> {
+            try {
+                partBufs.forEach(this::returnBuffer);
+            }
+            finally {
+                inFlightParts.release();
+            }
+            if(th != null) {
+                this.mtrWriteFailure.mark();
+                LOGGER.error("S3 putobject failed for file_strategy=" + fileNameStrategy + ", part=" + partFileName, th);
+            } else {
+                this.histBytesWritten.update(partLength);
+            }
+        }));
+    }
+
+    private void acquireInFlightPart() throws IOException {
+        if(!inFlightParts.tryAcquire()) {
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("waiting for upload of a part of file: {}, parts in flight: {}", fileNameStrategy.getFileName(0), uploadPolicy.getMaxInFlightParts());
+            }
+            try {
+                inFlightParts.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload of a part of file_strategy=" + fileNameStrategy);
+            }
+        }
+    }
+
+    /**
+     * Every attempt reads its own view of partBufs, which are returned to the pool only after the last attempt, so that storage closing
+     * the content of a failed attempt does not release the buffers.
+     */
+    private void storeWithRetries(int part, String partFileName, List<ByteBuffer> partBufs, long contentLength, int retry, CompletableFuture<Void> upload) {
+        CompletableFuture<Void> attempt;
+        try {
+            if(uploadPolicy.isMultipart()) {
+                // part numbers of a multipart upload start from 1
+                attempt = multipartUpload.thenCompose(multipart ->
+                    multipart.uploadPartAsync(part + 1, readView(partBufs), contentLength));
+            }
+            else {
+                attempt = storage.storeAsync(partFileName, readView(partBufs), contentLength);
+            }
+        }
+        catch (Exception e) {
+            attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(e);
+        }
+
+        attempt.whenComplete((v, th) -> {
+            if(th == null) {
+                upload.complete(null);
+            }
+            else if(retry < uploadPolicy.getMaxRetries()) {
+                long backoffMs = uploadPolicy.getBackoffMs(retry + 1);
+                LOGGER.warn("S3 putobject failed for part=" + partFileName + ", retrying in " + backoffMs + "ms", th);
+                RETRY_SCHEDULER.schedule(() -> storeWithRetries(part, partFileName, partBufs, contentLength, retry + 1, upload), backoffMs, TimeUnit.MILLISECONDS);
+            }
+            else {
+                upload.completeExceptionally(th);
+            }
+        });
+    }
+
+    private static InputStream readView(List<ByteBuffer> partBufs) {
+        if(partBufs.size() == 1) {
+            return new ByteBufferInputStream(null, partBufs.get(0).duplicate());
+        }
+        List<InputStream> views = new ArrayList<>(partBufs.size());
+        for (ByteBuffer partBuf : partBufs) {
+            views.add(new ByteBufferInputStream(null, partBuf.duplicate()));
+        }
+        return new SequenceInputStream(Collections.enumeration(views));
     }
-}
\ No newline at end of file
+}
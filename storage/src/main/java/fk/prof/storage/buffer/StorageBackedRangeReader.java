@@ -0,0 +1,74 @@
+package fk.prof.storage.buffer;
+
+import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.FileNamingStrategy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads byte ranges of a file written by {@link StorageBackedOutputStream}, without fetching the complete file. Offsets are in the
+ * content of the complete file, i.e. the concatenation of all of its parts, every part except the last being of {@code partSize} bytes.
+ * A range spanning multiple parts is fetched with one ranged fetch per part.
+ *
+ * @see StorageBackedOutputStream#getPartSize()
+ */
+public class StorageBackedRangeReader {
+
+    private final AsyncStorage storage;
+    private final FileNamingStrategy fileNameStrategy;
+    private final int partSize;
+
+    public StorageBackedRangeReader(AsyncStorage storage, FileNamingStrategy fileNameStrategy, int partSize) {
+        if(partSize <= 0) {
+            throw new IllegalArgumentException("partSize must be positive");
+        }
+        this.storage = storage;
+        this.fileNameStrategy = fileNameStrategy;
+        this.partSize = partSize;
+    }
+
+    public CompletableFuture<InputStream> fetchAsync(long offset, int length) {
+        if(length == 0) {
+            return CompletableFuture.completedFuture(new SequenceInputStream(Collections.emptyEnumeration()));
+        }
+
+        List<CompletableFuture<InputStream>> partRanges = new ArrayList<>();
+        long rangeEnd = offset + length;
+        long current = offset;
+        while(current < rangeEnd) {
+            int part = (int) (current / partSize);
+            long offsetInPart = current - (long) part * partSize;
+            int lengthInPart = (int) Math.min(rangeEnd - current, partSize - offsetInPart);
+            partRanges.add(storage.fetchAsync(fileNameStrategy.getFileName(part), offsetInPart, lengthInPart));
+            current += lengthInPart;
+        }
+
+        return CompletableFuture.allOf(partRanges.toArray(new CompletableFuture[partRanges.size()])).<InputStream>thenApply(v -> {
+            List<InputStream> streams = new ArrayList<>(partRanges.size());
+            for(CompletableFuture<InputStream> partRange: partRanges) {
+                streams.add(partRange.join());
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }).whenComplete((in, th) -> {
+            if(th != null) {
+                // release ranges of the parts which were fetched
+                partRanges.forEach(partRange -> partRange.thenAccept(StorageBackedRangeReader::closeQuietly));
+            }
+        });
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        }
+        catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fk.prof.storage.test;
+
+import com.amazonaws.util.IOUtils;
+import fk.prof.storage.CompressionCodec;
+import fk.prof.storage.StreamTransformer;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests round trip of content through each {@link CompressionCodec} with codec detected while decompressing.
+ */
+public class CompressionCodecTest {
+
+    final byte[] content = ("27zu6ozrh553p62j5e598xtioyy8bm83cmulyyev9sgf4jljluk8nb21fjd3g1iul2jefvj03masosngk2zw0rp2xtkb" +
+            "29i9a8swogo98lryqyigeuwsvk76z6qhfhcpkr8agk3fm8m0di591yuetua4x5yiv8itpfl4la9iafk40rapb6uibqpa3lt0t3wujutbx5nl")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testDecompress_shouldDetectCodecOfCompressedContent() throws Exception {
+        for(CompressionCodec codec: CompressionCodec.values()) {
+            byte[] compressed = compress(codec, content);
+            assertEquals(codec, CompressionCodec.fromMagicBytes(compressed, compressed.length));
+
+            try(InputStream in = StreamTransformer.decompress(new ByteArrayInputStream(compressed))) {
+                assertArrayEquals(codec.name(), content, IOUtils.toByteArray(in));
+            }
+        }
+    }
+
+    @Test
+    public void testDecompress_shouldReadEmptyContent() throws Exception {
+        for(CompressionCodec codec: CompressionCodec.values()) {
+            byte[] compressed = compress(codec, new byte[0]);
+            try(InputStream in = StreamTransformer.decompress(new ByteArrayInputStream(compressed))) {
+                assertEquals(codec.name(), 0, IOUtils.toByteArray(in).length);
+            }
+        }
+    }
+
+    private byte[] compress(CompressionCodec codec, byte[] bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(OutputStream cout = codec.compress(out)) {
+            cout.write(bytes);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,126 @@
+package fk.prof.storage.test;
+
+import fk.prof.storage.FileSystemAsyncStorage;
+import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.StorageException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class FileSystemStorageTest {
+
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    private ExecutorService execSvc;
+    private FileSystemAsyncStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        execSvc = Executors.newFixedThreadPool(2);
+        storage = new FileSystemAsyncStorage(rootDir.getRoot().toPath(), execSvc, FileSystemAsyncStorage.FsyncPolicy.FILE_AND_DIRECTORY);
+    }
+
+    @After
+    public void tearDown() {
+        execSvc.shutdown();
+    }
+
+    @Test
+    public void testStoreAndFetch_shouldFetchSameContentAsStored() throws Exception {
+        // larger than a write chunk, with all byte values
+        byte[] content = new byte[200_000];
+        new Random(7).nextBytes(content);
+
+        storage.storeAsync("profiles/a/b/file", new ByteArrayInputStream(content), content.length).get();
+
+        Assert.assertArrayEquals(content, readFully(storage.fetchAsync("profiles/a/b/file").get()));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 70_000, 70_100), readFully(storage.fetchAsync("profiles/a/b/file", 70_000, 100).get()));
+
+        // overwrite
+        byte[] newContent = new byte[] {(byte) 0xff, 0x00, (byte) 0x80};
+        storage.storeAsync("profiles/a/b/file", new ByteArrayInputStream(newContent), newContent.length).get();
+        InputStream in = storage.fetchAsync("profiles/a/b/file").get();
+        Assert.assertEquals(0xff, in.read());
+        Assert.assertEquals(0x00, in.read());
+        Assert.assertEquals(0x80, in.read());
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testFetch_shouldFailWithObjectNotFoundForAbsentPath() throws Exception {
+        try {
+            storage.fetchAsync("profiles/absent").get();
+            Assert.fail("fetch of absent path should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ObjectNotFoundException);
+        }
+    }
+
+    @Test
+    public void testFetchRange_shouldFailForRangeBeyondContent() throws Exception {
+        byte[] content = new byte[] {1, 2, 3};
+        storage.storeAsync("profiles/file", new ByteArrayInputStream(content), content.length).get();
+        try {
+            storage.fetchAsync("profiles/file", 2, 2).get();
+            Assert.fail("fetch of range beyond the content should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        }
+    }
+
+    @Test
+    public void testStore_shouldNotStoreWhenContentIsShorterThanLength() throws Exception {
+        byte[] content = new byte[] {1, 2, 3};
+        try {
+            storage.storeAsync("profiles/file", new ByteArrayInputStream(content), 4).get();
+            Assert.fail("store should fail when content is shorter than its length");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        }
+        Assert.assertTrue(storage.listAsync("profiles/", true).get().isEmpty());
+    }
+
+    @Test
+    public void testList_shouldListByPrefixLikeS3() throws Exception {
+        for (String path : Arrays.asList("profiles/v1/app1/2017-03-01/0000", "profiles/v1/app1/2017-03-02/0000", "profiles/v1/app2/0000", "profiles/v1/file")) {
+            storage.storeAsync(path, new ByteArrayInputStream(new byte[] {1}), 1).get();
+        }
+        rootDir.newFolder("profiles", "v1", "empty");
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("profiles/v1/app1/", "profiles/v1/app2/", "profiles/v1/file")),
+            storage.listAsync("profiles/v1/", false).get());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("profiles/v1/app1/2017-03-01/0000", "profiles/v1/app1/2017-03-02/0000")),
+            storage.listAsync("profiles/v1/app1/2017-03", true).get());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("profiles/v1/app1/2017-03-01/0000", "profiles/v1/app1/2017-03-02/0000", "profiles/v1/app2/0000")),
+            storage.listAsync("profiles/v1/app", true).get());
+        Set<String> absent = storage.listAsync("profiles/v2/", true).get();
+        Assert.assertTrue(absent.isEmpty());
+    }
+
+    private byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
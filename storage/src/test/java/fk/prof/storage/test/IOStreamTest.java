@@ -6,8 +6,12 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.storage.FileNamingStrategy;
+import fk.prof.storage.MultipartUpload;
 import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.StorageException;
 import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.buffer.PartUploadPolicy;
+import fk.prof.storage.buffer.SizeClassedBufferPool;
 import fk.prof.storage.buffer.StorageBackedInputStream;
 import fk.prof.storage.buffer.StorageBackedOutputStream;
 import org.apache.commons.pool2.impl.GenericObjectPool;
@@ -21,7 +25,9 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -84,6 +90,193 @@ public class IOStreamTest {
         }
     }
 
+    @Test
+    public void testOutputStream_shouldRetryFailedPartUploads() throws Exception {
+        AtomicInteger failures = new AtomicInteger(0);
+        doAnswer(invocation -> {
+            // fail the first 2 attempts of part 1
+            if(fileName.getFileName(1).equals(invocation.getArgument(0)) && failures.getAndIncrement() < 2) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new StorageException("service unavailable"));
+                return failed;
+            }
+            return invocation.callRealMethod();
+        }).when(storage).storeAsync(any(), any(), anyLong());
+
+        OutputStream out = newOutputStream(new PartUploadPolicy(2, 2, 1, 5000));
+        out.write(content.getBytes());
+        out.close();
+
+        verify(storage, times(3)).storeAsync(eq(fileName.getFileName(1)), any(), anyLong());
+        assertEquals(content.substring(partSize, 2 * partSize), storage.writtenContent.get(fileName.getFileName(1)));
+        assertEquals(contentSize/partSize + 1, storage.writtenContent.size());
+        assertEquals(0, pool.getNumActive());
+    }
+
+    @Test
+    public void testOutputStreamClose_shouldFailIfPartUploadFailsAfterRetries() throws Exception {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new StorageException("service unavailable"));
+        doReturn(failed).when(storage).storeAsync(eq(fileName.getFileName(0)), any(), anyLong());
+
+        OutputStream out = newOutputStream(new PartUploadPolicy(2, 1, 1, 5000));
+        out.write(content.getBytes(), 0, 2 * partSize);
+        try {
+            out.close();
+            fail("close should fail when upload of a part fails");
+        }
+        catch (IOException e) {
+            assertEquals(StorageException.class, e.getCause().getClass());
+        }
+        verify(storage, times(2)).storeAsync(eq(fileName.getFileName(0)), any(), anyLong());
+        assertEquals(0, pool.getNumActive());
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream_shouldBlockWritesWhenMaxPartsAreInFlight() throws Exception {
+        CompletableFuture<Void> pendingUpload = new CompletableFuture<>();
+        doReturn(pendingUpload).when(storage).storeAsync(eq(fileName.getFileName(0)), any(), anyLong());
+
+        OutputStream out = newOutputStream(new PartUploadPolicy(1, 0, 1, 5000));
+        CountDownLatch secondPartStarted = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                out.write(content.getBytes(), 0, 2 * partSize - 1);
+                secondPartStarted.countDown();
+                // fills part 1, whose upload has to wait for part 0
+                out.write(content.getBytes(), 2 * partSize - 1, 2);
+                out.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.start();
+
+        // part 1 cannot be uploaded while part 0 is in flight
+        secondPartStarted.await();
+        Thread.sleep(100);
+        assertTrue(writer.isAlive());
+        verify(storage, never()).storeAsync(eq(fileName.getFileName(1)), any(), anyLong());
+
+        pendingUpload.complete(null);
+        writer.join();
+        verify(storage, times(1)).storeAsync(eq(fileName.getFileName(1)), any(), anyLong());
+        verify(storage, times(1)).storeAsync(eq(fileName.getFileName(2)), any(), anyLong());
+    }
+
+    @Test
+    public void testOutputStream_shouldUploadPartsAsSingleObjectWhenMultipart() throws Exception {
+        StorageBackedOutputStream out = (StorageBackedOutputStream) newOutputStream(new PartUploadPolicy(2, 0, 1, 5000, true));
+        out.write(content.getBytes());
+        out.close();
+
+        verify(storage, never()).storeAsync(eq(fileName.getFileName(1)), any(), anyLong());
+        assertEquals(1, storage.writtenContent.size());
+        assertEquals(content, storage.writtenContent.get(fileName.getFileName(0)));
+        assertEquals(Integer.MAX_VALUE, out.getPartSize());
+        assertEquals(0, pool.getNumActive());
+
+        // read as a file of a single part
+        byte[] bytes = new byte[contentSize];
+        assertEquals(contentSize, is.read(bytes));
+        assertEquals(content, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOutputStreamClose_shouldAbortMultipartUploadIfPartUploadFails() throws Exception {
+        MultipartUpload upload = mock(MultipartUpload.class);
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new StorageException("service unavailable"));
+        doReturn(CompletableFuture.completedFuture(null)).when(upload).uploadPartAsync(anyInt(), any(), anyLong());
+        doReturn(failed).when(upload).uploadPartAsync(eq(2), any(), anyLong());
+        doReturn(CompletableFuture.completedFuture(null)).when(upload).abortAsync();
+        doReturn(CompletableFuture.completedFuture(upload)).when(storage).initMultipartUploadAsync(fileName.getFileName(0));
+
+        OutputStream out = newOutputStream(new PartUploadPolicy(2, 1, 1, 5000, true));
+        out.write(content.getBytes(), 0, 3 * partSize);
+        try {
+            out.close();
+            fail("close should fail when upload of a part fails");
+        }
+        catch (IOException e) {
+            assertEquals(StorageException.class, e.getCause().getClass());
+        }
+        verify(upload, times(2)).uploadPartAsync(eq(2), any(), anyLong());
+        verify(upload).abortAsync();
+        verify(upload, never()).completeAsync();
+        assertEquals(0, pool.getNumActive());
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream_shouldChainSlabsOfGrowingSizeForAPart() throws Exception {
+        GenericObjectPoolConfig slabPoolConfig = new GenericObjectPoolConfig();
+        slabPoolConfig.setMaxTotal(10);
+        slabPoolConfig.setMaxIdle(10);
+        SizeClassedBufferPool slabPool = new SizeClassedBufferPool(4, 8, false, slabPoolConfig);
+        int slabPartSize = 50;
+        StorageBackedOutputStream out = new StorageBackedOutputStream(slabPool, slabPartSize, storage, fileName, mock(Histogram.class), mock(Meter.class),
+                mock(Timer.class), mock(Counter.class), PartUploadPolicy.DEFAULT);
+
+        // small content is held in the smallest slab
+        out.write(content.getBytes(), 0, 3);
+        assertEquals(4, slabPool.getActiveBytes());
+
+        out.write(content.getBytes(), 3, contentSize - 3);
+        out.close();
+
+        assertEquals(slabPartSize, out.getPartSize());
+        assertEquals(contentSize / slabPartSize, storage.writtenContent.size());
+        for(int i = 0; i < contentSize / slabPartSize; ++i) {
+            assertEquals(content.substring(i * slabPartSize, (i + 1) * slabPartSize), storage.writtenContent.get(fileName.getFileName(i)));
+        }
+        assertEquals(0, slabPool.getNumActive());
+        assertEquals(0, slabPool.getActiveBytes());
+    }
+
+    @Test(timeout = 5000)
+    public void testSlabPool_shouldCapBytesOfAllSizeClassesByBudget() throws Exception {
+        GenericObjectPoolConfig slabPoolConfig = new GenericObjectPoolConfig();
+        slabPoolConfig.setMaxTotal(10);
+        slabPoolConfig.setMaxIdle(10);
+        slabPoolConfig.setMaxWaitMillis(100);
+        SizeClassedBufferPool slabPool = new SizeClassedBufferPool(4, 8, false, slabPoolConfig, 12);
+
+        ByteBuffer large = slabPool.borrow(8);
+        ByteBuffer small = slabPool.borrow(4);
+        assertEquals(12, slabPool.getAllocatedBytes());
+        try {
+            slabPool.borrow(4);
+            fail("borrow beyond the budget should have failed");
+        }
+        catch (NoSuchElementException e) {
+            // expected
+        }
+        assertEquals(12, slabPool.getAllocatedBytes());
+
+        // idle slab of another size class is evicted to make room
+        slabPool.release(large);
+        ByteBuffer another = slabPool.borrow(4);
+        assertEquals(4, another.capacity());
+        assertEquals(8, slabPool.getAllocatedBytes());
+        assertEquals(0, slabPool.getIdleBytes());
+
+        // a waiting borrow proceeds once a slab is released
+        slabPool.borrow(4);
+        CompletableFuture<ByteBuffer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return slabPool.borrow(8);
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        slabPool.release(small);
+        slabPool.release(another);
+        assertEquals(8, waiting.get().capacity());
+        assertTrue(slabPool.getAllocatedBytes() <= 12);
+    }
+
     @Test
     public void testInputStream_shouldReadAllContentFromChunkedStorage() throws Exception {
         // init the storage
@@ -100,6 +293,46 @@ public class IOStreamTest {
         assertEquals(content, new String(bytes, StandardCharsets.UTF_8));
     }
 
+    @Test
+    public void testInputStream_shouldFetchPartsAheadOfTheOneBeingRead() throws Exception {
+        initStorage();
+        int partCount = storage.writtenContent.size();
+
+        InputStream in = new StorageBackedInputStream(storage, fileName, 2);
+        assertEquals(content.charAt(0), in.read());
+        verify(storage, timeout(1000)).fetch(fileName.getFileName(1));
+        verify(storage, timeout(1000)).fetch(fileName.getFileName(2));
+        verify(storage, never()).fetch(fileName.getFileName(3));
+
+        byte[] bytes = new byte[contentSize];
+        bytes[0] = (byte) content.charAt(0);
+        assertEquals(contentSize - 1, in.read(bytes, 1, contentSize - 1));
+        assertEquals(-1, in.read());
+        in.close();
+
+        assertEquals(content, new String(bytes, StandardCharsets.UTF_8));
+        // never more than 2 parts ahead of the last one
+        verify(storage, timeout(1000)).fetch(fileName.getFileName(partCount + 2));
+        verify(storage, never()).fetch(fileName.getFileName(partCount + 3));
+    }
+
+    @Test
+    public void testInputStream_shouldReadAllContentByteByByteAcrossParts() throws Exception {
+        initStorage();
+
+        InputStream in = new StorageBackedInputStream(storage, fileName, 1);
+        byte[] bytes = new byte[contentSize];
+        for(int i = 0; i < contentSize; i++) {
+            int c = in.read();
+            assertNotEquals(-1, c);
+            bytes[i] = (byte) c;
+        }
+        assertEquals(-1, in.read());
+        in.close();
+
+        assertEquals(content, new String(bytes, StandardCharsets.UTF_8));
+    }
+
     @Test
     public void testInputStream_shouldThrowUnderlyingErrorInCaseOfStorageFetchException() {
         // init the storage
@@ -190,6 +423,10 @@ public class IOStreamTest {
         verifyNoMoreInteractions(spyContent1, spyContent2);
     }
 
+    private OutputStream newOutputStream(PartUploadPolicy uploadPolicy) {
+        return new StorageBackedOutputStream(pool, storage, fileName, mock(Histogram.class), mock(Meter.class), mock(Timer.class), mock(Counter.class), uploadPolicy);
+    }
+
     private void initStorage() {
         for(int i = 0; i < contentSize/partSize; ++i) {
             String chunkedContent = content.substring(i * partSize, (i + 2) * partSize > contentSize ? contentSize : (i + 1) * partSize);
@@ -0,0 +1,112 @@
+package fk.prof.storage.test;
+
+import com.codahale.metrics.MetricRegistry;
+import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.InstrumentedAsyncStorage;
+import fk.prof.storage.MultipartUpload;
+import fk.prof.storage.StorageException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class InstrumentedStorageTest {
+
+    private MetricRegistry metricRegistry;
+    private Util.StringStorage storage;
+    private InstrumentedAsyncStorage instrumented;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        storage = Mockito.spy(new Util.StringStorage());
+        instrumented = new InstrumentedAsyncStorage(storage, metricRegistry, "storage");
+    }
+
+    @Test
+    public void testStoreAndFetch_shouldRecordLatencyAndBytes() throws Exception {
+        instrumented.storeAsync("profiles/file", new ByteArrayInputStream("content".getBytes()), 7).get();
+
+        InputStream in = instrumented.fetchAsync("profiles/file").get();
+        byte[] buf = new byte[16];
+        Assert.assertEquals(7, in.read(buf));
+        Assert.assertEquals(-1, in.read());
+        in.close();
+
+        Assert.assertEquals(1, metricRegistry.timer("storage.store.latency").getCount());
+        Assert.assertEquals(7, metricRegistry.histogram("storage.store.bytes").getSnapshot().getMax());
+        Assert.assertEquals(1, metricRegistry.timer("storage.fetch.latency").getCount());
+        Assert.assertEquals(7, metricRegistry.histogram("storage.fetch.bytes").getSnapshot().getMax());
+        Assert.assertEquals(0, metricRegistry.meter("storage.fetch.failure").getCount());
+    }
+
+    @Test
+    public void testFetch_shouldRecordFailuresAndTimeouts() throws Exception {
+        assertFails(instrumented.fetchAsync("profiles/missing"));
+
+        CompletableFuture<Void> timedOut = new CompletableFuture<>();
+        timedOut.completeExceptionally(new StorageException("request timed out", new TimeoutException(), true));
+        Mockito.doReturn(timedOut).when(storage).storeAsync(anyString(), any(), anyLong());
+        assertFails(instrumented.storeAsync("profiles/file", new ByteArrayInputStream(new byte[0]), 0));
+
+        Assert.assertEquals(1, metricRegistry.meter("storage.fetch.failure").getCount());
+        Assert.assertEquals(0, metricRegistry.meter("storage.fetch.timeout").getCount());
+        Assert.assertEquals(1, metricRegistry.meter("storage.store.failure").getCount());
+        Assert.assertEquals(1, metricRegistry.meter("storage.store.timeout").getCount());
+        Assert.assertEquals(0, metricRegistry.histogram("storage.store.bytes").getCount());
+    }
+
+    @Test
+    public void testFetch_shouldCountOperationsInFlight() throws Exception {
+        AsyncStorage pendingStorage = Mockito.mock(AsyncStorage.class);
+        CompletableFuture<InputStream> pending = new CompletableFuture<>();
+        Mockito.when(pendingStorage.fetchAsync(anyString())).thenReturn(pending);
+        MetricRegistry registry = new MetricRegistry();
+        InstrumentedAsyncStorage instrumented = new InstrumentedAsyncStorage(pendingStorage, registry, "storage");
+
+        CompletableFuture<InputStream> fetch = instrumented.fetchAsync("profiles/file");
+        Assert.assertEquals(1, registry.getGauges().get("storage.fetch.inflight").getValue());
+
+        pending.complete(new ByteArrayInputStream(new byte[0]));
+        fetch.get();
+        Assert.assertEquals(0, registry.getGauges().get("storage.fetch.inflight").getValue());
+    }
+
+    @Test
+    public void testMultipartAbort_shouldRecordLatencyAndFailures() throws Exception {
+        AsyncStorage multipartStorage = Mockito.mock(AsyncStorage.class);
+        MultipartUpload upload = Mockito.mock(MultipartUpload.class);
+        CompletableFuture<Void> failedAbort = new CompletableFuture<>();
+        failedAbort.completeExceptionally(new StorageException("abort failed"));
+        Mockito.when(upload.abortAsync()).thenReturn(CompletableFuture.completedFuture(null), failedAbort);
+        Mockito.when(multipartStorage.initMultipartUploadAsync(anyString())).thenReturn(CompletableFuture.completedFuture(upload));
+        MetricRegistry registry = new MetricRegistry();
+        InstrumentedAsyncStorage instrumented = new InstrumentedAsyncStorage(multipartStorage, registry, "storage");
+
+        MultipartUpload instrumentedUpload = instrumented.initMultipartUploadAsync("profiles/file").get();
+        instrumentedUpload.abortAsync().get();
+        assertFails(instrumentedUpload.abortAsync());
+
+        Assert.assertEquals(2, registry.timer("storage.multipart.abort.latency").getCount());
+        Assert.assertEquals(1, registry.meter("storage.multipart.abort.failure").getCount());
+    }
+
+    private void assertFails(CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            Assert.fail("operation should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        }
+    }
+}
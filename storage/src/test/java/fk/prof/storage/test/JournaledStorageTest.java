@@ -0,0 +1,203 @@
+package fk.prof.storage.test;
+
+import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.FileSystemAsyncStorage;
+import fk.prof.storage.JournaledAsyncStorage;
+import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.StorageException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class JournaledStorageTest {
+
+    @Rule
+    public TemporaryFolder journalDir = new TemporaryFolder();
+
+    @Rule
+    public TemporaryFolder quarantineDir = new TemporaryFolder();
+
+    private ExecutorService execSvc;
+
+    @Before
+    public void setUp() {
+        execSvc = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        execSvc.shutdown();
+    }
+
+    @Test(timeout = 10_000)
+    public void testStore_shouldAcknowledgeWhileRemoteIsFailingAndDrainInOrderOnceItRecovers() throws Exception {
+        InMemoryStorage remote = new InMemoryStorage(3);
+        JournaledAsyncStorage storage = new JournaledAsyncStorage(newJournal(), newQuarantine(), remote, 1024 * 1024, 10, 50, 5);
+
+        List<String> paths = Arrays.asList("profiles/file/0000", "profiles/file/0001", "profiles/file/index");
+        for (String path : paths) {
+            storage.storeAsync(path, new ByteArrayInputStream(path.getBytes()), path.length()).get();
+        }
+
+        // served from the journal until drained
+        Assert.assertEquals("profiles/file/index", read(storage.fetchAsync("profiles/file/index").get()));
+        Assert.assertEquals(3, storage.listAsync("profiles/file/", true).get().size());
+
+        awaitDrain(storage);
+        Assert.assertEquals(paths, remote.storedPaths);
+        Assert.assertEquals("profiles/file/0001", read(remote.fetchAsync("profiles/file/0001").get()));
+        Assert.assertEquals(0, storage.getJournalBytes());
+        Assert.assertTrue(newJournal().listAsync("profiles/", true).get().isEmpty());
+    }
+
+    @Test(timeout = 10_000)
+    public void testReplay_shouldDrainContentLeftInJournal() throws Exception {
+        FileSystemAsyncStorage journal = newJournal();
+        journal.storeAsync("profiles/file/0000", new ByteArrayInputStream(new byte[] {1, 2}), 2).get();
+        journal.storeAsync("profiles/file/index", new ByteArrayInputStream(new byte[] {3}), 1).get();
+
+        InMemoryStorage remote = new InMemoryStorage(0);
+        JournaledAsyncStorage storage = new JournaledAsyncStorage(newJournal(), newQuarantine(), remote, 1024 * 1024, 10, 50, 5);
+
+        awaitDrain(storage);
+        Assert.assertEquals(new ArrayList<>(Arrays.asList("profiles/file/0000", "profiles/file/index")), remote.storedPaths);
+    }
+
+    @Test(timeout = 10_000)
+    public void testStore_shouldFailWhenJournalIsFull() throws Exception {
+        InMemoryStorage remote = new InMemoryStorage(0);
+        JournaledAsyncStorage storage = new JournaledAsyncStorage(newJournal(), newQuarantine(), remote, 4, 10, 50, 5);
+
+        try {
+            storage.storeAsync("profiles/large", new ByteArrayInputStream(new byte[8]), 8).get();
+            Assert.fail("store beyond the size of the journal should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        }
+
+        // not stored out of order with the content in the journal
+        Assert.assertTrue(remote.storedPaths.isEmpty());
+        Assert.assertEquals(0, storage.getPendingCount());
+        Assert.assertEquals(0, storage.getJournalBytes());
+    }
+
+    @Test(timeout = 10_000)
+    public void testDrain_shouldMoveAsideContentFailingForMaxAttemptsAndDrainTheRest() throws Exception {
+        InMemoryStorage remote = new InMemoryStorage(0) {
+            @Override
+            public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+                if (path.equals("profiles/poison")) {
+                    CompletableFuture<Void> result = new CompletableFuture<>();
+                    result.completeExceptionally(new StorageException("rejected"));
+                    return result;
+                }
+                return super.storeAsync(path, content, length);
+            }
+        };
+        JournaledAsyncStorage storage = new JournaledAsyncStorage(newJournal(), newQuarantine(), remote, 1024 * 1024, 1, 5, 3);
+
+        List<String> paths = Arrays.asList("profiles/before", "profiles/poison", "profiles/after");
+        for (String path : paths) {
+            storage.storeAsync(path, new ByteArrayInputStream(path.getBytes()), path.length()).get();
+        }
+
+        awaitDrain(storage);
+        Assert.assertEquals(Arrays.asList("profiles/before", "profiles/after"), remote.storedPaths);
+        Assert.assertEquals(1, storage.getQuarantinedCount());
+        Assert.assertEquals(0, storage.getJournalBytes());
+        Assert.assertTrue(newJournal().listAsync("profiles/", true).get().isEmpty());
+        Assert.assertEquals("profiles/poison", read(newQuarantine().fetchAsync("profiles/poison").get()));
+    }
+
+    private FileSystemAsyncStorage newJournal() throws IOException {
+        return new FileSystemAsyncStorage(journalDir.getRoot().toPath(), execSvc, FileSystemAsyncStorage.FsyncPolicy.FILE);
+    }
+
+    private FileSystemAsyncStorage newQuarantine() throws IOException {
+        return new FileSystemAsyncStorage(quarantineDir.getRoot().toPath(), execSvc, FileSystemAsyncStorage.FsyncPolicy.FILE);
+    }
+
+    private void awaitDrain(JournaledAsyncStorage storage) throws InterruptedException {
+        while (storage.getPendingCount() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private String read(InputStream in) throws IOException {
+        byte[] content = new byte[in.available()];
+        int read = in.read(content);
+        in.close();
+        return new String(content, 0, read);
+    }
+
+    /**
+     * Fails the first few stores, records the order of the successful ones.
+     */
+    private static class InMemoryStorage implements AsyncStorage {
+        final Map<String, byte[]> data = new ConcurrentHashMap<>();
+        final List<String> storedPaths = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger failuresLeft;
+
+        InMemoryStorage(int failures) {
+            this.failuresLeft = new AtomicInteger(failures);
+        }
+
+        @Override
+        public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            try (InputStream in = content) {
+                if (failuresLeft.getAndDecrement() > 0) {
+                    throw new StorageException("remote is unavailable");
+                }
+                byte[] bytes = new byte[(int) length];
+                int read = 0;
+                while (read < length) {
+                    read += in.read(bytes, read, (int) length - read);
+                }
+                data.put(path, bytes);
+                storedPaths.add(path);
+                result.complete(null);
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<InputStream> fetchAsync(String path) {
+            CompletableFuture<InputStream> result = new CompletableFuture<>();
+            byte[] bytes = data.get(path);
+            if (bytes == null) {
+                result.completeExceptionally(new ObjectNotFoundException(path));
+            } else {
+                result.complete(new ByteArrayInputStream(bytes));
+            }
+            return result;
+        }
+
+        @Override
+        public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
+            return CompletableFuture.completedFuture(data.keySet().stream().filter(path -> path.startsWith(prefixPath)).collect(Collectors.toSet()));
+        }
+    }
+}
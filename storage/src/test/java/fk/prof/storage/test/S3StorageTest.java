@@ -2,15 +2,19 @@ package fk.prof.storage.test;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
+import fk.prof.storage.MultipartUpload;
 import fk.prof.storage.S3AsyncStorage;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * Created by gaurav.ashok on 28/04/17.
@@ -58,6 +62,41 @@ public class S3StorageTest {
         Assert.assertEquals(2, result.size());
     }
 
+    @Test
+    public void testMultipartUpload_shouldCompleteWithPartsInOrderOfPartNumbers() throws Exception {
+        ExecutorService execSvc = Executors.newFixedThreadPool(2);
+        AmazonS3 client = Mockito.mock(AmazonS3.class);
+        InitiateMultipartUploadResult initResult = new InitiateMultipartUploadResult();
+        initResult.setUploadId("upload-1");
+        Mockito.when(client.initiateMultipartUpload(ArgumentMatchers.any())).thenReturn(initResult);
+        Mockito.when(client.uploadPart(ArgumentMatchers.any())).thenAnswer(inv -> {
+            UploadPartRequest request = inv.getArgument(0);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+
+        S3AsyncStorage storage = new S3AsyncStorage(client, execSvc, 500);
+        MultipartUpload upload = storage.initMultipartUploadAsync(baseS3Bucket + "/file/0000").get();
+        // uploaded out of order
+        upload.uploadPartAsync(2, new ByteArrayInputStream(new byte[] {2}), 1).get();
+        upload.uploadPartAsync(1, new ByteArrayInputStream(new byte[] {1}), 1).get();
+        upload.completeAsync().get();
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completion = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(client).completeMultipartUpload(completion.capture());
+        Assert.assertEquals(baseS3Bucket, completion.getValue().getBucketName());
+        Assert.assertEquals("file/0000", completion.getValue().getKey());
+        Assert.assertEquals("upload-1", completion.getValue().getUploadId());
+        Assert.assertEquals(Arrays.asList(1, 2), completion.getValue().getPartETags().stream().map(PartETag::getPartNumber).collect(Collectors.toList()));
+        Assert.assertEquals("etag-1", completion.getValue().getPartETags().get(0).getETag());
+
+        upload.abortAsync().get();
+        Mockito.verify(client).abortMultipartUpload(ArgumentMatchers.any());
+        execSvc.shutdown();
+    }
+
     private void mockTruncatedResponse(AmazonS3 client, int takeTimeInSec) {
         S3ObjectSummary summary1 = getObjSummary("file/1");
         S3ObjectSummary summary2 = getObjSummary("file/2");
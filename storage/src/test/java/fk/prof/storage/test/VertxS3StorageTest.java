@@ -0,0 +1,269 @@
+package fk.prof.storage.test;
+
+import fk.prof.storage.MultipartUpload;
+import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.StorageException;
+import fk.prof.storage.VertxS3AsyncStorage;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Tests {@link VertxS3AsyncStorage} against an in-process stand-in of the S3 REST API.
+ */
+public class VertxS3StorageTest {
+
+    private static final String BUCKET = "profiles";
+
+    private Vertx vertx;
+    private ExecutorService callbackExecutor;
+    private FakeS3 s3;
+    private VertxS3AsyncStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        callbackExecutor = Executors.newFixedThreadPool(2);
+        s3 = new FakeS3();
+        int port = s3.start(vertx);
+        storage = new VertxS3AsyncStorage(vertx, "http://127.0.0.1:" + port, "access", "secret", "us-east-1", 4, 10_000, 5_000, callbackExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        vertx.close(ar -> closed.complete(null));
+        closed.get(5, TimeUnit.SECONDS);
+        callbackExecutor.shutdown();
+    }
+
+    @Test(timeout = 20_000)
+    public void testStoreAndFetch_shouldStreamContentAndRangesOfIt() throws Exception {
+        // larger than the chunks of the request and the buffered part of the response
+        byte[] content = new byte[3 * 1024 * 1024 + 7];
+        new Random(7).nextBytes(content);
+        String path = BUCKET + "/v0001/MFYHAMI=/2017-01-20T12:37:20.551+05:30/1800/summary/0000";
+
+        storage.storeAsync(path, new ByteArrayInputStream(content), content.length).get();
+
+        Assert.assertArrayEquals(content, s3.objects.get(path));
+        Assert.assertArrayEquals(content, read(storage.fetchAsync(path).get()));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 70_000, 71_000), read(storage.fetchAsync(path, 70_000, 1000).get()));
+
+        String authorization = s3.lastAuthorization;
+        Assert.assertTrue(authorization, authorization.startsWith("AWS4-HMAC-SHA256 Credential=access/"));
+        Assert.assertTrue(authorization, authorization.contains("/us-east-1/s3/aws4_request, SignedHeaders="));
+    }
+
+    @Test(timeout = 10_000)
+    public void testFetch_shouldFailWithObjectNotFoundForMissingObject() throws Exception {
+        try {
+            storage.fetchAsync(BUCKET + "/missing").get();
+            Assert.fail("fetch of missing object should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ObjectNotFoundException);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testListObjects_shouldFollowContinuationOfTruncatedListing() throws Exception {
+        for (String key : Arrays.asList("a/1/x", "a/1/y", "a/2/x", "a/3/x", "a/3/y", "b/1/x")) {
+            byte[] bytes = key.getBytes();
+            storage.storeAsync(BUCKET + "/" + key, new ByteArrayInputStream(bytes), bytes.length).get();
+        }
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(BUCKET + "/a/1/x", BUCKET + "/a/1/y", BUCKET + "/a/2/x", BUCKET + "/a/3/x", BUCKET + "/a/3/y")),
+                storage.listAsync(BUCKET + "/a/", true).get());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(BUCKET + "/a/1/", BUCKET + "/a/2/", BUCKET + "/a/3/")),
+                storage.listAsync(BUCKET + "/a/", false).get());
+        Assert.assertTrue(s3.listPages > 2);
+    }
+
+    @Test(timeout = 10_000)
+    public void testMultipartUpload_shouldCompleteWithPartsInOrderOfTheirNumbers() throws Exception {
+        String path = BUCKET + "/multipart";
+        MultipartUpload upload = storage.initMultipartUploadAsync(path).get();
+
+        upload.uploadPartAsync(2, new ByteArrayInputStream("world".getBytes()), 5).get();
+        upload.uploadPartAsync(1, new ByteArrayInputStream("hello ".getBytes()), 6).get();
+        Assert.assertFalse(s3.objects.containsKey(path));
+
+        upload.completeAsync().get();
+        Assert.assertEquals("hello world", new String(read(storage.fetchAsync(path).get())));
+    }
+
+    @Test(timeout = 10_000)
+    public void testFetch_shouldFailInsteadOfHangingWhenCallbackExecutorRejects() throws Exception {
+        String path = BUCKET + "/rejected";
+        storage.storeAsync(path, new ByteArrayInputStream("content".getBytes()), 7).get();
+
+        ExecutorService rejectingExecutor = Executors.newSingleThreadExecutor();
+        rejectingExecutor.shutdown();
+        VertxS3AsyncStorage rejectingStorage = new VertxS3AsyncStorage(vertx, "http://127.0.0.1:" + s3.port, "access", "secret", "us-east-1", 4,
+                10_000, 5_000, rejectingExecutor);
+        try {
+            rejectingStorage.fetchAsync(path).get();
+            Assert.fail("fetch should fail when its completion is rejected");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageException);
+        } finally {
+            rejectingStorage.close();
+        }
+    }
+
+    private byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Serves the subset of the S3 REST API used by the storage, with listings of at most 2 keys per page.
+     */
+    private static class FakeS3 {
+        private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag>");
+
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+        volatile String lastAuthorization;
+        volatile int listPages = 0;
+        int port;
+
+        int start(Vertx vertx) throws Exception {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            HttpServer server = vertx.createHttpServer().requestHandler(req -> req.bodyHandler(body -> handle(req, body)));
+            CompletableFuture<Void> listening = new CompletableFuture<>();
+            server.listen(port, "127.0.0.1", ar -> {
+                if (ar.succeeded()) {
+                    listening.complete(null);
+                } else {
+                    listening.completeExceptionally(ar.cause());
+                }
+            });
+            listening.get(5, TimeUnit.SECONDS);
+            return port;
+        }
+
+        private void handle(HttpServerRequest req, Buffer body) {
+            lastAuthorization = req.getHeader("authorization");
+            try {
+                String path = URLDecoder.decode(req.path().substring(1), "UTF-8");
+                MultiMap params = req.params();
+
+                if (req.method() == HttpMethod.GET && params.contains("list-type")) {
+                    list(req, path, params);
+                } else if (req.method() == HttpMethod.PUT && params.contains("uploadId")) {
+                    uploads.get(params.get("uploadId")).put(Integer.parseInt(params.get("partNumber")), body.getBytes());
+                    req.response().putHeader("ETag", "\"etag-" + params.get("partNumber") + "\"").end();
+                } else if (req.method() == HttpMethod.PUT) {
+                    objects.put(path, body.getBytes());
+                    req.response().end();
+                } else if (req.method() == HttpMethod.POST && params.contains("uploads")) {
+                    String uploadId = UUID.randomUUID().toString();
+                    uploads.put(uploadId, new ConcurrentHashMap<>());
+                    req.response().end("<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+                } else if (req.method() == HttpMethod.POST && params.contains("uploadId")) {
+                    Map<Integer, byte[]> parts = uploads.remove(params.get("uploadId"));
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    Matcher part = PART.matcher(body.toString());
+                    while (part.find()) {
+                        content.write(parts.get(Integer.parseInt(part.group(1))));
+                    }
+                    objects.put(path, content.toByteArray());
+                    req.response().end("<CompleteMultipartUploadResult></CompleteMultipartUploadResult>");
+                } else if (req.method() == HttpMethod.DELETE && params.contains("uploadId")) {
+                    uploads.remove(params.get("uploadId"));
+                    req.response().setStatusCode(204).end();
+                } else if (req.method() == HttpMethod.GET) {
+                    get(req, path);
+                } else {
+                    req.response().setStatusCode(405).end();
+                }
+            } catch (Exception e) {
+                req.response().setStatusCode(500).end("<Error><Code>InternalError</Code></Error>");
+            }
+        }
+
+        private void get(HttpServerRequest req, String path) {
+            byte[] content = objects.get(path);
+            if (content == null) {
+                req.response().setStatusCode(404).end("<Error><Code>NoSuchKey</Code></Error>");
+                return;
+            }
+            String range = req.getHeader("range");
+            if (range == null) {
+                req.response().end(Buffer.buffer(content));
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bounds[0]), end = Integer.parseInt(bounds[1]);
+            req.response().setStatusCode(206).end(Buffer.buffer(Arrays.copyOfRange(content, start, end + 1)));
+        }
+
+        private void list(HttpServerRequest req, String bucket, MultiMap params) {
+            listPages++;
+            String prefix = params.get("prefix");
+            String delimiter = params.get("delimiter");
+            String after = params.get("continuation-token");
+
+            // keys and common prefixes in order, each listed once
+            TreeSet<String> entries = new TreeSet<>();
+            for (String path : objects.keySet()) {
+                String key = path.substring(bucket.length() + 1);
+                if (!key.startsWith(prefix)) {
+                    continue;
+                }
+                int delimiterIdx = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+                entries.add(delimiterIdx == -1 ? key : key.substring(0, delimiterIdx + 1));
+            }
+            List<String> page = (after == null ? entries : entries.tailSet(after, false)).stream().limit(2).collect(Collectors.toList());
+            boolean truncated = !page.isEmpty() && !entries.last().equals(page.get(page.size() - 1));
+
+            StringBuilder result = new StringBuilder("<ListBucketResult><Prefix>" + prefix + "</Prefix>");
+            for (String entry : page) {
+                if (entry.endsWith("/")) {
+                    result.append("<CommonPrefixes><Prefix>").append(entry).append("</Prefix></CommonPrefixes>");
+                } else {
+                    result.append("<Contents><Key>").append(entry).append("</Key></Contents>");
+                }
+            }
+            result.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+            if (truncated) {
+                result.append("<NextContinuationToken>").append(page.get(page.size() - 1)).append("</NextContinuationToken>");
+            }
+            req.response().end(result.append("</ListBucketResult>").toString());
+        }
+    }
+}
@@ -8,6 +8,7 @@ import io.vertx.core.json.JsonObject;
 
 import javax.validation.Valid;
 import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.Map;
 
@@ -60,6 +61,10 @@ public class Configuration {
     @JsonProperty("aggregatedProfiles.baseDir")
     private String profilesBaseDir;
 
+    @Valid
+    @JsonProperty("rollup")
+    private RollupConfig rollupConfig = new RollupConfig();
+
     public VertxOptions getVertxOptions() {
         return vertxOptions;
     }
@@ -105,6 +110,10 @@ public class Configuration {
         return profilesBaseDir;
     }
 
+    public RollupConfig getRollupConfig() {
+        return rollupConfig;
+    }
+
     private void setVertxOptions(Map<String, Object> vertxOptionsMap) {
         this.vertxOptions = new VertxOptions(new JsonObject(vertxOptionsMap));
     }
@@ -141,23 +150,63 @@ public class Configuration {
     }
 
     public static class StorageConfig {
-        @NotNull
+        //Either of s3 or local is to be configured, local takes precedence if both are
         @Valid
         @JsonProperty("s3")
         private S3Config s3Config;
 
+        @Valid
+        @JsonProperty("local")
+        private LocalConfig localConfig;
+
         @NotNull
         @Valid
         @JsonProperty("thread.pool")
         private FixedSizeThreadPoolConfig tpConfig;
 
+        //Parts of a file fetched ahead of the part being read, while loading files which are read sequentially
+        @Min(0)
+        @JsonProperty("prefetch.parts")
+        private Integer prefetchParts = 2;
+
+        //Threads dedicated to decompressing and parsing sections of files being loaded
+        @Min(1)
+        @JsonProperty("loader.threads")
+        private Integer loaderThreads = 4;
+
+        //Sections of a file fetched and held in memory at a time before being parsed, while loading indexed files
+        @Min(1)
+        @JsonProperty("loader.sections.in.flight")
+        private Integer loaderSectionsInFlight = 4;
+
         public S3Config getS3Config() {
             return s3Config;
         }
 
+        public LocalConfig getLocalConfig() {
+            return localConfig;
+        }
+
+        @AssertTrue(message = "either s3 or local storage is to be configured")
+        private boolean isStorageConfigured() {
+            return s3Config != null || localConfig != null;
+        }
+
         public FixedSizeThreadPoolConfig getTpConfig() {
             return tpConfig;
         }
+
+        public Integer getPrefetchParts() {
+            return prefetchParts;
+        }
+
+        public Integer getLoaderThreads() {
+            return loaderThreads;
+        }
+
+        public Integer getLoaderSectionsInFlight() {
+            return loaderSectionsInFlight;
+        }
     }
 
     public static class S3Config {
@@ -176,6 +225,21 @@ public class Configuration {
         @JsonProperty("list.objects.timeout.ms")
         private Long listObjectsTimeoutMs;
 
+        // if true, S3 is accessed over the non blocking vertx http client instead of the blocking sdk client on the thread pool
+        @JsonProperty("nonblocking")
+        private Boolean nonBlocking = false;
+
+        @JsonProperty("region")
+        private String region = "us-east-1";
+
+        @Min(1)
+        @JsonProperty("max.connections")
+        private Integer maxConnections = 100;
+
+        @Min(1)
+        @JsonProperty("request.timeout.ms")
+        private Long requestTimeoutMs = 30000L;
+
         public String getEndpoint() {
             return endpoint;
         }
@@ -191,6 +255,32 @@ public class Configuration {
         public Long getListObjectsTimeoutMs() {
             return listObjectsTimeoutMs;
         }
+
+        public Boolean isNonBlocking() {
+            return nonBlocking;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public Integer getMaxConnections() {
+            return maxConnections;
+        }
+
+        public Long getRequestTimeoutMs() {
+            return requestTimeoutMs;
+        }
+    }
+
+    public static class LocalConfig {
+        @NotNull
+        @JsonProperty("root.dir")
+        private String rootDir;
+
+        public String getRootDir() {
+            return rootDir;
+        }
     }
 
     public static class BackendConfig {
@@ -247,6 +337,54 @@ public class Configuration {
         }
     }
 
+    /**
+     * Config of compaction of aggregation windows into hourly and daily rollups, run by {@link ProfileCompactionApplication}
+     */
+    public static class RollupConfig {
+        //Time after the end of an hour after which it is compacted, so that windows which started in it have been stored
+        @Min(0)
+        @JsonProperty("delay.mins")
+        private Integer delayMins = 10;
+
+        //Time after the end of a compacted day till which windows stored in it late are looked for, and merged into its rollups
+        @Min(0)
+        @JsonProperty("late.window.horizon.hours")
+        private Integer lateWindowHorizonHours = 48;
+
+        @Min(1)
+        @JsonProperty("storage.timeout.ms")
+        private Long storageTimeoutMs = 30000L;
+
+        @Min(64 * 1024)
+        @JsonProperty("part.size")
+        private Integer partSize = 8 * 1024 * 1024;
+
+        //Local file locked while compaction runs, so that overlapping runs on a host do not compact concurrently
+        @NotNull
+        @JsonProperty("lock.file")
+        private String lockFile = "/tmp/fkprof-rollup-compaction.lock";
+
+        public Integer getDelayMins() {
+            return delayMins;
+        }
+
+        public Integer getLateWindowHorizonHours() {
+            return lateWindowHorizonHours;
+        }
+
+        public Long getStorageTimeoutMs() {
+            return storageTimeoutMs;
+        }
+
+        public Integer getPartSize() {
+            return partSize;
+        }
+
+        public String getLockFile() {
+            return lockFile;
+        }
+    }
+
     public static class FixedSizeThreadPoolConfig {
         @NotNull
         @JsonProperty("coresize")
@@ -284,6 +422,9 @@ public class Configuration {
     @AssertTrue(message = "request timeout must be greater than listObject timeout")
     private boolean isListTimeoutValid() {
         Long requestTimeout = httpConfig.requestTimeout;
+        if (storageConfig.s3Config == null) {
+            return true;
+        }
         Long ListObjectTimeout = storageConfig.s3Config.listObjectsTimeoutMs;
         return requestTimeout > ListObjectTimeout;
     }
@@ -36,7 +36,9 @@ public abstract class Deserializer<T> {
         int chksmValue = (int)checksum.getValue();
         int expectedChksmValue = readVariantInt32(cin);
 
-        assert chksmValue == expectedChksmValue : "Checksum did not match for " + tag;
+        if(chksmValue != expectedChksmValue) {
+            throw new IOException("Checksum did not match for " + tag);
+        }
 
         return msg;
     }
@@ -0,0 +1,52 @@
+package fk.prof.userapi;
+
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.apache.commons.cli.*;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Runs a single compaction of aggregation windows into hourly and daily rollups with the userapi configuration and exits. It is the only
+ * way compaction is run, as rollups are read and rewritten without coordination among processes, so it is to be scheduled on a single
+ * host, e.g. by cron. Run holds a lock on the configured lock file throughout, so that a run which overlaps a slow earlier one exits
+ * without compacting.
+ */
+public class ProfileCompactionApplication {
+  private static Logger logger = LoggerFactory.getLogger(ProfileCompactionApplication.class);
+
+  public static void main(String[] args) throws Exception {
+    UserapiConfigManager.setDefaultSystemProperties();
+    CommandLineParser parser = new DefaultParser();
+    Options options = new Options();
+    options.addOption(Option.builder("c")
+        .longOpt("conf")
+        .required()
+        .hasArg()
+        .optionalArg(false)
+        .desc("specifies json file to be used as configuration for vertx")
+        .argName("json file")
+        .build());
+
+    CommandLine cmd = parser.parse(options, args);
+    String confPath = cmd.getOptionValue("c");
+
+    Configuration config = UserapiConfigManager.loadConfig(confPath);
+    try (FileChannel lockChannel = FileChannel.open(Paths.get(config.getRollupConfig().getLockFile()), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+         FileLock lock = lockChannel.tryLock()) {
+      if (lock == null) {
+        logger.warn("Not compacting, as another compaction holds the lock file: " + config.getRollupConfig().getLockFile());
+        return;
+      }
+      UserapiManager userapiManager = new UserapiManager(config);
+      try {
+        logger.info("Compaction stored " + userapiManager.compactOnce() + " rollups");
+      } finally {
+        userapiManager.close();
+      }
+    }
+  }
+}
@@ -10,9 +10,19 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.base.Preconditions;
+import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.model.AggregationWindowStorage;
+import fk.prof.storage.CompressionCodec;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.FileSystemAsyncStorage;
+import fk.prof.storage.InstrumentedAsyncStorage;
 import fk.prof.storage.S3AsyncStorage;
 import fk.prof.storage.S3ClientFactory;
+import fk.prof.storage.VertxS3AsyncStorage;
+import fk.prof.storage.buffer.PartUploadPolicy;
+import fk.prof.storage.buffer.SizeClassedBufferPool;
+import fk.prof.userapi.api.AggregatedProfileCompactor;
+import fk.prof.userapi.api.AggregatedProfileLoader;
 import fk.prof.userapi.api.ProfileStoreAPI;
 import fk.prof.userapi.api.ProfileStoreAPIImpl;
 import fk.prof.userapi.deployer.VerticleDeployer;
@@ -28,7 +38,12 @@ import io.vertx.core.metrics.MetricsOptions;
 import io.vertx.ext.dropwizard.DropwizardMetricsOptions;
 import io.vertx.ext.dropwizard.Match;
 import io.vertx.ext.dropwizard.MatchType;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZonedDateTime;
 import java.util.concurrent.*;
 
 import static fk.prof.userapi.http.UserapiApiPathConstants.*;
@@ -39,7 +54,9 @@ public class UserapiManager {
     private final Vertx vertx;
     private final Configuration config;
     private AsyncStorage storage;
+    private ExecutorService loaderExecSvc;
     private MetricRegistry metricRegistry;
+    private AggregatedProfileCompactor compactor;
 
     public UserapiManager(String configFilePath) throws Exception {
         this(UserapiConfigManager.loadConfig(configFilePath));
@@ -55,9 +72,11 @@ public class UserapiManager {
         this.metricRegistry = SharedMetricRegistries.getOrCreate(UserapiConfigManager.METRIC_REGISTRY);
 
         initStorage();
+        initLoaderExecutor();
     }
 
     public Future<Void> close() {
+        loaderExecSvc.shutdown();
         Future future = Future.future();
         vertx.close(closeResult -> {
             if (closeResult.succeeded()) {
@@ -78,7 +97,8 @@ public class UserapiManager {
         registerSerializers(Json.mapper);
         registerSerializers(Json.prettyMapper);
 
-        ProfileStoreAPI profileStoreAPI = new ProfileStoreAPIImpl(vertx, this.storage, config.getProfileRetentionDurationMin(), config.getProfileLoadTimeout(), config.getVertxWorkerPoolSize());
+        ProfileStoreAPI profileStoreAPI = new ProfileStoreAPIImpl(vertx, this.storage, config.getProfileRetentionDurationMin(), config.getProfileLoadTimeout(), config.getVertxWorkerPoolSize(),
+            buildLoader());
         VerticleDeployer userapiHttpVerticleDeployer = new UserapiHttpVerticleDeployer(vertx, config, profileStoreAPI);
 
         userapiHttpVerticleDeployer.deploy().setHandler(verticleDeployCompositeResult -> {
@@ -92,6 +112,18 @@ public class UserapiManager {
         return result;
     }
 
+    /**
+     * Compacts aggregation windows into hourly and daily rollups, for all process groups which are due to be compacted. Blocks till done.
+     * Not run by the userapi daemon, as compaction is to be run by a single process at a time, see {@link ProfileCompactionApplication}.
+     * @return count of the rollups stored
+     */
+    public int compactOnce() throws IOException {
+        if (compactor == null) {
+            initCompactor();
+        }
+        return compactor.compact(ZonedDateTime.now());
+    }
+
     private void registerSerializers(ObjectMapper mapper) {
         // protobuf
         ProtoSerializers.registerSerializers(mapper);
@@ -103,7 +135,7 @@ public class UserapiManager {
         mapper.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
     }
 
-    private void initStorage() {
+    private void initStorage() throws IOException {
         Configuration.FixedSizeThreadPoolConfig threadPoolConfig = config.getStorageConfig().getTpConfig();
         Meter threadPoolRejectionsMtr = metricRegistry.meter(MetricRegistry.name(AsyncStorage.class, "threadpool.rejections"));
 
@@ -115,8 +147,43 @@ public class UserapiManager {
             metricRegistry, "executors.fixed_thread_pool.storage");
 
         Configuration.S3Config s3Config = config.getStorageConfig().getS3Config();
-        this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
-            storageExecSvc, s3Config.getListObjectsTimeoutMs());
+        Configuration.LocalConfig localConfig = config.getStorageConfig().getLocalConfig();
+        if (localConfig != null) {
+            // userapi only writes rollups, which are synced so that a rollup in a manifest is not lost with the host
+            this.storage = new FileSystemAsyncStorage(Paths.get(localConfig.getRootDir()), storageExecSvc, FileSystemAsyncStorage.FsyncPolicy.FILE);
+        } else if (s3Config.isNonBlocking()) {
+            // thread pool only runs the callbacks, requests in flight do not hold its threads
+            this.storage = new VertxS3AsyncStorage(vertx, s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey(), s3Config.getRegion(),
+                s3Config.getMaxConnections(), s3Config.getRequestTimeoutMs(), s3Config.getListObjectsTimeoutMs(), storageExecSvc);
+        } else {
+            this.storage = new S3AsyncStorage(S3ClientFactory.create(s3Config.getEndpoint(), s3Config.getAccessKey(), s3Config.getSecretKey()),
+                storageExecSvc, s3Config.getListObjectsTimeoutMs());
+        }
+        this.storage = new InstrumentedAsyncStorage(this.storage, metricRegistry, MetricRegistry.name(AsyncStorage.class));
+    }
+
+    private void initLoaderExecutor() {
+        // sections of files are parsed on a pool of its own, blocking work of loads does not starve other users of a shared pool
+        this.loaderExecSvc = new InstrumentedExecutorService(Executors.newFixedThreadPool(config.getStorageConfig().getLoaderThreads()),
+            metricRegistry, "executors.fixed_thread_pool.loader");
+    }
+
+    private AggregatedProfileLoader buildLoader() {
+        Configuration.StorageConfig storageConfig = config.getStorageConfig();
+        return new AggregatedProfileLoader(storage, loaderExecSvc, storageConfig.getPrefetchParts(), storageConfig.getLoaderSectionsInFlight());
+    }
+
+    private void initCompactor() {
+        Configuration.RollupConfig rollupConfig = config.getRollupConfig();
+        String baseDir = config.getProfilesBaseDir();
+        // rollups are stored one at a time, so a single slab of every size class is retained
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxIdle(1);
+        SizeClassedBufferPool slabPool = new SizeClassedBufferPool(64 * 1024, rollupConfig.getPartSize(), false, poolConfig);
+        AggregationWindowStorage rollupStorage = new AggregationWindowStorage(AggregatedProfileNamingStrategy.getRollupBaseDir(baseDir), storage,
+            slabPool, rollupConfig.getPartSize(), metricRegistry, CompressionCodec.GZIP, PartUploadPolicy.DEFAULT, false);
+        this.compactor = new AggregatedProfileCompactor(baseDir, storage, buildLoader(), rollupStorage, Duration.ofMinutes(rollupConfig.getDelayMins()),
+            Duration.ofHours(rollupConfig.getLateWindowHorizonHours()), rollupConfig.getStorageTimeoutMs());
     }
 
 
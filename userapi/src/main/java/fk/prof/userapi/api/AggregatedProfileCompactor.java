@@ -0,0 +1,368 @@
+package fk.prof.userapi.api;
+
+import com.google.common.io.BaseEncoding;
+import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.model.AggregationWindowRollup;
+import fk.prof.aggregation.model.AggregationWindowStorage;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.storage.AsyncStorage;
+import fk.prof.userapi.model.AggregatedCpuSamplesData;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+import fk.prof.userapi.model.AggregationWindowSummary;
+import io.vertx.core.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Compacts aggregation windows of process groups into hourly and daily rollups, so that a long time range is loaded as a single profile
+ * instead of as every window in it. Rollups are stored like aggregation windows, manifests included, under the rollup base dir of the
+ * windows, see {@link AggregatedProfileNamingStrategy#getRollupBaseDir(String)}.
+ * Windows of an hour are merged into its rollup once the hour has ended and the compaction delay has passed, so that windows which started
+ * in the hour have been stored. Hourly rollups of a day are merged into its rollup once the day has ended, instead of the windows of the
+ * day. Manifest entry of a rollup records the count of windows merged into it, so an hour in which windows were stored after it was
+ * compacted, e.g. by a backend recovering them from checkpoints, is compacted again, and so is its day. Days which ended longer than the
+ * late window horizon ago are not checked for such windows.
+ * Windows are discovered from the manifests of the process groups, so windows stored before manifests were introduced are not compacted.
+ * Windows are retained once compacted, as the listing of profiles is served from them.
+ * Rollups are read and rewritten without coordination, so compaction is expected to be run by a single process at a time, see
+ * {@link fk.prof.userapi.ProfileCompactionApplication}. Files are loaded on the calling thread, so it is expected to be run on a thread
+ * which can block.
+ */
+public class AggregatedProfileCompactor {
+    private static Logger LOGGER = LoggerFactory.getLogger(AggregatedProfileCompactor.class);
+
+    private static final String DELIMITER = "/";
+    private static final String MANIFESTS_DIR = "manifests";
+    private static final int HOUR_IN_SECS = 3600;
+    private static final int DAY_IN_SECS = 24 * HOUR_IN_SECS;
+
+    private final String baseDir;
+    private final String rollupBaseDir;
+    private final AsyncStorage storage;
+    private final AggregatedProfileLoader loader;
+    private final AggregationWindowStorage rollupStorage;
+    private final Duration compactionDelay;
+    private final Duration lateWindowHorizon;
+    private final long storageTimeoutMs;
+
+    /**
+     * @param baseDir base dir of the aggregation windows
+     * @param rollupStorage storage of aggregation windows under the rollup base dir of baseDir
+     * @param compactionDelay time after the end of an hour or a day after which it is compacted
+     * @param lateWindowHorizon time after the end of a compacted day till which its hours are checked for windows stored after they were
+     *                          compacted
+     * @param storageTimeoutMs timeout of every fetch or listing
+     */
+    public AggregatedProfileCompactor(String baseDir, AsyncStorage storage, AggregatedProfileLoader loader, AggregationWindowStorage rollupStorage,
+                                      Duration compactionDelay, Duration lateWindowHorizon, long storageTimeoutMs) {
+        this.baseDir = baseDir;
+        this.rollupBaseDir = AggregatedProfileNamingStrategy.getRollupBaseDir(baseDir);
+        this.storage = storage;
+        this.loader = loader;
+        this.rollupStorage = rollupStorage;
+        this.compactionDelay = compactionDelay;
+        this.lateWindowHorizon = lateWindowHorizon;
+        this.storageTimeoutMs = storageTimeoutMs;
+    }
+
+    /**
+     * Compacts the hours and days of all process groups which are due to be compacted by the given time. Failure to compact a process
+     * group is logged and does not stop the compaction of the rest.
+     * @return count of the rollups stored
+     */
+    public int compact(ZonedDateTime now) throws IOException {
+        int rollupCount = 0;
+        for (ProcessGroup processGroup : listProcessGroups()) {
+            try {
+                rollupCount += compact(processGroup, now);
+            }
+            catch (InterruptedIOException e) {
+                throw e;
+            }
+            catch (IOException | RuntimeException e) {
+                LOGGER.error("Compaction failed for process group: " + processGroup, e);
+            }
+        }
+        return rollupCount;
+    }
+
+    /**
+     * @return count of the rollups stored
+     */
+    public int compact(ProcessGroup processGroup, ZonedDateTime now) throws IOException {
+        ZonedDateTime compactedBefore = now.withZoneSameInstant(ZoneOffset.UTC).minus(compactionDelay);
+        int rollupCount = 0;
+        for (LocalDate date : listManifestDates(processGroup)) {
+            ZonedDateTime dayStart = date.atStartOfDay(ZoneOffset.UTC);
+            ZonedDateTime dayEnd = dayStart.plusDays(1);
+            if (!dayStart.isBefore(compactedBefore.truncatedTo(ChronoUnit.HOURS))) {
+                continue;
+            }
+            // listed instead of reading the rollups, as most days are past the horizon
+            if (dayEnd.plus(lateWindowHorizon).isBefore(compactedBefore) && isDayCompacted(processGroup, dayStart)) {
+                continue;
+            }
+            AggregatedProfileModel.ProfilesManifest rollups = fetchManifest(rollupBaseDir, processGroup, date);
+            rollupCount += compactHours(processGroup, date, rollups, compactedBefore);
+            if (!dayEnd.isAfter(compactedBefore)) {
+                rollupCount += compactDay(processGroup, date);
+            }
+        }
+        return rollupCount;
+    }
+
+    /**
+     * Hours which have not been compacted yet, or in which windows were stored after they were compacted, are compacted.
+     */
+    private int compactHours(ProcessGroup processGroup, LocalDate date, AggregatedProfileModel.ProfilesManifest rollups,
+                             ZonedDateTime compactedBefore) throws IOException {
+        // windows of the day by the hour they started in
+        Map<ZonedDateTime, List<AggregatedProfileModel.ProfilesManifest.Entry>> windowsByHour = new TreeMap<>();
+        for (AggregatedProfileModel.ProfilesManifest.Entry entry : fetchManifest(baseDir, processGroup, date).getEntriesList()) {
+            ZonedDateTime hour = getStartTime(entry).withZoneSameInstant(ZoneOffset.UTC).truncatedTo(ChronoUnit.HOURS);
+            windowsByHour.computeIfAbsent(hour, k -> new ArrayList<>()).add(entry);
+        }
+
+        int rollupCount = 0;
+        for (Map.Entry<ZonedDateTime, List<AggregatedProfileModel.ProfilesManifest.Entry>> windows : windowsByHour.entrySet()) {
+            ZonedDateTime hour = windows.getKey();
+            if (hour.plusHours(1).isAfter(compactedBefore)) {
+                continue;
+            }
+            // a window stored again replaces its entry, so the count of entries of an hour only grows with windows stored late
+            AggregatedProfileModel.ProfilesManifest.Entry hourlyRollup = getEntry(rollups, hour, HOUR_IN_SECS);
+            if (hourlyRollup != null && hourlyRollup.getMergedWindowCount() >= windows.getValue().size()) {
+                continue;
+            }
+            if (hourlyRollup != null) {
+                LOGGER.info("Compacting again hour with {} windows stored late for process group: {}, start: {}",
+                        windows.getValue().size() - hourlyRollup.getMergedWindowCount(), processGroup, hour);
+            }
+            storeRollup(processGroup, baseDir, hour, HOUR_IN_SECS, windows.getValue(), windows.getValue().size());
+            rollupCount++;
+        }
+        return rollupCount;
+    }
+
+    /**
+     * Day is compacted if it has not been yet, or if any of its hours was compacted again after it was.
+     * @return count of the rollups stored
+     */
+    private int compactDay(ProcessGroup processGroup, LocalDate date) throws IOException {
+        // read again, so that rollups of the hours compacted just now are included
+        AggregatedProfileModel.ProfilesManifest rollups = fetchManifest(rollupBaseDir, processGroup, date);
+        List<AggregatedProfileModel.ProfilesManifest.Entry> hourlyRollups = rollups.getEntriesList().stream()
+                .filter(entry -> entry.getDuration() == HOUR_IN_SECS).collect(Collectors.toList());
+        int mergedWindowCount = hourlyRollups.stream().mapToInt(AggregatedProfileModel.ProfilesManifest.Entry::getMergedWindowCount).sum();
+
+        ZonedDateTime dayStart = date.atStartOfDay(ZoneOffset.UTC);
+        AggregatedProfileModel.ProfilesManifest.Entry dailyRollup = getEntry(rollups, dayStart, DAY_IN_SECS);
+        if (dailyRollup != null && dailyRollup.getMergedWindowCount() == mergedWindowCount) {
+            return 0;
+        }
+        storeRollup(processGroup, rollupBaseDir, dayStart, DAY_IN_SECS, hourlyRollups, mergedWindowCount);
+        return 1;
+    }
+
+    private boolean isDayCompacted(ProcessGroup processGroup, ZonedDateTime dayStart) throws IOException {
+        String manifestDirName = AggregatedProfileNamingStrategy.getManifestDirName(rollupBaseDir, processGroup.appId, processGroup.clusterId,
+                processGroup.procId, dayStart.toLocalDate());
+        String dailyRollupEntryFileName = AggregatedProfileNamingStrategy.getManifestEntryFileName(rollupBaseDir, processGroup.appId,
+                processGroup.clusterId, processGroup.procId, dayStart, DAY_IN_SECS);
+        return await(storage.listAsync(manifestDirName, true), "list rollups of " + dayStart.toLocalDate()).contains(dailyRollupEntryFileName);
+    }
+
+    /**
+     * @param mergedWindowCount count of the aggregation windows merged into the given windows, which are themselves rollups for a day
+     */
+    private void storeRollup(ProcessGroup processGroup, String windowsBaseDir, ZonedDateTime start, int durationInSecs,
+                             List<AggregatedProfileModel.ProfilesManifest.Entry> windows, int mergedWindowCount) throws IOException {
+        AggregationWindowRollup rollup = new AggregationWindowRollup(processGroup.appId, processGroup.clusterId, processGroup.procId,
+                start.toLocalDateTime(), durationInSecs);
+        for (AggregatedProfileModel.ProfilesManifest.Entry window : windows) {
+            addWindow(rollup, processGroup, windowsBaseDir, window);
+        }
+        rollupStorage.storeRollup(rollup.finalizeEntity(), mergedWindowCount);
+        LOGGER.info("Stored rollup of {} windows for process group: {}, start: {}, duration: {}", windows.size(), processGroup, start, durationInSecs);
+    }
+
+    private void addWindow(AggregationWindowRollup rollup, ProcessGroup processGroup, String windowsBaseDir,
+                           AggregatedProfileModel.ProfilesManifest.Entry window) throws IOException {
+        ZonedDateTime start = getStartTime(window);
+        for (AggregatedProfileModel.ProfilesManifest.StoredFile file : window.getFilesList()) {
+            if (!file.hasWorkType()) {
+                AggregationWindowSummary summary = load(loaded -> loader.loadSummary(loaded, getFileName(processGroup, windowsBaseDir, window, file)));
+                List<String> traces = new ArrayList<>();
+                summary.getTraces().forEach(traces::add);
+                rollup.addWorkInfos(start.withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime(), traces, summary.getProfiles());
+            }
+            else if (file.getWorkType() == AggregatedProfileModel.WorkType.cpu_sample_work) {
+                AggregatedProfileInfo profile = load(loaded -> loader.load(loaded, getFileName(processGroup, windowsBaseDir, window, file)));
+                addCpuSamples(rollup, profile);
+            }
+        }
+    }
+
+    private void addCpuSamples(AggregationWindowRollup rollup, AggregatedProfileInfo profile) {
+        List<String> traces = new ArrayList<>();
+        profile.getTraces().forEach(traces::add);
+        int[] sampleCounts = new int[traces.size()];
+        for (AggregatedProfileModel.TraceCtxDetail traceDetail : profile.getTraceDetails()) {
+            sampleCounts[traceDetail.getTraceIdx()] = traceDetail.getSampleCount();
+        }
+
+        // all trace contexts of a file share its method lookup
+        int[] methodIdMapping = null;
+        for (int traceIdx = 0; traceIdx < traces.size(); traceIdx++) {
+            AggregatedSamplesPerTraceCtx samples = profile.getAggregatedSamples(traces.get(traceIdx));
+            if (samples == null) {
+                continue;
+            }
+            if (methodIdMapping == null) {
+                methodIdMapping = rollup.addMethodLookup(samples.getStoredMethodLookup());
+            }
+            rollup.addTraceCtx(traces.get(traceIdx), sampleCounts[traceIdx],
+                    ((AggregatedCpuSamplesData) samples.getAggregatedSamples()).getFrameNodes(), methodIdMapping);
+        }
+    }
+
+    /**
+     * Process groups are listed from the directories of their manifests, as "{baseDir}/manifests/{appId}/{clusterId}/{procId}/".
+     */
+    private List<ProcessGroup> listProcessGroups() throws IOException {
+        List<ProcessGroup> processGroups = new ArrayList<>();
+        for (String appDir : await(storage.listAsync(baseDir + DELIMITER + MANIFESTS_DIR + DELIMITER, false), "list apps")) {
+            for (String clusterDir : await(storage.listAsync(appDir, false), "list clusters")) {
+                for (String procDir : await(storage.listAsync(clusterDir, false), "list procs")) {
+                    processGroups.add(new ProcessGroup(decode(getLastSegment(appDir)), decode(getLastSegment(clusterDir)), decode(getLastSegment(procDir))));
+                }
+            }
+        }
+        return processGroups;
+    }
+
+    private List<LocalDate> listManifestDates(ProcessGroup processGroup) throws IOException {
+        String anyManifestDirName = AggregatedProfileNamingStrategy.getManifestDirName(baseDir, processGroup.appId, processGroup.clusterId,
+                processGroup.procId, LocalDate.MIN);
+        // parent of the manifest dirs of all days
+        String manifestsDir = anyManifestDirName.substring(0, anyManifestDirName.lastIndexOf(DELIMITER, anyManifestDirName.length() - 2) + 1);
+
+        List<LocalDate> dates = new ArrayList<>();
+        for (String manifestDirName : await(storage.listAsync(manifestsDir, false), "list manifests")) {
+            try {
+                dates.add(LocalDate.parse(getLastSegment(manifestDirName)));
+            }
+            catch (DateTimeParseException e) {
+                LOGGER.warn("Ignoring unexpected file among manifests: {}", manifestDirName);
+            }
+        }
+        dates.sort(null);
+        return dates;
+    }
+
+    private AggregatedProfileModel.ProfilesManifest fetchManifest(String manifestBaseDir, ProcessGroup processGroup, LocalDate date) throws IOException {
+        return await(ProfilesManifestReader.readManifestOfDay(storage, manifestBaseDir, processGroup.appId, processGroup.clusterId, processGroup.procId,
+                date), "read manifest of " + date);
+    }
+
+    private <T> T await(CompletableFuture<T> operation, String description) throws IOException {
+        try {
+            return operation.get(storageTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to " + description);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Failed to " + description, e.getCause());
+        }
+        catch (TimeoutException e) {
+            throw new IOException("Timed out while waiting to " + description, e);
+        }
+    }
+
+    /**
+     * Loader reads the file on the calling thread, so the future is complete once it returns.
+     */
+    private <T> T load(Consumer<Future<T>> loading) throws IOException {
+        Future<T> loaded = Future.future();
+        loading.accept(loaded);
+        if (!loaded.isComplete()) {
+            throw new IllegalStateException("Load of file did not complete on the calling thread");
+        }
+        if (loaded.failed()) {
+            throw loaded.cause() instanceof IOException ? (IOException) loaded.cause() : new IOException(loaded.cause());
+        }
+        return loaded.result();
+    }
+
+    private static AggregatedProfileNamingStrategy getFileName(ProcessGroup processGroup, String windowsBaseDir,
+                                                               AggregatedProfileModel.ProfilesManifest.Entry window,
+                                                               AggregatedProfileModel.ProfilesManifest.StoredFile file) {
+        if (!file.hasWorkType()) {
+            return new AggregatedProfileNamingStrategy(windowsBaseDir, file.getFormatVersion(), processGroup.appId, processGroup.clusterId,
+                    processGroup.procId, getStartTime(window), window.getDuration(), file.getHourPartitioned());
+        }
+        return new AggregatedProfileNamingStrategy(windowsBaseDir, file.getFormatVersion(), processGroup.appId, processGroup.clusterId,
+                processGroup.procId, getStartTime(window), window.getDuration(), file.getWorkType(), file.getHourPartitioned());
+    }
+
+    private static AggregatedProfileModel.ProfilesManifest.Entry getEntry(AggregatedProfileModel.ProfilesManifest manifest, ZonedDateTime start,
+                                                                         int durationInSecs) {
+        return manifest.getEntriesList().stream()
+                .filter(entry -> entry.getDuration() == durationInSecs && getStartTime(entry).toInstant().equals(start.toInstant()))
+                .findFirst().orElse(null);
+    }
+
+    private static ZonedDateTime getStartTime(AggregatedProfileModel.ProfilesManifest.Entry entry) {
+        return ZonedDateTime.parse(entry.getAggregationStartTime(), DateTimeFormatter.ISO_ZONED_DATE_TIME);
+    }
+
+    private static String getLastSegment(String path) {
+        String[] segments = path.split(DELIMITER);
+        return segments[segments.length - 1];
+    }
+
+    private static String decode(String str) {
+        return new String(BaseEncoding.base32().decode(str), Charset.forName("utf-8"));
+    }
+
+    public static class ProcessGroup {
+        public final String appId;
+        public final String clusterId;
+        public final String procId;
+
+        public ProcessGroup(String appId, String clusterId, String procId) {
+            this.appId = appId;
+            this.clusterId = clusterId;
+            this.procId = procId;
+        }
+
+        @Override
+        public String toString() {
+            return appId + "/" + clusterId + "/" + procId;
+        }
+    }
+}
@@ -1,49 +1,120 @@
 package fk.prof.userapi.api;
 
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
 import fk.prof.aggregation.model.AggregationWindowSerializer;
 import fk.prof.aggregation.model.AggregationWindowSummarySerializer;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.aggregation.serialize.Crc32c;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.StreamTransformer;
 import fk.prof.storage.buffer.StorageBackedInputStream;
+import fk.prof.storage.buffer.StorageBackedRangeReader;
 import fk.prof.userapi.Deserializer;
 import fk.prof.userapi.model.*;
 import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.Checksum;
-import java.util.zip.GZIPInputStream;
 
 /**
  * @author gaurav.ashok
  */
 public class AggregatedProfileLoader {
 
-    private AsyncStorage asyncStorage;
+    // format in which the file is compressed as a whole, stacktrace trees are FrameNodeLists and checksums are Adler32
+    private static final int FRAME_NODE_LIST_FORMAT_VERSION = 1;
+    private static final int MAX_CACHED_METHOD_LOOKUPS = 64;
+
+    private static final int DEFAULT_SECTIONS_IN_FLIGHT = 4;
 
+    private AsyncStorage asyncStorage;
+    private Executor executor;
+    private final int prefetchParts;
+    private final int sectionsInFlight;
+    // method lookups are content addressed and shared by adjacent aggregation windows, keyed by their path
+    private final Cache<String, AggregatedProfileModel.MethodLookUp> methodLookupCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_METHOD_LOOKUPS).build();
+
+    /**
+     * Sections of indexed files are decompressed and parsed on the threads completing their fetches.
+     */
     public AggregatedProfileLoader(AsyncStorage asyncStorage) {
+        this(asyncStorage, Runnable::run);
+    }
+
+    /**
+     * @param executor on which sections of indexed files are decompressed and parsed concurrently. It is expected to be a bounded pool
+     *                 dedicated to loading, as the work is blocking.
+     */
+    public AggregatedProfileLoader(AsyncStorage asyncStorage, Executor executor) {
+        this(asyncStorage, executor, 0);
+    }
+
+    /**
+     * @param prefetchParts count of parts fetched ahead of the part being read, while reading files which are read sequentially, i.e.
+     *                      files of format v1 and summary files.
+     */
+    public AggregatedProfileLoader(AsyncStorage asyncStorage, Executor executor, int prefetchParts) {
+        this(asyncStorage, executor, prefetchParts, DEFAULT_SECTIONS_IN_FLIGHT);
+    }
+
+    /**
+     * @param sectionsInFlight count of sections of an indexed file which are fetched and parsed at a time, so that only as many sections
+     *                         are held in memory before being parsed, per file being loaded.
+     */
+    public AggregatedProfileLoader(AsyncStorage asyncStorage, Executor executor, int prefetchParts, int sectionsInFlight) {
+        if(sectionsInFlight <= 0) {
+            throw new IllegalArgumentException("sectionsInFlight must be positive");
+        }
         this.asyncStorage = asyncStorage;
+        this.executor = executor;
+        this.prefetchParts = prefetchParts;
+        this.sectionsInFlight = sectionsInFlight;
     }
 
     public void load(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename) {
-        if(filename.version != AggregationWindowSerializer.VERSION) {
+        if(filename.version == AggregationWindowSerializer.VERSION) {
+            loadIndexed(future, filename);
+            return;
+        }
+
+        if(filename.version != FRAME_NODE_LIST_FORMAT_VERSION) {
             future.fail("file format version is not supported");
             return;
         }
 
-        InputStream in = new StorageBackedInputStream(asyncStorage, filename);
+        InputStream in = new StorageBackedInputStream(asyncStorage, filename, prefetchParts);
 
         try {
-            in = new GZIPInputStream(in);
+            in = StreamTransformer.decompress(in);
             loadFromInputStream(future, filename, in);
         }
         catch (IOException e) {
@@ -59,6 +130,70 @@ public class AggregatedProfileLoader {
         }
     }
 
+    /**
+     * @return true if files of the format version are indexed, so that a trace context can be loaded by itself
+     */
+    public static boolean supportsTraceCtxLoading(int version) {
+        return version == AggregationWindowSerializer.VERSION;
+    }
+
+    /**
+     * Loads samples of a single trace context, fetching only the method lookup and the stacktrace tree of the trace context by ranged
+     * reads. Completes with null if the trace context is not present in the file.
+     */
+    public void loadTraceCtx(Future<AggregatedSamplesPerTraceCtx> future, AggregatedProfileNamingStrategy filename, String traceName) {
+        if(!supportsTraceCtxLoading(filename.version)) {
+            future.fail("file format version does not support loading of a trace context by itself");
+            return;
+        }
+
+        try {
+            AggregatedProfileModel.AggregationFileIndex index = fetchIndex(filename);
+            Optional<AggregatedProfileModel.AggregationFileIndex.TraceCtxFileSection> traceCtxSection = index.getTraceCtxSectionsList().stream()
+                    .filter(section -> section.getTraceCtxName().equals(traceName)).findFirst();
+            if(!traceCtxSection.isPresent()) {
+                future.complete(null);
+                return;
+            }
+
+            AggregatedProfileModel.AggregationFileIndex.FileSection treeSection = traceCtxSection.get().getSection();
+            StorageBackedRangeReader reader = new StorageBackedRangeReader(asyncStorage, filename, index.getPartSize());
+            CompletableFuture<InputStream> treeFetch = reader.fetchAsync(treeSection.getOffset(), treeSection.getLength());
+
+            // method lookup is fetched while the tree is being fetched
+            AggregatedProfileModel.MethodLookUp methodLookUp;
+            try {
+                methodLookUp = fetchMethodLookup(filename, index.getMethodLookupDigest());
+            }
+            catch (IOException e) {
+                treeFetch.thenAccept(this::closeQuietly);
+                throw e;
+            }
+
+            try (InputStream treeIn = getFetched(treeFetch, filename.getFileName(0))) {
+                StacktraceTreeIterable stacktraceTree = readSection(treeIn, treeSection, this::parseCheckedColumnarStacktraceTree);
+                future.complete(new AggregatedSamplesPerTraceCtx(methodLookUp, new AggregatedCpuSamplesData(stacktraceTree)));
+            }
+        }
+        catch (IOException e) {
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Loads the gzipped json view of a trace context, as stored alongside the aggregation file. Content is not decompressed, so that it
+     * can be served as is. Fails with {@link FileNotFoundException} if the view was not stored.
+     */
+    public void loadTraceCtxView(Future<Buffer> future, AggregatedProfileNamingStrategy filename, String traceName) {
+        String viewFileName = filename.getTraceCtxViewFileName(traceName);
+        try (InputStream in = getFetched(asyncStorage.fetchAsync(viewFileName), viewFileName)) {
+            future.complete(Buffer.buffer(ByteStreams.toByteArray(in)));
+        }
+        catch (IOException e) {
+            future.fail(e);
+        }
+    }
+
     public void loadSummary(Future<AggregationWindowSummary> future, AggregatedProfileNamingStrategy filename) {
         if(filename.version != AggregationWindowSummarySerializer.VERSION) {
             future.fail("file format version is not supported");
@@ -70,10 +205,10 @@ public class AggregatedProfileLoader {
             return;
         }
 
-        InputStream in = new StorageBackedInputStream(asyncStorage, filename);
+        InputStream in = new StorageBackedInputStream(asyncStorage, filename, prefetchParts);
 
         try {
-            in = new GZIPInputStream(in);
+            in = StreamTransformer.decompress(in);
             loadSummaryFromInputStream(future, filename, in);
         }
         catch (IOException e) {
@@ -129,8 +264,9 @@ public class AggregatedProfileLoader {
             switch (filename.workType) {
                 case cpu_sample_work:
                     for (String traceName : traceNames.getNameList()) {
+                        StacktraceTreeIterable stacktraceTree = parseStacktraceTree(cin);
                         samplesPerTrace.put(traceName,
-                                new AggregatedSamplesPerTraceCtx(methodLookUp, new AggregatedCpuSamplesData(parseStacktraceTree(cin))));
+                                new AggregatedSamplesPerTraceCtx(methodLookUp, new AggregatedCpuSamplesData(stacktraceTree)));
                     }
                     break;
                 default:
@@ -148,6 +284,90 @@ public class AggregatedProfileLoader {
         }
     }
 
+    /**
+     * Fetches sections of the file by ranged reads and decompresses and parses them concurrently, each section being compressed by itself.
+     * At most {@link #sectionsInFlight} sections are fetched or being parsed at a time. Method lookup is stored by itself and referred to by
+     * its digest.
+     */
+    private void loadIndexed(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename) {
+        try {
+            AggregatedProfileModel.AggregationFileIndex index = fetchIndex(filename);
+            StorageBackedRangeReader reader = new StorageBackedRangeReader(asyncStorage, filename, index.getPartSize());
+            Semaphore sectionPermits = new Semaphore(sectionsInFlight);
+
+            // method lookup is fetched while the sections are being fetched
+            CompletableFuture<AggregatedProfileModel.MethodLookUp> methodLookUp = fetchMethodLookupAsync(filename, index.getMethodLookupDigest());
+            CompletableFuture<Head> head = parseSectionAsync(reader, sectionPermits, filename, index.getHead(), this::parseHead);
+
+            // read work specific samples
+            Map<String, CompletableFuture<StacktraceTreeIterable>> stacktraceTrees = new LinkedHashMap<>();
+            switch (filename.workType) {
+                case cpu_sample_work:
+                    for (AggregatedProfileModel.AggregationFileIndex.TraceCtxFileSection traceCtxSection : index.getTraceCtxSectionsList()) {
+                        if(head.isCompletedExceptionally() || methodLookUp.isCompletedExceptionally() ||
+                                stacktraceTrees.values().stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                            // load fails anyway, remaining sections are not fetched
+                            break;
+                        }
+                        stacktraceTrees.put(traceCtxSection.getTraceCtxName(),
+                                parseSectionAsync(reader, sectionPermits, filename, traceCtxSection.getSection(), this::parseCheckedColumnarStacktraceTree));
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            Head parsedHead = getCompleted(head);
+            AggregatedProfileModel.MethodLookUp parsedMethodLookUp = getCompleted(methodLookUp);
+            Map<String, AggregatedSamplesPerTraceCtx> samplesPerTrace = new HashMap<>();
+            for (Map.Entry<String, CompletableFuture<StacktraceTreeIterable>> stacktraceTree : stacktraceTrees.entrySet()) {
+                samplesPerTrace.put(stacktraceTree.getKey(),
+                        new AggregatedSamplesPerTraceCtx(parsedMethodLookUp, new AggregatedCpuSamplesData(getCompleted(stacktraceTree.getValue()))));
+            }
+
+            future.complete(new AggregatedProfileInfo(parsedHead.header, parsedHead.traceNames, parsedHead.traceDetails, parsedHead.profiles, samplesPerTrace));
+        }
+        catch (IOException e) {
+            future.fail(e);
+        }
+    }
+
+    // leaving it as protected so that logic can be directly tested.
+    protected void loadFromIndexedInputStream(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename,
+                                              AggregatedProfileModel.AggregationFileIndex index, InputStream in) {
+        try {
+            // sections are read in the order they are written in
+            long position = 0;
+
+            ensureNextSection(index.getHead(), position);
+            Head head = readSection(in, index.getHead(), this::parseHead);
+            position += index.getHead().getLength();
+
+            AggregatedProfileModel.MethodLookUp methodLookUp = fetchMethodLookup(filename, index.getMethodLookupDigest());
+
+            // read work specific samples
+            Map<String, AggregatedSamplesPerTraceCtx> samplesPerTrace = new HashMap<>();
+            switch (filename.workType) {
+                case cpu_sample_work:
+                    for (AggregatedProfileModel.AggregationFileIndex.TraceCtxFileSection traceCtxSection : index.getTraceCtxSectionsList()) {
+                        ensureNextSection(traceCtxSection.getSection(), position);
+                        StacktraceTreeIterable stacktraceTree = readSection(in, traceCtxSection.getSection(), this::parseCheckedColumnarStacktraceTree);
+                        position += traceCtxSection.getSection().getLength();
+                        samplesPerTrace.put(traceCtxSection.getTraceCtxName(),
+                                new AggregatedSamplesPerTraceCtx(methodLookUp, new AggregatedCpuSamplesData(stacktraceTree)));
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            future.complete(new AggregatedProfileInfo(head.header, head.traceNames, head.traceDetails, head.profiles, samplesPerTrace));
+        }
+        catch (IOException e) {
+            future.fail(e);
+        }
+    }
+
     // leaving it as protected so that logic can be directly tested.
     protected void loadSummaryFromInputStream(Future<AggregationWindowSummary> future, AggregatedProfileNamingStrategy filename, InputStream in) {
         Adler32 checksum = new Adler32();
@@ -196,8 +416,10 @@ public class AggregatedProfileLoader {
         checksum.reset();
     }
 
-    private void checksumVerify(int actualChecksum, int expectedChecksum, String msg) {
-        assert actualChecksum == expectedChecksum : msg;
+    private void checksumVerify(int actualChecksum, int expectedChecksum, String msg) throws IOException {
+        if(actualChecksum != expectedChecksum) {
+            throw new IOException(msg);
+        }
     }
 
     private StacktraceTreeIterable parseStacktraceTree(InputStream in) throws IOException {
@@ -216,4 +438,236 @@ public class AggregatedProfileLoader {
 
         return new StacktraceTreeIterable(parsedFrameNodes);
     }
+
+    private StacktraceTreeIterable parseColumnarStacktraceTree(InputStream in) throws IOException {
+        // tree is serialized in DFS manner as batches of columns. First node being the root. Nodes are decoded into the columns of the
+        // tree, without building a FrameNode per node
+        int nodeCount = 1; // for root node
+        int parsedNodeCount = 0;
+        StacktraceTreeIterable.Builder builder = new StacktraceTreeIterable.Builder();
+        int size;
+        do {
+            AggregatedProfileModel.FrameNodeColumns columns = AggregatedProfileModel.FrameNodeColumns.parseDelimitedFrom(in);
+            if(columns == null) {
+                throw new EOFException("Stacktrace tree ended after " + parsedNodeCount + " of its " + nodeCount + " nodes");
+            }
+            size = columns.getChildCountCount();
+            if(columns.getMethodIdDeltaCount() != size || columns.getLineNoDeltaCount() != size
+                    || columns.getOnStackSamplesDeltaCount() != size || columns.getOnCpuSamplesCount() != size) {
+                throw new IOException("Columns of stacktrace tree batch are of unequal length");
+            }
+
+            int methodId = 0, lineNo = 0, onStackSamples = 0;
+            for(int i = 0; i < size; i++) {
+                methodId += columns.getMethodIdDelta(i);
+                lineNo += columns.getLineNoDelta(i);
+                onStackSamples += columns.getOnStackSamplesDelta(i);
+                builder.addNode(methodId, columns.getChildCount(i), lineNo, onStackSamples, columns.getOnCpuSamples(i));
+                nodeCount += columns.getChildCount(i);
+            }
+            parsedNodeCount += size;
+        } while(parsedNodeCount < nodeCount && size > 0);
+
+        return builder.build();
+    }
+
+    private AggregatedProfileModel.AggregationFileIndex fetchIndex(AggregatedProfileNamingStrategy filename) throws IOException {
+        String indexFileName = filename.getIndexFileName();
+        try (InputStream in = getFetched(asyncStorage.fetchAsync(indexFileName), indexFileName)) {
+            return AggregatedProfileModel.AggregationFileIndex.parseFrom(StreamTransformer.decompress(in));
+        }
+    }
+
+    private InputStream getFetched(CompletableFuture<InputStream> fetch, String fileName) throws IOException {
+        try {
+            return fetch.get();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof ObjectNotFoundException) {
+                throw new FileNotFoundException("File: " + fileName + " could not be found. Cause: " + e.getCause().getMessage());
+            }
+            throw new IOException("Unexpected error while fetching file: " + fileName, e.getCause());
+        }
+    }
+
+    /**
+     * Fetches the section once a permit is acquired, blocking the calling thread till then, and releases the permit once the section is
+     * parsed or has failed.
+     */
+    private <T> CompletableFuture<T> parseSectionAsync(StorageBackedRangeReader reader, Semaphore sectionPermits, AggregatedProfileNamingStrategy filename,
+                                                       AggregatedProfileModel.AggregationFileIndex.FileSection section, SectionParser<T> parser) throws IOException {
+        try {
+            sectionPermits.acquire();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+
+        CompletableFuture<T> parsed;
+        try {
+            parsed = reader.fetchAsync(section.getOffset(), section.getLength()).thenApplyAsync(in -> {
+                try (InputStream sectionIn = in) {
+                    if(!section.hasUncompressedLength()) {
+                        return readSection(sectionIn, section, parser);
+                    }
+                    // decompress to an array of exact size, so that parsing reads from memory
+                    byte[] uncompressed = new byte[section.getUncompressedLength()];
+                    try (InputStream decompressedIn = StreamTransformer.decompress(sectionIn)) {
+                        ByteStreams.readFully(decompressedIn, uncompressed);
+                        if(decompressedIn.read() != -1) {
+                            throw new IOException("Section at offset " + section.getOffset() + " is longer than its uncompressed length");
+                        }
+                    }
+                    return parser.parse(new CheckedInputStream(new ByteArrayInputStream(uncompressed), new Crc32c()));
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        }
+        catch (RuntimeException e) {
+            sectionPermits.release();
+            throw new IOException("Unexpected error while fetching section at offset " + section.getOffset() + " of file: " + filename.getFileName(0), e);
+        }
+
+        return parsed.whenComplete((result, th) -> sectionPermits.release()).exceptionally(th -> {
+            Throwable cause = th instanceof CompletionException && th.getCause() != null ? th.getCause() : th;
+            if(cause instanceof ObjectNotFoundException) {
+                throw new UncheckedIOException(new FileNotFoundException("Part of file: " + filename.getFileName(0) + " could not be found. Cause: " + cause.getMessage()));
+            }
+            throw th instanceof CompletionException ? (CompletionException) th : new CompletionException(th);
+        });
+    }
+
+    private <T> T getCompleted(CompletableFuture<T> completion) throws IOException {
+        try {
+            return completion.get();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+        catch (ExecutionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private CompletableFuture<AggregatedProfileModel.MethodLookUp> fetchMethodLookupAsync(AggregatedProfileNamingStrategy filename, String digest) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetchMethodLookup(filename, digest);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Fetches the method lookup referred to by the digest, unless it is cached. Content of the method lookup is verified against the digest.
+     */
+    private AggregatedProfileModel.MethodLookUp fetchMethodLookup(AggregatedProfileNamingStrategy filename, String digest) throws IOException {
+        String methodLookupFileName = filename.getMethodLookupFileName(digest);
+        try {
+            return methodLookupCache.get(methodLookupFileName, () -> {
+                byte[] content;
+                try (InputStream in = StreamTransformer.decompress(getFetched(asyncStorage.fetchAsync(methodLookupFileName), methodLookupFileName))) {
+                    content = ByteStreams.toByteArray(in);
+                }
+                if(!Hashing.sha256().hashBytes(content).toString().equals(digest)) {
+                    throw new IOException("Content of method lookup: " + methodLookupFileName + " does not match its digest");
+                }
+                return parseMethodLookup(new CheckedInputStream(new ByteArrayInputStream(content), new Crc32c()));
+            });
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unexpected error while loading method lookup: " + methodLookupFileName, e.getCause());
+        }
+    }
+
+    private void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        }
+        catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private void ensureNextSection(AggregatedProfileModel.AggregationFileIndex.FileSection section, long position) throws IOException {
+        if(section.getOffset() != position) {
+            throw new IOException("Expected section at offset " + position + " but found at " + section.getOffset());
+        }
+    }
+
+    /**
+     * Reads an independently compressed section of the given length from the stream. Stream is left positioned at the end of the section.
+     */
+    private <T> T readSection(InputStream in, AggregatedProfileModel.AggregationFileIndex.FileSection section, SectionParser<T> parser) throws IOException {
+        // section is decompressed by itself, so the stream is not to be closed with the section
+        InputStream sectionIn = new FilterInputStream(ByteStreams.limit(in, section.getLength())) {
+            @Override
+            public void close() {
+            }
+        };
+        T result;
+        try (InputStream decompressedIn = StreamTransformer.decompress(sectionIn)) {
+            result = parser.parse(new CheckedInputStream(decompressedIn, new Crc32c()));
+        }
+        ByteStreams.exhaust(sectionIn);
+        return result;
+    }
+
+    private Head parseHead(CheckedInputStream cin) throws IOException {
+        Checksum checksum = cin.getChecksum();
+
+        int magicNum = Deserializer.readVariantInt32(cin);
+        if (magicNum != AggregationWindowSerializer.AGGREGATION_FILE_MAGIC_NUM) {
+            throw new IOException("Unknown file. Unexpected first 4 bytes");
+        }
+
+        Head head = new Head();
+        head.header = Deserializer.readCheckedDelimited(AggregatedProfileModel.Header.parser(), cin, "header");
+        head.traceNames = Deserializer.readCheckedDelimited(AggregatedProfileModel.TraceCtxNames.parser(), cin, "traceNames");
+        head.traceDetails = Deserializer.readCheckedDelimited(AggregatedProfileModel.TraceCtxDetailList.parser(), cin, "traceDetails");
+
+        checksumReset(checksum);
+        head.profiles = new ArrayList<>();
+        int size = 0;
+        while ((size = Deserializer.readVariantInt32(cin)) != 0) {
+            head.profiles.add(AggregatedProfileModel.ProfileWorkInfo.parseFrom(ByteStreams.limit(cin, size)));
+        }
+        checksumVerify((int) checksum.getValue(), Deserializer.readVariantInt32(cin), "checksum error profileWorkInfo");
+        return head;
+    }
+
+    private AggregatedProfileModel.MethodLookUp parseMethodLookup(CheckedInputStream cin) throws IOException {
+        return Deserializer.readCheckedDelimited(AggregatedProfileModel.MethodLookUp.parser(), cin, "methodLookup");
+    }
+
+    private StacktraceTreeIterable parseCheckedColumnarStacktraceTree(CheckedInputStream cin) throws IOException {
+        StacktraceTreeIterable stacktraceTree = parseColumnarStacktraceTree(cin);
+        checksumVerify((int) cin.getChecksum().getValue(), Deserializer.readVariantInt32(cin), "checksum error stacktrace tree");
+        return stacktraceTree;
+    }
+
+    @FunctionalInterface
+    private interface SectionParser<T> {
+        T parse(CheckedInputStream cin) throws IOException;
+    }
+
+    private static class Head {
+        AggregatedProfileModel.Header header;
+        AggregatedProfileModel.TraceCtxNames traceNames;
+        AggregatedProfileModel.TraceCtxDetailList traceDetails;
+        List<AggregatedProfileModel.ProfileWorkInfo> profiles;
+    }
 }
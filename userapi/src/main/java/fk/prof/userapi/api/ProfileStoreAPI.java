@@ -1,9 +1,12 @@
 package fk.prof.userapi.api;
 
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
 import fk.prof.userapi.model.AggregationWindowSummary;
 import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
 
 import java.time.ZonedDateTime;
 import java.util.List;
@@ -56,6 +59,17 @@ public interface ProfileStoreAPI {
      */
     void getProfilesInTimeWindow(Future<List<AggregatedProfileNamingStrategy>> profiles, String baseDir, String appId, String clusterId, String proc, ZonedDateTime startTime, int durationInSeconds);
 
+    /**
+     * Returns file of the work type of the aggregation window, with the format version and partitioning it was stored with as recorded in
+     * its manifest entry. Returns null if the window has no manifest entry or no file of the work type
+     *
+     * @param startTime         start time of the aggregation window
+     * @param durationInSeconds duration of the aggregation window
+     * @param workType          work type of the file
+     */
+    void getStoredProfile(Future<AggregatedProfileNamingStrategy> profile, String baseDir, String appId, String clusterId, String proc, ZonedDateTime startTime,
+                          int durationInSeconds, AggregatedProfileModel.WorkType workType);
+
     /**
      * Returns aggregated profile for the provided header
      *
@@ -64,6 +78,26 @@ public interface ProfileStoreAPI {
      */
     void load(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename);
 
+    /**
+     * Returns aggregated samples of a trace context in the aggregated profile, null if the trace context is not present.
+     * Only the required parts of the profile are fetched if its file format supports it
+     *
+     * @param future
+     * @param filename
+     * @param traceName
+     */
+    void loadTraceCtx(Future<AggregatedSamplesPerTraceCtx> future, AggregatedProfileNamingStrategy filename, String traceName);
+
+    /**
+     * Returns gzipped json of aggregated samples of a trace context, if it was precomputed while storing the aggregated profile.
+     * Fails with {@link java.io.FileNotFoundException} otherwise
+     *
+     * @param future
+     * @param filename
+     * @param traceName
+     */
+    void loadTraceCtxView(Future<Buffer> future, AggregatedProfileNamingStrategy filename, String traceName);
+
     /**
      * Returns aggregated profile for the provided header
      *
@@ -5,17 +5,22 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.io.BaseEncoding;
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.storage.AsyncStorage;
 import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
 import fk.prof.userapi.model.AggregationWindowSummary;
 import io.vertx.core.*;
+import io.vertx.core.buffer.Buffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.Charset;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
@@ -42,16 +47,29 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
     private WorkerExecutor workerExecutor;
 
     private Cache<String, AggregatedProfileInfo> cache;
+    private Cache<String, AggregatedSamplesPerTraceCtx> traceCtxCache;
     private Cache<String, AggregationWindowSummary> summaryCache;
 
     /* stores all requested futures that are waiting on file to be loaded from S3. If a file loadFromInputStream
     * is in progress, this map will contain its corresponding key */
     private Map<String, FuturesList<Object>> futuresForLoadingFiles;
 
+    /**
+     * Sections of files are parsed on the worker threads loading them.
+     */
     public ProfileStoreAPIImpl(Vertx vertx, AsyncStorage asyncStorage, int maxIdleRetentionInMin, Integer profileLoadTimeout, Integer workerPoolSize) {
+        this(vertx, asyncStorage, maxIdleRetentionInMin, profileLoadTimeout, workerPoolSize, new AggregatedProfileLoader(asyncStorage, Runnable::run));
+    }
+
+    /**
+     * @param profileLoader loader of files, which is expected to parse sections on an executor dedicated to loading, see
+     *                      {@link AggregatedProfileLoader#AggregatedProfileLoader(AsyncStorage, java.util.concurrent.Executor, int, int)}
+     */
+    public ProfileStoreAPIImpl(Vertx vertx, AsyncStorage asyncStorage, int maxIdleRetentionInMin, Integer profileLoadTimeout, Integer workerPoolSize,
+                               AggregatedProfileLoader profileLoader) {
         this.vertx = vertx;
         this.asyncStorage = asyncStorage;
-        this.profileLoader = new AggregatedProfileLoader(this.asyncStorage);
+        this.profileLoader = profileLoader;
         this.profileLoadTimeout = profileLoadTimeout;
 
         this.workerExecutor = vertx.createSharedWorkerExecutor(WORKER_POOL_NAME, workerPoolSize);
@@ -61,6 +79,11 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
                 .expireAfterAccess(maxIdleRetentionInMin, TimeUnit.MINUTES)
                 .build();
 
+        this.traceCtxCache = CacheBuilder.newBuilder()
+                .maximumSize(500)
+                .expireAfterAccess(maxIdleRetentionInMin, TimeUnit.MINUTES)
+                .build();
+
         this.summaryCache = CacheBuilder.newBuilder()
                 .maximumSize(500)
                 .expireAfterAccess(maxIdleRetentionInMin, TimeUnit.MINUTES)
@@ -121,12 +144,10 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
 
         List<Future> allResults = new ArrayList<>();
         while (!currentDate.isAfter(endDate)) {
-            String prefixWithDate = prefix + currentDate.toString();
             Future<List<AggregatedProfileNamingStrategy>> currResult = Future.future();
             allResults.add(currResult);
-            asyncStorage.listAsync(prefixWithDate, true).thenApply(allObjects ->
-                    allObjects.stream()
-                            .map(AggregatedProfileNamingStrategy::fromFileName)
+            getSummaryFilesOfDay(baseDir, appId, clusterId, proc, currentDate, prefix, startTime, startTime.plusSeconds(durationInSeconds)).thenApply(summaryFiles ->
+                    summaryFiles.stream()
                             // filter by time and isSummary
                             .filter(s -> s.isSummaryFile &&
                                     s.startTime.isAfter(startTime.minusSeconds(1)) &&
@@ -150,6 +171,73 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
         });
     }
 
+    @Override
+    public void getStoredProfile(Future<AggregatedProfileNamingStrategy> profile, String baseDir, String appId, String clusterId, String proc,
+                                 ZonedDateTime startTime, int durationInSeconds, AggregatedProfileModel.WorkType workType) {
+        ProfilesManifestReader.readManifestEntry(asyncStorage, baseDir, appId, clusterId, proc, startTime, durationInSeconds).thenApply(entry -> {
+            if (entry == null) {
+                return null;
+            }
+            for (AggregatedProfileModel.ProfilesManifest.StoredFile file : entry.getFilesList()) {
+                if (file.hasWorkType() && file.getWorkType() == workType) {
+                    return new AggregatedProfileNamingStrategy(baseDir, file.getFormatVersion(), appId, clusterId, proc, startTime, durationInSeconds,
+                            workType, file.getHourPartitioned());
+                }
+            }
+            return null;
+        }).whenComplete((result, error) -> completeFuture(result, error, profile));
+    }
+
+    /**
+     * Summary files of a day are read from the manifest of the process group for the day. Days for which no manifest entry was written,
+     * i.e. before manifests were introduced, are listed.
+     */
+    private CompletableFuture<List<AggregatedProfileNamingStrategy>> getSummaryFilesOfDay(String baseDir, String appId, String clusterId, String proc,
+                                                                                         LocalDate date, String prefix, ZonedDateTime startTime, ZonedDateTime endTime) {
+        return ProfilesManifestReader.readManifestOfDay(asyncStorage, baseDir, appId, clusterId, proc, date).thenCompose(manifest -> {
+            if (manifest.getEntriesCount() == 0) {
+                return listFilesOfDay(prefix, date, startTime, endTime);
+            }
+            return CompletableFuture.completedFuture(toSummaryFiles(manifest, baseDir, appId, clusterId, proc));
+        });
+    }
+
+    /**
+     * Hour partitioned files are listed only for the hours of the day which overlap the time window. Files stored without hour partitioning
+     * are listed for the complete day, under the prefix of start times in the day.
+     */
+    private CompletableFuture<List<AggregatedProfileNamingStrategy>> listFilesOfDay(String prefix, LocalDate date, ZonedDateTime startTime, ZonedDateTime endTime) {
+        List<CompletableFuture<Set<String>>> listings = new ArrayList<>();
+        listings.add(asyncStorage.listAsync(prefix + date.toString() + "T", true));
+
+        ZonedDateTime hour = startTime.withZoneSameInstant(ZoneOffset.UTC).truncatedTo(ChronoUnit.HOURS);
+        while (!hour.isAfter(endTime)) {
+            if (hour.toLocalDate().equals(date)) {
+                listings.add(asyncStorage.listAsync(prefix + AggregatedProfileNamingStrategy.getHourPartition(hour) + DELIMITER, true));
+            }
+            hour = hour.plusHours(1);
+        }
+
+        return CompletableFuture.allOf(listings.toArray(new CompletableFuture[listings.size()])).thenApply(v ->
+                listings.stream().flatMap(listing -> listing.join().stream())
+                        .map(AggregatedProfileNamingStrategy::fromFileName).collect(Collectors.toList()));
+    }
+
+    private List<AggregatedProfileNamingStrategy> toSummaryFiles(AggregatedProfileModel.ProfilesManifest manifest, String baseDir, String appId,
+                                                                 String clusterId, String proc) {
+        List<AggregatedProfileNamingStrategy> summaryFiles = new ArrayList<>();
+        for (AggregatedProfileModel.ProfilesManifest.Entry entry : manifest.getEntriesList()) {
+            ZonedDateTime windowStart = ZonedDateTime.parse(entry.getAggregationStartTime(), DateTimeFormatter.ISO_ZONED_DATE_TIME);
+            for (AggregatedProfileModel.ProfilesManifest.StoredFile file : entry.getFilesList()) {
+                if (!file.hasWorkType()) {
+                    summaryFiles.add(new AggregatedProfileNamingStrategy(baseDir, file.getFormatVersion(), appId, clusterId, proc, windowStart, entry.getDuration(),
+                            file.getHourPartitioned()));
+                }
+            }
+        }
+        return summaryFiles;
+    }
+
     @Override
     synchronized public void load(Future<AggregatedProfileInfo> future, AggregatedProfileNamingStrategy filename) {
         String fileNameKey = filename.getFileName(0);
@@ -172,6 +260,50 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
         }
     }
 
+    @Override
+    synchronized public void loadTraceCtx(Future<AggregatedSamplesPerTraceCtx> future, AggregatedProfileNamingStrategy filename, String traceName) {
+        if (!AggregatedProfileLoader.supportsTraceCtxLoading(filename.version)) {
+            // older formats can only be loaded as a whole
+            Future<AggregatedProfileInfo> profileFuture = Future.future();
+            profileFuture.setHandler(result -> {
+                if (result.succeeded()) {
+                    future.complete(result.result().getAggregatedSamples(traceName));
+                } else {
+                    future.fail(result.cause());
+                }
+            });
+            load(profileFuture, filename);
+            return;
+        }
+
+        String traceCtxKey = filename.getFileName(0) + DELIMITER + traceName;
+
+        AggregatedSamplesPerTraceCtx cachedSamples = traceCtxCache.getIfPresent(traceCtxKey);
+        if (cachedSamples == null) {
+            boolean fileLoadInProgress = futuresForLoadingFiles.containsKey(traceCtxKey);
+            // save the future, so that it can be notified when the loading visit finishes
+            saveRequestedFuture(traceCtxKey, future);
+            // set the timeout for this future
+            vertx.setTimer(profileLoadTimeout, timerId -> timeoutRequestedFuture(traceCtxKey, future));
+
+            if (!fileLoadInProgress) {
+                workerExecutor.executeBlocking((Future<AggregatedSamplesPerTraceCtx> f) -> profileLoader.loadTraceCtx(f, filename, traceName),
+                        true,
+                        result -> completeAggregatedProfileLoading(traceCtxCache, result, traceCtxKey));
+            }
+        } else {
+            future.complete(cachedSamples);
+        }
+    }
+
+    @Override
+    public void loadTraceCtxView(Future<Buffer> future, AggregatedProfileNamingStrategy filename, String traceName) {
+        // views are small and served as is, so they are not cached
+        workerExecutor.executeBlocking((Future<Buffer> f) -> profileLoader.loadTraceCtxView(f, filename, traceName),
+                false,
+                future.completer());
+    }
+
     @Override
     synchronized public void loadSummary(Future<AggregationWindowSummary> future, AggregatedProfileNamingStrategy filename) {
 
@@ -221,7 +353,7 @@ public class ProfileStoreAPIImpl implements ProfileStoreAPI {
     }
 
     synchronized private <T> void completeAggregatedProfileLoading(Cache<String, T> cache, AsyncResult<T> result, String filename) {
-        if (result.succeeded()) {
+        if (result.succeeded() && result.result() != null) {
             cache.put(filename, result.result());
         }
 
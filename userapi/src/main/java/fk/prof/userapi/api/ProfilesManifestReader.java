@@ -0,0 +1,77 @@
+package fk.prof.userapi.api;
+
+import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.ObjectNotFoundException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Reads the manifest of aggregation windows of a process group for a day, from the entries stored per window under the manifest dir of
+ * the day, see {@link AggregatedProfileNamingStrategy#getManifestDirName}, or the entry of a single window.
+ */
+public class ProfilesManifestReader {
+
+    private ProfilesManifestReader() {
+    }
+
+    /**
+     * @return manifest with the entries of the day in order of the start time of the windows, without entries if none were stored
+     */
+    public static CompletableFuture<AggregatedProfileModel.ProfilesManifest> readManifestOfDay(AsyncStorage storage, String baseDir, String appId,
+                                                                                            String clusterId, String procId, LocalDate date) {
+        String manifestDirName = AggregatedProfileNamingStrategy.getManifestDirName(baseDir, appId, clusterId, procId, date);
+        return storage.listAsync(manifestDirName, true).thenCompose(entryFileNames -> {
+            List<String> sortedEntryFileNames = new ArrayList<>(entryFileNames);
+            // entries are named by the start time of their window
+            sortedEntryFileNames.sort(null);
+
+            List<CompletableFuture<AggregatedProfileModel.ProfilesManifest>> entries = new ArrayList<>();
+            for (String entryFileName : sortedEntryFileNames) {
+                entries.add(storage.fetchAsync(entryFileName).thenApply(in -> parse(in, entryFileName)));
+            }
+            return CompletableFuture.allOf(entries.toArray(new CompletableFuture[entries.size()])).thenApply(v -> {
+                AggregatedProfileModel.ProfilesManifest.Builder manifest = AggregatedProfileModel.ProfilesManifest.newBuilder();
+                entries.forEach(entry -> manifest.addAllEntries(entry.join().getEntriesList()));
+                return manifest.build();
+            });
+        });
+    }
+
+    /**
+     * @return entry of the aggregation window in the manifest, null if it has none, e.g. if it was stored before manifests were introduced
+     */
+    public static CompletableFuture<AggregatedProfileModel.ProfilesManifest.Entry> readManifestEntry(AsyncStorage storage, String baseDir, String appId,
+                                                                                                  String clusterId, String procId,
+                                                                                                  ZonedDateTime startTime, int duration) {
+        String entryFileName = AggregatedProfileNamingStrategy.getManifestEntryFileName(baseDir, appId, clusterId, procId, startTime, duration);
+        return storage.fetchAsync(entryFileName).thenApply(in -> parse(in, entryFileName)).handle((manifest, error) -> {
+            if (error == null) {
+                return manifest.getEntriesCount() > 0 ? manifest.getEntries(0) : null;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof ObjectNotFoundException) {
+                return null;
+            }
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        });
+    }
+
+    private static AggregatedProfileModel.ProfilesManifest parse(InputStream in, String entryFileName) {
+        try (InputStream entryIn = in) {
+            return AggregatedProfileModel.ProfilesManifest.parseFrom(entryIn);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unexpected error while reading manifest entry: " + entryFileName, e);
+        }
+    }
+}
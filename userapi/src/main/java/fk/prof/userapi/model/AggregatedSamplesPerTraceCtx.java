@@ -1,7 +1,8 @@
 package fk.prof.userapi.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
-import fk.prof.userapi.util.StackLineParser;
+import fk.prof.aggregation.stacktrace.StackLineParser;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -13,9 +14,11 @@ public class AggregatedSamplesPerTraceCtx {
 
     private final AggregatedSamples aggregatedSamples;
     private final List<String> methodLookup;
+    private final AggregatedProfileModel.MethodLookUp storedMethodLookup;
 
     public AggregatedSamplesPerTraceCtx(AggregatedProfileModel.MethodLookUp methodIdlookup, AggregatedSamples aggregatedSamples) {
         this.aggregatedSamples = aggregatedSamples;
+        this.storedMethodLookup = methodIdlookup;
         this.methodLookup = methodIdlookup.getFqdnList().stream().map(StackLineParser::convertJVMTypeSignToJava).collect(Collectors.toList());
     }
 
@@ -26,4 +29,12 @@ public class AggregatedSamplesPerTraceCtx {
     public List<String> getMethodLookup() {
         return methodLookup;
     }
+
+    /**
+     * @return method lookup as it is stored, with JVM type signatures, e.g. to store the samples again
+     */
+    @JsonIgnore
+    public AggregatedProfileModel.MethodLookUp getStoredMethodLookup() {
+        return storedMethodLookup;
+    }
 }
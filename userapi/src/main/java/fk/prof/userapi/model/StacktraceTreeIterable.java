@@ -2,24 +2,141 @@ package fk.prof.userapi.model;
 
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
+ * Nodes of a stacktrace tree in dfs order. Trees of format v1 are held as the parsed {@link AggregatedProfileModel.FrameNodeList}s. Trees
+ * of format v2 are held as columns of the fields of their nodes, so that no object is held per node. Nodes are built as they are iterated,
+ * whereas {@link #forEachNode(NodeVisitor)} visits them without building any.
  * @author gaurav.ashok
  */
 public class StacktraceTreeIterable implements Iterable<AggregatedProfileModel.FrameNode> {
 
-    private List<AggregatedProfileModel.FrameNodeList> stackTraceParts;
+    private final List<AggregatedProfileModel.FrameNodeList> stackTraceParts;
+    private final Columns columns;
 
     public StacktraceTreeIterable(List<AggregatedProfileModel.FrameNodeList> stackTraceParts) {
         this.stackTraceParts = stackTraceParts;
+        this.columns = null;
+    }
+
+    private StacktraceTreeIterable(Columns columns) {
+        this.stackTraceParts = null;
+        this.columns = columns;
     }
 
     @Override
     public Iterator<AggregatedProfileModel.FrameNode> iterator() {
-        return new FrameNodeIterator();
+        return columns != null ? new ColumnIterator() : new FrameNodeIterator();
+    }
+
+    public void forEachNode(NodeVisitor visitor) throws IOException {
+        if(columns != null) {
+            for(int i = 0; i < columns.size; i++) {
+                visitor.visit(columns.methodIds[i], columns.childCounts[i], columns.lineNos[i], columns.onStackSamples[i], columns.onCpuSamples[i]);
+            }
+            return;
+        }
+        for(AggregatedProfileModel.FrameNodeList stackTracePart : stackTraceParts) {
+            for(AggregatedProfileModel.FrameNode node : stackTracePart.getFrameNodesList()) {
+                AggregatedProfileModel.CPUSamplingNodeProps props = node.getCpuSamplingProps();
+                visitor.visit(node.getMethodId(), node.getChildCount(), node.getLineNo(), props.getOnStackSamples(), props.getOnCpuSamples());
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface NodeVisitor {
+        void visit(int methodId, int childCount, int lineNo, int onStackSamples, int onCpuSamples) throws IOException;
+    }
+
+    /**
+     * Collects the nodes of a tree of format v2 into columns, growing them as required.
+     */
+    public static class Builder {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private Columns columns = new Columns(INITIAL_CAPACITY);
+
+        public Builder addNode(int methodId, int childCount, int lineNo, int onStackSamples, int onCpuSamples) {
+            if(columns.size == columns.methodIds.length) {
+                columns = columns.resize(columns.size * 2);
+            }
+            int i = columns.size++;
+            columns.methodIds[i] = methodId;
+            columns.childCounts[i] = childCount;
+            columns.lineNos[i] = lineNo;
+            columns.onStackSamples[i] = onStackSamples;
+            columns.onCpuSamples[i] = onCpuSamples;
+            return this;
+        }
+
+        public StacktraceTreeIterable build() {
+            StacktraceTreeIterable tree = new StacktraceTreeIterable(columns.resize(columns.size));
+            columns = null;
+            return tree;
+        }
+    }
+
+    private static class Columns {
+        int size = 0;
+        final int[] methodIds;
+        final int[] childCounts;
+        final int[] lineNos;
+        final int[] onStackSamples;
+        final int[] onCpuSamples;
+
+        Columns(int capacity) {
+            this(new int[capacity], new int[capacity], new int[capacity], new int[capacity], new int[capacity]);
+        }
+
+        private Columns(int[] methodIds, int[] childCounts, int[] lineNos, int[] onStackSamples, int[] onCpuSamples) {
+            this.methodIds = methodIds;
+            this.childCounts = childCounts;
+            this.lineNos = lineNos;
+            this.onStackSamples = onStackSamples;
+            this.onCpuSamples = onCpuSamples;
+        }
+
+        Columns resize(int capacity) {
+            Columns resized = new Columns(Arrays.copyOf(methodIds, capacity), Arrays.copyOf(childCounts, capacity), Arrays.copyOf(lineNos, capacity),
+                    Arrays.copyOf(onStackSamples, capacity), Arrays.copyOf(onCpuSamples, capacity));
+            resized.size = size;
+            return resized;
+        }
+    }
+
+    class ColumnIterator implements Iterator<AggregatedProfileModel.FrameNode> {
+
+        int index = 0;
+
+        @Override
+        public boolean hasNext() {
+            return index < columns.size;
+        }
+
+        @Override
+        public AggregatedProfileModel.FrameNode next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            AggregatedProfileModel.FrameNode result = AggregatedProfileModel.FrameNode.newBuilder()
+                    .setMethodId(columns.methodIds[index])
+                    .setChildCount(columns.childCounts[index])
+                    .setLineNo(columns.lineNos[index])
+                    .setCpuSamplingProps(AggregatedProfileModel.CPUSamplingNodeProps.newBuilder()
+                            .setOnCpuSamples(columns.onCpuSamples[index])
+                            .setOnStackSamples(columns.onStackSamples[index]))
+                    .build();
+
+            ++index;
+            return result;
+        }
     }
 
     class FrameNodeIterator implements Iterator<AggregatedProfileModel.FrameNode> {
@@ -8,6 +8,7 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.userapi.model.StacktraceTreeIterable;
 
 import java.io.IOException;
 
@@ -19,11 +20,13 @@ public class ProtoSerializers {
     public static void registerSerializers(ObjectMapper om) {
         SimpleModule module = new SimpleModule("protobufSerializers", new Version(1, 0, 0, null, null, null));
         module.addSerializer(AggregatedProfileModel.FrameNode.class, new FrameNodeSerializer());
+        module.addSerializer(StacktraceTreeIterable.class, new StacktraceTreeSerializer());
         module.addSerializer(AggregatedProfileModel.CPUSamplingNodeProps.class, new CpuSampleFrameNodePropsSerializer());
         module.addSerializer(AggregatedProfileModel.Header.class, new HeaderSerializer());
         module.addSerializer(AggregatedProfileModel.RecorderInfo.class, new RecorderInfoSerializer());
         module.addSerializer(AggregatedProfileModel.ProfileWorkInfo.class, new ProfileWorkInfoSerializer());
         module.addSerializer(AggregatedProfileModel.TraceCtxDetail.class, new TraceCtxDetailsSerializer());
+        module.addSerializer(AggregatedProfileModel.SampleErrorCounts.class, new SampleErrorCountsSerializer());
         om.registerModule(module);
     }
 
@@ -47,6 +50,34 @@ public class ProtoSerializers {
         }
     }
 
+    /**
+     * Writes nodes of the tree in the same form as {@link FrameNodeSerializer}, without building a {@link AggregatedProfileModel.FrameNode}
+     * per node.
+     */
+    static class StacktraceTreeSerializer extends StdSerializer<StacktraceTreeIterable> {
+
+        public StacktraceTreeSerializer() {
+            super(StacktraceTreeIterable.class);
+        }
+
+        @Override
+        public void serialize(StacktraceTreeIterable value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartArray();
+            value.forEachNode((methodId, childCount, lineNo, onStackSamples, onCpuSamples) -> {
+                gen.writeStartArray();
+                gen.writeNumber(methodId);
+                gen.writeNumber(childCount);
+                gen.writeNumber(lineNo);
+                gen.writeStartArray();
+                gen.writeNumber(onStackSamples);
+                gen.writeNumber(onCpuSamples);
+                gen.writeEndArray();
+                gen.writeEndArray();
+            });
+            gen.writeEndArray();
+        }
+    }
+
     static class TraceCtxDetailsSerializer extends StdSerializer<AggregatedProfileModel.TraceCtxDetail> {
 
         public TraceCtxDetailsSerializer() {
@@ -156,6 +187,39 @@ public class ProtoSerializers {
                 gen.writeEndArray();
             }
             gen.writeEndArray();
+
+            JsonSerializer sampleErrorsSerializer = serializers.findValueSerializer(AggregatedProfileModel.SampleErrorCounts.class);
+            if(value.hasSampleErrors()) {
+                gen.writeFieldName("sample_errors");
+                sampleErrorsSerializer.serialize(value.getSampleErrors(), gen, serializers);
+            }
+
+            gen.writeArrayFieldStart("trace_sample_errors");
+            for(AggregatedProfileModel.ProfileWorkInfo.TraceCtxToSampleErrors keyValue: value.getTraceSampleErrorsList()) {
+                gen.writeStartArray();
+                gen.writeNumber(keyValue.getTraceCtxIdx());
+                sampleErrorsSerializer.serialize(keyValue.getSampleErrors(), gen, serializers);
+                gen.writeEndArray();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+    }
+
+    static class SampleErrorCountsSerializer extends StdSerializer<AggregatedProfileModel.SampleErrorCounts> {
+        public SampleErrorCountsSerializer() {
+            super(AggregatedProfileModel.SampleErrorCounts.class);
+        }
+
+        @Override
+        public void serialize(AggregatedProfileModel.SampleErrorCounts value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartObject();
+            gen.writeNumberField("snipped", value.getSnippedCount());
+            gen.writeObjectFieldStart("errors");
+            for(AggregatedProfileModel.SampleErrorCounts.ErrorCount errorCount : value.getErrorCountList()) {
+                gen.writeNumberField(errorCount.getError().name(), errorCount.getCount());
+            }
+            gen.writeEndObject();
             gen.writeEndObject();
         }
     }
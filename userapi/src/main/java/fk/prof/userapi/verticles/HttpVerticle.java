@@ -10,7 +10,7 @@ import fk.prof.userapi.api.ProfileStoreAPI;
 import fk.prof.userapi.exception.UserapiHttpFailure;
 import fk.prof.userapi.http.ProfHttpClient;
 import fk.prof.userapi.http.UserapiHttpHelper;
-import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
 import fk.prof.userapi.model.AggregationWindowSummary;
 import fk.prof.userapi.util.ProtoUtil;
 import io.vertx.core.AbstractVerticle;
@@ -35,8 +35,10 @@ import proto.PolicyDTO;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 
 import static fk.prof.userapi.http.UserapiApiPathConstants.*;
@@ -219,23 +221,88 @@ public class HttpVerticle extends AbstractVerticle {
             return;
         }
 
-        AggregatedProfileNamingStrategy filename;
-        try {
-            filename = new AggregatedProfileNamingStrategy(baseDir, 1, appId, clusterId, procName, startTime, duration, workType);
-        } catch (Exception e) {
-            setResponse(Future.failedFuture(new IllegalArgumentException(e)), routingContext);
+        Future<AggregatedSamplesPerTraceCtx> future = Future.future();
+        future.setHandler(result -> setResponse(result, routingContext, true));
+
+        // an hour or a day is served from its rollup, if it has been compacted
+        Future<AggregatedProfileNamingStrategy> rollup = Future.future();
+        if (isRollupWindow(startTime, duration)) {
+            profileStoreAPI.getStoredProfile(rollup, AggregatedProfileNamingStrategy.getRollupBaseDir(baseDir), appId, clusterId, procName, startTime,
+                duration, workType);
+        } else {
+            rollup.complete(null);
+        }
+
+        rollup.setHandler(rollupResult -> {
+            if (rollupResult.failed()) {
+                setResponse(Future.failedFuture(rollupResult.cause()), routingContext);
+                return;
+            }
+            if (rollupResult.result() != null) {
+                loadTraceCtx(future, Collections.singletonList(rollupResult.result()), traceName, routingContext);
+                return;
+            }
+            Future<AggregatedProfileNamingStrategy> window = Future.future();
+            window.setHandler(windowResult -> {
+                if (windowResult.failed()) {
+                    setResponse(Future.failedFuture(windowResult.cause()), routingContext);
+                    return;
+                }
+                if (windowResult.result() != null) {
+                    loadTraceCtx(future, Collections.singletonList(windowResult.result()), traceName, routingContext);
+                    return;
+                }
+                // aggregation windows stored before manifests were introduced are of format v1, stored without hour partitioning of their paths
+                loadTraceCtx(future, Collections.singletonList(new AggregatedProfileNamingStrategy(baseDir, 1, appId, clusterId, procName, startTime,
+                    duration, workType, false)), traceName, routingContext);
+            });
+            profileStoreAPI.getStoredProfile(window, baseDir, appId, clusterId, procName, startTime, duration, workType);
+        });
+    }
+
+    /**
+     * Loads the trace context from the first of the filenames which exists, or serves its view precomputed by backend as is, if stored.
+     */
+    private void loadTraceCtx(Future<AggregatedSamplesPerTraceCtx> future, List<AggregatedProfileNamingStrategy> filenames, String traceName,
+                              RoutingContext routingContext) {
+        if (!safeContains(routingContext.request().getHeader("Accept-Encoding"), "gzip")) {
+            loadTraceCtx(future, filenames.iterator(), traceName);
             return;
         }
 
-        Future<AggregatedProfileInfo> future = Future.future();
-        future.setHandler((AsyncResult<AggregatedProfileInfo> result) -> {
+        Future<Buffer> view = Future.future();
+        view.setHandler(result -> {
             if (result.succeeded()) {
-                setResponse(Future.succeededFuture(result.result().getAggregatedSamples(traceName)), routingContext, true);
+                setGzippedResponse(result.result(), routingContext);
+            } else {
+                if (!(result.cause() instanceof FileNotFoundException)) {
+                    LOGGER.warn("Failed to load view of trace context, loading from profile instead: " + routingContext.request().uri(), result.cause());
+                }
+                loadTraceCtx(future, filenames.iterator(), traceName);
+            }
+        });
+        profileStoreAPI.loadTraceCtxView(view, filenames.get(0), traceName);
+    }
+
+    private void loadTraceCtx(Future<AggregatedSamplesPerTraceCtx> future, Iterator<AggregatedProfileNamingStrategy> filenames, String traceName) {
+        AggregatedProfileNamingStrategy filename = filenames.next();
+        Future<AggregatedSamplesPerTraceCtx> versionFuture = Future.future();
+        versionFuture.setHandler(result -> {
+            if (result.failed() && result.cause() instanceof FileNotFoundException && filenames.hasNext()) {
+                loadTraceCtx(future, filenames, traceName);
             } else {
-                setResponse(result, routingContext);
+                future.completer().handle(result);
             }
         });
-        profileStoreAPI.load(future, filename);
+        profileStoreAPI.loadTraceCtx(versionFuture, filename, traceName);
+    }
+
+    private static boolean isRollupWindow(ZonedDateTime startTime, int duration) {
+        ZonedDateTime utcStartTime = startTime.withZoneSameInstant(ZoneOffset.UTC);
+        if (duration == 3600) {
+            return utcStartTime.equals(utcStartTime.truncatedTo(ChronoUnit.HOURS));
+        }
+        return duration == 86400 && utcStartTime.equals(utcStartTime.truncatedTo(ChronoUnit.DAYS));
     }
 
     private void handleGetHealth(RoutingContext routingContext) {
@@ -356,6 +423,16 @@ public class HttpVerticle extends AbstractVerticle {
         }
     }
 
+    private void setGzippedResponse(Buffer compressedBuf, RoutingContext routingContext) {
+        if (routingContext.response().ended()) {
+            return;
+        }
+        routingContext.response()
+                .putHeader("content-type", "application/json")
+                .putHeader("Content-Encoding", "gzip")
+                .end(compressedBuf);
+    }
+
     private boolean safeContains(String str, String subStr) {
         if (str == null || subStr == null) {
             return false;
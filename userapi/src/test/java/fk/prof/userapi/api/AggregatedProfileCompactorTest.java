@@ -0,0 +1,214 @@
+package fk.prof.userapi.api;
+
+import com.codahale.metrics.MetricRegistry;
+import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.model.AggregationWindowSerializer;
+import fk.prof.aggregation.model.AggregationWindowStorage;
+import fk.prof.aggregation.model.AggregationWindowSummarySerializer;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.CompressionCodec;
+import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.buffer.PartUploadPolicy;
+import fk.prof.storage.buffer.SizeClassedBufferPool;
+import fk.prof.userapi.model.AggregatedCpuSamplesData;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+import fk.prof.userapi.model.AggregationWindowSummary;
+import io.vertx.core.Future;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Tests compaction of aggregation windows into hourly and daily rollups.
+ */
+public class AggregatedProfileCompactorTest {
+
+    final String sampleStackTraces = "[\n" +
+            "  [\"A()\",\"D()\",\"G()\"],\n" +
+            "  [\"A()\",\"D()\"],[\"A()\",\"D()\"],[\"A()\",\"D()\"],\n" +
+            "  [\"A()\", \"B()\", \"C()\"],[\"A()\", \"B()\", \"C()\"],\n" +
+            "  [\"E()\", \"F()\", \"B()\", \"C()\"],[\"E()\", \"F()\", \"B()\", \"C()\"],\n" +
+            "  [\"E()\", \"F()\", \"D()\"],[\"E()\", \"F()\", \"D()\"]\n" +
+            "]";
+    final int samplesPerWindow = 10;
+
+    final ZonedDateTime hourStart = ZonedDateTime.parse("2017-03-01T07:00:00Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+    final ZonedDateTime dayStart = ZonedDateTime.parse("2017-03-01T00:00:00Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+    final String rollupBaseDir = AggregatedProfileNamingStrategy.getRollupBaseDir("profiles");
+
+    ListableStorage asyncStorage;
+    AggregatedProfileLoader loader;
+    AggregationWindowStorage rollupStorage;
+    AggregationWindowStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        asyncStorage = new ListableStorage();
+        loader = new AggregatedProfileLoader(asyncStorage);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        SizeClassedBufferPool slabPool = new SizeClassedBufferPool(64 * 1024, 1024 * 1024, false, new GenericObjectPoolConfig());
+        rollupStorage = new AggregationWindowStorage(rollupBaseDir, asyncStorage, slabPool, 1024 * 1024, metricRegistry, CompressionCodec.GZIP,
+                PartUploadPolicy.DEFAULT, false);
+
+        storage = new AggregationWindowStorage("profiles", asyncStorage, slabPool, 1024 * 1024, metricRegistry,
+                CompressionCodec.GZIP, PartUploadPolicy.DEFAULT, false);
+        storage.store(MockAggregationWindow.buildAggregationWindow("2017-03-01T07:00:00", () -> sampleStackTraces, 1800));
+        storage.store(MockAggregationWindow.buildAggregationWindow("2017-03-01T07:30:00", () -> sampleStackTraces, 1800));
+    }
+
+    @Test
+    public void testCompact_shouldMergeWindowsOfHourAndHoursOfDay() throws Exception {
+        AggregatedProfileCompactor compactor = new AggregatedProfileCompactor("profiles", asyncStorage, loader, rollupStorage,
+                Duration.ofMinutes(10), Duration.ofHours(48), 5000);
+        Assert.assertEquals(2, compactor.compact(dayStart.plusDays(2)));
+
+        AggregatedProfileModel.ProfilesManifest rollups = ProfilesManifestReader.readManifestOfDay(asyncStorage, rollupBaseDir, "app1", "cluster1",
+                "proc1", LocalDate.of(2017, 3, 1)).get();
+        Assert.assertEquals(2, rollups.getEntriesCount());
+        // in order of start time
+        Assert.assertEquals(86400, rollups.getEntries(0).getDuration());
+        Assert.assertEquals(3600, rollups.getEntries(1).getDuration());
+
+        for (ZonedDateTime start : new ZonedDateTime[] {hourStart, dayStart}) {
+            int duration = start.equals(hourStart) ? 3600 : 86400;
+            AggregatedProfileInfo profile = load(new AggregatedProfileNamingStrategy(rollupBaseDir, AggregationWindowSerializer.VERSION, "app1",
+                    "cluster1", "proc1", start, duration, AggregatedProfileModel.WorkType.cpu_sample_work, true));
+            Assert.assertEquals(2 * samplesPerWindow, profile.getTraceDetails().iterator().next().getSampleCount());
+
+            AggregatedSamplesPerTraceCtx samples = profile.getAggregatedSamples("full-app-trace");
+            // windows have the same 7 methods, so they are not repeated in the lookup of the rollup, besides the 2 placeholder roots
+            Assert.assertEquals(9, samples.getMethodLookup().size());
+
+            int onStackSamples = -1;
+            int onCpuSamples = 0;
+            for (AggregatedProfileModel.FrameNode node : ((AggregatedCpuSamplesData) samples.getAggregatedSamples()).getFrameNodes()) {
+                if (onStackSamples < 0) {
+                    onStackSamples = node.getCpuSamplingProps().getOnStackSamples();
+                }
+                onCpuSamples += node.getCpuSamplingProps().getOnCpuSamples();
+            }
+            Assert.assertEquals(2 * samplesPerWindow, onStackSamples);
+            Assert.assertEquals(2 * samplesPerWindow, onCpuSamples);
+
+            Future<AggregationWindowSummary> summary = Future.future();
+            loader.loadSummary(summary, new AggregatedProfileNamingStrategy(rollupBaseDir, AggregationWindowSummarySerializer.VERSION, "app1", "cluster1",
+                    "proc1", start, duration, true));
+            Assert.assertTrue(summary.succeeded());
+            int workInfoCount = 0;
+            for (AggregatedProfileModel.ProfileWorkInfo workInfo : summary.result().getProfiles()) {
+                workInfoCount++;
+            }
+            Assert.assertEquals(4, workInfoCount);
+        }
+
+        // compacted hours and days are not compacted again
+        Assert.assertEquals(0, compactor.compact(dayStart.plusDays(2)));
+    }
+
+    @Test
+    public void testCompact_shouldNotCompactHourBeforeDelay() throws Exception {
+        AggregatedProfileCompactor compactor = new AggregatedProfileCompactor("profiles", asyncStorage, loader, rollupStorage,
+                Duration.ofMinutes(10), Duration.ofHours(48), 5000);
+        Assert.assertEquals(0, compactor.compact(hourStart.plusMinutes(65)));
+        Assert.assertEquals(1, compactor.compact(hourStart.plusMinutes(70)));
+        Assert.assertFalse(asyncStorage.data.keySet().stream().anyMatch(path -> path.contains("/86400/")));
+    }
+
+    @Test
+    public void testCompact_shouldCompactHourAndDayAgainWithWindowsStoredLate() throws Exception {
+        AggregatedProfileCompactor compactor = new AggregatedProfileCompactor("profiles", asyncStorage, loader, rollupStorage,
+                Duration.ofMinutes(10), Duration.ofHours(48), 5000);
+        Assert.assertEquals(2, compactor.compact(dayStart.plusDays(2)));
+
+        // e.g. recovered from a checkpoint by a backend after the hour was compacted
+        storage.store(MockAggregationWindow.buildAggregationWindow("2017-03-01T07:45:00", () -> sampleStackTraces, 900));
+        Assert.assertEquals(2, compactor.compact(dayStart.plusDays(2)));
+
+        AggregatedProfileModel.ProfilesManifest rollups = ProfilesManifestReader.readManifestOfDay(asyncStorage, rollupBaseDir, "app1", "cluster1",
+                "proc1", LocalDate.of(2017, 3, 1)).get();
+        Assert.assertEquals(2, rollups.getEntriesCount());
+        Assert.assertEquals(3, rollups.getEntries(0).getMergedWindowCount());
+        Assert.assertEquals(3, rollups.getEntries(1).getMergedWindowCount());
+        for (ZonedDateTime start : new ZonedDateTime[] {hourStart, dayStart}) {
+            AggregatedProfileInfo profile = load(new AggregatedProfileNamingStrategy(rollupBaseDir, AggregationWindowSerializer.VERSION, "app1",
+                    "cluster1", "proc1", start, start.equals(hourStart) ? 3600 : 86400, AggregatedProfileModel.WorkType.cpu_sample_work, true));
+            Assert.assertEquals(3 * samplesPerWindow, profile.getTraceDetails().iterator().next().getSampleCount());
+        }
+        Assert.assertEquals(0, compactor.compact(dayStart.plusDays(2)));
+
+        // days which ended before the horizon are not looked at again
+        storage.store(MockAggregationWindow.buildAggregationWindow("2017-03-01T07:15:00", () -> sampleStackTraces, 900));
+        Assert.assertEquals(0, compactor.compact(dayStart.plusDays(4)));
+    }
+
+    private AggregatedProfileInfo load(AggregatedProfileNamingStrategy filename) {
+        Future<AggregatedProfileInfo> profile = Future.future();
+        loader.load(profile, filename);
+        Assert.assertTrue("rollup was not loaded: " + filename, profile.succeeded());
+        return profile.result();
+    }
+
+    /**
+     * Listing follows the semantics of listing S3 objects by prefix.
+     */
+    class ListableStorage implements AsyncStorage {
+
+        ConcurrentSkipListMap<String, byte[]> data = new ConcurrentSkipListMap<>();
+
+        @Override
+        public CompletableFuture<Void> storeAsync(String path, InputStream content, long length) {
+            try {
+                byte[] bytes = new byte[(int)length];
+                int readBytes = content.read(bytes, 0, (int)length);
+                assert readBytes == length : "couldn't read " + length + " bytes for storing";
+                data.put(path, bytes);
+                content.close();
+            }
+            catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<InputStream> fetchAsync(String path) {
+            if(data.containsKey(path)) {
+                return CompletableFuture.completedFuture(new ByteArrayInputStream(data.get(path)));
+            }
+            else {
+                return CompletableFuture.supplyAsync(() -> {
+                    throw new ObjectNotFoundException(path);
+                });
+            }
+        }
+
+        @Override
+        public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
+            Set<String> objects = new HashSet<>();
+            for (String path : data.tailMap(prefixPath).keySet()) {
+                if (!path.startsWith(prefixPath)) {
+                    break;
+                }
+                int delimiter = path.indexOf('/', prefixPath.length());
+                objects.add(recursive || delimiter == -1 ? path : path.substring(0, delimiter + 1));
+            }
+            return CompletableFuture.completedFuture(objects);
+        }
+    }
+}
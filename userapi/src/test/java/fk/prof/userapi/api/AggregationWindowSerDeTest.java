@@ -1,29 +1,53 @@
 package fk.prof.userapi.api;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.model.AggregationWindowSerializer;
 import fk.prof.aggregation.model.AggregationWindowStorage;
 import fk.prof.aggregation.model.FinalizedAggregationWindow;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.CompressionCodec;
 import fk.prof.storage.ObjectNotFoundException;
+import fk.prof.storage.StreamTransformer;
 import fk.prof.storage.buffer.ByteBufferPoolFactory;
+import fk.prof.storage.buffer.PartUploadPolicy;
+import fk.prof.userapi.model.AggregatedCpuSamplesData;
+import fk.prof.userapi.model.AggregatedProfileInfo;
+import fk.prof.userapi.model.AggregatedSamplesPerTraceCtx;
+import fk.prof.userapi.model.AggregationWindowSummary;
+import fk.prof.userapi.model.json.ProtoSerializers;
 import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
@@ -56,6 +80,8 @@ public class AggregationWindowSerDeTest {
         MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
         Timer mockTimer = mock(Timer.class);
         when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.histogram(any())).thenReturn(mock(Histogram.class));
+        when(mockMetricRegistry.meter(any())).thenReturn(mock(Meter.class));
 
         AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
 
@@ -71,14 +97,394 @@ public class AggregationWindowSerDeTest {
         AggregatedProfileLoader loader = new AggregatedProfileLoader(asyncStorage);
 
         Future f1 =  Future.future();
-        AggregatedProfileNamingStrategy file1 = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work);
+        AggregatedProfileNamingStrategy file1 = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work, true);
         loader.load(f1, file1);
         Assert.assertTrue("aggregated profiles were not loaded", f1.succeeded());
 
         Future f2 =  Future.future();
-        AggregatedProfileNamingStrategy file2 = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, 1800);
+        AggregatedProfileNamingStrategy file2 = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, 1800, true);
         loader.loadSummary(f2, file2);
         Assert.assertTrue("aggregation summary were not loaded", f2.succeeded());
+
+        // window is in the manifest of the day
+        AggregatedProfileModel.ProfilesManifest manifest = ProfilesManifestReader.readManifestOfDay(asyncStorage, "profiles", "app1", "cluster1", "proc1",
+                startimeZ.toLocalDate()).get();
+        Assert.assertEquals(1, manifest.getEntriesCount());
+        Assert.assertEquals(startimeZ, ZonedDateTime.parse(manifest.getEntries(0).getAggregationStartTime(), DateTimeFormatter.ISO_ZONED_DATE_TIME));
+        Assert.assertEquals(1800, manifest.getEntries(0).getDuration());
+        Assert.assertEquals(AggregatedProfileModel.WorkType.cpu_sample_work, manifest.getEntries(0).getFiles(0).getWorkType());
+        Assert.assertTrue(manifest.getEntries(0).getFiles(0).getHourPartitioned());
+        Assert.assertEquals(AggregationWindowSerializer.VERSION, manifest.getEntries(0).getFiles(0).getFormatVersion());
+        Assert.assertFalse(manifest.getEntries(0).getFiles(1).hasWorkType());
+        Assert.assertEquals(1, manifest.getEntries(0).getFiles(1).getPartCount());
+
+        // stored again, e.g. on retry
+        storage.store(window);
+        manifest = ProfilesManifestReader.readManifestOfDay(asyncStorage, "profiles", "app1", "cluster1", "proc1", startimeZ.toLocalDate()).get();
+        Assert.assertEquals(1, manifest.getEntriesCount());
+
+        // window of the day stored by another backend, e.g. after a hand-off, does not overwrite the entry of the first
+        AggregationWindowStorage otherStorage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
+        otherStorage.store(MockAggregationWindow.buildAggregationWindow("2017-03-01T07:30:00", () -> sampleStackTraces, 1800));
+        manifest = ProfilesManifestReader.readManifestOfDay(asyncStorage, "profiles", "app1", "cluster1", "proc1", startimeZ.toLocalDate()).get();
+        Assert.assertEquals(2, manifest.getEntriesCount());
+        Assert.assertEquals(startimeZ, ZonedDateTime.parse(manifest.getEntries(0).getAggregationStartTime(), DateTimeFormatter.ISO_ZONED_DATE_TIME));
+    }
+
+    @Test
+    public void testLoadSummary_shouldFailWhenChecksumDoesNotMatch() throws Exception {
+        HashMapBasedStorage asyncStorage = new HashMapBasedStorage();
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(10);
+        poolConfig.setMaxIdle(10);
+
+        GenericObjectPool bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(10_000_000, false), poolConfig);
+
+        MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
+        Timer mockTimer = mock(Timer.class);
+        when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.histogram(any())).thenReturn(mock(Histogram.class));
+        when(mockMetricRegistry.meter(any())).thenReturn(mock(Meter.class));
+
+        AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
+
+        String startime = "2017-03-01T07:00:00";
+        ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        storage.store(MockAggregationWindow.buildAggregationWindow(startime, () -> sampleStackTraces, 1800));
+
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, 1800, true);
+        byte[] summary = ByteStreams.toByteArray(StreamTransformer.decompress(new ByteArrayInputStream(asyncStorage.data.get(file.getFileName(0)))));
+        // last byte of the file is the last byte of the varint checksum of trace details
+        summary[summary.length - 1] ^= 1;
+        ByteArrayOutputStream corrupted = new ByteArrayOutputStream();
+        try (OutputStream out = CompressionCodec.GZIP.compress(corrupted)) {
+            out.write(summary);
+        }
+        asyncStorage.data.put(file.getFileName(0), corrupted.toByteArray());
+
+        Future<AggregationWindowSummary> f = Future.future();
+        new AggregatedProfileLoader(asyncStorage).loadSummary(f, file);
+        Assert.assertTrue("summary with checksum mismatch was loaded", f.failed());
+        Assert.assertTrue(f.cause() instanceof IOException);
+    }
+
+    @Test
+    public void testLoadTraceCtx_shouldLoadSameSamplesAsLoadingCompleteProfile() throws Exception {
+        AsyncStorage asyncStorage = new HashMapBasedStorage();
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(100);
+        poolConfig.setMaxIdle(100);
+
+        // small parts, so that sections span multiple parts
+        GenericObjectPool bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(64, false), poolConfig);
+
+        MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
+        Timer mockTimer = mock(Timer.class);
+        when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.histogram(any())).thenReturn(mock(Histogram.class));
+        when(mockMetricRegistry.meter(any())).thenReturn(mock(Meter.class));
+
+        AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
+
+        String startime = "2017-03-01T07:00:00";
+        ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        FinalizedAggregationWindow window = MockAggregationWindow.buildAggregationWindow(startime, () -> sampleStackTraces, 1800);
+        storage.store(window);
+
+        AggregatedProfileLoader loader = new AggregatedProfileLoader(asyncStorage);
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work, true);
+
+        Future<AggregatedProfileInfo> profile = Future.future();
+        loader.load(profile, file);
+        Assert.assertTrue("aggregated profiles were not loaded", profile.succeeded());
+
+        for (String traceName : profile.result().getTraces()) {
+            Future<AggregatedSamplesPerTraceCtx> traceCtx = Future.future();
+            loader.loadTraceCtx(traceCtx, file, traceName);
+            Assert.assertTrue("samples of trace context were not loaded", traceCtx.succeeded());
+
+            AggregatedSamplesPerTraceCtx expected = profile.result().getAggregatedSamples(traceName);
+            Assert.assertEquals(expected.getMethodLookup(), traceCtx.result().getMethodLookup());
+            Assert.assertEquals(
+                    Lists.newArrayList(((AggregatedCpuSamplesData) expected.getAggregatedSamples()).getFrameNodes()),
+                    Lists.newArrayList(((AggregatedCpuSamplesData) traceCtx.result().getAggregatedSamples()).getFrameNodes()));
+        }
+
+        Future<AggregatedSamplesPerTraceCtx> absentTraceCtx = Future.future();
+        loader.loadTraceCtx(absentTraceCtx, file, "absent-trace");
+        Assert.assertTrue(absentTraceCtx.succeeded());
+        Assert.assertNull(absentTraceCtx.result());
+    }
+
+    @Test
+    public void testLoad_shouldLoadSameProfileWithIndexWithoutPartCountAndUncompressedLengths() throws Exception {
+        HashMapBasedStorage asyncStorage = new HashMapBasedStorage();
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(100);
+        poolConfig.setMaxIdle(100);
+
+        // small parts, so that sections span multiple parts
+        GenericObjectPool bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(64, false), poolConfig);
+
+        MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
+        Timer mockTimer = mock(Timer.class);
+        when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.histogram(any())).thenReturn(mock(Histogram.class));
+        when(mockMetricRegistry.meter(any())).thenReturn(mock(Meter.class));
+
+        AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
+
+        String startime = "2017-03-01T07:00:00";
+        ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        FinalizedAggregationWindow window = MockAggregationWindow.buildAggregationWindow(startime, () -> sampleStackTraces, 1800);
+        storage.store(window);
+
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work, true);
+        AggregatedProfileModel.AggregationFileIndex index = AggregatedProfileModel.AggregationFileIndex.parseFrom(
+                StreamTransformer.decompress(new ByteArrayInputStream(asyncStorage.data.get(file.getIndexFileName()))));
+
+        Assert.assertTrue(index.getPartCount() > 1);
+        Assert.assertTrue(asyncStorage.data.containsKey(file.getFileName(index.getPartCount() - 1)));
+        Assert.assertFalse(asyncStorage.data.containsKey(file.getFileName(index.getPartCount())));
+        Assert.assertTrue(index.getHead().getUncompressedLength() > 0);
+
+        AggregatedProfileLoader loader = new AggregatedProfileLoader(asyncStorage);
+        Future<AggregatedProfileInfo> profile = Future.future();
+        loader.load(profile, file);
+        Assert.assertTrue("aggregated profiles were not loaded", profile.succeeded());
+
+        // index as written before count of parts and uncompressed lengths were added to it
+        AggregatedProfileModel.AggregationFileIndex.Builder legacyIndex = index.toBuilder().clearPartCount();
+        legacyIndex.getHeadBuilder().clearUncompressedLength();
+        legacyIndex.getTraceCtxSectionsBuilderList().forEach(section -> section.getSectionBuilder().clearUncompressedLength());
+        ByteArrayOutputStream legacyIndexBytes = new ByteArrayOutputStream();
+        try (OutputStream out = CompressionCodec.GZIP.compress(legacyIndexBytes)) {
+            legacyIndex.build().writeTo(out);
+        }
+        asyncStorage.data.put(file.getIndexFileName(), legacyIndexBytes.toByteArray());
+
+        Future<AggregatedProfileInfo> legacyProfile = Future.future();
+        loader.load(legacyProfile, file);
+        Assert.assertTrue("aggregated profiles were not loaded with legacy index", legacyProfile.succeeded());
+
+        Assert.assertEquals(Lists.newArrayList(profile.result().getTraces()), Lists.newArrayList(legacyProfile.result().getTraces()));
+        for (String traceName : profile.result().getTraces()) {
+            Assert.assertEquals(
+                    Lists.newArrayList(((AggregatedCpuSamplesData) profile.result().getAggregatedSamples(traceName).getAggregatedSamples()).getFrameNodes()),
+                    Lists.newArrayList(((AggregatedCpuSamplesData) legacyProfile.result().getAggregatedSamples(traceName).getAggregatedSamples()).getFrameNodes()));
+        }
+    }
+
+    @Test
+    public void testLoad_shouldHoldAtMostSectionsInFlightOnDedicatedExecutor() throws Exception {
+        AtomicInteger unreadSections = new AtomicInteger();
+        AtomicInteger maxUnreadSections = new AtomicInteger();
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(4);
+        // ranged fetches complete on other threads, and are counted till their content is closed
+        HashMapBasedStorage asyncStorage = new HashMapBasedStorage() {
+            @Override
+            public CompletableFuture<InputStream> fetchAsync(String path, long offset, int length) {
+                int unread = unreadSections.incrementAndGet();
+                maxUnreadSections.accumulateAndGet(unread, Math::max);
+                return CompletableFuture.supplyAsync(() -> new ByteArrayInputStream(data.get(path), (int) offset, length) {
+                    @Override
+                    public void close() throws IOException {
+                        unreadSections.decrementAndGet();
+                    }
+                }, fetchExecutor);
+            }
+        };
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(10);
+        poolConfig.setMaxIdle(10);
+
+        GenericObjectPool bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(10_000_000, false), poolConfig);
+
+        MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
+        Timer mockTimer = mock(Timer.class);
+        when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.histogram(any())).thenReturn(mock(Histogram.class));
+        when(mockMetricRegistry.meter(any())).thenReturn(mock(Meter.class));
+
+        AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
+
+        String startime = "2017-03-01T07:00:00";
+        ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        storage.store(MockAggregationWindow.buildAggregationWindow(startime, () -> sampleStackTraces, 1800));
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work, true);
+
+        ExecutorService loaderExecutor = Executors.newFixedThreadPool(2);
+        try {
+            Future<AggregatedProfileInfo> profile = Future.future();
+            new AggregatedProfileLoader(asyncStorage, loaderExecutor, 0, 1).load(profile, file);
+            Assert.assertTrue("aggregated profiles were not loaded", profile.succeeded());
+            Assert.assertEquals(1, maxUnreadSections.get());
+            Assert.assertEquals(0, unreadSections.get());
+
+            Future<AggregatedProfileInfo> expected = Future.future();
+            new AggregatedProfileLoader(asyncStorage).load(expected, file);
+            Assert.assertEquals(Lists.newArrayList(expected.result().getTraces()), Lists.newArrayList(profile.result().getTraces()));
+            for (String traceName : expected.result().getTraces()) {
+                Assert.assertEquals(
+                        Lists.newArrayList(((AggregatedCpuSamplesData) expected.result().getAggregatedSamples(traceName).getAggregatedSamples()).getFrameNodes()),
+                        Lists.newArrayList(((AggregatedCpuSamplesData) profile.result().getAggregatedSamples(traceName).getAggregatedSamples()).getFrameNodes()));
+            }
+        }
+        finally {
+            loaderExecutor.shutdown();
+            fetchExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSerialize_shouldWriteSameBytesWhenTreesAreEncodedConcurrently() throws Exception {
+        FinalizedAggregationWindow window = MockAggregationWindow.buildAggregationWindow("2017-03-01T07:00:00", () -> sampleStackTraces, 1800, 20);
+
+        AggregationWindowSerializer sequential = new AggregationWindowSerializer(window, AggregatedProfileModel.WorkType.cpu_sample_work,
+                CompressionCodec.GZIP, Runnable::run, 1);
+        ByteArrayOutputStream sequentialOut = new ByteArrayOutputStream();
+        sequential.serialize(sequentialOut);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AggregationWindowSerializer concurrent = new AggregationWindowSerializer(window, AggregatedProfileModel.WorkType.cpu_sample_work,
+                    CompressionCodec.GZIP, executor, 3);
+            ByteArrayOutputStream concurrentOut = new ByteArrayOutputStream();
+            concurrent.serialize(concurrentOut);
+
+            Assert.assertArrayEquals(sequentialOut.toByteArray(), concurrentOut.toByteArray());
+            Assert.assertEquals(sequential.buildIndex(0), concurrent.buildIndex(0));
+            Assert.assertEquals(21, concurrent.buildIndex(0).getTraceCtxSectionsCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSerialize_shouldNotEncodeTreesBeyondTreesInFlightWhenWriteFails() throws Exception {
+        FinalizedAggregationWindow window = MockAggregationWindow.buildAggregationWindow("2017-03-01T07:00:00", () -> sampleStackTraces, 1800, 20);
+        AtomicInteger encodedTrees = new AtomicInteger(0);
+        AggregationWindowSerializer serializer = new AggregationWindowSerializer(window, AggregatedProfileModel.WorkType.cpu_sample_work,
+                CompressionCodec.GZIP, task -> {
+                    encodedTrees.incrementAndGet();
+                    task.run();
+                }, 2);
+
+        // head is written, writing the first tree fails
+        AtomicInteger writes = new AtomicInteger(0);
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if(writes.incrementAndGet() > 1) {
+                    throw new IOException("write failed");
+                }
+            }
+        };
+        try {
+            serializer.serialize(out);
+            Assert.fail("serialization should fail when writing fails");
+        } catch (IOException e) {
+            Assert.assertEquals("write failed", e.getMessage());
+        }
+        Assert.assertEquals(2, encodedTrees.get());
+    }
+
+    @Test
+    public void testStore_shouldShareMethodLookupAmongWindowsWithSameMethods() throws Exception {
+        HashMapBasedStorage asyncStorage = new HashMapBasedStorage();
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(10);
+        poolConfig.setMaxIdle(10);
+
+        GenericObjectPool bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(10_000_000, false), poolConfig);
+
+        MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
+        Timer mockTimer = mock(Timer.class);
+        when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.histogram(any())).thenReturn(mock(Histogram.class));
+        when(mockMetricRegistry.meter(any())).thenReturn(mock(Meter.class));
+
+        AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry);
+
+        // same methods, seen in a different order
+        String reorderedStackTraces = "[[\"E()\", \"F()\", \"D()\"],[\"E()\", \"F()\", \"B()\", \"C()\"],[\"A()\",\"D()\",\"G()\"],[\"A()\",\"B()\"]]";
+        String startime1 = "2017-03-01T07:00:00", startime2 = "2017-03-01T07:30:00";
+        storage.store(MockAggregationWindow.buildAggregationWindow(startime1, () -> sampleStackTraces, 1800));
+        storage.store(MockAggregationWindow.buildAggregationWindow(startime2, () -> reorderedStackTraces, 1800));
+
+        AggregatedProfileNamingStrategy file1 = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1",
+                ZonedDateTime.parse(startime1 + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME), 1800, AggregatedProfileModel.WorkType.cpu_sample_work, true);
+        AggregatedProfileNamingStrategy file2 = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1",
+                ZonedDateTime.parse(startime2 + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME), 1800, AggregatedProfileModel.WorkType.cpu_sample_work, true);
+
+        AggregatedProfileModel.AggregationFileIndex index1 = AggregatedProfileModel.AggregationFileIndex.parseFrom(
+                StreamTransformer.decompress(new ByteArrayInputStream(asyncStorage.data.get(file1.getIndexFileName()))));
+        AggregatedProfileModel.AggregationFileIndex index2 = AggregatedProfileModel.AggregationFileIndex.parseFrom(
+                StreamTransformer.decompress(new ByteArrayInputStream(asyncStorage.data.get(file2.getIndexFileName()))));
+
+        Assert.assertEquals(index1.getMethodLookupDigest(), index2.getMethodLookupDigest());
+        Assert.assertTrue(asyncStorage.data.containsKey(file1.getMethodLookupFileName(index1.getMethodLookupDigest())));
+        Assert.assertEquals(1, asyncStorage.data.keySet().stream().filter(path -> path.contains("/methods/")).count());
+
+        AggregatedProfileLoader loader = new AggregatedProfileLoader(asyncStorage);
+        Future<AggregatedProfileInfo> profile1 = Future.future();
+        Future<AggregatedProfileInfo> profile2 = Future.future();
+        loader.load(profile1, file1);
+        loader.load(profile2, file2);
+        Assert.assertTrue("aggregated profiles were not loaded", profile1.succeeded() && profile2.succeeded());
+        Assert.assertEquals(profile1.result().getAggregatedSamples("full-app-trace").getMethodLookup(),
+                profile2.result().getAggregatedSamples("full-app-trace").getMethodLookup());
+    }
+
+    @Test
+    public void testStore_shouldStoreTraceCtxViewsSameAsJsonOfLoadedTraceCtx() throws Exception {
+        HashMapBasedStorage asyncStorage = new HashMapBasedStorage();
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(10);
+        poolConfig.setMaxIdle(10);
+
+        GenericObjectPool bufferPool = new GenericObjectPool<>(new ByteBufferPoolFactory(10_000_000, false), poolConfig);
+
+        MetricRegistry mockMetricRegistry = mock(MetricRegistry.class);
+        Timer mockTimer = mock(Timer.class);
+        when(mockMetricRegistry.timer(any())).thenReturn(mockTimer);
+        when(mockMetricRegistry.histogram(any())).thenReturn(mock(Histogram.class));
+        when(mockMetricRegistry.meter(any())).thenReturn(mock(Meter.class));
+
+        AggregationWindowStorage storage = new AggregationWindowStorage("profiles", asyncStorage, bufferPool, mockMetricRegistry,
+                CompressionCodec.LZ4, PartUploadPolicy.DEFAULT, true);
+
+        String startime = "2017-03-01T07:00:00";
+        ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
+        storage.store(MockAggregationWindow.buildAggregationWindow(startime, () -> sampleStackTraces, 1800));
+
+        AggregatedProfileNamingStrategy file = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1", startimeZ, 1800, AggregatedProfileModel.WorkType.cpu_sample_work, true);
+        AggregatedProfileLoader loader = new AggregatedProfileLoader(asyncStorage);
+
+        Future<AggregatedSamplesPerTraceCtx> traceCtx = Future.future();
+        loader.loadTraceCtx(traceCtx, file, "full-app-trace");
+        Future<Buffer> view = Future.future();
+        loader.loadTraceCtxView(view, file, "full-app-trace");
+        Assert.assertTrue("trace context was not loaded", traceCtx.succeeded());
+        Assert.assertTrue("view of trace context was not loaded", view.succeeded());
+
+        ObjectMapper om = new ObjectMapper();
+        ProtoSerializers.registerSerializers(om);
+        om.setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE);
+
+        // views are gzipped irrespective of the codec of the profile
+        byte[] viewJson = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(view.result().getBytes())));
+        Assert.assertEquals(om.readTree(om.writeValueAsString(traceCtx.result())), om.readTree(viewJson));
+
+        Future<Buffer> absentView = Future.future();
+        loader.loadTraceCtxView(absentView, file, "absent-trace");
+        Assert.assertTrue(absentView.failed());
+        Assert.assertTrue(absentView.cause() instanceof FileNotFoundException);
     }
 
     class HashMapBasedStorage implements AsyncStorage {
@@ -114,7 +520,10 @@ public class AggregationWindowSerDeTest {
 
         @Override
         public CompletableFuture<Set<String>> listAsync(String prefixPath, boolean recursive) {
-            throw new UnsupportedOperationException("list operation not supported");
+            if(!recursive) {
+                throw new UnsupportedOperationException("non recursive list operation not supported");
+            }
+            return CompletableFuture.completedFuture(data.keySet().stream().filter(path -> path.startsWith(prefixPath)).collect(Collectors.toSet()));
         }
     }
 
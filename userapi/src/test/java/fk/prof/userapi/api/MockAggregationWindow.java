@@ -27,11 +27,19 @@ import java.util.function.Supplier;
 public class MockAggregationWindow {
 
     public static FinalizedAggregationWindow buildAggregationWindow(String time, Supplier<String> stackTraces, int durationInSeconds) throws Exception {
+        return buildAggregationWindow(time, stackTraces, durationInSeconds, 0);
+    }
+
+    /**
+     * @param extraTraceCtxCount count of trace contexts besides "full-app-trace" which have the same tree, named "trace-{i}"
+     */
+    public static FinalizedAggregationWindow buildAggregationWindow(String time, Supplier<String> stackTraces, int durationInSeconds,
+                                                                    int extraTraceCtxCount) throws Exception {
 
         LocalDateTime lt = LocalDateTime.parse(time, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
 
         MutableInt sampleCount = new MutableInt(0);
-        FinalizedCpuSamplingAggregationBucket cpuSampleBucket = buildTree(stackTraces, sampleCount);
+        FinalizedCpuSamplingAggregationBucket cpuSampleBucket = buildTree(stackTraces, sampleCount, extraTraceCtxCount);
 
         int sampleCount1 = sampleCount.getValue() / 2;
         int sampleCount2 = sampleCount.getValue() - sampleCount1;
@@ -41,7 +49,7 @@ public class MockAggregationWindow {
         return window;
     }
 
-    private static FinalizedCpuSamplingAggregationBucket buildTree(Supplier<String> stacktraces, MutableInt sampleCount) throws IOException {
+    private static FinalizedCpuSamplingAggregationBucket buildTree(Supplier<String> stacktraces, MutableInt sampleCount, int extraTraceCtxCount) throws IOException {
         CpuSamplingTraceDetail traceDetail = new CpuSamplingTraceDetail();
 
         MethodIdLookup lookup = new MethodIdLookup();
@@ -83,7 +91,11 @@ public class MockAggregationWindow {
 
         sampleCount.setValue(stackTracesCount);
 
-        return new FinalizedCpuSamplingAggregationBucket(lookup, buildMap("full-app-trace", traceDetail));
+        Map<String, CpuSamplingTraceDetail> traceDetailLookup = buildMap("full-app-trace", traceDetail);
+        for(int i = 0; i < extraTraceCtxCount; i++) {
+            traceDetailLookup.put("trace-" + i, traceDetail);
+        }
+        return new FinalizedCpuSamplingAggregationBucket(lookup, traceDetailLookup);
     }
 
     private static Map<Long, FinalizedProfileWorkInfo> buildProfilesWorkInfo(LocalDateTime aggregationStart, int count1, int count2) {
@@ -114,12 +126,16 @@ public class MockAggregationWindow {
 
         FinalizedProfileWorkInfo wi = new FinalizedProfileWorkInfo(1, r1, AggregationState.COMPLETED, aggregationStart.plusSeconds(10), aggregationStart.plusSeconds(10 + 60), 60,
                 buildMap("full-app-trace", 5),
-                buildMap(AggregatedProfileModel.WorkType.cpu_sample_work, count1)
+                buildMap(AggregatedProfileModel.WorkType.cpu_sample_work, count1),
+                new FinalizedSampleErrorCounts(2, buildMap(AggregatedProfileModel.SampleError.ticks_GC_active, 3)),
+                buildMap("full-app-trace", new FinalizedSampleErrorCounts(2, buildMap(AggregatedProfileModel.SampleError.ticks_GC_active, 3)))
         );
 
         FinalizedProfileWorkInfo wi2 = new FinalizedProfileWorkInfo(1, r2, AggregationState.RETRIED, aggregationStart.plusSeconds(24), aggregationStart.plusSeconds(24 + 60), 60,
                 buildMap("full-app-trace", 10),
-                buildMap(AggregatedProfileModel.WorkType.cpu_sample_work, count2)
+                buildMap(AggregatedProfileModel.WorkType.cpu_sample_work, count2),
+                null,
+                null
         );
 
         return buildMap(101l, wi, 102l, wi2);
@@ -12,6 +12,7 @@ import fk.prof.aggregation.model.AggregationWindowSerializer;
 import fk.prof.aggregation.model.AggregationWindowSummarySerializer;
 import fk.prof.aggregation.model.FinalizedAggregationWindow;
 import fk.prof.aggregation.proto.AggregatedProfileModel;
+import fk.prof.storage.AsyncStorage;
 import io.vertx.core.Future;
 
 import java.io.ByteArrayInputStream;
@@ -20,9 +21,13 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 /**
  * Utility class to upload aggregated files to s3.
  * Created by gaurav.ashok on 27/03/17.
@@ -40,28 +45,40 @@ public class S3Util {
         ZonedDateTime startimeZ = ZonedDateTime.parse(startime + "Z", DateTimeFormatter.ISO_ZONED_DATE_TIME);
 
         ByteArrayOutputStream boutWS = new ByteArrayOutputStream();
-        GZIPOutputStream zoutWS = new GZIPOutputStream(boutWS);
         ByteArrayOutputStream boutSummary = new ByteArrayOutputStream();
         GZIPOutputStream zoutSummary = new GZIPOutputStream(boutSummary);
 
         AggregationWindowSerializer windowsSer = new AggregationWindowSerializer(window, AggregatedProfileModel.WorkType.cpu_sample_work);
         AggregationWindowSummarySerializer windowSummarySer = new AggregationWindowSummarySerializer(window);
 
-        windowsSer.serialize(zoutWS);
+        // sections of aggregated profile file are compressed by the serializer
+        windowsSer.serialize(boutWS);
         windowSummarySer.serialize(zoutSummary);
 
         //flush
-        zoutWS.close();
         zoutSummary.close();
 
+        // file is written as a single part
+        AggregatedProfileModel.AggregationFileIndex index = windowsSer.buildIndex(boutWS.size());
+        ByteArrayOutputStream boutIndex = new ByteArrayOutputStream();
+        GZIPOutputStream zoutIndex = new GZIPOutputStream(boutIndex);
+        index.writeTo(zoutIndex);
+        zoutIndex.close();
+
         System.out.println("cpusamaple size: " + boutWS.size());
         System.out.println("summary size: " + boutSummary.size());
 
+        AggregatedProfileNamingStrategy file1 = new AggregatedProfileNamingStrategy("profiles", AggregationWindowSerializer.VERSION, "app1", "cluster1", "proc1", startimeZ, durationInSeconds, AggregatedProfileModel.WorkType.cpu_sample_work);
+        // method lookup is stored by itself
+        AggregationWindowSerializer.MethodLookupDictionary methodLookup = windowsSer.getMethodLookupDictionary();
+        String methodLookupFileName = file1.getMethodLookupFileName(methodLookup.digest);
+
         // check for validity
-        AggregatedProfileLoader loader = new AggregatedProfileLoader(null);
+        AsyncStorage methodLookupStorage = mock(AsyncStorage.class);
+        when(methodLookupStorage.fetchAsync(methodLookupFileName)).thenReturn(CompletableFuture.completedFuture(new ByteArrayInputStream(methodLookup.content)));
+        AggregatedProfileLoader loader = new AggregatedProfileLoader(methodLookupStorage);
         Future f1 =  Future.future();
-        AggregatedProfileNamingStrategy file1 = new AggregatedProfileNamingStrategy("profiles", 1, "app1", "cluster1", "proc1", startimeZ, durationInSeconds, AggregatedProfileModel.WorkType.cpu_sample_work);
-        loader.loadFromInputStream(f1, file1, new GZIPInputStream(new ByteArrayInputStream(boutWS.toByteArray())));
+        loader.loadFromIndexedInputStream(f1, file1, index, new ByteArrayInputStream(boutWS.toByteArray()));
         assert f1.succeeded();
 
         Future f2 =  Future.future();
@@ -97,16 +114,21 @@ public class S3Util {
         listing.getObjectSummaries().stream().forEach(e -> System.out.println(e.getKey()));
 
         writeToS3(conn, file1, profilesBucket.get(), boutWS.toByteArray());
+        writeToS3(conn, methodLookupFileName, profilesBucket.get(), methodLookup.content);
+        writeToS3(conn, file1.getIndexFileName(), profilesBucket.get(), boutIndex.toByteArray());
         writeToS3(conn, file2, profilesBucket.get(), boutSummary.toByteArray());
 
         conn.shutdown();
     }
 
     private void writeToS3(AmazonS3Client conn, AggregatedProfileNamingStrategy filename, Bucket profilesBucket, byte[] bytes) {
+        writeToS3(conn, filename.getFileName(0), profilesBucket, bytes);
+    }
+
+    private void writeToS3(AmazonS3Client conn, String path, Bucket profilesBucket, byte[] bytes) {
         ObjectMetadata meta = new ObjectMetadata();
         meta.setContentLength(bytes.length);
-        String name = filename.getFileName(0);
-        name = name.substring(name.indexOf('/') + 1);
+        String name = path.substring(path.indexOf('/') + 1);
 
         System.out.println("writing to : " + name);
         PutObjectResult putResult = conn.putObject(profilesBucket.getName(), name, new ByteArrayInputStream(bytes), meta);
@@ -1,7 +1,9 @@
 package fk.prof.userapi.model;
 
 import fk.prof.aggregation.AggregatedProfileNamingStrategy;
+import fk.prof.aggregation.proto.AggregatedProfileModel;
 import fk.prof.storage.AsyncStorage;
+import fk.prof.storage.ObjectNotFoundException;
 import fk.prof.userapi.Configuration;
 import fk.prof.userapi.UserapiConfigManager;
 import fk.prof.userapi.api.ProfileStoreAPI;
@@ -21,14 +23,20 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.internal.util.collections.Sets;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -55,6 +63,8 @@ public class ProfileDiscoveryAPITest {
             "profiles/v0001/MFYHAMI=/MNWHK43UMVZDC===/OBZG6Y3FONZTC===/2017-01-20T12:37:20.551+05:30/1500/summary/0001",
             "profiles/v0001/MFYHAMI=/MNWHK43UMVZDC===/OBZG6Y3FONZTC===/2017-01-20T12:37:20.551+05:30/1800/monitor_wait_work/0001",
             "profiles/v0001/MFYHAMI=/MNWHK43UMVZDC===/OBZG6Y3FONZTC===/2017-01-20T12:37:20.551+05:30/1800/summary/0001",
+            "profiles/v0001/MFYHAMI=/MNWHK43UMVZDC===/OBZG6Y3FONZTC===/2017-01-22/10/2017-01-22T10:10:00Z/1800/summary/0001",
+            "profiles/v0001/MFYHAMI=/MNWHK43UMVZDC===/OBZG6Y3FONZTC===/2017-01-22/13/2017-01-22T13:10:00Z/1800/summary/0001",
     };
 
     AggregatedProfileNamingStrategy[] filenames = Stream.of(objects).map(AggregatedProfileNamingStrategy::fromFileName).toArray(AggregatedProfileNamingStrategy[]::new);
@@ -92,6 +102,12 @@ public class ProfileDiscoveryAPITest {
             Boolean recursive = invocation.getArgument(1);
             return CompletableFuture.supplyAsync(() -> getObjList(path1, recursive));
         });
+        // no manifests, so profiles are listed
+        when(asyncStorage.fetchAsync(anyString())).thenAnswer(invocation -> {
+            CompletableFuture<InputStream> notFound = new CompletableFuture<>();
+            notFound.completeExceptionally(new ObjectNotFoundException(invocation.getArgument(0)));
+            return notFound;
+        });
     }
 
     @Test(timeout = 10000)
@@ -206,6 +222,91 @@ public class ProfileDiscoveryAPITest {
         f.setHandler(res -> completeTest(res, context, async));
     }
 
+    @Test(timeout = 10000)
+    public void testGetProfilesInTimeWindow_shouldReadManifestInsteadOfListing(TestContext context) throws Exception {
+        Async async = context.async();
+        ZonedDateTime windowStart = ZonedDateTime.parse("2017-01-20T07:07:20.551Z");
+        AggregatedProfileModel.ProfilesManifest manifest = AggregatedProfileModel.ProfilesManifest.newBuilder()
+                .addEntries(AggregatedProfileModel.ProfilesManifest.Entry.newBuilder()
+                        .setAggregationStartTime(windowStart.format(DateTimeFormatter.ISO_ZONED_DATE_TIME)).setDuration(1500)
+                        .addFiles(AggregatedProfileModel.ProfilesManifest.StoredFile.newBuilder()
+                                .setWorkType(AggregatedProfileModel.WorkType.cpu_sample_work).setFormatVersion(4).setPartCount(2).setSize(100))
+                        .addFiles(AggregatedProfileModel.ProfilesManifest.StoredFile.newBuilder()
+                                .setFormatVersion(1).setPartCount(1).setSize(10)))
+                .addEntries(AggregatedProfileModel.ProfilesManifest.Entry.newBuilder()
+                        .setAggregationStartTime(windowStart.plusHours(2).format(DateTimeFormatter.ISO_ZONED_DATE_TIME)).setDuration(1500)
+                        .addFiles(AggregatedProfileModel.ProfilesManifest.StoredFile.newBuilder()
+                                .setFormatVersion(1).setPartCount(1).setSize(10)))
+                .build();
+        // stored as an entry per window
+        String manifestDirName = AggregatedProfileNamingStrategy.getManifestDirName(BASE_DIR, "app1", "cluster1", "process1", windowStart.toLocalDate());
+        Set<String> manifestEntryFileNames = new HashSet<>();
+        for (AggregatedProfileModel.ProfilesManifest.Entry entry : manifest.getEntriesList()) {
+            String manifestEntryFileName = AggregatedProfileNamingStrategy.getManifestEntryFileName(BASE_DIR, "app1", "cluster1", "process1",
+                    ZonedDateTime.parse(entry.getAggregationStartTime(), DateTimeFormatter.ISO_ZONED_DATE_TIME), entry.getDuration());
+            manifestEntryFileNames.add(manifestEntryFileName);
+            byte[] entryBytes = AggregatedProfileModel.ProfilesManifest.newBuilder().addEntries(entry).build().toByteArray();
+            when(asyncStorage.fetchAsync(manifestEntryFileName)).thenReturn(CompletableFuture.completedFuture(new ByteArrayInputStream(entryBytes)));
+        }
+        when(asyncStorage.listAsync(manifestDirName, true)).thenReturn(CompletableFuture.completedFuture(manifestEntryFileNames));
+
+        Future<List<AggregatedProfileNamingStrategy>> f = Future.future();
+        f.setHandler(res -> {
+            context.assertEquals(Collections.singletonList(new AggregatedProfileNamingStrategy(BASE_DIR, 1, "app1", "cluster1", "process1", windowStart, 1500)),
+                    res.result());
+            // profiles are not listed
+            verify(asyncStorage, never()).listAsync(startsWith(BASE_DIR + DELIMITER + "v0001"), anyBoolean());
+            completeTest(res, context, async);
+        });
+        profileDiscoveryAPI.getProfilesInTimeWindow(f, BASE_DIR, "app1", "cluster1", "process1", windowStart.minusMinutes(5), 3600);
+    }
+
+    @Test(timeout = 10000)
+    public void testGetStoredProfile_shouldTakeVersionAndPartitioningFromManifestEntry(TestContext context) throws Exception {
+        Async async = context.async();
+        ZonedDateTime windowStart = ZonedDateTime.parse("2017-01-20T07:00:00Z");
+        AggregatedProfileModel.ProfilesManifest manifest = AggregatedProfileModel.ProfilesManifest.newBuilder()
+                .addEntries(AggregatedProfileModel.ProfilesManifest.Entry.newBuilder()
+                        .setAggregationStartTime(windowStart.format(DateTimeFormatter.ISO_ZONED_DATE_TIME)).setDuration(1800)
+                        .addFiles(AggregatedProfileModel.ProfilesManifest.StoredFile.newBuilder()
+                                .setWorkType(AggregatedProfileModel.WorkType.cpu_sample_work).setFormatVersion(3).setPartCount(1).setSize(100)
+                                .setHourPartitioned(true))
+                        .addFiles(AggregatedProfileModel.ProfilesManifest.StoredFile.newBuilder()
+                                .setFormatVersion(1).setPartCount(1).setSize(10)))
+                .build();
+        String manifestEntryFileName = AggregatedProfileNamingStrategy.getManifestEntryFileName(BASE_DIR, "app1", "cluster1", "process1", windowStart, 1800);
+        when(asyncStorage.fetchAsync(manifestEntryFileName)).thenReturn(CompletableFuture.completedFuture(new ByteArrayInputStream(manifest.toByteArray())));
+
+        Future<AggregatedProfileNamingStrategy> stored = Future.future();
+        Future<AggregatedProfileNamingStrategy> notStored = Future.future();
+        CompositeFuture.all(stored, notStored).setHandler(res -> {
+            context.assertEquals(new AggregatedProfileNamingStrategy(BASE_DIR, 3, "app1", "cluster1", "process1", windowStart, 1800,
+                    AggregatedProfileModel.WorkType.cpu_sample_work, true), stored.result());
+            // window without a manifest entry
+            context.assertNull(notStored.result());
+            completeTest(res, context, async);
+        });
+        profileDiscoveryAPI.getStoredProfile(stored, BASE_DIR, "app1", "cluster1", "process1", windowStart, 1800, AggregatedProfileModel.WorkType.cpu_sample_work);
+        profileDiscoveryAPI.getStoredProfile(notStored, BASE_DIR, "app1", "cluster1", "process1", windowStart.plusMinutes(30), 1800,
+                AggregatedProfileModel.WorkType.cpu_sample_work);
+    }
+
+    @Test(timeout = 10000)
+    public void testGetProfilesInTimeWindow_shouldListOnlyHoursOverlappingWindowOfHourPartitionedFiles(TestContext context) throws Exception {
+        Async async = context.async();
+        ZonedDateTime windowStart = ZonedDateTime.parse("2017-01-22T09:30:00Z");
+
+        Future<List<AggregatedProfileNamingStrategy>> f = Future.future();
+        f.setHandler(res -> {
+            context.assertEquals(Collections.singletonList(filenames[7]), res.result());
+            context.assertTrue(filenames[7].isHourPartitioned);
+            verify(asyncStorage).listAsync("profiles/v0001/MFYHAMI=/MNWHK43UMVZDC===/OBZG6Y3FONZTC===/2017-01-22/10/", true);
+            verify(asyncStorage, never()).listAsync("profiles/v0001/MFYHAMI=/MNWHK43UMVZDC===/OBZG6Y3FONZTC===/2017-01-22/13/", true);
+            completeTest(res, context, async);
+        });
+        profileDiscoveryAPI.getProfilesInTimeWindow(f, BASE_DIR, "app1", "cluster1", "process1", windowStart, 3600);
+    }
+
     private void completeTest(AsyncResult result, TestContext context, Async async) {
         if(result.failed()) {
             context.fail(result.cause());